@@ -40,6 +40,7 @@ public class ChangeDetail {
   protected List<ApprovalDetail> approvals;
   protected Set<ApprovalCategory.Id> missingApprovals;
   protected boolean canSubmit;
+  protected boolean knownConflict;
   protected List<ChangeMessage> messages;
   protected PatchSet.Id currentPatchSetId;
   protected PatchSetDetail currentDetail;
@@ -95,6 +96,15 @@ public class ChangeDetail {
     canSubmit = a;
   }
 
+  /** @return true if the current patch set is known to conflict. */
+  public boolean isKnownConflict() {
+    return knownConflict;
+  }
+
+  public void setKnownConflict(boolean c) {
+    knownConflict = c;
+  }
+
   public Change getChange() {
     return change;
   }
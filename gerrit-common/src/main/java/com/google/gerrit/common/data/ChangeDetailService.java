@@ -27,6 +27,8 @@ import com.google.gwtjsonrpc.client.RpcImpl.Version;
 public interface ChangeDetailService extends RemoteJsonService {
   void changeDetail(Change.Id id, AsyncCallback<ChangeDetail> callback);
 
+  void topicDetail(Change.Id id, AsyncCallback<TopicDetail> callback);
+
   void includedInDetail(Change.Id id, AsyncCallback<IncludedInDetail> callback);
 
   void patchSetDetail(PatchSet.Id keyA, PatchSet.Id keyB,
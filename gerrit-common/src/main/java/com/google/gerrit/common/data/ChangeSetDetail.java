@@ -17,6 +17,7 @@ package com.google.gerrit.common.data;
 import com.google.gerrit.reviewdb.Change;
 import com.google.gerrit.reviewdb.ChangeSet;
 import com.google.gerrit.reviewdb.ChangeSetInfo;
+import com.google.gerrit.reviewdb.PatchSet;
 
 import java.util.List;
 
@@ -24,6 +25,7 @@ public class ChangeSetDetail {
   protected ChangeSet changeSet;
   protected ChangeSetInfo info;
   protected List<Change> changes;
+  protected List<PatchSet> patchSets;
 
   public ChangeSetDetail() {
   }
@@ -51,4 +53,13 @@ public class ChangeSetDetail {
   public void setChanges(final List<Change> c) {
     changes = c;
   }
+
+  /** @return current patch set of each change, in the order of the changes. */
+  public List<PatchSet> getPatchSets() {
+    return patchSets;
+  }
+
+  public void setPatchSets(final List<PatchSet> p) {
+    patchSets = p;
+  }
 }
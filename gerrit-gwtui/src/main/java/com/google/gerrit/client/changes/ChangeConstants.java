@@ -102,6 +102,8 @@ public interface ChangeConstants extends Constants {
   String patchSetInfoParents();
   String initialCommit();
 
+  String mergeConflictWarning();
+
   String buttonRevertChangeBegin();
   String buttonRevertChangeSend();
   String buttonRevertChangeCancel();
@@ -426,6 +426,11 @@ class PatchSetComplexDisclosurePanel extends ComplexDisclosurePanel implements O
       actionsPanel.add(b);
     }
 
+    if (isOpen && changeDetail.isKnownConflict()
+        && changeDetail.isCurrentPatchSet(detail)) {
+      actionsPanel.add(new InlineLabel(Util.C.mergeConflictWarning()));
+    }
+
     if (changeDetail.canRevert()) {
       final Button b = new Button(Util.C.buttonRevertChangeBegin());
       b.addClickHandler(new ClickHandler() {
@@ -24,27 +24,19 @@ import com.google.gerrit.client.ui.NeedsSignInKeyCommand;
 import com.google.gerrit.client.ui.Screen;
 import com.google.gerrit.common.data.AccountInfo;
 import com.google.gerrit.common.data.AccountInfoCache;
-import com.google.gerrit.common.data.ApprovalDetail;
 import com.google.gerrit.common.data.ChangeDetail;
 import com.google.gerrit.common.data.ChangeInfo;
-import com.google.gerrit.common.data.ChangeSetDetail;
 import com.google.gerrit.common.data.ToggleStarRequest;
 import com.google.gerrit.common.data.TopicDetail;
 import com.google.gerrit.common.data.TopicInfo;
 import com.google.gerrit.reviewdb.Account;
 import com.google.gerrit.reviewdb.AccountAccess;
-import com.google.gerrit.reviewdb.ApprovalCategory;
-import com.google.gerrit.reviewdb.Branch;
 import com.google.gerrit.reviewdb.Change;
 import com.google.gerrit.reviewdb.ChangeMessage;
 import com.google.gerrit.reviewdb.ChangeSet;
-import com.google.gerrit.reviewdb.ChangeSetInfo;
 import com.google.gerrit.reviewdb.PatchSet;
-import com.google.gerrit.reviewdb.PatchSetInfo;
-import com.google.gerrit.reviewdb.Project;
 import com.google.gerrit.reviewdb.Topic;
 import com.google.gerrit.reviewdb.TopicMessage;
-import com.google.gerrit.reviewdb.UserIdentity;
 import com.google.gerrit.reviewdb.Change.Status;
 import com.google.gwt.core.client.GWT;
 import com.google.gwt.event.dom.client.ChangeEvent;
@@ -68,11 +60,7 @@ import com.google.gwtjsonrpc.client.VoidResult;
 import com.google.gwtorm.client.OrmException;
 
 import java.sql.Timestamp;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 
 
 public class TopicScreen extends Screen {
@@ -168,127 +156,19 @@ public class TopicScreen extends Screen {
     }
   }
 
-//  public void refresh() {
-//    Util.DETAIL_SVC.changeDetail(changeId,
-//        new ScreenLoadCallback<ChangeDetail>(this) {
-//          @Override
-//          protected void preDisplay(final ChangeDetail r) {
-//            display(r);
-//          }
-//
-//          @Override
-//          protected void postDisplay() {
-//            patchSetsBlock.setRegisterKeys(true);
-//          }
-//        });
-//  }
-
   public void refresh() {
-    // TODO Dummy function, remove me when the server side is ready
-    Account.Id aId = new Account.Id(1000000);
-
-    Topic.Key tKey = new Topic.Key("T1100011");
-    Change.Id tId = new Change.Id(1100011);
-    Topic topic = new Topic(tKey, tId, aId, null);
-    currentTopicId = tId;
-
-    List<ChangeSet> lcs = new ArrayList<ChangeSet>();
-    ChangeSetDetail csDetail = new ChangeSetDetail();
-    ChangeSet.Id csId = null;
-    lcs.clear();
-
-    UserIdentity uid = new UserIdentity();
-    uid.setAccount(aId);
-    uid.setEmail("my@email.com");
-    uid.setName("Random Name");
-    uid.setTimeZone(0);
-
-    ChangeSetInfo csi = null;
-    for (int id = 1; id < 6; id++) {
-      csId = new ChangeSet.Id(currentTopicId, id);
-      ChangeSet cs = new ChangeSet(csId);
-      cs.setTopicId(tId);
-      csDetail.setChangeSet(cs);
-      csId = new ChangeSet.Id(currentTopicId, id);
-      csi = new ChangeSetInfo(csId);
-      csi.setSubject("This is the subject from the change set number " + id);
-      csi.setAuthor(uid);
-      csi.setMessage("ChangeSetInfo message");
-      csDetail.setInfo(csi);
-      lcs.add(cs);
-    }
-
-    List<Change> lc = new ArrayList<Change>();
-    for (int id = 1; id < 6; id++) {
-      Change c = new Change(new Change.Key("KeyID" + id), new Change.Id(id),
-          aId, new Branch.NameKey(new Project.NameKey("ProjectNamekey"), "BranchNamekey"));
-      c.setTopicId(tId);
-      PatchSetInfo ps = new PatchSetInfo(new PatchSet.Id(c.getId(), id));
-      ps.setSubject("This is the patchSet Subject");
-      c.setCurrentPatchSet(ps);
-      c.setStatus(Change.Status.NEW);
-      lc.add(c);
-    }
-    csDetail.setChanges(lc);
-
-    List<TopicMessage> ltm = new ArrayList<TopicMessage>();
-    ltm.clear();
-    for (int i = 0; i < 5; i++) {
-      TopicMessage.Key k = new TopicMessage.Key(currentTopicId, "" + i);
-      TopicMessage m = new TopicMessage(k, aId);
-      m.setMessage("Hello, this is the dummy message number " + i);
-
-      ltm.add(m);
-    }
-
-
-
-    AccountInfo ai = new AccountInfo(aId);
-    ai.setPreferredEmail("my@email.com");
-    List<AccountInfo> aiList = new ArrayList<AccountInfo>();
-    aiList.add(ai);
-    AccountInfoCache aic = new AccountInfoCache(aiList);
-
-    topic.setCurrentChangeSet(csi);
-    topic.setKey(tKey);
-    topic.setTopic("TestTopic");
-    topic.setStatus(Status.NEW);
-
-    Set<ApprovalCategory.Id> aprovals = new HashSet<ApprovalCategory.Id>();
-    ApprovalCategory category = new ApprovalCategory(new ApprovalCategory.Id("1"), "categoryName");
-    aprovals.add(category.getId());
-
-    Collection<ApprovalDetail> a = new ArrayList<ApprovalDetail>();
-    ApprovalDetail ad = new ApprovalDetail(aId);
-    a.add(ad);
-
-    List<ChangeInfo> cil = new ArrayList<ChangeInfo>();
-    for (Change c : lc) {
-      ChangeInfo ci = new ChangeInfo(c);
-      cil.add(ci);
-    }
-
-    // Dummy data for TopicDetail
-    TopicDetail tDetail = new TopicDetail();
-
-    tDetail.setChangeSets(lcs);
-    tDetail.setCurrentChangeSetDetail(csDetail);
-    tDetail.setMessages(ltm);
-    tDetail.setApprovals(a);
-    tDetail.setCanAbandon(true);
-    tDetail.setAccounts(aic);
-    tDetail.setTopic(topic);
-    tDetail.setMissingApprovals(aprovals);
-    tDetail.setDependsOn(cil);
-    tDetail.setNeededBy(cil);
-
-    final Screen screen = this;
-
-    if (screen.isAttached()) {
-      display(tDetail);
-      screen.display();
-      changeSetsBlock.setRegisterKeys(true);
-    }
+    Util.DETAIL_SVC.topicDetail(topicId,
+        new ScreenLoadCallback<TopicDetail>(this) {
+          @Override
+          protected void preDisplay(final TopicDetail r) {
+            display(r);
+          }
+
+          @Override
+          protected void postDisplay() {
+            changeSetsBlock.setRegisterKeys(true);
+          }
+        });
   }
 
   @Override
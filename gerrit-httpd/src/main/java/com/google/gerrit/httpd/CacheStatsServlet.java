@@ -0,0 +1,102 @@
+// Copyright (C) 2011 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.httpd;
+
+import com.google.gerrit.server.CurrentUser;
+import com.google.gerrit.server.cache.CachePool;
+import com.google.gerrit.server.cache.CacheStats;
+import com.google.gson.Gson;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/** Reports the usage counters of every cache as JSON, to administrators. */
+@Singleton
+public class CacheStatsServlet extends HttpServlet {
+  private static final long serialVersionUID = 1L;
+
+  private final CachePool cachePool;
+  private final Provider<CurrentUser> currentUser;
+
+  @Inject
+  CacheStatsServlet(final CachePool cachePool,
+      final Provider<CurrentUser> currentUser) {
+    this.cachePool = cachePool;
+    this.currentUser = currentUser;
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse rsp)
+      throws IOException {
+    if (!currentUser.get().isAdministrator()) {
+      rsp.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+
+    final Map<String, CacheInfo> all = new LinkedHashMap<String, CacheInfo>();
+    for (final CacheStats s : cachePool.getStats().values()) {
+      all.put(s.getName(), new CacheInfo(s));
+    }
+
+    rsp.setHeader("Cache-Control", "no-cache, must-revalidate");
+    rsp.setContentType("text/json");
+    rsp.setCharacterEncoding("UTF-8");
+    final ServletOutputStream out = rsp.getOutputStream();
+    try {
+      out.write(new Gson().toJson(all).getBytes("UTF-8"));
+      out.write('\n');
+      out.flush();
+    } finally {
+      out.close();
+    }
+  }
+
+  static class CacheInfo {
+    long hits;
+    long misses;
+    long loads;
+    long loadFailures;
+    int loadsInFlight;
+    long collapsed;
+    long waitTimeouts;
+    long evictions;
+    double averageLoadMillis;
+    long[] loadHistogramBuckets;
+    long[] loadHistogram;
+
+    CacheInfo(final CacheStats s) {
+      hits = s.getHits();
+      misses = s.getMisses();
+      loads = s.getLoads();
+      loadFailures = s.getLoadFailures();
+      loadsInFlight = s.getLoadsInFlight();
+      collapsed = s.getCollapsed();
+      waitTimeouts = s.getWaitTimeouts();
+      evictions = s.getEvictions();
+      averageLoadMillis = s.getAverageLoadMillis();
+      loadHistogramBuckets = CacheStats.getLoadHistogramBuckets();
+      loadHistogram = s.getLoadHistogram();
+    }
+  }
+}
@@ -26,6 +26,7 @@ import com.google.gerrit.server.config.CanonicalWebUrl;
 import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.git.ReceiveCommits;
 import com.google.gerrit.server.git.TransferConfig;
+import com.google.gerrit.server.git.VisibleRefCache;
 import com.google.gerrit.server.git.VisibleRefFilter;
 import com.google.gerrit.server.project.NoSuchProjectException;
 import com.google.gerrit.server.project.ProjectControl;
@@ -209,11 +210,14 @@ public class ProjectServlet extends GitServlet {
 
   static class Upload implements UploadPackFactory<HttpServletRequest> {
     private final Provider<ReviewDb> db;
+    private final VisibleRefCache visibleRefCache;
     private final PackConfig packConfig;
 
     @Inject
-    Upload(final Provider<ReviewDb> db, final TransferConfig tc) {
+    Upload(final Provider<ReviewDb> db, final VisibleRefCache visibleRefCache,
+        final TransferConfig tc) {
       this.db = db;
+      this.visibleRefCache = visibleRefCache;
       this.packConfig = tc.getPackConfig();
     }
 
@@ -230,7 +234,8 @@ public class ProjectServlet extends GitServlet {
       UploadPack up = new UploadPack(repo);
       up.setPackConfig(packConfig);
       if (!pc.allRefsAreVisible()) {
-        up.setRefFilter(new VisibleRefFilter(repo, pc, db.get(), true));
+        up.setRefFilter(new VisibleRefFilter(repo, pc, db.get(),
+            visibleRefCache, true));
       }
       return up;
     }
@@ -44,6 +44,7 @@ class UrlModule extends ServletModule {
     serve("/").with(HostPageServlet.class);
     serve("/Gerrit").with(LegacyGerritServlet.class);
     serve("/Gerrit/*").with(legacyGerritScreen());
+    serve("/cache_stats").with(CacheStatsServlet.class);
     serve("/cat/*").with(CatServlet.class);
     serve("/logout").with(HttpLogoutServlet.class);
     serve("/query").with(ChangeQueryServlet.class);
@@ -28,6 +28,7 @@ import com.google.gerrit.reviewdb.Project;
 import com.google.gerrit.reviewdb.ReviewDb;
 import com.google.gerrit.server.IdentifiedUser;
 import com.google.gerrit.server.account.AccountCache;
+import com.google.gerrit.server.account.ProjectWatchCache;
 import com.google.gerrit.server.project.NoSuchProjectException;
 import com.google.gerrit.server.project.ProjectControl;
 import com.google.gerrit.server.query.QueryParseException;
@@ -49,6 +50,7 @@ class AccountServiceImpl extends BaseServiceImplementation implements
     AccountService {
   private final Provider<IdentifiedUser> currentUser;
   private final AccountCache accountCache;
+  private final ProjectWatchCache projectWatchCache;
   private final ProjectControl.Factory projectControlFactory;
   private final AgreementInfoFactory.Factory agreementInfoFactory;
   private final ChangeQueryBuilder.Factory queryBuilder;
@@ -57,12 +59,14 @@ class AccountServiceImpl extends BaseServiceImplementation implements
   AccountServiceImpl(final Provider<ReviewDb> schema,
       final Provider<IdentifiedUser> identifiedUser,
       final AccountCache accountCache,
+      final ProjectWatchCache projectWatchCache,
       final ProjectControl.Factory projectControlFactory,
       final AgreementInfoFactory.Factory agreementInfoFactory,
       final ChangeQueryBuilder.Factory queryBuilder) {
     super(schema, identifiedUser);
     this.currentUser = identifiedUser;
     this.accountCache = accountCache;
+    this.projectWatchCache = projectWatchCache;
     this.projectControlFactory = projectControlFactory;
     this.agreementInfoFactory = agreementInfoFactory;
     this.queryBuilder = queryBuilder;
@@ -128,6 +132,7 @@ class AccountServiceImpl extends BaseServiceImplementation implements
             ctl = projectControlFactory.validateFor(w.getProjectNameKey());
           } catch (NoSuchProjectException e) {
             db.accountProjectWatches().delete(Collections.singleton(w));
+            projectWatchCache.evict(w.getProjectNameKey());
             continue;
           }
           r.add(new AccountProjectWatchInfo(w, ctl.getProject()));
@@ -170,6 +175,7 @@ class AccountServiceImpl extends BaseServiceImplementation implements
         } catch (OrmDuplicateKeyException alreadyHave) {
           watch = db.accountProjectWatches().get(watch.getKey());
         }
+        projectWatchCache.evict(nameKey);
         return new AccountProjectWatchInfo(watch, ctl.getProject());
       }
     });
@@ -185,6 +191,7 @@ class AccountServiceImpl extends BaseServiceImplementation implements
     run(callback, new Action<VoidResult>() {
       public VoidResult run(ReviewDb db) throws OrmException {
         db.accountProjectWatches().update(Collections.singleton(watch));
+        projectWatchCache.evict(watch.getProjectNameKey());
         return VoidResult.INSTANCE;
       }
     });
@@ -201,6 +208,9 @@ class AccountServiceImpl extends BaseServiceImplementation implements
         }
 
         db.accountProjectWatches().deleteKeys(keys);
+        for (final AccountProjectWatch.Key keyId : keys) {
+          projectWatchCache.evict(keyId.getProjectName());
+        }
         return VoidResult.INSTANCE;
       }
     });
@@ -32,6 +32,7 @@ import com.google.gerrit.reviewdb.RevId;
 import com.google.gerrit.reviewdb.ReviewDb;
 import com.google.gerrit.server.IdentifiedUser;
 import com.google.gerrit.server.account.AccountInfoCacheFactory;
+import com.google.gerrit.server.git.PreMergeCache;
 import com.google.gerrit.server.patch.PatchSetInfoNotAvailableException;
 import com.google.gerrit.server.project.CanSubmitResult;
 import com.google.gerrit.server.project.ChangeControl;
@@ -58,6 +59,7 @@ public class ChangeDetailFactory extends Handler<ChangeDetail> {
   }
 
   private final ApprovalTypes approvalTypes;
+  private final PreMergeCache preMergeCache;
   private final ChangeControl.Factory changeControlFactory;
   private final FunctionState.Factory functionState;
   private final PatchSetDetailFactory.Factory patchSetDetail;
@@ -71,12 +73,14 @@ public class ChangeDetailFactory extends Handler<ChangeDetail> {
 
   @Inject
   ChangeDetailFactory(final ApprovalTypes approvalTypes,
+      final PreMergeCache preMergeCache,
       final FunctionState.Factory functionState,
       final PatchSetDetailFactory.Factory patchSetDetail, final ReviewDb db,
       final ChangeControl.Factory changeControlFactory,
       final AccountInfoCacheFactory.Factory accountInfoCacheFactory,
       @Assisted final Change.Id id) {
     this.approvalTypes = approvalTypes;
+    this.preMergeCache = preMergeCache;
     this.functionState = functionState;
     this.patchSetDetail = patchSetDetail;
     this.db = db;
@@ -106,6 +110,8 @@ public class ChangeDetailFactory extends Handler<ChangeDetail> {
     detail.setCanAbandon(change.getStatus().isOpen() && control.canAbandon());
     detail.setCanRestore(change.getStatus() == Change.Status.ABANDONED && control.canRestore());
     detail.setCanSubmit(canSubmitResult == CanSubmitResult.OK);
+    detail.setKnownConflict(change.getStatus().isOpen()
+        && preMergeCache.isKnownConflict(change, patch));
     detail.setStarred(control.getCurrentUser().getStarredChanges().contains(
         changeId));
 
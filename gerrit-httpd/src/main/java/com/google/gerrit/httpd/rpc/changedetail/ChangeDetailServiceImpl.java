@@ -19,6 +19,7 @@ import com.google.gerrit.common.data.ChangeDetailService;
 import com.google.gerrit.common.data.IncludedInDetail;
 import com.google.gerrit.common.data.PatchSetDetail;
 import com.google.gerrit.common.data.PatchSetPublishDetail;
+import com.google.gerrit.common.data.TopicDetail;
 import com.google.gerrit.reviewdb.AccountDiffPreference;
 import com.google.gerrit.reviewdb.Change;
 import com.google.gerrit.reviewdb.PatchSet;
@@ -30,16 +31,19 @@ class ChangeDetailServiceImpl implements ChangeDetailService {
   private final IncludedInDetailFactory.Factory includedInDetail;
   private final PatchSetDetailFactory.Factory patchSetDetail;
   private final PatchSetPublishDetailFactory.Factory patchSetPublishDetail;
+  private final TopicDetailFactory.Factory topicDetail;
 
   @Inject
   ChangeDetailServiceImpl(final ChangeDetailFactory.Factory changeDetail,
       final IncludedInDetailFactory.Factory includedInDetail,
       final PatchSetDetailFactory.Factory patchSetDetail,
-      final PatchSetPublishDetailFactory.Factory patchSetPublishDetail) {
+      final PatchSetPublishDetailFactory.Factory patchSetPublishDetail,
+      final TopicDetailFactory.Factory topicDetail) {
     this.changeDetail = changeDetail;
     this.includedInDetail = includedInDetail;
     this.patchSetDetail = patchSetDetail;
     this.patchSetPublishDetail = patchSetPublishDetail;
+    this.topicDetail = topicDetail;
   }
 
   public void changeDetail(final Change.Id id,
@@ -47,6 +51,11 @@ class ChangeDetailServiceImpl implements ChangeDetailService {
     changeDetail.create(id).to(callback);
   }
 
+  public void topicDetail(final Change.Id id,
+      final AsyncCallback<TopicDetail> callback) {
+    topicDetail.create(id).to(callback);
+  }
+
   public void includedInDetail(final Change.Id id,
       final AsyncCallback<IncludedInDetail> callback) {
     includedInDetail.create(id).to(callback);
@@ -0,0 +1,290 @@
+// Copyright (C) 2011 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.httpd.rpc.changedetail;
+
+import com.google.gerrit.common.data.ApprovalDetail;
+import com.google.gerrit.common.data.ApprovalType;
+import com.google.gerrit.common.data.ApprovalTypes;
+import com.google.gerrit.common.data.ChangeInfo;
+import com.google.gerrit.common.data.ChangeSetDetail;
+import com.google.gerrit.common.data.TopicDetail;
+import com.google.gerrit.common.errors.NoSuchEntityException;
+import com.google.gerrit.httpd.rpc.Handler;
+import com.google.gerrit.reviewdb.Account;
+import com.google.gerrit.reviewdb.ApprovalCategory;
+import com.google.gerrit.reviewdb.Change;
+import com.google.gerrit.reviewdb.ChangeMessage;
+import com.google.gerrit.reviewdb.ChangeSet;
+import com.google.gerrit.reviewdb.ChangeSetInfo;
+import com.google.gerrit.reviewdb.PatchSet;
+import com.google.gerrit.reviewdb.PatchSetApproval;
+import com.google.gerrit.reviewdb.ReviewDb;
+import com.google.gerrit.reviewdb.Topic;
+import com.google.gerrit.reviewdb.TopicMessage;
+import com.google.gerrit.server.IdentifiedUser;
+import com.google.gerrit.server.account.AccountInfoCacheFactory;
+import com.google.gerrit.server.project.CanSubmitResult;
+import com.google.gerrit.server.project.ChangeControl;
+import com.google.gerrit.server.project.NoSuchChangeException;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.google.gerrit.server.workflow.CategoryFunction;
+import com.google.gerrit.server.workflow.FunctionState;
+import com.google.gwtorm.client.OrmException;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.assistedinject.Assisted;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Creates a {@link TopicDetail} from a {@link Topic}.
+ * <p>
+ * The rows of all member changes are read together, so the number of
+ * queries does not grow with the size of the topic.
+ */
+public class TopicDetailFactory extends Handler<TopicDetail> {
+  public interface Factory {
+    TopicDetailFactory create(Change.Id id);
+  }
+
+  private final ApprovalTypes approvalTypes;
+  private final ChangeControl.Factory changeControlFactory;
+  private final FunctionState.Factory functionState;
+  private final AccountInfoCacheFactory aic;
+  private final Provider<ReviewDb> db;
+
+  private final Change.Id topicId;
+
+  private TopicDetail detail;
+  private List<ChangeData> changes;
+  private Map<Change.Id, ChangeControl> controls;
+
+  @Inject
+  TopicDetailFactory(final ApprovalTypes approvalTypes,
+      final FunctionState.Factory functionState, final Provider<ReviewDb> db,
+      final ChangeControl.Factory changeControlFactory,
+      final AccountInfoCacheFactory.Factory accountInfoCacheFactory,
+      @Assisted final Change.Id id) {
+    this.approvalTypes = approvalTypes;
+    this.functionState = functionState;
+    this.db = db;
+    this.changeControlFactory = changeControlFactory;
+    this.aic = accountInfoCacheFactory.create();
+
+    this.topicId = id;
+  }
+
+  @Override
+  public TopicDetail call() throws OrmException, NoSuchEntityException,
+      NoSuchChangeException {
+    final Topic topic = db.get().topics().get(topicId);
+    if (topic == null) {
+      throw new NoSuchEntityException();
+    }
+    loadChanges();
+
+    aic.want(topic.getOwner());
+
+    detail = new TopicDetail();
+    detail.setTopic(topic);
+    detail.setChangeSets(db.get().changeSets().byTopic(topicId).toList());
+    detail.setDependsOn(new ArrayList<ChangeInfo>());
+    detail.setNeededBy(new ArrayList<ChangeInfo>());
+
+    boolean anonymous = true;
+    boolean canAbandon = topic.getStatus().isOpen();
+    boolean canRestore = topic.getStatus() == Change.Status.ABANDONED;
+    for (final ChangeControl control : controls.values()) {
+      anonymous &= control.forAnonymousUser().isVisible();
+      canAbandon &= control.canAbandon();
+      canRestore &= control.canRestore();
+    }
+    detail.setAllowsAnonymous(anonymous);
+    detail.setCanAbandon(canAbandon);
+    detail.setCanRestore(canRestore);
+
+    loadCurrentChangeSet(topic);
+    loadMessages();
+    loadApprovals();
+    detail.setAccounts(aic.create());
+    return detail;
+  }
+
+  /** Read the member changes, and check the user can see all of them. */
+  private void loadChanges() throws OrmException, NoSuchEntityException,
+      NoSuchChangeException {
+    changes = new ArrayList<ChangeData>();
+    controls = new HashMap<Change.Id, ChangeControl>();
+    for (final Change c : db.get().changes().byTopic(topicId)) {
+      final ChangeControl control = changeControlFactory.controlFor(c);
+      if (!control.isVisible()) {
+        throw new NoSuchEntityException();
+      }
+      changes.add(new ChangeData(c));
+      controls.put(c.getId(), control);
+    }
+  }
+
+  private void loadCurrentChangeSet(final Topic topic) throws OrmException {
+    final ChangeSet.Id csId = topic.currentChangeSetId();
+    ChangeSet current = null;
+    for (final ChangeSet cs : detail.getChangeSets()) {
+      if (cs.getId().equals(csId)) {
+        current = cs;
+      }
+    }
+    if (current == null) {
+      return;
+    }
+
+    final ChangeSetInfo info = new ChangeSetInfo(csId);
+    info.setSubject(topic.getSubject());
+    info.setMessage(topic.getSubject());
+
+    final Set<PatchSet.Id> want = new HashSet<PatchSet.Id>();
+    final List<Change> list = new ArrayList<Change>(changes.size());
+    for (final ChangeData cd : changes) {
+      list.add(cd.getChange());
+      aic.want(cd.getChange().getOwner());
+      if (cd.getChange().currentPatchSetId() != null) {
+        want.add(cd.getChange().currentPatchSetId());
+      }
+    }
+
+    final Map<PatchSet.Id, PatchSet> byId =
+        db.get().patchSets().toMap(db.get().patchSets().get(want));
+    final List<PatchSet> patchSets = new ArrayList<PatchSet>(want.size());
+    for (final Change c : list) {
+      final PatchSet ps = byId.get(c.currentPatchSetId());
+      if (ps != null) {
+        patchSets.add(ps);
+      }
+    }
+
+    final ChangeSetDetail csd = new ChangeSetDetail();
+    csd.setChangeSet(current);
+    csd.setInfo(info);
+    csd.setChanges(list);
+    csd.setPatchSets(patchSets);
+    detail.setCurrentChangeSetDetail(csd);
+  }
+
+  /** Show the messages of all member changes, oldest first. */
+  private void loadMessages() throws OrmException {
+    ChangeData.ensureMessagesLoaded(db, changes);
+
+    final List<TopicMessage> messages = new ArrayList<TopicMessage>();
+    for (final ChangeData cd : changes) {
+      for (final ChangeMessage m : cd.messages(db)) {
+        final TopicMessage tm = new TopicMessage(new TopicMessage.Key(
+            topicId, m.getKey().get()), m.getAuthor(), m.getWrittenOn());
+        tm.setMessage(m.getMessage());
+        messages.add(tm);
+        aic.want(m.getAuthor());
+      }
+    }
+    Collections.sort(messages, new Comparator<TopicMessage>() {
+      public int compare(final TopicMessage a, final TopicMessage b) {
+        return a.getWrittenOn().compareTo(b.getWrittenOn());
+      }
+    });
+    detail.setMessages(messages);
+  }
+
+  /**
+   * Combine the approvals on the current patch set of every member change.
+   * <p>
+   * A reviewer's score in a category is the lowest score they gave any of
+   * the changes, and a category is missing if it is missing on any change.
+   */
+  private void loadApprovals() throws OrmException {
+    ChangeData.ensureApprovalsLoaded(db, changes);
+
+    final Set<ApprovalCategory.Id> missingApprovals =
+        new HashSet<ApprovalCategory.Id>();
+    final Map<Account.Id, Map<ApprovalCategory.Id, PatchSetApproval>> lowest =
+        new HashMap<Account.Id, Map<ApprovalCategory.Id, PatchSetApproval>>();
+    final Set<Account.Id> cannotRemove = new HashSet<Account.Id>();
+    boolean canSubmit = !changes.isEmpty();
+
+    for (final ChangeData cd : changes) {
+      final Change change = cd.getChange();
+      final ChangeControl control = controls.get(change.getId());
+      final PatchSet.Id psId = change.currentPatchSetId();
+      final Collection<PatchSetApproval> all = cd.approvals(db);
+
+      if (change.getStatus().isOpen()) {
+        final FunctionState fs = functionState.create(change, psId, all);
+        for (final ApprovalType at : approvalTypes.getApprovalTypes()) {
+          CategoryFunction.forCategory(at.getCategory()).run(at, fs);
+          if (!fs.isValid(at)) {
+            missingApprovals.add(at.getCategory().getId());
+          }
+        }
+      }
+      canSubmit &= control.canSubmit(psId) == CanSubmitResult.OK;
+
+      final boolean canRemoveReviewers = change.getStatus().isOpen() //
+          && control.getCurrentUser() instanceof IdentifiedUser;
+      for (final PatchSetApproval ca : all) {
+        if (!canRemoveReviewers || !control.canRemoveReviewer(ca)) {
+          cannotRemove.add(ca.getAccountId());
+        }
+        Map<ApprovalCategory.Id, PatchSetApproval> m =
+            lowest.get(ca.getAccountId());
+        if (m == null) {
+          m = new HashMap<ApprovalCategory.Id, PatchSetApproval>();
+          lowest.put(ca.getAccountId(), m);
+        }
+        if (!ca.getPatchSetId().equals(psId)) {
+          continue;
+        }
+
+        final PatchSetApproval old = m.get(ca.getCategoryId());
+        if (old == null || ca.getValue() < old.getValue()) {
+          m.put(ca.getCategoryId(), ca);
+        }
+      }
+    }
+
+    final List<ApprovalDetail> approvals = new ArrayList<ApprovalDetail>();
+    for (final Account.Id id : lowest.keySet()) {
+      final ApprovalDetail d = new ApprovalDetail(id);
+      d.setCanRemove(!cannotRemove.contains(id));
+      for (final PatchSetApproval ca : lowest.get(id).values()) {
+        d.add(ca);
+      }
+      if (id.equals(detail.getTopic().getOwner())) {
+        // Ensure the owner always sorts to the top of the table
+        //
+        d.sortFirst();
+      }
+      approvals.add(d);
+    }
+
+    aic.want(lowest.keySet());
+    detail.setApprovals(approvals);
+    detail.setMissingApprovals(missingApprovals);
+    detail.setCanSubmit(canSubmit && missingApprovals.isEmpty());
+  }
+}
@@ -66,6 +66,18 @@ public interface ChangeAccess extends Access<Change, Change.Id> {
   @Query("WHERE open = true AND dest = ?")
   ResultSet<Change> byBranchOpenAll(Branch.NameKey p) throws OrmException;
 
+  @Query("WHERE open = true AND topicId = ?")
+  ResultSet<Change> byTopicOpenAll(Change.Id topicId) throws OrmException;
+
+  @Query("WHERE topicId = ? ORDER BY changeId")
+  ResultSet<Change> byTopic(Change.Id topicId) throws OrmException;
+
+  @Query("WHERE topic = ?")
+  ResultSet<Change> byTopicName(String topic) throws OrmException;
+
+  @Query("WHERE topic = ? AND open = true")
+  ResultSet<Change> byTopicNameOpen(String topic) throws OrmException;
+
   @Query("WHERE open = true AND dest.projectName = ? AND sortKey > ?"
       + " ORDER BY sortKey LIMIT ?")
   ResultSet<Change> byProjectOpenPrev(Project.NameKey p, String sortKey,
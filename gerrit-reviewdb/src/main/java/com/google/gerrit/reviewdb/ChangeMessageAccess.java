@@ -27,4 +27,9 @@ public interface ChangeMessageAccess extends
 
   @Query("WHERE key.changeId = ? ORDER BY writtenOn")
   ResultSet<ChangeMessage> byChange(Change.Id id) throws OrmException;
+
+  @Query("WHERE key.changeId >= ? AND key.changeId <= ?"
+      + " ORDER BY key.changeId, writtenOn")
+  ResultSet<ChangeMessage> byChangeRange(Change.Id first, Change.Id last)
+      throws OrmException;
 }
@@ -27,6 +27,11 @@ public interface PatchSetAccess extends Access<PatchSet, PatchSet.Id> {
   @Query("WHERE id.changeId = ? ORDER BY id.patchSetId")
   ResultSet<PatchSet> byChange(Change.Id id) throws OrmException;
 
+  @Query("WHERE id.changeId >= ? AND id.changeId <= ?"
+      + " ORDER BY id.changeId, id.patchSetId")
+  ResultSet<PatchSet> byChangeRange(Change.Id first, Change.Id last)
+      throws OrmException;
+
   @Query("WHERE id.changeId = ? AND revision = ?")
   ResultSet<PatchSet> byChangeRevision(Change.Id id, RevId rev)
       throws OrmException;
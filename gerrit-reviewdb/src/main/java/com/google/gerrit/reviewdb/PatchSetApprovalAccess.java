@@ -28,6 +28,11 @@ public interface PatchSetApprovalAccess extends
   @Query("WHERE key.patchSetId.changeId = ?")
   ResultSet<PatchSetApproval> byChange(Change.Id id) throws OrmException;
 
+  @Query("WHERE key.patchSetId.changeId >= ?"
+      + " AND key.patchSetId.changeId <= ?")
+  ResultSet<PatchSetApproval> byChangeRange(Change.Id first, Change.Id last)
+      throws OrmException;
+
   @Query("WHERE key.patchSetId = ?")
   ResultSet<PatchSetApproval> byPatchSet(PatchSet.Id id) throws OrmException;
 
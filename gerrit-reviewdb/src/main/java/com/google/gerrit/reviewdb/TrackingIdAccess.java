@@ -27,6 +27,10 @@ public interface TrackingIdAccess extends Access<TrackingId, TrackingId.Key> {
   @Query("WHERE key.changeId = ?")
   ResultSet<TrackingId> byChange(Change.Id change) throws OrmException;
 
+  @Query("WHERE key.changeId >= ? AND key.changeId <= ?")
+  ResultSet<TrackingId> byChangeRange(Change.Id first, Change.Id last)
+      throws OrmException;
+
   @Query("WHERE key.trackingId = ?")
   ResultSet<TrackingId> byTrackingId(TrackingId.Id trackingId)
       throws OrmException;
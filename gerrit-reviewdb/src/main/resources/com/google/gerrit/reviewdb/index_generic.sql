@@ -109,6 +109,18 @@ ON changes (dest_project_name);
 CREATE INDEX changes_allClosed
 ON changes (open, status, sort_key);
 
+--    covers:             byTopicOpenAll
+CREATE INDEX changes_byTopicOpen
+ON changes (open, topic_id);
+
+--    covers:             byTopic
+CREATE INDEX changes_byTopic
+ON changes (topic_id);
+
+--    covers:             byTopicName, byTopicNameOpen
+CREATE INDEX changes_byTopicName
+ON changes (topic, open);
+
 CREATE INDEX changes_key
 ON changes (change_key);
 
@@ -187,6 +187,19 @@ WHERE open = 'N';
 CREATE INDEX changes_byProject
 ON changes (dest_project_name);
 
+--    covers:             byTopicOpenAll
+CREATE INDEX changes_byTopicOpen
+ON changes (topic_id)
+WHERE open = 'Y';
+
+--    covers:             byTopic
+CREATE INDEX changes_byTopic
+ON changes (topic_id);
+
+--    covers:             byTopicName, byTopicNameOpen
+CREATE INDEX changes_byTopicName
+ON changes (topic);
+
 CREATE INDEX changes_key
 ON changes (change_key);
 
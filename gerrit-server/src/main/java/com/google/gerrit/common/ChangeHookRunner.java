@@ -14,8 +14,10 @@
 
 package com.google.gerrit.common;
 
+import com.google.gerrit.common.data.AccessSection;
 import com.google.gerrit.common.data.ApprovalType;
 import com.google.gerrit.common.data.ApprovalTypes;
+import com.google.gerrit.lifecycle.LifecycleListener;
 import com.google.gerrit.reviewdb.Account;
 import com.google.gerrit.reviewdb.ApprovalCategory;
 import com.google.gerrit.reviewdb.ApprovalCategoryValue;
@@ -26,6 +28,7 @@ import com.google.gerrit.reviewdb.Project;
 import com.google.gerrit.server.IdentifiedUser;
 import com.google.gerrit.server.account.AccountCache;
 import com.google.gerrit.server.account.AccountState;
+import com.google.gerrit.server.config.ConfigUtil;
 import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.gerrit.server.config.SitePaths;
 import com.google.gerrit.server.events.ApprovalAttribute;
@@ -35,12 +38,13 @@ import com.google.gerrit.server.events.ChangeMergedEvent;
 import com.google.gerrit.server.events.ChangeRestoreEvent;
 import com.google.gerrit.server.events.CommentAddedEvent;
 import com.google.gerrit.server.events.EventFactory;
+import com.google.gerrit.server.events.EventLog;
 import com.google.gerrit.server.events.PatchSetCreatedEvent;
 import com.google.gerrit.server.events.RefUpdatedEvent;
 import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.git.WorkQueue;
+import com.google.gerrit.server.index.ChangeIndexer;
 import com.google.gerrit.server.project.ProjectCache;
-import com.google.gerrit.server.project.ProjectControl;
 import com.google.gerrit.server.project.ProjectState;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
@@ -58,10 +62,20 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * This class implements hooks for certain gerrit events.
@@ -71,6 +85,24 @@ public class ChangeHookRunner {
     /** A logger for this class. */
     private static final Logger log = LoggerFactory.getLogger(ChangeHookRunner.class);
 
+    public static class Lifecycle implements LifecycleListener {
+        private final ChangeHookRunner hooks;
+
+        @Inject
+        Lifecycle(final ChangeHookRunner hooks) {
+            this.hooks = hooks;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void stop() {
+            hooks.eventStreamHook.stop();
+        }
+    }
+
     private static class ChangeListenerHolder {
         final ChangeListener listener;
         final IdentifiedUser user;
@@ -103,6 +135,22 @@ public class ChangeHookRunner {
     /** Filename of the ref updated hook. */
     private final File refUpdatedHook;
 
+    /** Long running hook receiving all events on stdin. */
+    private final EventStreamHook eventStreamHook;
+
+    /** Limits the processes started for each hook. */
+    private final Map<File, HookQueue> hookQueues =
+      new LinkedHashMap<File, HookQueue>();
+
+    /** Maximum number of processes running at once for each hook. */
+    private final int maxProcesses;
+
+    /** Milliseconds a hook may run before it is killed, 0 if no limit. */
+    private final long timeout;
+
+    /** Queue of tasks killing hooks that have run for too long. */
+    private final WorkQueue.Executor timeoutQueue;
+
     /** Repository Manager. */
     private final GitRepositoryManager repoManager;
 
@@ -117,6 +165,10 @@ public class ChangeHookRunner {
 
     private final EventFactory eventFactory;
 
+    private final EventLog eventLog;
+
+    private final ChangeIndexer changeIndexer;
+
     /**
      * Create a new ChangeHookRunner.
      *
@@ -125,6 +177,8 @@ public class ChangeHookRunner {
      * @param config Config file to use.
      * @param sitePath The sitepath of this gerrit install.
      * @param projectCache the project cache instance for the server.
+     * @param eventLog log recording every event sent to listeners.
+     * @param changeIndexer updates the index of the changes events are about.
      */
     @Inject
     public ChangeHookRunner(final WorkQueue queue,
@@ -133,13 +187,18 @@ public class ChangeHookRunner {
       final ProjectCache projectCache,
       final AccountCache accountCache,
       final ApprovalTypes approvalTypes,
-      final EventFactory eventFactory) {
+      final EventFactory eventFactory,
+      final EventLog eventLog,
+      final ChangeIndexer changeIndexer) {
         this.repoManager = repoManager;
-        this.hookQueue = queue.createQueue(1, "hook");
+        this.hookQueue = queue.createQueue(
+            Math.max(1, config.getInt("hooks", "threadPoolSize", 4)), "hook");
         this.projectCache = projectCache;
         this.accountCache = accountCache;
         this.approvalTypes = approvalTypes;
         this.eventFactory = eventFactory;
+        this.eventLog = eventLog;
+        this.changeIndexer = changeIndexer;
 
         final File hooksPath = sitePath.resolve(getValue(config, "hooks", "path", sitePath.hooks_dir.getAbsolutePath()));
 
@@ -149,6 +208,26 @@ public class ChangeHookRunner {
         changeAbandonedHook = sitePath.resolve(new File(hooksPath, getValue(config, "hooks", "changeAbandonedHook", "change-abandoned")).getPath());
         changeRestoredHook = sitePath.resolve(new File(hooksPath, getValue(config, "hooks", "changeRestoredHook", "change-restored")).getPath());
         refUpdatedHook = sitePath.resolve(new File(hooksPath, getValue(config, "hooks", "refUpdatedHook", "ref-updated")).getPath());
+
+        final File eventStream = sitePath.resolve(new File(hooksPath, getValue(config, "hooks", "eventStreamHook", "event-stream")).getPath());
+        eventStreamHook = new EventStreamHook(eventStream, sitePath.site_path,
+            queue.createQueue(1, "EventStreamHook"),
+            queue.createQueue(1, "EventStreamHookOutput"), eventLog);
+
+        maxProcesses = Math.max(1, config.getInt("hooks", "maxProcesses", 1));
+        timeout = ConfigUtil.getTimeUnit(config, "hooks", null, "timeout", 0,
+            TimeUnit.MILLISECONDS);
+        timeoutQueue = 0 < timeout ? queue.createQueue(1, "HookTimeout") : null;
+        for (File hook : Arrays.asList(patchsetCreatedHook, commentAddedHook,
+            changeMergedHook, changeAbandonedHook, changeRestoredHook,
+            refUpdatedHook)) {
+            hookQueues.put(hook, new HookQueue(hook));
+        }
+    }
+
+    /** @return state of the processes started for each hook. */
+    public Collection<HookQueue> getHookQueues() {
+        return Collections.unmodifiableCollection(hookQueues.values());
     }
 
     public void addChangeListener(ChangeListener listener, IdentifiedUser user) {
@@ -391,37 +470,76 @@ public class ChangeHookRunner {
     }
 
     private void fireEvent(final Change change, final ChangeEvent event) {
+      changeIndexer.index(change.getId());
+      eventLog.append(change.getDest(), event);
+      eventStreamHook.offer(event);
+
+      final ProjectState pe = projectCache.get(change.getProject());
+      if (pe == null) {
+        return;
+      }
+
+      final boolean byName = hasUserTemplate(pe);
+      final Map<Object, Boolean> visible = new HashMap<Object, Boolean>();
       for (ChangeListenerHolder holder : listeners.values()) {
-          if (isVisibleTo(change, holder.user)) {
+          final Object key = visibilityKey(holder.user, byName);
+          Boolean ok = visible.get(key);
+          if (ok == null) {
+              ok = pe.controlFor(holder.user).controlFor(change).isVisible();
+              visible.put(key, ok);
+          }
+          if (ok) {
               holder.listener.onChangeEvent(event);
           }
       }
     }
 
     private void fireEvent(Branch.NameKey branchName, final ChangeEvent event) {
+      eventLog.append(branchName, event);
+      eventStreamHook.offer(event);
+
+      final ProjectState pe = projectCache.get(branchName.getParentKey());
+      if (pe == null) {
+        return;
+      }
+
+      final boolean byName = hasUserTemplate(pe);
+      final Map<Object, Boolean> visible = new HashMap<Object, Boolean>();
       for (ChangeListenerHolder holder : listeners.values()) {
-          if (isVisibleTo(branchName, holder.user)) {
+          final Object key = visibilityKey(holder.user, byName);
+          Boolean ok = visible.get(key);
+          if (ok == null) {
+              ok = pe.controlFor(holder.user).controlForRef(branchName)
+                  .isVisible();
+              visible.put(key, ok);
+          }
+          if (ok) {
               holder.listener.onChangeEvent(event);
           }
       }
     }
 
-    private boolean isVisibleTo(Change change, IdentifiedUser user) {
-        final ProjectState pe = projectCache.get(change.getProject());
-        if (pe == null) {
-          return false;
+    /**
+     * Key identifying listeners that see the same changes and branches.
+     * <p>
+     * Read access depends only on the user's groups, unless the project
+     * inherits a section like {@code refs/heads/${username}/*}, so with
+     * many listeners the check is done once per distinct set of groups.
+     */
+    private static Object visibilityKey(IdentifiedUser user, boolean byName) {
+        if (byName) {
+            return Arrays.asList(user.getEffectiveGroups(), user.getUserName());
         }
-        final ProjectControl pc = pe.controlFor(user);
-        return pc.controlFor(change).isVisible();
+        return user.getEffectiveGroups();
     }
 
-    private boolean isVisibleTo(Branch.NameKey branchName, IdentifiedUser user) {
-        final ProjectState pe = projectCache.get(branchName.getParentKey());
-        if (pe == null) {
-          return false;
+    private static boolean hasUserTemplate(ProjectState pe) {
+        for (AccessSection section : pe.getAllAccessSections()) {
+            if (section.getRefPattern().contains("${")) {
+                return true;
+            }
         }
-        final ProjectControl pc = pe.controlFor(user);
-        return pc.controlForRef(branchName).isVisible();
+        return false;
     }
 
     /**
@@ -466,21 +584,104 @@ public class ChangeHookRunner {
    * @param hook the hook to execute.
    * @param args Arguments to use to run the hook.
    */
-  private synchronized void runHook(Repository repo, File hook,
-      List<String> args) {
+  private void runHook(Repository repo, File hook, List<String> args) {
     if (repo != null) {
       if (hook.exists()) {
-        hookQueue.execute(new HookTask(repo, hook, args));
+        hookQueues.get(hook).add(new HookTask(repo, hook, args));
       } else {
         repo.close();
       }
     }
   }
 
+  /**
+   * Processes of one hook, run in the order the events happened.
+   * <p>
+   * At most {@code hooks.maxProcesses} of them run at once, so a slow hook
+   * cannot take every thread of the hook queue from the other hooks.
+   */
+  public final class HookQueue {
+    private final File hook;
+    private final LinkedList<HookTask> waiting = new LinkedList<HookTask>();
+    private int running;
+    private long completed;
+    private long timedOut;
+
+    private HookQueue(File hook) {
+      this.hook = hook;
+    }
+
+    private void add(HookTask task) {
+      synchronized (this) {
+        if (maxProcesses <= running) {
+          waiting.add(task);
+          return;
+        }
+        running++;
+      }
+      execute(task);
+    }
+
+    private void done(boolean killed) {
+      final HookTask next;
+      synchronized (this) {
+        completed++;
+        if (killed) {
+          timedOut++;
+        }
+        next = waiting.poll();
+        if (next == null) {
+          running--;
+          return;
+        }
+      }
+      execute(next);
+    }
+
+    /** Run a task counted in {@code running}; release its slot if rejected. */
+    private void execute(HookTask task) {
+      try {
+        hookQueue.execute(task);
+      } catch (RejectedExecutionException e) {
+        log.error("Cannot run hook " + hook.getName(), e);
+        task.repo.close();
+        synchronized (this) {
+          running--;
+        }
+      }
+    }
+
+    /** @return file name of the hook. */
+    public String getName() {
+      return hook.getName();
+    }
+
+    /** @return number of processes running or about to run. */
+    public synchronized int getRunning() {
+      return running;
+    }
+
+    /** @return number of events waiting for a process to finish. */
+    public synchronized int getWaiting() {
+      return waiting.size();
+    }
+
+    /** @return number of processes that have finished. */
+    public synchronized long getCompleted() {
+      return completed;
+    }
+
+    /** @return number of processes killed by {@code hooks.timeout}. */
+    public synchronized long getTimedOut() {
+      return timedOut;
+    }
+  }
+
   private final class HookTask implements Runnable {
     private final Repository repo;
     private final File hook;
     private final List<String> args;
+    private final AtomicBoolean killed = new AtomicBoolean();
 
     private HookTask(Repository repo, File hook, List<String> args) {
       this.repo = repo;
@@ -490,6 +691,7 @@ public class ChangeHookRunner {
 
     @Override
     public void run() {
+      Future<?> killer = null;
       try {
         final List<String> argv = new ArrayList<String>(1 + args.size());
         argv.add(hook.getAbsolutePath());
@@ -502,8 +704,22 @@ public class ChangeHookRunner {
         final Map<String, String> env = pb.environment();
         env.put("GIT_DIR", repo.getDirectory().getAbsolutePath());
 
-        Process ps = pb.start();
+        final Process ps = pb.start();
         ps.getOutputStream().close();
+        if (timeoutQueue != null) {
+          killer = timeoutQueue.schedule(new Runnable() {
+            @Override
+            public void run() {
+              killed.set(true);
+              ps.destroy();
+            }
+
+            @Override
+            public String toString() {
+              return "kill hook " + hook.getName();
+            }
+          }, timeout, TimeUnit.MILLISECONDS);
+        }
 
         BufferedReader br =
             new BufferedReader(new InputStreamReader(ps.getInputStream()));
@@ -519,10 +735,18 @@ public class ChangeHookRunner {
           }
           ps.waitFor();
         }
+        if (killed.get()) {
+          log.error("hook[" + hook.getName() + "] killed after running "
+              + timeout + " ms");
+        }
       } catch (Throwable err) {
         log.error("Error running hook " + hook.getAbsolutePath(), err);
       } finally {
+        if (killer != null) {
+          killer.cancel(false);
+        }
         repo.close();
+        hookQueues.get(hook).done(killed.get());
       }
     }
 
@@ -0,0 +1,196 @@
+// Copyright (C) 2011 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.common;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.gerrit.server.events.ChangeEvent;
+import com.google.gerrit.server.events.EventLog;
+import com.google.gerrit.server.git.WorkQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Long running hook receiving every event as a line of JSON on stdin.
+ * <p>
+ * The process is started with the first event, and started again with a
+ * later event if it exits. Events are written to it from a single thread,
+ * so a slow process delays only its own events. Events arriving while
+ * {@link #MAX_PENDING} are already waiting are dropped.
+ */
+class EventStreamHook {
+  private static final Logger log =
+      LoggerFactory.getLogger(EventStreamHook.class);
+
+  /** Maximum number of events waiting to be written to the process. */
+  static final int MAX_PENDING = 1024;
+
+  /** Minimum time between starts, so a failing hook is not forked in a loop. */
+  private static final long RESTART_DELAY = MILLISECONDS.convert(10, SECONDS);
+
+  private final File hook;
+  private final File directory;
+  private final WorkQueue.Executor writer;
+  private final WorkQueue.Executor reader;
+  private final EventLog eventLog;
+  private final AtomicInteger pending = new AtomicInteger();
+
+  private Process process;
+  private OutputStream stdin;
+  private long lastStart;
+  private int dropped;
+
+  EventStreamHook(final File hook, final File directory,
+      final WorkQueue.Executor writer, final WorkQueue.Executor reader,
+      final EventLog eventLog) {
+    this.hook = hook;
+    this.directory = directory;
+    this.writer = writer;
+    this.reader = reader;
+    this.eventLog = eventLog;
+  }
+
+  /** Queue the event to be written to the process, if the hook exists. */
+  void offer(final ChangeEvent event) {
+    if (!hook.exists()) {
+      return;
+    }
+    if (MAX_PENDING <= pending.get()) {
+      synchronized (this) {
+        dropped++;
+      }
+      return;
+    }
+
+    final byte[] json = eventLog.encode(event);
+    pending.incrementAndGet();
+    try {
+      writer.execute(new Runnable() {
+        @Override
+        public void run() {
+          pending.decrementAndGet();
+          write(json);
+        }
+
+        @Override
+        public String toString() {
+          return "hook " + hook.getName();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      pending.decrementAndGet();
+      synchronized (this) {
+        dropped++;
+      }
+    }
+  }
+
+  /** Stop the process, if it is running. */
+  synchronized void stop() {
+    if (process != null) {
+      try {
+        stdin.close();
+      } catch (IOException e) {
+      }
+      process.destroy();
+      process = null;
+      stdin = null;
+    }
+  }
+
+  private synchronized void write(final byte[] json) {
+    if (process == null && !start()) {
+      dropped++;
+      return;
+    }
+    if (0 < dropped) {
+      log.warn("hook[" + hook.getName() + "] missed " + dropped + " events");
+      dropped = 0;
+    }
+
+    try {
+      stdin.write(json);
+      if (pending.get() == 0) {
+        stdin.flush();
+      }
+    } catch (IOException e) {
+      log.error("hook[" + hook.getName() + "] stopped reading events", e);
+      stop();
+    }
+  }
+
+  private boolean start() {
+    if (!hook.exists()) {
+      return false;
+    }
+    final long now = System.currentTimeMillis();
+    if (now - lastStart < RESTART_DELAY) {
+      return false;
+    }
+    lastStart = now;
+
+    try {
+      final ProcessBuilder pb = new ProcessBuilder(hook.getAbsolutePath());
+      pb.redirectErrorStream(true);
+      pb.directory(directory);
+      process = pb.start();
+    } catch (IOException e) {
+      log.error("Error running hook " + hook.getAbsolutePath(), e);
+      return false;
+    }
+    stdin = process.getOutputStream();
+
+    // Logs the output until the process exits; a process started again
+    // after it has its output read once the earlier one is done.
+    //
+    final Process ps = process;
+    reader.execute(new Runnable() {
+      @Override
+      public void run() {
+        final BufferedReader br =
+            new BufferedReader(new InputStreamReader(ps.getInputStream()));
+        try {
+          String line;
+          while ((line = br.readLine()) != null) {
+            log.info("hook[" + hook.getName() + "] output: " + line);
+          }
+        } catch (IOException e) {
+          // The process exited.
+        } finally {
+          try {
+            br.close();
+          } catch (IOException closeErr) {
+          }
+        }
+      }
+
+      @Override
+      public String toString() {
+        return "hook " + hook.getName() + " output";
+      }
+    });
+    return true;
+  }
+}
@@ -0,0 +1,31 @@
+// Copyright (C) 2011 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.account;
+
+import com.google.gerrit.reviewdb.AccountProjectWatch;
+import com.google.gerrit.reviewdb.Project;
+
+import java.util.List;
+
+/** Caches the project watches declared on each project. */
+public interface ProjectWatchCache {
+  /**
+   * @return the watches on the project. The same list is returned until the
+   *         project is evicted, so callers may key derived data on it.
+   */
+  public List<AccountProjectWatch> byProject(Project.NameKey project);
+
+  public void evict(Project.NameKey project);
+}
@@ -0,0 +1,100 @@
+// Copyright (C) 2011 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.account;
+
+import com.google.gerrit.reviewdb.AccountProjectWatch;
+import com.google.gerrit.reviewdb.Project;
+import com.google.gerrit.reviewdb.ReviewDb;
+import com.google.gerrit.server.cache.Cache;
+import com.google.gerrit.server.cache.CacheModule;
+import com.google.gerrit.server.cache.EntryCreator;
+import com.google.gwtorm.client.SchemaFactory;
+import com.google.inject.Inject;
+import com.google.inject.Module;
+import com.google.inject.Singleton;
+import com.google.inject.TypeLiteral;
+import com.google.inject.name.Named;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/** Caches the project watches declared on each project. */
+@Singleton
+public class ProjectWatchCacheImpl implements ProjectWatchCache {
+  private static final String CACHE_NAME = "project_watches";
+
+  public static Module module() {
+    return new CacheModule() {
+      @Override
+      protected void configure() {
+        final TypeLiteral<Cache<Project.NameKey, List<AccountProjectWatch>>> type =
+            new TypeLiteral<Cache<Project.NameKey, List<AccountProjectWatch>>>() {};
+        core(type, CACHE_NAME).populateWith(Loader.class);
+        bind(ProjectWatchCacheImpl.class);
+        bind(ProjectWatchCache.class).to(ProjectWatchCacheImpl.class);
+      }
+    };
+  }
+
+  private final Cache<Project.NameKey, List<AccountProjectWatch>> cache;
+
+  @Inject
+  ProjectWatchCacheImpl(@Named(CACHE_NAME) //
+      final Cache<Project.NameKey, List<AccountProjectWatch>> cache) {
+    this.cache = cache;
+  }
+
+  public List<AccountProjectWatch> byProject(final Project.NameKey project) {
+    return cache.get(project);
+  }
+
+  public void evict(final Project.NameKey project) {
+    if (project != null) {
+      cache.remove(project);
+    }
+  }
+
+  static class Loader
+      extends EntryCreator<Project.NameKey, List<AccountProjectWatch>> {
+    private final SchemaFactory<ReviewDb> schema;
+
+    @Inject
+    Loader(final SchemaFactory<ReviewDb> schema) {
+      this.schema = schema;
+    }
+
+    @Override
+    public List<AccountProjectWatch> createEntry(final Project.NameKey project)
+        throws Exception {
+      final ReviewDb db = schema.open();
+      try {
+        return Collections.unmodifiableList(db.accountProjectWatches()
+            .byProject(project).toList());
+      } finally {
+        db.close();
+      }
+    }
+
+    @Override
+    public List<AccountProjectWatch> missing(final Project.NameKey project) {
+      // Always a new list, so data derived from it is not kept either.
+      //
+      final List<AccountProjectWatch> none =
+          new ArrayList<AccountProjectWatch>(0);
+      return Collections.unmodifiableList(none);
+    }
+  }
+}
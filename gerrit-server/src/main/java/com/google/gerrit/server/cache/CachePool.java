@@ -14,6 +14,7 @@
 
 package com.google.gerrit.server.cache;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
@@ -26,6 +27,9 @@ import com.google.inject.ProvisionException;
 import com.google.inject.Singleton;
 
 import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListener;
 import net.sf.ehcache.config.CacheConfiguration;
 import net.sf.ehcache.config.Configuration;
 import net.sf.ehcache.config.DiskStoreConfiguration;
@@ -36,8 +40,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 /** Pool of all declared caches created by {@link CacheModule}s. */
 @Singleton
@@ -68,6 +75,8 @@ public class CachePool {
 
   private final Object lock = new Object();
   private final Map<String, CacheProvider<?, ?>> caches;
+  private final Map<String, CacheStore> stores;
+  private final Map<String, CacheStats> stats;
   private CacheManager manager;
 
   @Inject
@@ -75,6 +84,8 @@ public class CachePool {
     this.config = cfg;
     this.site = site;
     this.caches = new HashMap<String, CacheProvider<?, ?>>();
+    this.stores = new HashMap<String, CacheStore>();
+    this.stats = new HashMap<String, CacheStats>();
   }
 
   private void start() {
@@ -93,7 +104,16 @@ public class CachePool {
 
       manager = new CacheManager(new Factory().toConfiguration());
       for (CacheProvider<?, ?> p : caches.values()) {
-        p.bind(manager.getEhcache(p.getName()));
+        final Ehcache c = manager.getEhcache(p.getName());
+        final CacheStore store = stores.get(p.getName());
+        c.getCacheEventNotificationService().registerListener(
+            new EvictionCounter(stats.get(p.getName())));
+        if (store != null) {
+          c.getCacheEventNotificationService().registerListener(
+              new CacheStoreListener(store));
+        }
+        p.bind(c, store, ConfigUtil.getTimeUnit(config, "cache", p.getName(),
+            "loadTimeout", 0, MILLISECONDS));
       }
     }
   }
@@ -103,6 +123,10 @@ public class CachePool {
       if (manager != null) {
         manager.shutdown();
       }
+      for (CacheStore store : stores.values()) {
+        store.close();
+      }
+      stores.clear();
     }
   }
 
@@ -113,6 +137,13 @@ public class CachePool {
     }
   }
 
+  /** Get the usage counters of every cache, sorted by cache name. */
+  public SortedMap<String, CacheStats> getStats() {
+    synchronized (lock) {
+      return new TreeMap<String, CacheStats>(stats);
+    }
+  }
+
   <K, V> ProxyEhcache register(final CacheProvider<K, V> provider) {
     synchronized (lock) {
       if (manager != null) {
@@ -124,13 +155,52 @@ public class CachePool {
         throw new IllegalStateException("Cache \"" + n + "\" already defined");
       }
       caches.put(n, provider);
-      return new ProxyEhcache(n);
+      if (!stats.containsKey(n)) {
+        stats.put(n, new CacheStats(n));
+      }
+      return new ProxyEhcache(n, stats.get(n));
+    }
+  }
+
+  private static class EvictionCounter implements CacheEventListener {
+    private final CacheStats stats;
+
+    EvictionCounter(final CacheStats stats) {
+      this.stats = stats;
+    }
+
+    public void notifyElementEvicted(Ehcache cache, Element element) {
+      stats.evicted();
+    }
+
+    public void notifyElementRemoved(Ehcache cache, Element element) {
+    }
+
+    public void notifyElementPut(Ehcache cache, Element element) {
+    }
+
+    public void notifyElementUpdated(Ehcache cache, Element element) {
+    }
+
+    public void notifyElementExpired(Ehcache cache, Element element) {
+    }
+
+    public void notifyRemoveAll(Ehcache cache) {
+    }
+
+    public void dispose() {
+    }
+
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+      throw new CloneNotSupportedException();
     }
   }
 
   private class Factory {
     private static final int MB = 1024 * 1024;
     private final Configuration mgr = new Configuration();
+    private File diskDir;
 
     Configuration toConfiguration() {
       configureDiskStore();
@@ -147,7 +217,14 @@ public class CachePool {
         c.setTimeToLiveSeconds(getSeconds(name, "maxage", p.maxAge()));
         c.setEternal(c.getTimeToLiveSeconds() == 0);
 
-        if (p.disk() && mgr.getDiskStoreConfiguration() != null) {
+        if (p.disk() && mgr.getDiskStoreConfiguration() != null
+            && getBackend(name) == CacheBackend.MMAP) {
+          final int limit = getInt(name, "disklimit", p.diskLimit());
+          if (limit > 0) {
+            openStore(name, limit, c.getTimeToLiveSeconds());
+          }
+
+        } else if (p.disk() && mgr.getDiskStoreConfiguration() != null) {
           c.setMaxElementsOnDisk(getInt(name, "disklimit", p.diskLimit()));
 
           int v = c.getDiskSpoolBufferSizeMB() * MB;
@@ -176,6 +253,20 @@ public class CachePool {
       }
     }
 
+    private CacheBackend getBackend(String n) {
+      return config.getEnum("cache", n, "backend", CacheBackend.EHCACHE);
+    }
+
+    private void openStore(String n, int limit, long maxAge) {
+      final File dir = new File(diskDir, n + ".segments");
+      try {
+        stores.put(n, new SegmentStore(n, dir, limit, maxAge));
+      } catch (IOException e) {
+        log.warn("Cannot open disk cache " + dir.getAbsolutePath()
+            + ", keeping \"" + n + "\" in memory only", e);
+      }
+    }
+
     private int getInt(String n, String s, int d) {
       return config.getInt("cache", n, s, d);
     }
@@ -205,6 +296,7 @@ public class CachePool {
           final DiskStoreConfiguration c = new DiskStoreConfiguration();
           c.setPath(loc.getAbsolutePath());
           mgr.addDiskStore(c);
+          diskDir = loc;
           log.info("Enabling disk cache " + loc.getAbsolutePath());
         } else {
           log.warn("Can't write to disk cache: " + loc.getAbsolutePath());
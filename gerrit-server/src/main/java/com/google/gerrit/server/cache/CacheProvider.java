@@ -56,8 +56,9 @@ final class CacheProvider<K, V> implements Provider<Cache<K, V>>,
     this.cache = pool.register(this);
   }
 
-  void bind(final Ehcache ehcache) {
-    cache.bind(ehcache);
+  void bind(final Ehcache ehcache, final CacheStore store,
+      final long loadTimeout) {
+    cache.bind(ehcache, store, loadTimeout);
   }
 
   String getName() {
@@ -0,0 +1,191 @@
+// Copyright (C) 2011 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.cache;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Usage counters of one cache, since the server started.
+ * <p>
+ * Unlike the Ehcache statistics these also describe the cost of misses:
+ * how many entries were loaded by the cache's {@link EntryCreator}, how
+ * long that took, and how many loads are running right now.
+ */
+public class CacheStats {
+  /** Upper bound in milliseconds of each load time histogram bucket. */
+  private static final long[] BUCKETS =
+      {1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000,
+          Long.MAX_VALUE};
+
+  private final String name;
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong loads = new AtomicLong();
+  private final AtomicLong loadFailures = new AtomicLong();
+  private final AtomicLong loadNanos = new AtomicLong();
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong collapsed = new AtomicLong();
+  private final AtomicLong waitTimeouts = new AtomicLong();
+  private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS.length);
+
+  CacheStats(final String name) {
+    this.name = name;
+  }
+
+  void requested() {
+    requests.incrementAndGet();
+  }
+
+  void missed() {
+    misses.incrementAndGet();
+  }
+
+  /** @return start time to pass to {@link #loadFinished(long, boolean)}. */
+  long loadStarted() {
+    inFlight.incrementAndGet();
+    return System.nanoTime();
+  }
+
+  void loadFinished(final long start, final boolean ok) {
+    final long nanos = System.nanoTime() - start;
+    inFlight.decrementAndGet();
+    if (ok) {
+      loads.incrementAndGet();
+    } else {
+      loadFailures.incrementAndGet();
+    }
+    loadNanos.addAndGet(nanos);
+
+    final long ms = TimeUnit.NANOSECONDS.toMillis(nanos);
+    int b = 0;
+    while (BUCKETS[b] < ms) {
+      b++;
+    }
+    histogram.incrementAndGet(b);
+  }
+
+  void evicted() {
+    evictions.incrementAndGet();
+  }
+
+  void collapsed() {
+    collapsed.incrementAndGet();
+  }
+
+  void waitTimedOut() {
+    waitTimeouts.incrementAndGet();
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return number of lookups answered from memory or disk. Lookups which
+   *         waited for another thread's load are not hits, they are counted
+   *         by {@link #getCollapsed()}.
+   */
+  public long getHits() {
+    return Math.max(0, requests.get() - misses.get() - collapsed.get());
+  }
+
+  /** @return number of lookups that did not find an entry. */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /** @return number of entries successfully created on a miss. */
+  public long getLoads() {
+    return loads.get();
+  }
+
+  /** @return number of entries that could not be created on a miss. */
+  public long getLoadFailures() {
+    return loadFailures.get();
+  }
+
+  /** @return number of entries being created right now. */
+  public int getLoadsInFlight() {
+    return inFlight.get();
+  }
+
+  /** @return number of entries evicted from memory to make room. */
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  /** @return number of lookups that waited for another thread's load. */
+  public long getCollapsed() {
+    return collapsed.get();
+  }
+
+  /** @return number of misses that gave up waiting for another's load. */
+  public long getWaitTimeouts() {
+    return waitTimeouts.get();
+  }
+
+  /** @return average time spent creating an entry. */
+  public double getAverageLoadMillis() {
+    final long n = loads.get() + loadFailures.get();
+    return n > 0 ? loadNanos.get() / (n * 1e6) : 0;
+  }
+
+  /**
+   * Estimate a load time percentile from the histogram.
+   *
+   * @param p the percentile, between 0 and 100.
+   * @return upper bound in milliseconds of the bucket holding the percentile;
+   *         0 if nothing was loaded; {@code Long.MAX_VALUE} if the load took
+   *         longer than the largest bucket.
+   */
+  public long getLoadPercentileMillis(final double p) {
+    final long[] counts = getLoadHistogram();
+    long total = 0;
+    for (final long c : counts) {
+      total += c;
+    }
+    if (total == 0) {
+      return 0;
+    }
+
+    final long want = (long) Math.ceil(total * p / 100);
+    long seen = 0;
+    for (int b = 0; b < counts.length; b++) {
+      seen += counts[b];
+      if (want <= seen) {
+        return BUCKETS[b];
+      }
+    }
+    return BUCKETS[BUCKETS.length - 1];
+  }
+
+  /** @return upper bound in milliseconds of each histogram bucket. */
+  public static long[] getLoadHistogramBuckets() {
+    return BUCKETS.clone();
+  }
+
+  /** @return number of loads within each bucket of the histogram. */
+  public long[] getLoadHistogram() {
+    final long[] r = new long[BUCKETS.length];
+    for (int b = 0; b < r.length; b++) {
+      r[b] = histogram.get(b);
+    }
+    return r;
+  }
+}
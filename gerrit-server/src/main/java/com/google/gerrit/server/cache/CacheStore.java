@@ -0,0 +1,40 @@
+// Copyright (C) 2011 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.cache;
+
+/**
+ * Persistent storage for a disk cache, kept beneath its in-memory store.
+ * <p>
+ * Caches using the default {@link CacheBackend#EHCACHE} backend let Ehcache
+ * manage their disk storage and have no store. Other backends supply one;
+ * entries are written through to it and are read back from it when they are
+ * not in memory. Implementations must be thread-safe.
+ */
+interface CacheStore {
+  /** @return the stored value, or null if it is not present or expired. */
+  Object get(Object key);
+
+  /** Store a value, replacing any existing value for the key. */
+  void put(Object key, Object value);
+
+  /** Remove a value, no-op if not present. */
+  void remove(Object key);
+
+  /** Remove all stored values. */
+  void removeAll();
+
+  /** Release the resources held by the store. */
+  void close();
+}
@@ -0,0 +1,67 @@
+// Copyright (C) 2011 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.cache;
+
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListener;
+
+/**
+ * Removes entries from a {@link CacheStore} when Ehcache drops them.
+ * <p>
+ * Flushing a cache, or removing or expiring one of its entries, must also
+ * clear the store or the entry would be read back from it. Entries evicted
+ * from memory only for lack of space stay in the store.
+ */
+final class CacheStoreListener implements CacheEventListener {
+  private final CacheStore store;
+
+  CacheStoreListener(final CacheStore store) {
+    this.store = store;
+  }
+
+  public void notifyElementRemoved(Ehcache cache, Element element)
+      throws CacheException {
+    store.remove(element.getObjectKey());
+  }
+
+  public void notifyElementExpired(Ehcache cache, Element element) {
+    store.remove(element.getObjectKey());
+  }
+
+  public void notifyRemoveAll(Ehcache cache) {
+    store.removeAll();
+  }
+
+  public void notifyElementPut(Ehcache cache, Element element)
+      throws CacheException {
+  }
+
+  public void notifyElementUpdated(Ehcache cache, Element element)
+      throws CacheException {
+  }
+
+  public void notifyElementEvicted(Ehcache cache, Element element) {
+  }
+
+  public void dispose() {
+  }
+
+  @Override
+  public Object clone() throws CloneNotSupportedException {
+    throw new CloneNotSupportedException();
+  }
+}
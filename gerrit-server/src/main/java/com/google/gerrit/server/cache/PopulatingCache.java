@@ -14,27 +14,33 @@
 
 package com.google.gerrit.server.cache;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 import net.sf.ehcache.CacheException;
-import net.sf.ehcache.Ehcache;
 import net.sf.ehcache.Element;
-import net.sf.ehcache.constructs.blocking.CacheEntryFactory;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * A decorator for {@link Cache} which automatically constructs missing entries.
  * <p>
  * On a cache miss {@link EntryCreator#createEntry(Object)} is invoked, allowing
  * the application specific subclass to compute the entry and return it for
- * caching. During a miss the cache takes a lock related to the missing key,
- * ensuring that at most one thread performs the creation work, and other
- * threads wait for the result. Concurrent creations are possible if two
- * different keys miss and hash to different locks in the internal lock table.
+ * caching. Only one thread creates a given entry at a time: other threads
+ * missing the same key while it runs wait for its result, for at most
+ * {@code cache.<name>.loadTimeout}. If the creation fails all of them get
+ * {@link EntryCreator#missing(Object)}, and the next lookup tries again.
+ * Lookups of other keys are never held up by a creation.
  *
  * @param <K> type of key used to name cache entries.
  * @param <V> type of value stored within a cache entry.
@@ -43,19 +49,14 @@ class PopulatingCache<K, V> implements Cache<K, V> {
   private static final Logger log =
       LoggerFactory.getLogger(PopulatingCache.class);
 
-  private final net.sf.ehcache.constructs.blocking.SelfPopulatingCache self;
+  private final ProxyEhcache self;
   private final EntryCreator<K, V> creator;
+  private final ConcurrentMap<K, FutureTask<V>> loading;
 
-  PopulatingCache(Ehcache s, EntryCreator<K, V> entryCreator) {
+  PopulatingCache(ProxyEhcache s, EntryCreator<K, V> entryCreator) {
+    self = s;
     creator = entryCreator;
-    final CacheEntryFactory f = new CacheEntryFactory() {
-      @SuppressWarnings("unchecked")
-      @Override
-      public Object createEntry(Object key) throws Exception {
-        return creator.createEntry((K) key);
-      }
-    };
-    self = new net.sf.ehcache.constructs.blocking.SelfPopulatingCache(s, f);
+    loading = new ConcurrentHashMap<K, FutureTask<V>>();
   }
 
   /**
@@ -68,18 +69,20 @@ class PopulatingCache<K, V> implements Cache<K, V> {
    * <li>{@code createEntry(key)} threw an exception, in which case the entry
    * was not stored in the cache. An entry was recorded in the application log,
    * but a return value is still required.
+   * <li>Another thread was already creating the entry, and did not finish
+   * within the configured {@code loadTimeout}.
    * <li>The cache has been shutdown, and access is forbidden.
    * </ul>
    *
    * @param key key to locate.
    * @return either the cached entry, or {@code missing(key)} if not found.
    */
-  @SuppressWarnings("unchecked")
   public V get(final K key) {
     if (key == null) {
       return creator.missing(key);
     }
 
+    self.getStats().requested();
     final Element m;
     try {
       m = self.get(key);
@@ -90,7 +93,97 @@ class PopulatingCache<K, V> implements Cache<K, V> {
       log.error("Cannot lookup " + key + " in \"" + self.getName() + "\"", err);
       return creator.missing(key);
     }
-    return m != null ? (V) m.getObjectValue() : creator.missing(key);
+    if (m != null) {
+      return value(m);
+    }
+
+    final FutureTask<V> task = new FutureTask<V>(new Callable<V>() {
+      @Override
+      public V call() throws Exception {
+        return load(key);
+      }
+    });
+    final FutureTask<V> running = loading.putIfAbsent(key, task);
+    if (running == null) {
+      try {
+        task.run();
+      } finally {
+        loading.remove(key, task);
+      }
+      try {
+        return task.get();
+      } catch (InterruptedException err) {
+        Thread.currentThread().interrupt();
+        return creator.missing(key);
+      } catch (ExecutionException err) {
+        log.error("Cannot lookup " + key + " in \"" + self.getName() + "\"",
+            err.getCause());
+        return creator.missing(key);
+      }
+    }
+
+    // Another thread is already creating this entry. Wait for it rather
+    // than repeating the work; if it fails, it has already logged why.
+    //
+    self.getStats().collapsed();
+    try {
+      final long timeout = self.getLoadTimeout();
+      return 0 < timeout ? running.get(timeout, MILLISECONDS) : running.get();
+    } catch (TimeoutException err) {
+      self.getStats().waitTimedOut();
+      log.warn("Timed out waiting for " + key + " in \"" + self.getName()
+          + "\"");
+      return creator.missing(key);
+    } catch (InterruptedException err) {
+      Thread.currentThread().interrupt();
+      return creator.missing(key);
+    } catch (ExecutionException err) {
+      return creator.missing(key);
+    }
+  }
+
+  private V load(final K key) throws Exception {
+    // A thread that finished creating this entry may have removed itself
+    // from loading after our miss, but before we registered.
+    //
+    final Element m = self.get(key);
+    if (m != null) {
+      return value(m);
+    }
+
+    final CacheStore store = self.getStore();
+    if (store != null) {
+      final V stored = cast(store.get(key));
+      if (stored != null) {
+        self.put(new Element(key, stored));
+        return stored;
+      }
+    }
+
+    final CacheStats stats = self.getStats();
+    stats.missed();
+    final long start = stats.loadStarted();
+    boolean ok = false;
+    try {
+      final V value = creator.createEntry(key);
+      self.put(new Element(key, value));
+      if (store != null && value != null) {
+        store.put(key, value);
+      }
+      ok = true;
+      return value;
+    } finally {
+      stats.loadFinished(start, ok);
+    }
+  }
+
+  private V value(final Element m) {
+    return cast(m.getObjectValue());
+  }
+
+  @SuppressWarnings("unchecked")
+  private V cast(final Object value) {
+    return (V) value;
   }
 
   public void remove(final K key) {
@@ -106,6 +199,10 @@ class PopulatingCache<K, V> implements Cache<K, V> {
 
   public void put(K key, V value) {
     self.put(new Element(key, value));
+    final CacheStore store = self.getStore();
+    if (store != null) {
+      store.put(key, value);
+    }
   }
 
   @Override
@@ -38,14 +38,35 @@ import java.util.Map;
 /** Proxy around a cache which has not yet been created. */
 final class ProxyEhcache implements Ehcache {
   private final String cacheName;
+  private final CacheStats stats;
   private volatile Ehcache self;
+  private volatile CacheStore store;
+  private volatile long loadTimeout;
 
-  ProxyEhcache(final String cacheName) {
+  ProxyEhcache(final String cacheName, final CacheStats stats) {
     this.cacheName = cacheName;
+    this.stats = stats;
   }
 
-  void bind(final Ehcache self) {
+  void bind(final Ehcache self, final CacheStore store,
+      final long loadTimeout) {
     this.self = self;
+    this.store = store;
+    this.loadTimeout = loadTimeout;
+  }
+
+  /** @return the store beneath this cache, or null if Ehcache manages it. */
+  CacheStore getStore() {
+    return store;
+  }
+
+  CacheStats getStats() {
+    return stats;
+  }
+
+  /** @return milliseconds to wait for another thread's load; 0 is forever. */
+  long getLoadTimeout() {
+    return loadTimeout;
   }
 
   private Ehcache self() {
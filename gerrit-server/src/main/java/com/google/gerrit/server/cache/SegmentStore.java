@@ -0,0 +1,588 @@
+// Copyright (C) 2011 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Cache store made of append-only, memory mapped segment files.
+ * <p>
+ * Every put or remove appends one record to the active segment. Once the
+ * active segment is full it is mapped read-only and a new one is started.
+ * The location of the newest record of each key is kept in an open
+ * addressing hash table allocated outside of the Java heap, so only the
+ * record headers have to be scanned to open the store after a restart.
+ * <p>
+ * When more than {@code maxEntries} keys are stored the oldest segment is
+ * deleted. Entries read from the oldest segment are copied to the active
+ * one first, so recently used entries survive, approximating LRU eviction.
+ * <p>
+ * Records are laid out as:
+ *
+ * <pre>
+ *   int  length of the record, excluding this field
+ *   byte PUT or REMOVE
+ *   long time the value was stored, in milliseconds
+ *   int  length of the key
+ *   key  serialized key
+ *   value serialized value, only for PUT
+ * </pre>
+ */
+final class SegmentStore implements CacheStore {
+  private static final Logger log = LoggerFactory.getLogger(SegmentStore.class);
+
+  private static final String SUFFIX = ".seg";
+  private static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+
+  private static final byte PUT = 1;
+  private static final byte REMOVE = 2;
+  private static final int HEADER_SIZE = 4 + 1 + 8 + 4;
+
+  /** Index slot: long key hash, int segment, int offset. */
+  private static final int SLOT_SIZE = 16;
+  private static final int DELETED = -1;
+
+  /** Largest index, so its size in bytes still fits in an int. */
+  private static final int MAX_SLOTS = 1 << 26;
+
+  private final String name;
+  private final File dir;
+  private final int maxEntries;
+  private final long maxAgeMillis;
+  private final int segmentSize;
+
+  private final TreeMap<Integer, Segment> segments;
+  private Segment active;
+
+  private ByteBuffer index;
+  private int slotCount;
+  private int usedSlots;
+  private int liveEntries;
+
+  /**
+   * Open the store, creating its directory if necessary.
+   *
+   * @param name name of the cache, for log messages.
+   * @param dir directory holding the segment files of this cache.
+   * @param maxEntries number of keys to keep before deleting segments.
+   * @param maxAgeSeconds age after which entries are ignored; 0 if never.
+   * @throws IOException the directory or a segment cannot be read.
+   */
+  SegmentStore(final String name, final File dir, final int maxEntries,
+      final long maxAgeSeconds) throws IOException {
+    this(name, dir, maxEntries, maxAgeSeconds, SEGMENT_SIZE);
+  }
+
+  /** Open the store, starting a new segment after {@code segmentSize}. */
+  SegmentStore(final String name, final File dir, final int maxEntries,
+      final long maxAgeSeconds, final int segmentSize) throws IOException {
+    this.name = name;
+    this.dir = dir;
+    this.maxEntries = Math.min(Math.max(1, maxEntries), MAX_SLOTS / 2);
+    this.maxAgeMillis = maxAgeSeconds * 1000;
+    this.segmentSize = segmentSize;
+    this.segments = new TreeMap<Integer, Segment>();
+
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Cannot create " + dir);
+    }
+    allocateIndex(tableSize(this.maxEntries));
+    load();
+  }
+
+  public Object get(final Object key) {
+    final byte[] value;
+    try {
+      final byte[] k = serialize(key);
+      value = read(k);
+    } catch (IOException e) {
+      log.warn("Cannot read \"" + name + "\" cache entry " + key, e);
+      return null;
+    }
+    if (value == null) {
+      return null;
+    }
+
+    try {
+      return deserialize(value);
+    } catch (IOException e) {
+      log.warn("Cannot decode \"" + name + "\" cache entry " + key, e);
+      remove(key);
+      return null;
+    } catch (ClassNotFoundException e) {
+      remove(key);
+      return null;
+    }
+  }
+
+  public void put(final Object key, final Object value) {
+    try {
+      write(PUT, serialize(key), serialize(value));
+    } catch (IOException e) {
+      log.warn("Cannot store \"" + name + "\" cache entry " + key, e);
+    }
+  }
+
+  public void remove(final Object key) {
+    try {
+      write(REMOVE, serialize(key), null);
+    } catch (IOException e) {
+      log.warn("Cannot remove \"" + name + "\" cache entry " + key, e);
+    }
+  }
+
+  public synchronized void removeAll() {
+    for (final Segment s : segments.values()) {
+      s.delete();
+    }
+    segments.clear();
+    active = null;
+    allocateIndex(tableSize(maxEntries));
+  }
+
+  public synchronized void close() {
+    for (final Segment s : segments.values()) {
+      s.close();
+    }
+    segments.clear();
+    active = null;
+  }
+
+  private synchronized byte[] read(final byte[] key) throws IOException {
+    final long hash = hash(key);
+    final int slot = find(hash);
+    if (slot < 0) {
+      return null;
+    }
+
+    final int segId = index.getInt(slot * SLOT_SIZE + 8);
+    final int offset = index.getInt(slot * SLOT_SIZE + 12);
+    final Segment seg = segments.get(segId);
+    if (seg == null) {
+      return null;
+    }
+
+    final ByteBuffer rec = seg.read(offset);
+    final long time = rec.getLong(1);
+    final int keyLen = rec.getInt(9);
+    if (!sameKey(rec, key, keyLen)) {
+      // Another key with the same hash; the slot holds only one of them.
+      return null;
+    }
+    if (0 < maxAgeMillis && time + maxAgeMillis < System.currentTimeMillis()) {
+      removeSlot(slot);
+      return null;
+    }
+
+    final int valueStart = HEADER_SIZE - 4 + keyLen;
+    final byte[] value = new byte[rec.limit() - valueStart];
+    rec.position(valueStart);
+    rec.get(value);
+
+    if (segId == segments.firstKey() && seg != active) {
+      // The entry is about to be evicted with its segment. It was just
+      // used, so keep it by moving it to the active segment.
+      //
+      append(PUT, time, key, value);
+    }
+    return value;
+  }
+
+  private synchronized void write(final byte type, final byte[] key,
+      final byte[] value) throws IOException {
+    if (type == REMOVE && find(hash(key)) < 0) {
+      return;
+    }
+    append(type, System.currentTimeMillis(), key, value);
+    evict();
+  }
+
+  private void append(final byte type, final long time, final byte[] key,
+      final byte[] value) throws IOException {
+    final int valueLen = value != null ? value.length : 0;
+    final ByteBuffer rec =
+        ByteBuffer.allocate(HEADER_SIZE + key.length + valueLen);
+    rec.putInt(rec.capacity() - 4);
+    rec.put(type);
+    rec.putLong(time);
+    rec.putInt(key.length);
+    rec.put(key);
+    if (value != null) {
+      rec.put(value);
+    }
+    rec.flip();
+
+    if (active == null
+        || (0 < active.size && segmentSize < active.size + rec.limit())) {
+      startSegment();
+    }
+    final int offset = active.append(rec);
+
+    final long hash = hash(key);
+    if (type == PUT) {
+      putSlot(hash, active.id, offset);
+    } else {
+      final int slot = find(hash);
+      if (0 <= slot) {
+        removeSlot(slot);
+      }
+    }
+  }
+
+  private void evict() {
+    while (maxEntries < liveEntries && 1 < segments.size()) {
+      final Segment oldest = segments.remove(segments.firstKey());
+      for (int slot = 0; slot < slotCount; slot++) {
+        final int p = slot * SLOT_SIZE;
+        if (index.getLong(p) != 0 && index.getInt(p + 8) == oldest.id) {
+          removeSlot(slot);
+        }
+      }
+      oldest.delete();
+    }
+  }
+
+  private void startSegment() throws IOException {
+    if (active != null) {
+      active.seal();
+    }
+    final int id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+    active = new Segment(id, new File(dir, segmentName(id)));
+    segments.put(id, active);
+  }
+
+  private void load() throws IOException {
+    final File[] files = dir.listFiles();
+    if (files != null) {
+      for (final File f : files) {
+        final String n = f.getName();
+        if (n.endsWith(SUFFIX)) {
+          try {
+            final int id =
+                Integer.parseInt(n.substring(0, n.length() - SUFFIX.length()));
+            segments.put(id, new Segment(id, f));
+          } catch (NumberFormatException e) {
+            log.warn("Ignoring unexpected file " + f);
+          }
+        }
+      }
+    }
+
+    for (final Iterator<Map.Entry<Integer, Segment>> i =
+        segments.entrySet().iterator(); i.hasNext();) {
+      final Segment s = i.next().getValue();
+      try {
+        scan(s);
+      } catch (IOException e) {
+        log.warn("Dropping unreadable segment " + s.file, e);
+        s.delete();
+        i.remove();
+      }
+    }
+
+    if (!segments.isEmpty()) {
+      active = segments.get(segments.lastKey());
+      for (final Segment s : segments.values()) {
+        if (s != active) {
+          s.seal();
+        }
+      }
+    }
+    evict();
+    log.info("Loaded " + liveEntries + " entries of \"" + name + "\" from "
+        + segments.size() + " segments");
+  }
+
+  private void scan(final Segment s) throws IOException {
+    final ByteBuffer hdr = ByteBuffer.allocate(HEADER_SIZE);
+    final byte[] keyBuf = new byte[256];
+    int offset = 0;
+    while (offset < s.size) {
+      hdr.clear();
+      if (!s.readFully(hdr, offset)) {
+        break;
+      }
+      final int len = hdr.getInt(0);
+      final byte type = hdr.get(4);
+      final int keyLen = hdr.getInt(13);
+      if (len < HEADER_SIZE - 4 || s.size < offset + 4L + len
+          || keyLen < 0 || len - (HEADER_SIZE - 4) < keyLen
+          || (type != PUT && type != REMOVE)) {
+        break;
+      }
+
+      final ByteBuffer key = ByteBuffer.wrap(
+          keyLen <= keyBuf.length ? keyBuf : new byte[keyLen], 0, keyLen);
+      if (!s.readFully(key, offset + HEADER_SIZE)) {
+        break;
+      }
+      final long hash = hash(key.array(), keyLen);
+      if (type == PUT) {
+        putSlot(hash, s.id, offset);
+      } else {
+        final int slot = find(hash);
+        if (0 <= slot) {
+          removeSlot(slot);
+        }
+      }
+      offset += 4 + len;
+    }
+
+    if (offset < s.size) {
+      // The tail was not completely written, likely because the server
+      // stopped in the middle of an append. Drop it.
+      //
+      log.warn("Truncating " + s.file + " at " + offset);
+      s.truncate(offset);
+    }
+  }
+
+  private static boolean sameKey(final ByteBuffer rec, final byte[] key,
+      final int keyLen) {
+    if (keyLen != key.length) {
+      return false;
+    }
+    for (int i = 0; i < keyLen; i++) {
+      if (rec.get(HEADER_SIZE - 4 + i) != key[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void allocateIndex(final int slots) {
+    slotCount = slots;
+    usedSlots = 0;
+    liveEntries = 0;
+    index = ByteBuffer.allocateDirect((int) ((long) slots * SLOT_SIZE));
+  }
+
+  private int find(final long hash) {
+    final int mask = slotCount - 1;
+    for (int slot = (int) hash & mask;; slot = (slot + 1) & mask) {
+      final long h = index.getLong(slot * SLOT_SIZE);
+      if (h == 0) {
+        return -1;
+      } else if (h == hash && index.getInt(slot * SLOT_SIZE + 8) != DELETED) {
+        return slot;
+      }
+    }
+  }
+
+  private void putSlot(final long hash, final int segId, final int offset) {
+    final int mask = slotCount - 1;
+    int free = -1;
+    int slot = (int) hash & mask;
+    for (;; slot = (slot + 1) & mask) {
+      final int p = slot * SLOT_SIZE;
+      final long h = index.getLong(p);
+      if (h == 0) {
+        break;
+      }
+      final boolean deleted = index.getInt(p + 8) == DELETED;
+      if (h == hash && !deleted) {
+        index.putInt(p + 8, segId);
+        index.putInt(p + 12, offset);
+        return;
+      }
+      if (deleted && free < 0) {
+        free = slot;
+      }
+    }
+
+    if (free < 0) {
+      free = slot;
+      usedSlots++;
+    }
+    final int p = free * SLOT_SIZE;
+    index.putLong(p, hash);
+    index.putInt(p + 8, segId);
+    index.putInt(p + 12, offset);
+    liveEntries++;
+
+    if (slotCount * 3L / 4 < usedSlots) {
+      final boolean grow = slotCount <= liveEntries * 2L;
+      rehash(grow ? Math.min(slotCount * 2, MAX_SLOTS) : slotCount);
+    }
+  }
+
+  private void removeSlot(final int slot) {
+    index.putInt(slot * SLOT_SIZE + 8, DELETED);
+    liveEntries--;
+  }
+
+  private void rehash(final int slots) {
+    final ByteBuffer old = index;
+    final int oldCount = slotCount;
+    allocateIndex(slots);
+    for (int slot = 0; slot < oldCount; slot++) {
+      final int p = slot * SLOT_SIZE;
+      final long h = old.getLong(p);
+      if (h != 0 && old.getInt(p + 8) != DELETED) {
+        putSlot(h, old.getInt(p + 8), old.getInt(p + 12));
+      }
+    }
+  }
+
+  private static int tableSize(final int entries) {
+    int n = 1024;
+    while (n < entries * 2L && n < MAX_SLOTS) {
+      n <<= 1;
+    }
+    return n;
+  }
+
+  private static String segmentName(final int id) {
+    return String.format("%08d", id) + SUFFIX;
+  }
+
+  private static long hash(final byte[] key) {
+    return hash(key, key.length);
+  }
+
+  private static long hash(final byte[] key, final int len) {
+    // 64 bit FNV-1a. Zero marks an empty index slot, so avoid it.
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < len; i++) {
+      h ^= key[i] & 0xff;
+      h *= 0x100000001b3L;
+    }
+    return h != 0 ? h : 1;
+  }
+
+  private static byte[] serialize(final Object o) throws IOException {
+    final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    final ObjectOutputStream out = new ObjectOutputStream(buf);
+    try {
+      out.writeObject(o);
+    } finally {
+      out.close();
+    }
+    return buf.toByteArray();
+  }
+
+  private static Object deserialize(final byte[] data) throws IOException,
+      ClassNotFoundException {
+    final ObjectInputStream in =
+        new ObjectInputStream(new ByteArrayInputStream(data));
+    try {
+      return in.readObject();
+    } finally {
+      in.close();
+    }
+  }
+
+  private static class Segment {
+    final int id;
+    final File file;
+    final RandomAccessFile raf;
+    final FileChannel channel;
+    int size;
+    ByteBuffer map;
+
+    Segment(final int id, final File file) throws IOException {
+      this.id = id;
+      this.file = file;
+      this.raf = new RandomAccessFile(file, "rw");
+      this.channel = raf.getChannel();
+      this.size = (int) Math.min(channel.size(), Integer.MAX_VALUE);
+    }
+
+    int append(final ByteBuffer rec) throws IOException {
+      final int offset = size;
+      int pos = offset;
+      while (rec.hasRemaining()) {
+        pos += channel.write(rec, pos);
+      }
+      size = pos;
+      return offset;
+    }
+
+    /** Map the segment read-only, as nothing will be appended to it. */
+    void seal() throws IOException {
+      map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+
+    ByteBuffer read(final int offset) throws IOException {
+      if (map != null) {
+        final ByteBuffer b = map.duplicate();
+        final int len = b.getInt(offset);
+        b.position(offset + 4);
+        b.limit(offset + 4 + len);
+        return b.slice();
+      }
+
+      final ByteBuffer len = ByteBuffer.allocate(4);
+      if (!readFully(len, offset)) {
+        throw new EOFException("Short read of " + file);
+      }
+      final ByteBuffer rec = ByteBuffer.allocate(len.getInt(0));
+      if (!readFully(rec, offset + 4)) {
+        throw new EOFException("Short read of " + file);
+      }
+      rec.clear();
+      return rec;
+    }
+
+    boolean readFully(final ByteBuffer dst, final long offset)
+        throws IOException {
+      long pos = offset;
+      while (dst.hasRemaining()) {
+        final int n = channel.read(dst, pos);
+        if (n < 0) {
+          return false;
+        }
+        pos += n;
+      }
+      return true;
+    }
+
+    void truncate(final int newSize) throws IOException {
+      channel.truncate(newSize);
+      size = newSize;
+    }
+
+    void close() {
+      map = null;
+      try {
+        raf.close();
+      } catch (IOException e) {
+        log.warn("Cannot close " + file, e);
+      }
+    }
+
+    void delete() {
+      close();
+      if (!file.delete() && file.exists()) {
+        log.warn("Cannot delete " + file);
+      }
+    }
+  }
+}
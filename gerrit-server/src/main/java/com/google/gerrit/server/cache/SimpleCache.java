@@ -17,7 +17,6 @@ package com.google.gerrit.server.cache;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 import net.sf.ehcache.CacheException;
-import net.sf.ehcache.Ehcache;
 import net.sf.ehcache.Element;
 
 import org.slf4j.Logger;
@@ -34,21 +33,18 @@ import java.util.concurrent.TimeUnit;
 final class SimpleCache<K, V> implements Cache<K, V> {
   private static final Logger log = LoggerFactory.getLogger(SimpleCache.class);
 
-  private final Ehcache self;
+  private final ProxyEhcache self;
 
-  SimpleCache(final Ehcache self) {
+  SimpleCache(final ProxyEhcache self) {
     this.self = self;
   }
 
-  Ehcache getEhcache() {
-    return self;
-  }
-
   @SuppressWarnings("unchecked")
   public V get(final K key) {
     if (key == null) {
       return null;
     }
+    self.getStats().requested();
     final Element m;
     try {
       m = self.get(key);
@@ -59,11 +55,28 @@ final class SimpleCache<K, V> implements Cache<K, V> {
       log.error("Cannot lookup " + key + " in \"" + self.getName() + "\"", err);
       return null;
     }
-    return m != null ? (V) m.getObjectValue() : null;
+    if (m != null) {
+      return (V) m.getObjectValue();
+    }
+
+    final CacheStore store = self.getStore();
+    if (store != null) {
+      final V value = (V) store.get(key);
+      if (value != null) {
+        self.put(new Element(key, value));
+        return value;
+      }
+    }
+    self.getStats().missed();
+    return null;
   }
 
   public void put(final K key, final V value) {
     self.put(new Element(key, value));
+    final CacheStore store = self.getStore();
+    if (store != null) {
+      store.put(key, value);
+    }
   }
 
   public void remove(final K key) {
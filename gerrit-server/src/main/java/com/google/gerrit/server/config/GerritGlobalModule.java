@@ -16,6 +16,7 @@ package com.google.gerrit.server.config;
 
 import static com.google.inject.Scopes.SINGLETON;
 
+import com.google.gerrit.common.ChangeHookRunner;
 import com.google.gerrit.common.data.ApprovalTypes;
 import com.google.gerrit.lifecycle.LifecycleListener;
 import com.google.gerrit.lifecycle.LifecycleModule;
@@ -33,24 +34,32 @@ import com.google.gerrit.server.account.DefaultRealm;
 import com.google.gerrit.server.account.EmailExpander;
 import com.google.gerrit.server.account.GroupCacheImpl;
 import com.google.gerrit.server.account.GroupIncludeCacheImpl;
+import com.google.gerrit.server.account.ProjectWatchCacheImpl;
 import com.google.gerrit.server.account.GroupInfoCacheFactory;
 import com.google.gerrit.server.account.Realm;
 import com.google.gerrit.server.auth.ldap.LdapModule;
 import com.google.gerrit.server.cache.CachePool;
 import com.google.gerrit.server.events.EventFactory;
+import com.google.gerrit.server.events.EventLog;
 import com.google.gerrit.server.git.ChangeMergeQueue;
 import com.google.gerrit.server.git.GitModule;
 import com.google.gerrit.server.git.MergeQueue;
+import com.google.gerrit.server.git.PreMergeCache;
 import com.google.gerrit.server.git.PushAllProjectsOp;
 import com.google.gerrit.server.git.PushReplication;
 import com.google.gerrit.server.git.ReloadSubmitQueueOp;
 import com.google.gerrit.server.git.ReplicationQueue;
 import com.google.gerrit.server.git.SecureCredentialsProvider;
 import com.google.gerrit.server.git.TransferConfig;
+import com.google.gerrit.server.git.VisibleRefCache;
 import com.google.gerrit.server.git.WorkQueue;
+import com.google.gerrit.server.index.ChangeIndex;
+import com.google.gerrit.server.index.ChangeIndexer;
 import com.google.gerrit.server.mail.EmailSender;
 import com.google.gerrit.server.mail.FromAddressGenerator;
 import com.google.gerrit.server.mail.FromAddressGeneratorProvider;
+import com.google.gerrit.server.mail.MailSpool;
+import com.google.gerrit.server.mail.ProjectWatchIndex;
 import com.google.gerrit.server.mail.SmtpEmailSender;
 import com.google.gerrit.server.patch.PatchListCacheImpl;
 import com.google.gerrit.server.patch.PatchSetInfoFactory;
@@ -146,7 +155,11 @@ public class GerritGlobalModule extends FactoryModule {
     install(GroupCacheImpl.module());
     install(GroupIncludeCacheImpl.module());
     install(PatchListCacheImpl.module());
+    install(PreMergeCache.module());
     install(ProjectCacheImpl.module());
+    install(ProjectWatchCacheImpl.module());
+    install(ProjectWatchIndex.module());
+    install(VisibleRefCache.module());
     install(new AccessControlModule());
     install(new GitModule());
 
@@ -184,6 +197,11 @@ public class GerritGlobalModule extends FactoryModule {
       protected void configure() {
         listener().to(CachePool.Lifecycle.class);
         listener().to(WorkQueue.Lifecycle.class);
+        listener().to(MailSpool.Lifecycle.class);
+        listener().to(EventLog.Lifecycle.class);
+        listener().to(ChangeIndex.Lifecycle.class);
+        listener().to(ChangeIndexer.Lifecycle.class);
+        listener().to(ChangeHookRunner.Lifecycle.class);
         listener().to(VelocityLifecycle.class);
       }
     });
@@ -0,0 +1,398 @@
+// Copyright (C) 2011 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.events;
+
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.gerrit.lifecycle.LifecycleListener;
+import com.google.gerrit.reviewdb.Branch;
+import com.google.gerrit.reviewdb.Project;
+import com.google.gerrit.server.config.ConfigUtil;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.config.SitePaths;
+import com.google.gson.Gson;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.util.RawParseUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Append-only log of the events sent to {@code stream-events} clients.
+ * <p>
+ * Each event is given the next sequence number, and written as one line
+ * to the current segment under {@code eventlog.directory}. A new segment
+ * is started once the current one reaches {@code eventlog.segmentSize},
+ * and segments older than {@code eventlog.maxAge} are deleted. Clients
+ * which lost their connection can {@link #replay(long, long, Visitor)}
+ * the events they missed, instead of querying for them.
+ */
+@Singleton
+public class EventLog {
+  private static final Logger log = LoggerFactory.getLogger(EventLog.class);
+
+  private static final String SUFFIX = ".log";
+
+  public static class Lifecycle implements LifecycleListener {
+    private final EventLog eventLog;
+
+    @Inject
+    Lifecycle(final EventLog eventLog) {
+      this.eventLog = eventLog;
+    }
+
+    @Override
+    public void start() {
+      eventLog.start();
+    }
+
+    @Override
+    public void stop() {
+      eventLog.stop();
+    }
+  }
+
+  /** Receives the events read back by {@link EventLog#replay}. */
+  public interface Visitor {
+    /**
+     * @param seq sequence number of the event.
+     * @param dest project and branch the event is about, to check access.
+     * @param json the event, as one line of UTF-8 encoded JSON.
+     */
+    void onEvent(long seq, Branch.NameKey dest, byte[] json);
+  }
+
+  private final boolean enabled;
+  private final File dir;
+  private final long segmentSize;
+  private final long maxAge;
+  private final Gson gson = new Gson();
+
+  /**
+   * Events already encoded, held only while the event itself is.
+   * <p>
+   * Every listener able to see an event is offered the same instance,
+   * so the first one to encode it saves the others the work.
+   */
+  private final Map<ChangeEvent, byte[]> encoded =
+      new WeakHashMap<ChangeEvent, byte[]>();
+
+  private FileOutputStream out;
+  private long outSize;
+  private long lastSeq;
+  private boolean running;
+
+  @Inject
+  EventLog(@GerritServerConfig final Config cfg, final SitePaths site) {
+    enabled = cfg.getBoolean("eventlog", null, "enable", true);
+    String path = cfg.getString("eventlog", null, "directory");
+    if (path == null) {
+      path = "data/events";
+    }
+    dir = site.resolve(path);
+    segmentSize = Math.max(1,
+        cfg.getLong("eventlog", null, "segmentSize", 8 * 1024 * 1024));
+    maxAge = ConfigUtil.getTimeUnit(cfg, "eventlog", null, "maxAge",
+        MILLISECONDS.convert(7, DAYS), MILLISECONDS);
+  }
+
+  synchronized void start() {
+    if (!enabled) {
+      return;
+    }
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      log.error("Cannot create event log " + dir.getAbsolutePath());
+      return;
+    }
+
+    final File[] segments = segments();
+    if (0 < segments.length) {
+      final File last = segments[segments.length - 1];
+      try {
+        lastSeq = recover(last);
+        out = new FileOutputStream(last, true);
+        outSize = last.length();
+      } catch (IOException e) {
+        // Without the last sequence number, new events cannot be given
+        // numbers that are not already in use.
+        //
+        log.error("Cannot read event log " + last.getAbsolutePath()
+            + ", events will not be logged", e);
+        return;
+      }
+    }
+    prune();
+    running = true;
+  }
+
+  synchronized void stop() {
+    running = false;
+    close();
+  }
+
+  /** @return sequence number of the last event written, 0 if none. */
+  public synchronized long getLastSequence() {
+    return lastSeq;
+  }
+
+  /**
+   * Number the event and write it to the log.
+   * <p>
+   * Does nothing if the log is disabled, leaving {@link ChangeEvent#seq}
+   * unset.
+   *
+   * @param dest project and branch the event is about.
+   * @param event the event to record.
+   */
+  public void append(final Branch.NameKey dest, final ChangeEvent event) {
+    synchronized (this) {
+      if (!running) {
+        return;
+      }
+
+      event.seq = ++lastSeq;
+      final byte[] json = encode(event);
+      try {
+        if (out == null || segmentSize <= outSize) {
+          rotate(event.seq);
+        }
+        final byte[] hdr = toBytes(event.seq + "\t" //
+            + dest.getParentKey().get() + "\t" + dest.get() + "\t");
+        final byte[] rec = new byte[hdr.length + json.length];
+        System.arraycopy(hdr, 0, rec, 0, hdr.length);
+        System.arraycopy(json, 0, rec, hdr.length, json.length);
+        out.write(rec);
+        outSize += rec.length;
+      } catch (IOException e) {
+        log.error("Cannot write event " + event.seq + " to event log", e);
+        close();
+      }
+    }
+  }
+
+  /** @return the event as one line of UTF-8 encoded JSON. */
+  public byte[] encode(final ChangeEvent event) {
+    synchronized (encoded) {
+      byte[] r = encoded.get(event);
+      if (r == null) {
+        r = toBytes(gson.toJson(event) + "\n");
+        encoded.put(event, r);
+      }
+      return r;
+    }
+  }
+
+  /**
+   * Read back events from the log, oldest first.
+   * <p>
+   * Events deleted from the log, or which could not be read, are skipped;
+   * callers can find them as gaps in the sequence numbers.
+   *
+   * @param after events up to and including this sequence number are
+   *        skipped.
+   * @param upTo events after this sequence number are not read.
+   * @param visitor receives each event.
+   */
+  public void replay(final long after, final long upTo,
+      final Visitor visitor) {
+    if (upTo <= after) {
+      return;
+    }
+
+    final File[] segments = segments();
+    int i = segments.length - 1;
+    while (0 < i && after < firstSeq(segments[i]) - 1) {
+      i--;
+    }
+
+    final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    for (; 0 <= i && i < segments.length; i++) {
+      final InputStream in;
+      try {
+        in = new BufferedInputStream(new FileInputStream(segments[i]));
+      } catch (IOException e) {
+        // Deleted by prune() since it was listed.
+        continue;
+      }
+      try {
+        byte[] line;
+        while ((line = readLine(in, buf)) != null) {
+          final int t1 = indexOf(line, 0);
+          final int t2 = t1 < 0 ? -1 : indexOf(line, t1 + 1);
+          final int t3 = t2 < 0 ? -1 : indexOf(line, t2 + 1);
+          if (t3 < 0) {
+            break;
+          }
+
+          final long seq = RawParseUtils.parseLongBase10(line, 0, null);
+          if (seq <= after) {
+            continue;
+          } else if (upTo < seq) {
+            return;
+          }
+
+          final Branch.NameKey dest = new Branch.NameKey( //
+              new Project.NameKey(RawParseUtils.decode(line, t1 + 1, t2)), //
+              RawParseUtils.decode(line, t2 + 1, t3));
+          visitor.onEvent(seq, dest,
+              Arrays.copyOfRange(line, t3 + 1, line.length));
+        }
+      } catch (IOException e) {
+        log.error("Cannot read event log " + segments[i].getAbsolutePath(), e);
+      } finally {
+        try {
+          in.close();
+        } catch (IOException e) {
+        }
+      }
+    }
+  }
+
+  private void rotate(final long seq) throws IOException {
+    close();
+    final File f = new File(dir, String.format("%019d", seq) + SUFFIX);
+    out = new FileOutputStream(f, true);
+    outSize = f.length();
+    prune();
+  }
+
+  private void close() {
+    if (out != null) {
+      try {
+        out.close();
+      } catch (IOException e) {
+        log.warn("Cannot close event log", e);
+      }
+      out = null;
+    }
+  }
+
+  /** Delete old segments, always keeping the newest one. */
+  private void prune() {
+    final long oldest = System.currentTimeMillis() - maxAge;
+    final File[] segments = segments();
+    for (int i = 0; i < segments.length - 1; i++) {
+      if (segments[i].lastModified() < oldest) {
+        segments[i].delete();
+      }
+    }
+  }
+
+  /** @return sequence number of the last complete record in the segment. */
+  private static long recover(final File segment) throws IOException {
+    long lastSeq = firstSeq(segment) - 1;
+    long good = 0;
+    long pos = 0;
+    final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    final InputStream in =
+        new BufferedInputStream(new FileInputStream(segment));
+    try {
+      byte[] line;
+      while ((line = readLine(in, buf)) != null) {
+        pos += line.length;
+        if (0 < indexOf(line, 0)) {
+          lastSeq = RawParseUtils.parseLongBase10(line, 0, null);
+          good = pos;
+        }
+      }
+    } finally {
+      in.close();
+    }
+
+    if (good < segment.length()) {
+      // The server stopped while writing the last record.
+      //
+      final RandomAccessFile f = new RandomAccessFile(segment, "rw");
+      try {
+        f.setLength(good);
+      } finally {
+        f.close();
+      }
+    }
+    return lastSeq;
+  }
+
+  private File[] segments() {
+    final List<File> r = new ArrayList<File>();
+    final File[] files = dir.listFiles();
+    if (files != null) {
+      for (final File f : files) {
+        if (f.getName().endsWith(SUFFIX) && 0 < firstSeq(f)) {
+          r.add(f);
+        }
+      }
+    }
+    final File[] sorted = r.toArray(new File[r.size()]);
+    Arrays.sort(sorted);
+    return sorted;
+  }
+
+  private static long firstSeq(final File segment) {
+    final String n = segment.getName();
+    try {
+      return Long.parseLong(n.substring(0, n.length() - SUFFIX.length()));
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  private static byte[] readLine(final InputStream in,
+      final ByteArrayOutputStream buf) throws IOException {
+    buf.reset();
+    int c;
+    while ((c = in.read()) != -1) {
+      buf.write(c);
+      if (c == '\n') {
+        return buf.toByteArray();
+      }
+    }
+    return null;
+  }
+
+  private static int indexOf(final byte[] line, final int from) {
+    for (int i = from; i < line.length; i++) {
+      if (line[i] == '\t') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static byte[] toBytes(final String s) {
+    try {
+      return s.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException("JVM lacks UTF-8 encoding", e);
+    }
+  }
+}
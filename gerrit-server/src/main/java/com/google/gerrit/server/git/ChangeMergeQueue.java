@@ -24,6 +24,7 @@ import com.google.gerrit.server.IdentifiedUser;
 import com.google.gerrit.server.RemotePeer;
 import com.google.gerrit.server.RequestCleanup;
 import com.google.gerrit.server.config.GerritRequestModule;
+import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.gerrit.server.ssh.SshInfo;
 import com.google.inject.AbstractModule;
 import com.google.inject.Inject;
@@ -32,10 +33,12 @@ import com.google.inject.Key;
 import com.google.inject.OutOfScopeException;
 import com.google.inject.Provider;
 import com.google.inject.Scope;
+import com.google.inject.Singleton;
 import com.google.inject.servlet.RequestScoped;
 
 import com.jcraft.jsch.HostKey;
 
+import org.eclipse.jgit.lib.Config;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -44,23 +47,39 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
-
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs {@link MergeOp} for each destination branch on a dedicated executor.
+ * <p>
+ * Each branch is tracked by a small state machine updated with compare and
+ * swap, so branches never contend on a shared monitor. Repeated requests to
+ * merge a branch that is already queued or running are coalesced into at most
+ * one additional run. A branch's entry is dropped once its merges are done,
+ * so branches which are rarely submitted to do not stay in memory.
+ */
+@Singleton
 public class ChangeMergeQueue implements MergeQueue {
   private static final Logger log =
       LoggerFactory.getLogger(ChangeMergeQueue.class);
 
-  private final Map<Branch.NameKey, MergeEntry> active =
-      new HashMap<Branch.NameKey, MergeEntry>();
-  private final Map<Branch.NameKey, RecheckJob> recheck =
-      new HashMap<Branch.NameKey, RecheckJob>();
+  private final ConcurrentHashMap<Branch.NameKey, MergeEntry> active =
+      new ConcurrentHashMap<Branch.NameKey, MergeEntry>();
+  private final ConcurrentHashMap<Branch.NameKey, RecheckJob> recheck =
+      new ConcurrentHashMap<Branch.NameKey, RecheckJob>();
+  private final AtomicInteger queueDepth = new AtomicInteger();
 
-  private final WorkQueue workQueue;
+  private final WorkQueue.Executor mergeQueue;
   private final Provider<MergeOp.Factory> bgFactory;
 
   @Inject
-  ChangeMergeQueue(final WorkQueue wq, Injector parent) {
-    workQueue = wq;
+  ChangeMergeQueue(final WorkQueue wq, Injector parent,
+      @GerritServerConfig final Config cfg) {
+    mergeQueue = wq.createQueue( //
+        Math.max(1, cfg.getInt("merge", "threadPoolSize", 1)), "MergeQueue");
 
     Injector child = parent.createChildInjector(new AbstractModule() {
       @Override
@@ -95,144 +114,233 @@ public class ChangeMergeQueue implements MergeQueue {
 
   @Override
   public void merge(MergeOp.Factory mof, Branch.NameKey branch) {
-    if (start(branch)) {
-      mergeImpl(mof, branch);
-    }
-  }
-
-  private synchronized boolean start(final Branch.NameKey branch) {
-    final MergeEntry e = active.get(branch);
-    if (e == null) {
-      // Let the caller attempt this merge, its the only one interested
-      // in processing this branch right now.
-      //
-      active.put(branch, new MergeEntry(branch));
-      return true;
-    } else {
-      // Request that the job queue handle this merge later.
-      //
-      e.needMerge = true;
-      return false;
+    for (;;) {
+      final MergeEntry e = entry(branch);
+      if (e.state.compareAndSet(MergeEntry.IDLE, MergeEntry.RUNNING)) {
+        // Let the caller attempt this merge, its the only one interested
+        // in processing this branch right now.
+        //
+        mergeImpl(mof, e);
+        return;
+      } else if (e.state.get() == MergeEntry.REMOVED) {
+        // The entry was dropped after we found it; use its replacement.
+        //
+        active.remove(branch, e);
+      } else {
+        // Request that the job queue handle this merge later.
+        //
+        requestMerge(branch);
+        return;
+      }
     }
   }
 
   @Override
-  public synchronized void schedule(final Branch.NameKey branch) {
-    MergeEntry e = active.get(branch);
-    if (e == null) {
-      e = new MergeEntry(branch);
-      active.put(branch, e);
-    }
-    e.needMerge = true;
-    scheduleJob(e);
+  public void schedule(final Branch.NameKey branch) {
+    requestMerge(branch);
   }
 
   @Override
-  public synchronized void recheckAfter(final Branch.NameKey branch,
+  public void recheckAfter(final Branch.NameKey branch,
       final long delay, final TimeUnit delayUnit) {
     final long now = System.currentTimeMillis();
     final long at = now + MILLISECONDS.convert(delay, delayUnit);
     RecheckJob e = recheck.get(branch);
     if (e == null) {
-      e = new RecheckJob(branch);
-      workQueue.getDefaultQueue().schedule(e, now - at, MILLISECONDS);
-      recheck.put(branch, e);
+      final RecheckJob n = new RecheckJob(branch, at);
+      e = recheck.putIfAbsent(branch, n);
+      if (e == null) {
+        mergeQueue.schedule(n, at - now, MILLISECONDS);
+        return;
+      }
     }
-    e.recheckAt = Math.max(at, e.recheckAt);
+    e.deferTo(at);
   }
 
-  private synchronized void finish(final Branch.NameKey branch) {
-    final MergeEntry e = active.get(branch);
-    if (e == null) {
-      // Not registered? Shouldn't happen but ignore it.
-      //
-      return;
+  /** @return number of branches waiting for a merge thread. */
+  public int getQueueDepth() {
+    return queueDepth.get();
+  }
+
+  /**
+   * Get how long each branch has been waiting for a merge thread.
+   *
+   * @param unit unit of the returned durations.
+   * @return time since the pending merge was queued, for each branch with a
+   *         queued merge.
+   */
+  public Map<Branch.NameKey, Long> getWaitTimes(final TimeUnit unit) {
+    final long now = System.currentTimeMillis();
+    final Map<Branch.NameKey, Long> r = new HashMap<Branch.NameKey, Long>();
+    for (final MergeEntry e : active.values()) {
+      if (e.state.get() == MergeEntry.SCHEDULED) {
+        r.put(e.dest, unit.convert(e.getWaitTime(now), MILLISECONDS));
+      }
     }
+    return r;
+  }
 
-    if (!e.needMerge) {
-      // No additional merges are in progress, we can delete it.
-      //
-      active.remove(branch);
-      return;
+  /** @return the longest time any branch has been waiting for a merge. */
+  public long getMaxWaitTime(final TimeUnit unit) {
+    final long now = System.currentTimeMillis();
+    long max = 0;
+    for (final MergeEntry e : active.values()) {
+      max = Math.max(max, e.getWaitTime(now));
+    }
+    return unit.convert(max, MILLISECONDS);
+  }
+
+  private MergeEntry entry(final Branch.NameKey branch) {
+    MergeEntry e = active.get(branch);
+    if (e == null) {
+      final MergeEntry n = new MergeEntry(branch);
+      e = active.putIfAbsent(branch, n);
+      if (e == null) {
+        e = n;
+      }
     }
+    return e;
+  }
+
+  private void requestMerge(final Branch.NameKey branch) {
+    MergeEntry e = entry(branch);
+    for (;;) {
+      switch (e.state.get()) {
+        case MergeEntry.IDLE:
+          if (e.state.compareAndSet(MergeEntry.IDLE, MergeEntry.SCHEDULED)) {
+            scheduleJob(e);
+            return;
+          }
+          break;
 
-    scheduleJob(e);
+        case MergeEntry.RUNNING:
+          if (e.state.compareAndSet(MergeEntry.RUNNING, MergeEntry.RERUN)) {
+            return;
+          }
+          break;
+
+        case MergeEntry.REMOVED:
+          // The entry was dropped after we found it; use its replacement.
+          //
+          active.remove(branch, e);
+          e = entry(branch);
+          break;
+
+        case MergeEntry.SCHEDULED:
+        case MergeEntry.RERUN:
+        default:
+          // A future run will already observe everything submitted
+          // so far; coalesce this request into that run.
+          //
+          return;
+      }
+    }
   }
 
-  private void scheduleJob(final MergeEntry e) {
-    if (!e.jobScheduled) {
-      // No job has been scheduled to execute this branch, but it needs
-      // to run a merge again.
-      //
-      e.jobScheduled = true;
-      workQueue.getDefaultQueue().schedule(e, 0, TimeUnit.SECONDS);
+  private void finish(final MergeEntry e) {
+    for (;;) {
+      if (e.state.compareAndSet(MergeEntry.RUNNING, MergeEntry.IDLE)) {
+        // No additional merges were requested while we ran. Drop the
+        // entry, unless another thread claimed it in the meantime; a
+        // thread still holding it sees REMOVED and creates a new one.
+        //
+        if (e.state.compareAndSet(MergeEntry.IDLE, MergeEntry.REMOVED)) {
+          active.remove(e.dest, e);
+        }
+        return;
+      }
+      if (e.state.compareAndSet(MergeEntry.RERUN, MergeEntry.SCHEDULED)) {
+        scheduleJob(e);
+        return;
+      }
     }
   }
 
-  private synchronized void unschedule(final MergeEntry e) {
-    e.jobScheduled = false;
-    e.needMerge = false;
+  private void scheduleJob(final MergeEntry e) {
+    e.queuedAt = System.currentTimeMillis();
+    queueDepth.incrementAndGet();
+    mergeQueue.schedule(e, 0, TimeUnit.SECONDS);
   }
 
-  private void mergeImpl(MergeOp.Factory opFactory, Branch.NameKey branch) {
+  private void mergeImpl(MergeOp.Factory opFactory, MergeEntry e) {
     try {
-      opFactory.create(branch).merge();
-    } catch (Throwable e) {
-      log.error("Merge attempt for " + branch + " failed", e);
+      opFactory.create(e.dest).merge();
+    } catch (Throwable err) {
+      log.error("Merge attempt for " + e.dest + " failed", err);
     } finally {
-      finish(branch);
+      finish(e);
     }
   }
 
-  private void mergeImpl(Branch.NameKey branch) {
+  private void mergeImpl(MergeEntry e) {
     try {
       MyScope ctx = new MyScope();
       MyScope old = MyScope.set(ctx);
       try {
         try {
-          bgFactory.get().create(branch).merge();
+          bgFactory.get().create(e.dest).merge();
         } finally {
           ctx.cleanup.run();
         }
       } finally {
         MyScope.set(old);
       }
-    } catch (Throwable e) {
-      log.error("Merge attempt for " + branch + " failed", e);
+    } catch (Throwable err) {
+      log.error("Merge attempt for " + e.dest + " failed", err);
     } finally {
-      finish(branch);
+      finish(e);
     }
   }
 
-  private synchronized void recheck(final RecheckJob e) {
-    final long remainingDelay = e.recheckAt - System.currentTimeMillis();
+  private void recheck(final RecheckJob e) {
+    final long remainingDelay = e.recheckAt.get() - System.currentTimeMillis();
     if (MILLISECONDS.convert(10, SECONDS) < remainingDelay) {
       // Woke up too early, the job deadline was pushed back.
       // Reschedule for the new deadline. We allow for a small
       // amount of fuzz due to multiple reschedule attempts in
       // a short period of time being caused by MergeOp.
       //
-      workQueue.getDefaultQueue().schedule(e, remainingDelay, MILLISECONDS);
+      mergeQueue.schedule(e, remainingDelay, MILLISECONDS);
     } else {
       // Schedule a merge attempt on this branch to see if we can
       // actually complete it this time.
       //
+      recheck.remove(e.dest, e);
       schedule(e.dest);
     }
   }
 
   private class MergeEntry implements Runnable {
+    static final int IDLE = 0;
+    static final int SCHEDULED = 1;
+    static final int RUNNING = 2;
+    static final int RERUN = 3;
+    static final int REMOVED = 4;
+
     final Branch.NameKey dest;
-    boolean needMerge;
-    boolean jobScheduled;
+    final AtomicInteger state = new AtomicInteger(IDLE);
+    volatile long queuedAt;
 
     MergeEntry(final Branch.NameKey d) {
       dest = d;
     }
 
+    long getWaitTime(final long now) {
+      return state.get() == SCHEDULED ? now - queuedAt : 0;
+    }
+
     public void run() {
-      unschedule(this);
-      mergeImpl(dest);
+      final long waited = System.currentTimeMillis() - queuedAt;
+      queueDepth.decrementAndGet();
+      if (!state.compareAndSet(SCHEDULED, RUNNING)) {
+        log.error("Merge for " + dest + " started in unexpected state "
+            + state.get());
+        return;
+      }
+      if (log.isDebugEnabled()) {
+        log.debug("Merge for " + dest + " waited " + waited + " ms");
+      }
+      mergeImpl(this);
     }
 
     @Override
@@ -244,10 +352,21 @@ public class ChangeMergeQueue implements MergeQueue {
 
   private class RecheckJob implements Runnable {
     final Branch.NameKey dest;
-    long recheckAt;
+    final AtomicLong recheckAt;
 
-    RecheckJob(final Branch.NameKey d) {
+    RecheckJob(final Branch.NameKey d, final long at) {
       dest = d;
+      recheckAt = new AtomicLong(at);
+    }
+
+    void deferTo(final long at) {
+      long cur;
+      do {
+        cur = recheckAt.get();
+        if (at <= cur) {
+          return;
+        }
+      } while (!recheckAt.compareAndSet(cur, at));
     }
 
     @Override
@@ -43,5 +43,8 @@ enum CommitMergeStatus {
   CANNOT_CHERRY_PICK_ROOT,
 
   /** */
-  NOT_FAST_FORWARD;
+  NOT_FAST_FORWARD,
+
+  /** */
+  TOPIC_INCOMPLETE;
 }
@@ -14,6 +14,7 @@
 
 package com.google.gerrit.server.git;
 
+import static java.util.concurrent.TimeUnit.DAYS;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.MINUTES;
 
@@ -35,6 +36,8 @@ import com.google.gerrit.server.GerritPersonIdent;
 import com.google.gerrit.server.IdentifiedUser;
 import com.google.gerrit.server.account.AccountCache;
 import com.google.gerrit.server.config.CanonicalWebUrl;
+import com.google.gerrit.server.config.ConfigUtil;
+import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.gerrit.server.mail.EmailException;
 import com.google.gerrit.server.mail.MergeFailSender;
 import com.google.gerrit.server.mail.MergedSender;
@@ -42,6 +45,7 @@ import com.google.gerrit.server.patch.PatchSetInfoFactory;
 import com.google.gerrit.server.patch.PatchSetInfoNotAvailableException;
 import com.google.gerrit.server.project.ProjectCache;
 import com.google.gerrit.server.project.ProjectState;
+import com.google.gerrit.server.query.change.ChangeData;
 import com.google.gerrit.server.workflow.CategoryFunction;
 import com.google.gerrit.server.workflow.FunctionState;
 import com.google.gwtorm.client.AtomicUpdate;
@@ -57,6 +61,7 @@ import org.eclipse.jgit.errors.MissingObjectException;
 import org.eclipse.jgit.errors.RepositoryNotFoundException;
 import org.eclipse.jgit.lib.AnyObjectId;
 import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectInserter;
@@ -64,8 +69,6 @@ import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.RefUpdate;
 import org.eclipse.jgit.lib.Repository;
-import org.eclipse.jgit.merge.MergeStrategy;
-import org.eclipse.jgit.merge.Merger;
 import org.eclipse.jgit.merge.ThreeWayMerger;
 import org.eclipse.jgit.revwalk.FooterKey;
 import org.eclipse.jgit.revwalk.FooterLine;
@@ -106,6 +109,14 @@ import javax.annotation.Nullable;
  * Conflicts are handled by discarding the entire line of development and
  * marking it as conflicting, even if an earlier commit along that same line can
  * be merged cleanly.
+ * <p>
+ * Changes belonging to a topic are merged atomically. A topic is only
+ * considered once every open change in it has been submitted, and if any one
+ * of its changes cannot be merged the remaining changes of the topic are kept
+ * out of the branch update as well. Changes of a topic spanning several
+ * branches are merged atomically with the other changes on the same branch.
+ * Submitted changes which waited longer than {@code merge.topicTimeout} for
+ * the rest of their topic are returned to review.
  */
 public class MergeOp {
   public interface Factory {
@@ -138,13 +149,19 @@ public class MergeOp {
   private final PatchSetInfoFactory patchSetInfoFactory;
   private final IdentifiedUser.GenericFactory identifiedUserFactory;
   private final MergeQueue mergeQueue;
+  private final PreMergeCache preMergeCache;
+  private final long topicTimeout;
 
   private final PersonIdent myIdent;
   private final Branch.NameKey destBranch;
   private Project destProject;
   private final List<CodeReviewCommit> toMerge;
   private List<Change> submitted;
+  private final Map<Change.Id, List<Change>> topics;
+  private final List<CodeReviewCommit> pending;
   private final Map<Change.Id, CodeReviewCommit> commits;
+  private final List<Change> mergedChanges;
+  private final Map<Change.Id, ChangeMessage> mergedMessages;
   private ReviewDb schema;
   private Repository db;
   private RevWalk rw;
@@ -152,6 +169,7 @@ public class MergeOp {
   private CodeReviewCommit branchTip;
   private CodeReviewCommit mergeTip;
   private Set<RevCommit> alreadyAccepted;
+  private MergeSorter mergeSorter;
   private RefUpdate branchUpdate;
 
   private final ChangeHookRunner hooks;
@@ -169,7 +187,9 @@ public class MergeOp {
       @GerritPersonIdent final PersonIdent myIdent,
       final MergeQueue mergeQueue, @Assisted final Branch.NameKey branch,
       final ChangeHookRunner hooks, final AccountCache accountCache,
-      final CreateCodeReviewNotes.Factory crnf) {
+      final CreateCodeReviewNotes.Factory crnf,
+      final PreMergeCache preMergeCache,
+      @GerritServerConfig final Config cfg) {
     repoManager = grm;
     schemaFactory = sf;
     functionState = fs;
@@ -185,11 +205,18 @@ public class MergeOp {
     this.hooks = hooks;
     this.accountCache = accountCache;
     codeReviewNotesFactory = crnf;
+    this.preMergeCache = preMergeCache;
+    topicTimeout = ConfigUtil.getTimeUnit(cfg, "merge", null, "topicTimeout",
+        MILLISECONDS.convert(1, DAYS), MILLISECONDS);
 
     this.myIdent = myIdent;
     destBranch = branch;
     toMerge = new ArrayList<CodeReviewCommit>();
+    topics = new HashMap<Change.Id, List<Change>>();
+    pending = new ArrayList<CodeReviewCommit>();
     commits = new HashMap<Change.Id, CodeReviewCommit>();
+    mergedChanges = new ArrayList<Change>();
+    mergedMessages = new HashMap<Change.Id, ChangeMessage>();
   }
 
   public void merge() throws MergeException {
@@ -223,21 +250,24 @@ public class MergeOp {
     openBranch();
     listPendingSubmits();
     validateChangeList();
-    mergeTip = branchTip;
-    switch (destProject.getSubmitType()) {
-      case CHERRY_PICK:
-        cherryPickChanges();
-        break;
+    pending.addAll(toMerge);
+    do {
+      mergeTip = branchTip;
+      switch (destProject.getSubmitType()) {
+        case CHERRY_PICK:
+          cherryPickChanges();
+          break;
 
-      case FAST_FORWARD_ONLY:
-      case MERGE_ALWAYS:
-      case MERGE_IF_NECESSARY:
-      default:
-        reduceToMinimalMerge();
-        mergeTopics();
-        markCleanMerges();
-        break;
-    }
+        case FAST_FORWARD_ONLY:
+        case MERGE_ALWAYS:
+        case MERGE_IF_NECESSARY:
+        default:
+          reduceToMinimalMerge();
+          mergeTopics();
+          markCleanMerges();
+          break;
+      }
+    } while (excludeIncompleteTopics());
     updateBranch();
     updateChangeStatus();
   }
@@ -275,11 +305,20 @@ public class MergeOp {
         branchTip = null;
       }
 
+      final Set<ObjectId> seen = new HashSet<ObjectId>();
       for (final Ref r : db.getAllRefs().values()) {
         if (r.getName().startsWith(Constants.R_HEADS)
             || r.getName().startsWith(Constants.R_TAGS)) {
+          // Many tags and branches share a tip; only parse each once.
+          //
+          final ObjectId id = r.getPeeledObjectId() != null //
+              ? r.getPeeledObjectId() //
+              : r.getObjectId();
+          if (id == null || !seen.add(id)) {
+            continue;
+          }
           try {
-            alreadyAccepted.add(rw.parseCommit(r.getObjectId()));
+            alreadyAccepted.add(rw.parseCommit(id));
           } catch (IncorrectObjectTypeException iote) {
             // Not a commit? Skip over it.
           }
@@ -288,22 +327,115 @@ public class MergeOp {
     } catch (IOException e) {
       throw new MergeException("Cannot open branch", e);
     }
+    mergeSorter = new MergeSorter(rw, alreadyAccepted, CAN_MERGE);
   }
 
   private void listPendingSubmits() throws MergeException {
     try {
       submitted = schema.changes().submitted(destBranch).toList();
+      holdUnsubmittedTopics();
     } catch (OrmException e) {
       throw new MergeException("Cannot query the database", e);
     }
   }
 
+  private void holdUnsubmittedTopics() throws OrmException {
+    final Set<Change.Id> held = new HashSet<Change.Id>();
+    for (final Change chg : submitted) {
+      final Change.Id topicId = chg.getTopicId();
+      if (topicId == null || topics.containsKey(topicId)
+          || held.contains(topicId)) {
+        continue;
+      }
+
+      final List<Change> open =
+          schema.changes().byTopicOpenAll(topicId).toList();
+      final List<Change> members = topicMembers(destBranch, open);
+      if (members != null) {
+        topics.put(topicId, members);
+
+        // The last change of the topic may have been submitted to another
+        // branch; the other branches are not merged otherwise.
+        //
+        for (final Change m : open) {
+          if (!destBranch.equals(m.getDest())) {
+            mergeQueue.schedule(m.getDest());
+          }
+        }
+      } else {
+        // Some other change of this topic is still under review. Leave
+        // the submitted ones in the queue, they will be picked up once
+        // the last change of the topic has been submitted.
+        //
+        held.add(topicId);
+      }
+    }
+
+    if (!held.isEmpty()) {
+      final List<Change> ready = new ArrayList<Change>(submitted.size());
+      for (final Change chg : submitted) {
+        if (!held.contains(chg.getTopicId())) {
+          ready.add(chg);
+        } else if (waitForTopic(chg)) {
+          setNew(chg, message(chg, "Change could not be merged because"
+              + " other changes of its topic were not submitted in time.\n"
+              + "\n"
+              + "Please submit it again with the rest of its topic."));
+        }
+      }
+      submitted = ready;
+    }
+  }
+
+  /**
+   * Select the changes of a topic to merge into a branch.
+   *
+   * @param branch the branch being merged.
+   * @param members all open changes of the topic, on any branch.
+   * @return the changes of the topic on the branch; null if some change of
+   *         the topic, on any branch, is not submitted yet.
+   */
+  static List<Change> topicMembers(final Branch.NameKey branch,
+      final List<Change> members) {
+    final List<Change> r = new ArrayList<Change>(members.size());
+    for (final Change m : members) {
+      if (m.getStatus() != Change.Status.SUBMITTED) {
+        return null;
+      } else if (branch.equals(m.getDest())) {
+        r.add(m);
+      }
+    }
+    return r;
+  }
+
+  /**
+   * Check if a submitted change waited for the rest of its topic too long.
+   * <p>
+   * If it did not, a merge of the branch is scheduled for when it will have.
+   *
+   * @return true if the change should be returned to review.
+   */
+  private boolean waitForTopic(final Change c) {
+    final PatchSetApproval submit = getSubmitter(c.currentPatchSetId());
+    final long now = System.currentTimeMillis();
+    final long submitted =
+        submit != null ? submit.getGranted().getTime() : now;
+    if (submitted + topicTimeout <= now) {
+      return true;
+    }
+    mergeQueue.recheckAfter(destBranch, submitted + topicTimeout - now,
+        MILLISECONDS);
+    return false;
+  }
+
   private void validateChangeList() throws MergeException {
     final Set<ObjectId> tips = new HashSet<ObjectId>();
     for (final Ref r : db.getAllRefs().values()) {
       tips.add(r.getObjectId());
     }
 
+    final Map<PatchSet.Id, PatchSet> patchSets = loadCurrentPatchSets();
+
     int commitOrder = 0;
     for (final Change chg : submitted) {
       final Change.Id changeId = chg.getId();
@@ -313,12 +445,7 @@ public class MergeOp {
         continue;
       }
 
-      final PatchSet ps;
-      try {
-        ps = schema.patchSets().get(chg.currentPatchSetId());
-      } catch (OrmException e) {
-        throw new MergeException("Cannot query the database", e);
-      }
+      final PatchSet ps = patchSets.get(chg.currentPatchSetId());
       if (ps == null || ps.getRevision() == null
           || ps.getRevision().get() == null) {
         commits.put(changeId, CodeReviewCommit
@@ -386,10 +513,30 @@ public class MergeOp {
     }
   }
 
+  private Map<PatchSet.Id, PatchSet> loadCurrentPatchSets()
+      throws MergeException {
+    final List<PatchSet.Id> want = new ArrayList<PatchSet.Id>(submitted.size());
+    for (final Change chg : submitted) {
+      if (chg.currentPatchSetId() != null) {
+        want.add(chg.currentPatchSetId());
+      }
+    }
+
+    final Map<PatchSet.Id, PatchSet> r = new HashMap<PatchSet.Id, PatchSet>();
+    try {
+      for (final PatchSet ps : schema.patchSets().get(want)) {
+        r.put(ps.getId(), ps);
+      }
+    } catch (OrmException e) {
+      throw new MergeException("Cannot query the database", e);
+    }
+    return r;
+  }
+
   private void reduceToMinimalMerge() throws MergeException {
     final Collection<CodeReviewCommit> heads;
     try {
-      heads = new MergeSorter(rw, alreadyAccepted, CAN_MERGE).sort(toMerge);
+      heads = mergeSorter.sort(toMerge);
     } catch (IOException e) {
       throw new MergeException("Branch head sorting failed", e);
     }
@@ -439,21 +586,27 @@ public class MergeOp {
   }
 
   private void mergeOneCommit(final CodeReviewCommit n) throws MergeException {
-    final ThreeWayMerger m;
-    if (destProject.isUseContentMerge()) {
-      // Settings for this project allow us to try and
-      // automatically resolve conflicts within files if needed.
-      // Use ResolveMerge and instruct to operate in core.
-      m = MergeStrategy.RESOLVE.newMerger(db, true);
-    } else {
-      // No auto conflict resolving allowed. If any of the
-      // affected files was modified, merge will fail.
-      m = MergeStrategy.SIMPLE_TWO_WAY_IN_CORE.newMerger(db);
+    final PreMergeCache.Result pre = preMergeCache.get(destProject, mergeTip, n);
+    if (pre != null) {
+      // The same merge was already computed when the change was
+      // approved, and the branch has not moved since.
+      //
+      try {
+        if (pre.isClean()) {
+          writeMergeCommit(pre.getTree(), n);
+        } else {
+          failed(n, CommitMergeStatus.PATH_CONFLICT);
+        }
+      } catch (IOException e) {
+        throw new MergeException("Cannot merge " + n.name(), e);
+      }
+      return;
     }
 
+    final ThreeWayMerger m = PreMergeCache.newMerger(destProject, db);
     try {
       if (m.merge(new AnyObjectId[] {mergeTip, n})) {
-        writeMergeCommit(m, n);
+        writeMergeCommit(PreMergeCache.writeTree(m), n);
 
       } else {
         failed(n, CommitMergeStatus.PATH_CONFLICT);
@@ -484,7 +637,7 @@ public class MergeOp {
     return failed;
   }
 
-  private void writeMergeCommit(final Merger m, final CodeReviewCommit n)
+  private void writeMergeCommit(final ObjectId treeId, final CodeReviewCommit n)
       throws IOException, MissingObjectException, IncorrectObjectTypeException {
     final List<CodeReviewCommit> merged = new ArrayList<CodeReviewCommit>();
     rw.reset();
@@ -533,13 +686,13 @@ public class MergeOp {
     PersonIdent authorIdent = computeAuthor(merged);
 
     final CommitBuilder mergeCommit = new CommitBuilder();
-    mergeCommit.setTreeId(m.getResultTreeId());
+    mergeCommit.setTreeId(treeId);
     mergeCommit.setParentIds(mergeTip, n);
     mergeCommit.setAuthor(authorIdent);
     mergeCommit.setCommitter(myIdent);
     mergeCommit.setMessage(msgbuf.toString());
 
-    mergeTip = (CodeReviewCommit) rw.parseCommit(commit(m, mergeCommit));
+    mergeTip = (CodeReviewCommit) rw.parseCommit(commit(mergeCommit));
   }
 
   private PersonIdent computeAuthor(
@@ -615,6 +768,86 @@ public class MergeOp {
     }
   }
 
+  /**
+   * Remove topics that did not merge completely from the pending set.
+   *
+   * @return true if any commit was removed, in which case the merge must be
+   *         computed again from the original branch tip.
+   */
+  private boolean excludeIncompleteTopics() {
+    boolean excluded = false;
+    for (final List<Change> members : topics.values()) {
+      if (isMerged(members)) {
+        continue;
+      }
+
+      for (final Change chg : members) {
+        final CodeReviewCommit commit = findPending(chg.getId());
+        if (commit == null) {
+          continue;
+        }
+
+        // Keep the whole topic out of this branch update. Commits
+        // that failed on their own keep their status; the others
+        // only failed because of the rest of their topic.
+        //
+        pending.remove(commit);
+        commit.remove(CAN_MERGE);
+        if (isMerged(commits.get(chg.getId()))) {
+          commit.statusCode = CommitMergeStatus.TOPIC_INCOMPLETE;
+          commits.put(chg.getId(), commit);
+          excluded = true;
+        }
+      }
+    }
+
+    if (excluded) {
+      rw.sort(RevSort.TOPO);
+      rw.sort(RevSort.COMMIT_TIME_DESC, true);
+      toMerge.clear();
+      for (final CodeReviewCommit commit : pending) {
+        commit.statusCode = null;
+        commit.missing = null;
+        commit.add(CAN_MERGE);
+        commits.put(commit.change.getId(), commit);
+        toMerge.add(commit);
+      }
+    }
+    return excluded;
+  }
+
+  private boolean isMerged(final List<Change> members) {
+    for (final Change chg : members) {
+      if (!isMerged(commits.get(chg.getId()))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isMerged(final CodeReviewCommit commit) {
+    if (commit == null || commit.statusCode == null) {
+      return false;
+    }
+    switch (commit.statusCode) {
+      case CLEAN_MERGE:
+      case CLEAN_PICK:
+      case ALREADY_MERGED:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private CodeReviewCommit findPending(final Change.Id changeId) {
+    for (final CodeReviewCommit commit : pending) {
+      if (commit.change.getId().equals(changeId)) {
+        return commit;
+      }
+    }
+    return null;
+  }
+
   private void setRefLogIdent(final PatchSetApproval submitAudit) {
     if (submitAudit != null) {
       branchUpdate.setRefLogIdent(identifiedUserFactory.create(
@@ -625,19 +858,6 @@ public class MergeOp {
   private void cherryPickChanges() throws MergeException {
     while (!toMerge.isEmpty()) {
       final CodeReviewCommit n = toMerge.remove(0);
-      final ThreeWayMerger m;
-
-      if (destProject.isUseContentMerge()) {
-        // Settings for this project allow us to try and
-        // automatically resolve conflicts within files if needed.
-        // Use ResolveMerge and instruct to operate in core.
-        m = MergeStrategy.RESOLVE.newMerger(db, true);
-      } else {
-        // No auto conflict resolving allowed. If any of the
-        // affected files was modified, merge will fail.
-        m = MergeStrategy.SIMPLE_TWO_WAY_IN_CORE.newMerger(db);
-      }
-
       try {
         if (mergeTip == null) {
           // The branch is unborn. Take a fast-forward resolution to
@@ -657,9 +877,23 @@ public class MergeOp {
           // taking the delta relative to that one parent and redoing
           // that on the current merge tip.
           //
+          final PreMergeCache.Result pre =
+              preMergeCache.get(destProject, mergeTip, n);
+          if (pre != null) {
+            // Reuse the cherry-pick computed when the change was approved.
+            //
+            if (pre.isClean()) {
+              writeCherryPickCommit(pre.getTree(), n);
+            } else {
+              n.statusCode = CommitMergeStatus.PATH_CONFLICT;
+            }
+            continue;
+          }
+
+          final ThreeWayMerger m = PreMergeCache.newMerger(destProject, db);
           m.setBase(n.getParent(0));
           if (m.merge(mergeTip, n)) {
-            writeCherryPickCommit(m, n);
+            writeCherryPickCommit(PreMergeCache.writeTree(m), n);
 
           } else {
             n.statusCode = CommitMergeStatus.PATH_CONFLICT;
@@ -701,11 +935,11 @@ public class MergeOp {
     // as the merge sorter checks the dependency chain as part of
     // its logic trying to find a minimal merge path.
     //
-    return new MergeSorter(rw, alreadyAccepted, CAN_MERGE).sort(
-        Collections.singleton(n)).contains(n);
+    return mergeSorter.sort(Collections.singleton(n)).contains(n);
   }
 
-  private void writeCherryPickCommit(final Merger m, final CodeReviewCommit n)
+  private void writeCherryPickCommit(final ObjectId treeId,
+      final CodeReviewCommit n)
       throws IOException {
     rw.parseBody(n);
 
@@ -825,13 +1059,13 @@ public class MergeOp {
     }
 
     final CommitBuilder mergeCommit = new CommitBuilder();
-    mergeCommit.setTreeId(m.getResultTreeId());
+    mergeCommit.setTreeId(treeId);
     mergeCommit.setParentId(mergeTip);
     mergeCommit.setAuthor(n.getAuthorIdent());
     mergeCommit.setCommitter(toCommitterIdent(submitAudit));
     mergeCommit.setMessage(msgbuf.toString());
 
-    final ObjectId id = commit(m, mergeCommit);
+    final ObjectId id = commit(mergeCommit);
     final CodeReviewCommit newCommit = (CodeReviewCommit) rw.parseCommit(id);
     newCommit.copyFrom(n);
     newCommit.statusCode = CommitMergeStatus.CLEAN_PICK;
@@ -841,9 +1075,9 @@ public class MergeOp {
     setRefLogIdent(submitAudit);
   }
 
-  private ObjectId commit(final Merger m, final CommitBuilder mergeCommit)
+  private ObjectId commit(final CommitBuilder mergeCommit)
       throws IOException, UnsupportedEncodingException {
-    ObjectInserter oi = m.getObjectInserter();
+    ObjectInserter oi = db.newObjectInserter();
     try {
       ObjectId id = oi.insert(mergeCommit);
       oi.flush();
@@ -1004,11 +1238,26 @@ public class MergeOp {
           break;
         }
 
+        case TOPIC_INCOMPLETE: {
+          final String txt =
+              "Change could not be merged because other changes"
+                  + " of its topic could not be merged.";
+          if (waitForTopic(c)) {
+            setNew(c, message(c, txt + "\n"
+                + "\n"
+                + "Please submit it again with the rest of its topic."));
+          } else if (!isAlreadySent(c, txt)) {
+            sendMergeFail(c, message(c, txt), false);
+          }
+          break;
+        }
+
         default:
           setNew(c, message(c, "Unspecified merge failure: " + s.name()));
           break;
       }
     }
+    writeMerged();
 
     CreateCodeReviewNotes codeReviewNotes =
         codeReviewNotesFactory.create(schema, db);
@@ -1192,29 +1441,55 @@ public class MergeOp {
   }
 
   private void setMerged(Change c, ChangeMessage msg) {
-    final Change.Id changeId = c.getId();
-    final PatchSet.Id merged = c.currentPatchSetId();
+    // Record the change only; all merged changes of this run are
+    // written together by writeMerged(), so a large batch costs a
+    // handful of statements rather than several per change.
+    //
+    mergedChanges.add(c);
+    if (msg != null) {
+      mergedMessages.put(c.getId(), msg);
+    }
+  }
+
+  private void writeMerged() {
+    if (mergedChanges.isEmpty()) {
+      return;
+    }
+
+    final Map<Change.Id, PatchSet.Id> mergedPatchSets =
+        new HashMap<Change.Id, PatchSet.Id>();
+    for (final Change c : mergedChanges) {
+      mergedPatchSets.put(c.getId(), c.currentPatchSetId());
+    }
 
     try {
-      schema.changes().atomicUpdate(changeId, new AtomicUpdate<Change>() {
-        @Override
-        public Change update(Change c) {
-          c.setStatus(Change.Status.MERGED);
-          if (!merged.equals(c.currentPatchSetId())) {
-            // Uncool; the patch set changed after we merged it.
-            // Go back to the patch set that was actually merged.
-            //
-            try {
-              c.setCurrentPatchSet(patchSetInfoFactory.get(merged));
-            } catch (PatchSetInfoNotAvailableException e1) {
-              log.error("Cannot read merged patch set " + merged, e1);
-            }
-          }
-          ChangeUtil.updated(c);
-          return c;
-        }
-      });
+      final List<Change> rows =
+          schema.changes().get(mergedPatchSets.keySet()).toList();
+      for (final Change c : rows) {
+        markMerged(c, mergedPatchSets.get(c.getId()));
+      }
+      schema.changes().update(rows);
     } catch (OrmConcurrencyException err) {
+      // At least one change was modified by someone else since we
+      // read it. Retry them one at a time, so each row is still only
+      // written against the version it was read at.
+      //
+      for (final Map.Entry<Change.Id, PatchSet.Id> e : mergedPatchSets
+          .entrySet()) {
+        final PatchSet.Id merged = e.getValue();
+        try {
+          schema.changes().atomicUpdate(e.getKey(),
+              new AtomicUpdate<Change>() {
+                @Override
+                public Change update(Change c) {
+                  return markMerged(c, merged);
+                }
+              });
+        } catch (OrmConcurrencyException err2) {
+        } catch (OrmException err2) {
+          log.warn("Cannot update change status", err2);
+        }
+      }
     } catch (OrmException err) {
       log.warn("Cannot update change status", err);
     }
@@ -1225,42 +1500,102 @@ public class MergeOp {
     // sure they are accurate now. This way if permissions get
     // modified in the future, historical records stay accurate.
     //
-    PatchSetApproval submitter = null;
-    try {
-      c.setStatus(Change.Status.MERGED);
-      final List<PatchSetApproval> approvals =
-          schema.patchSetApprovals().byChange(changeId).toList();
-      final FunctionState fs = functionState.create(c, merged, approvals);
-      for (ApprovalType at : approvalTypes.getApprovalTypes()) {
-        CategoryFunction.forCategory(at.getCategory()).run(at, fs);
+    final Provider<ReviewDb> reviewDb = new Provider<ReviewDb>() {
+      @Override
+      public ReviewDb get() {
+        return schema;
       }
-      for (PatchSetApproval a : approvals) {
-        if (a.getValue() > 0
-            && ApprovalCategory.SUBMIT.equals(a.getCategoryId())
-            && a.getPatchSetId().equals(merged)) {
-          if (submitter == null
-              || a.getGranted().compareTo(submitter.getGranted()) > 0) {
-            submitter = a;
+    };
+    final Map<Change.Id, ChangeData> data =
+        new HashMap<Change.Id, ChangeData>();
+    for (final Change c : mergedChanges) {
+      data.put(c.getId(), new ChangeData(c));
+    }
+    try {
+      ChangeData.ensureApprovalsLoaded(reviewDb, data.values());
+    } catch (OrmException err) {
+      // Each change reads its own approvals below instead.
+      //
+      log.warn("Cannot load approvals of merged changes", err);
+    }
+
+    final Map<Change.Id, PatchSetApproval> submitters =
+        new HashMap<Change.Id, PatchSetApproval>();
+    final List<PatchSetApproval> approvals = new ArrayList<PatchSetApproval>();
+    for (final Change c : mergedChanges) {
+      final Change.Id changeId = c.getId();
+      final PatchSet.Id merged = c.currentPatchSetId();
+      try {
+        c.setStatus(Change.Status.MERGED);
+        final List<PatchSetApproval> list = new ArrayList<PatchSetApproval>(
+            data.get(changeId).approvals(reviewDb));
+        final FunctionState fs = functionState.create(c, merged, list);
+        for (ApprovalType at : approvalTypes.getApprovalTypes()) {
+          CategoryFunction.forCategory(at.getCategory()).run(at, fs);
+        }
+        PatchSetApproval submitter = null;
+        for (PatchSetApproval a : list) {
+          if (a.getValue() > 0
+              && ApprovalCategory.SUBMIT.equals(a.getCategoryId())
+              && a.getPatchSetId().equals(merged)) {
+            if (submitter == null
+                || a.getGranted().compareTo(submitter.getGranted()) > 0) {
+              submitter = a;
+            }
           }
+          a.cache(c);
+        }
+        approvals.addAll(list);
+        if (submitter != null) {
+          submitters.put(changeId, submitter);
         }
-        a.cache(c);
+      } catch (OrmException err) {
+        log.warn("Cannot normalize approvals for change " + changeId, err);
       }
+    }
+    try {
       schema.patchSetApprovals().update(approvals);
     } catch (OrmException err) {
-      log.warn("Cannot normalize approvals for change " + changeId, err);
+      log.warn("Cannot normalize approvals for merged changes", err);
     }
 
-    if (msg != null) {
+    for (final ChangeMessage msg : mergedMessages.values()) {
+      final PatchSetApproval submitter =
+          submitters.get(msg.getKey().getParentKey());
       if (submitter != null && msg.getAuthor() == null) {
         msg.setAuthor(submitter.getAccountId());
       }
+    }
+    try {
+      schema.changeMessages().insert(mergedMessages.values());
+    } catch (OrmException err) {
+      log.warn("Cannot store message on change", err);
+    }
+
+    for (final Change c : mergedChanges) {
+      sendMerged(c, submitters.get(c.getId()));
+    }
+    mergedChanges.clear();
+    mergedMessages.clear();
+  }
+
+  private Change markMerged(final Change c, final PatchSet.Id merged) {
+    c.setStatus(Change.Status.MERGED);
+    if (!merged.equals(c.currentPatchSetId())) {
+      // Uncool; the patch set changed after we merged it.
+      // Go back to the patch set that was actually merged.
+      //
       try {
-        schema.changeMessages().insert(Collections.singleton(msg));
-      } catch (OrmException err) {
-        log.warn("Cannot store message on change", err);
+        c.setCurrentPatchSet(patchSetInfoFactory.get(merged));
+      } catch (PatchSetInfoNotAvailableException e1) {
+        log.error("Cannot read merged patch set " + merged, e1);
       }
     }
+    ChangeUtil.updated(c);
+    return c;
+  }
 
+  private void sendMerged(final Change c, final PatchSetApproval submitter) {
     try {
       final MergedSender cm = mergedSenderFactory.create(c);
       if (submitter != null) {
@@ -15,7 +15,6 @@
 package com.google.gerrit.server.git;
 
 import org.eclipse.jgit.revwalk.RevCommit;
-import org.eclipse.jgit.revwalk.RevCommitList;
 import org.eclipse.jgit.revwalk.RevFlag;
 import org.eclipse.jgit.revwalk.RevWalk;
 
@@ -24,36 +23,45 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Set;
 
+/**
+ * Reduces a set of submitted commits to the heads that must be merged.
+ * <p>
+ * The commits not yet merged into any already accepted commit are found with
+ * a single walk over all incoming commits, rather than one walk per commit.
+ * The result of that walk is kept for the life of the sorter, so repeated
+ * calls for commits already covered do not walk the history again.
+ */
 class MergeSorter {
   private final RevWalk rw;
   private final RevFlag CAN_MERGE;
   private final Set<RevCommit> accepted;
+  private final Set<RevCommit> walked;
+  private final Set<RevCommit> unmerged;
 
   MergeSorter(final RevWalk walk, final Set<RevCommit> alreadyAccepted,
       final RevFlag flagCAN_MERGE) {
     rw = walk;
     CAN_MERGE = flagCAN_MERGE;
     accepted = alreadyAccepted;
+    walked = new HashSet<RevCommit>();
+    unmerged = new HashSet<RevCommit>();
   }
 
   Collection<CodeReviewCommit> sort(final Collection<CodeReviewCommit> incoming)
       throws IOException {
+    findUnmerged(incoming);
+
     final Set<CodeReviewCommit> heads = new HashSet<CodeReviewCommit>();
     final Set<CodeReviewCommit> sort = new HashSet<CodeReviewCommit>(incoming);
     while (!sort.isEmpty()) {
       final CodeReviewCommit n = removeOne(sort);
 
-      rw.resetRetain(CAN_MERGE);
-      rw.markStart(n);
-      for (RevCommit c : accepted) {
-        rw.markUninteresting(c);
-      }
-
-      RevCommit c;
-      final RevCommitList<RevCommit> contents = new RevCommitList<RevCommit>();
-      while ((c = rw.next()) != null) {
+      final Set<RevCommit> contents = unmergedAncestors(n);
+      for (final RevCommit c : contents) {
         if (!c.has(CAN_MERGE)) {
           // We cannot merge n as it would bring something we
           // aren't permitted to merge at this time. Drop n.
@@ -63,8 +71,6 @@ class MergeSorter {
             n.missing = new ArrayList<CodeReviewCommit>();
           }
           n.missing.add((CodeReviewCommit) c);
-        } else {
-          contents.add(c);
         }
       }
 
@@ -83,6 +89,57 @@ class MergeSorter {
     return heads;
   }
 
+  private void findUnmerged(final Collection<CodeReviewCommit> incoming)
+      throws IOException {
+    final List<RevCommit> start = new ArrayList<RevCommit>();
+    for (final CodeReviewCommit n : incoming) {
+      if (!walked.contains(n)) {
+        start.add(n);
+      }
+    }
+    if (start.isEmpty()) {
+      return;
+    }
+
+    rw.resetRetain(CAN_MERGE);
+    for (final RevCommit c : start) {
+      rw.markStart(c);
+    }
+    for (final RevCommit c : accepted) {
+      rw.markUninteresting(c);
+    }
+
+    RevCommit c;
+    while ((c = rw.next()) != null) {
+      unmerged.add(c);
+    }
+    walked.addAll(start);
+  }
+
+  private Set<RevCommit> unmergedAncestors(final RevCommit n) {
+    // Every commit reachable from n that is not yet accepted was
+    // returned by the walk. An accepted commit's ancestors are all
+    // accepted, so it is enough to follow parents within that set.
+    //
+    final Set<RevCommit> r = new HashSet<RevCommit>();
+    if (!unmerged.contains(n)) {
+      return r;
+    }
+
+    final LinkedList<RevCommit> todo = new LinkedList<RevCommit>();
+    r.add(n);
+    todo.add(n);
+    while (!todo.isEmpty()) {
+      final RevCommit c = todo.removeFirst();
+      for (final RevCommit p : c.getParents()) {
+        if (unmerged.contains(p) && r.add(p)) {
+          todo.add(p);
+        }
+      }
+    }
+    return r;
+  }
+
   private static <T> T removeOne(final Collection<T> c) {
     final Iterator<T> i = c.iterator();
     final T r = i.next();
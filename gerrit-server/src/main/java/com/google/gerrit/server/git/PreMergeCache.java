@@ -0,0 +1,302 @@
+// Copyright (C) 2011 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.git;
+
+import com.google.gerrit.reviewdb.Branch;
+import com.google.gerrit.reviewdb.Change;
+import com.google.gerrit.reviewdb.PatchSet;
+import com.google.gerrit.reviewdb.Project;
+import com.google.gerrit.server.cache.Cache;
+import com.google.gerrit.server.cache.CacheModule;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.project.ProjectCache;
+import com.google.gerrit.server.project.ProjectState;
+import com.google.inject.Inject;
+import com.google.inject.Module;
+import com.google.inject.Singleton;
+import com.google.inject.TypeLiteral;
+import com.google.inject.name.Named;
+
+import org.eclipse.jgit.errors.RepositoryNotFoundException;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.merge.MergeStrategy;
+import org.eclipse.jgit.merge.ThreeWayMerger;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Results of merging approved changes ahead of their submission.
+ * <p>
+ * Once a change has all approvals it needs, a background job performs the
+ * same merge {@link MergeOp} would run against the current tip of the
+ * destination branch. The resulting tree is remembered by branch tip and
+ * commit, so if the branch has not moved by the time the change is submitted
+ * the merge does not have to be computed again.
+ * <p>
+ * Merges run on their own small queue, sized by
+ * {@code merge.preMergeThreadPoolSize}, so they never delay other
+ * background work.
+ */
+@Singleton
+public class PreMergeCache {
+  private static final Logger log =
+      LoggerFactory.getLogger(PreMergeCache.class);
+  private static final String CACHE_NAME = "pre_merge";
+
+  public static Module module() {
+    return new CacheModule() {
+      @Override
+      protected void configure() {
+        final TypeLiteral<Cache<Key, Result>> type =
+            new TypeLiteral<Cache<Key, Result>>() {};
+        core(type, CACHE_NAME) //
+            .memoryLimit(1024) //
+            .maxAge(1, TimeUnit.DAYS);
+        bind(PreMergeCache.class);
+      }
+    };
+  }
+
+  /** Identifies one merge of a commit onto a branch tip. */
+  public static class Key {
+    final Project.NameKey project;
+    final ObjectId tip;
+    final ObjectId commit;
+    final Project.SubmitType submitType;
+    final boolean useContentMerge;
+
+    Key(final Project p, final AnyObjectId tip, final AnyObjectId commit) {
+      this.project = p.getNameKey();
+      this.tip = tip.copy();
+      this.commit = commit.copy();
+      this.submitType = p.getSubmitType();
+      this.useContentMerge = p.isUseContentMerge();
+    }
+
+    @Override
+    public int hashCode() {
+      return tip.hashCode() * 31 + commit.hashCode();
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (o instanceof Key) {
+        final Key k = (Key) o;
+        return project.equals(k.project) //
+            && tip.equals(k.tip) //
+            && commit.equals(k.commit) //
+            && submitType == k.submitType //
+            && useContentMerge == k.useContentMerge;
+      }
+      return false;
+    }
+  }
+
+  /** Outcome of a speculative merge. */
+  public static class Result {
+    static final Result CONFLICT = new Result(null);
+
+    private final ObjectId tree;
+
+    Result(final ObjectId tree) {
+      this.tree = tree;
+    }
+
+    /** @return true if the commit merged without conflicts. */
+    public boolean isClean() {
+      return tree != null;
+    }
+
+    /** @return tree of the clean merge; null if the merge conflicted. */
+    public ObjectId getTree() {
+      return tree;
+    }
+  }
+
+  private final Cache<Key, Result> cache;
+  private final GitRepositoryManager repoManager;
+  private final ProjectCache projectCache;
+  private final WorkQueue.Executor workers;
+
+  @Inject
+  PreMergeCache(@Named(CACHE_NAME) final Cache<Key, Result> cache,
+      final GitRepositoryManager repoManager, final ProjectCache projectCache,
+      final WorkQueue workQueue, @GerritServerConfig final Config cfg) {
+    this.cache = cache;
+    this.repoManager = repoManager;
+    this.projectCache = projectCache;
+
+    final int threads = cfg.getInt("merge", "preMergeThreadPoolSize", 1);
+    workers = 0 < threads ? workQueue.createQueue(threads, "PreMerge") : null;
+  }
+
+  /**
+   * Look up an earlier merge of a commit onto a branch tip.
+   *
+   * @return the result of the merge; null if it was not computed yet.
+   */
+  Result get(final Project project, final AnyObjectId tip,
+      final AnyObjectId commit) {
+    return cache.get(new Key(project, tip, commit));
+  }
+
+  /**
+   * Determine if a change is known to conflict with its destination branch.
+   *
+   * @return true only if the merge was computed against the current branch
+   *         tip and did not merge cleanly.
+   */
+  public boolean isKnownConflict(final Change change, final PatchSet ps) {
+    final ProjectState pe = projectCache.get(change.getProject());
+    if (pe == null || ps.getRevision() == null) {
+      return false;
+    }
+    try {
+      final Repository db = repoManager.openRepository(change.getProject());
+      try {
+        final Ref ref = db.getRef(change.getDest().get());
+        if (ref == null || ref.getObjectId() == null) {
+          return false;
+        }
+        final Result r = get(pe.getProject(), ref.getObjectId(), //
+            ObjectId.fromString(ps.getRevision().get()));
+        return r != null && !r.isClean();
+      } finally {
+        db.close();
+      }
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /** Compute the merge of a patch set in the background. */
+  public void schedule(final Change change, final PatchSet ps) {
+    if (workers == null) {
+      return;
+    }
+    workers.schedule(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          compute(change.getDest(), ps);
+        } catch (RepositoryNotFoundException e) {
+          log.warn("Cannot pre-merge " + ps.getId() + ": " + e.getMessage());
+        } catch (IOException e) {
+          log.warn("Cannot pre-merge " + ps.getId(), e);
+        }
+      }
+
+      @Override
+      public String toString() {
+        final Branch.NameKey dest = change.getDest();
+        return "pre-merge " + dest.getParentKey().get() + " "
+            + dest.getShortName() + " " + ps.getId();
+      }
+    }, 0, TimeUnit.SECONDS);
+  }
+
+  private void compute(final Branch.NameKey dest, final PatchSet ps)
+      throws IOException {
+    final ProjectState pe = projectCache.get(dest.getParentKey());
+    if (pe == null || ps.getRevision() == null) {
+      return;
+    }
+    final Project project = pe.getProject();
+    if (project.getSubmitType() == Project.SubmitType.FAST_FORWARD_ONLY) {
+      return;
+    }
+
+    final Repository db = repoManager.openRepository(dest.getParentKey());
+    try {
+      final Ref ref = db.getRef(dest.get());
+      if (ref == null || ref.getObjectId() == null) {
+        return;
+      }
+
+      final RevWalk rw = new RevWalk(db);
+      try {
+        final RevCommit tip = rw.parseCommit(ref.getObjectId());
+        final RevCommit n =
+            rw.parseCommit(ObjectId.fromString(ps.getRevision().get()));
+        final Key key = new Key(project, tip, n);
+        if (cache.get(key) != null || rw.isMergedInto(tip, n)) {
+          // Already known, or a fast-forward that needs no merge.
+          return;
+        }
+
+        final ThreeWayMerger m = newMerger(project, db);
+        if (project.getSubmitType() == Project.SubmitType.CHERRY_PICK) {
+          if (n.getParentCount() != 1) {
+            return;
+          }
+          m.setBase(n.getParent(0));
+        }
+
+        final boolean clean;
+        try {
+          clean = m.merge(new AnyObjectId[] {tip, n});
+        } catch (IOException e) {
+          // Criss-cross merges and similar failures are left for
+          // MergeOp to report at submit time.
+          return;
+        }
+
+        if (clean) {
+          cache.put(key, new Result(writeTree(m)));
+        } else {
+          cache.put(key, Result.CONFLICT);
+        }
+      } finally {
+        rw.release();
+      }
+    } finally {
+      db.close();
+    }
+  }
+
+  /** Flush the result of a clean merge and return its tree. */
+  static ObjectId writeTree(final ThreeWayMerger m) throws IOException {
+    final ObjectInserter oi = m.getObjectInserter();
+    try {
+      oi.flush();
+    } finally {
+      oi.release();
+    }
+    return m.getResultTreeId().copy();
+  }
+
+  static ThreeWayMerger newMerger(final Project project, final Repository db) {
+    if (project.isUseContentMerge()) {
+      // Settings for this project allow us to try and
+      // automatically resolve conflicts within files if needed.
+      // Use ResolveMerge and instruct to operate in core.
+      return MergeStrategy.RESOLVE.newMerger(db, true);
+    } else {
+      // No auto conflict resolving allowed. If any of the
+      // affected files was modified, merge will fail.
+      return MergeStrategy.SIMPLE_TWO_WAY_IN_CORE.newMerger(db);
+    }
+  }
+}
@@ -69,6 +69,7 @@ class PushOp implements ProjectRunnable {
 
   private final GitRepositoryManager repoManager;
   private final SchemaFactory<ReviewDb> schema;
+  private final VisibleRefCache visibleRefCache;
   private final PushReplication.ReplicationConfig pool;
   private final RemoteConfig config;
   private final CredentialsProvider credentialsProvider;
@@ -89,11 +90,13 @@ class PushOp implements ProjectRunnable {
 
   @Inject
   PushOp(final GitRepositoryManager grm, final SchemaFactory<ReviewDb> s,
+      final VisibleRefCache vrc,
       final PushReplication.ReplicationConfig p, final RemoteConfig c,
       final SecureCredentialsProvider.Factory cpFactory,
       @Assisted final Project.NameKey d, @Assisted final URIish u) {
     repoManager = grm;
     schema = s;
+    visibleRefCache = vrc;
     pool = p;
     config = c;
     credentialsProvider = cpFactory.create(c.getName());
@@ -301,7 +304,8 @@ class PushOp implements ProjectRunnable {
         return Collections.emptyList();
       }
       try {
-        local = new VisibleRefFilter(db, pc, meta, true).filter(local);
+        local = new VisibleRefFilter(db, pc, meta, visibleRefCache, true) //
+            .filter(local);
       } finally {
         meta.close();
       }
@@ -157,6 +157,7 @@ public class ReceiveCommits implements PreReceiveHook, PostReceiveHook {
   private final GitRepositoryManager repoManager;
   private final ProjectCache projectCache;
   private final GroupCache groupCache;
+  private final VisibleRefCache visibleRefCache;
   private final String canonicalWebUrl;
   private final PersonIdent gerritIdent;
   private final TrackingFooters trackingFooters;
@@ -196,6 +197,7 @@ public class ReceiveCommits implements PreReceiveHook, PostReceiveHook {
       final ProjectCache projectCache,
       final GitRepositoryManager repoManager,
       final GroupCache groupCache,
+      final VisibleRefCache visibleRefCache,
       @CanonicalWebUrl @Nullable final String canonicalWebUrl,
       @GerritPersonIdent final PersonIdent gerritIdent,
       final TrackingFooters trackingFooters,
@@ -215,6 +217,7 @@ public class ReceiveCommits implements PreReceiveHook, PostReceiveHook {
     this.projectCache = projectCache;
     this.repoManager = repoManager;
     this.groupCache = groupCache;
+    this.visibleRefCache = visibleRefCache;
     this.canonicalWebUrl = canonicalWebUrl;
     this.gerritIdent = gerritIdent;
     this.trackingFooters = trackingFooters;
@@ -232,7 +235,8 @@ public class ReceiveCommits implements PreReceiveHook, PostReceiveHook {
 
     if (!projectControl.allRefsAreVisible()) {
       rp.setCheckReferencedObjectsAreReachable(true);
-      rp.setRefFilter(new VisibleRefFilter(repo, projectControl, db, false));
+      rp.setRefFilter(new VisibleRefFilter(repo, projectControl, db,
+          visibleRefCache, false));
     }
     rp.setRefFilter(new ReceiveCommitsRefFilter(rp.getRefFilter()));
 
@@ -257,6 +261,18 @@ public class ReceiveCommits implements PreReceiveHook, PostReceiveHook {
 
   /** Scan part of history and include it in the advertisement. */
   public void advertiseHistory() {
+    // Users with the same groups are shown the same history, as long as
+    // no branch or tag of the repository has moved.
+    //
+    final Map<String, Ref> refs =
+        new ReceiveCommitsRefFilter(null).filter(repo.getAllRefs());
+    final VisibleRefCache.Advertisement adv =
+        visibleRefCache.getAdvertisement(projectControl, refs, false);
+    if (adv != null && adv.getHaves() != null) {
+      rp.getAdvertisedObjects().addAll(adv.getHaves());
+      return;
+    }
+
     Set<ObjectId> toInclude = new HashSet<ObjectId>();
 
     // Advertise some recent open changes, in case a commit is based one.
@@ -327,6 +343,9 @@ public class ReceiveCommits implements PreReceiveHook, PostReceiveHook {
     }
     rw.reset();
     rp.getAdvertisedObjects().addAll(toInclude);
+    if (adv != null) {
+      adv.setHaves(toInclude);
+    }
   }
 
   /** Determine if the user can upload commits. */
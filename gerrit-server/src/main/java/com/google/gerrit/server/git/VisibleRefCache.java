@@ -0,0 +1,368 @@
+// Copyright (C) 2011 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.git;
+
+import com.google.gerrit.reviewdb.AccountGroup;
+import com.google.gerrit.reviewdb.Change;
+import com.google.gerrit.reviewdb.Project;
+import com.google.gerrit.reviewdb.ReviewDb;
+import com.google.gerrit.server.AnonymousUser;
+import com.google.gerrit.server.CurrentUser;
+import com.google.gerrit.server.IdentifiedUser;
+import com.google.gerrit.server.cache.Cache;
+import com.google.gerrit.server.cache.CacheModule;
+import com.google.gerrit.server.cache.EntryCreator;
+import com.google.gerrit.server.project.ProjectControl;
+import com.google.gwtorm.client.OrmException;
+import com.google.gwtorm.client.SchemaFactory;
+import com.google.inject.Inject;
+import com.google.inject.Module;
+import com.google.inject.Singleton;
+import com.google.inject.TypeLiteral;
+import com.google.inject.name.Named;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers what {@link VisibleRefFilter} needs to know about a project.
+ * <p>
+ * The destination branch of every change is kept per project, so visibility
+ * of a change can be decided by its branch without reading the change again.
+ * A change never moves to another branch, so the snapshot only grows: changes
+ * it does not know yet are read from the database the first time their refs
+ * are advertised.
+ * <p>
+ * Tags reachable from the visible references are remembered by a hash of
+ * those references and the tags, so users who see the same refs share the
+ * result of one revision walk until any of the refs is updated.
+ * <p>
+ * Finally the whole advertisement, the filtered references and the extra
+ * {@code .have} lines chosen by {@link ReceiveCommits}, is remembered by
+ * project, state of the references and the effective groups of the user.
+ * Clients with identical permissions polling an unchanged repository get
+ * the advertisement without evaluating any access rule. Only accounts and
+ * anonymous users are decided by their groups alone: replication users are
+ * never shared, as one seeing everything and one whose groups were not
+ * found both have an empty set of groups.
+ */
+@Singleton
+public class VisibleRefCache {
+  private static final String BRANCHES_CACHE = "change_branches";
+  private static final String TAGS_CACHE = "visible_tags";
+  private static final String ADVERTISEMENTS_CACHE = "advertisements";
+
+  public static Module module() {
+    return new CacheModule() {
+      @Override
+      protected void configure() {
+        final TypeLiteral<Cache<Project.NameKey, ChangeBranches>> branches =
+            new TypeLiteral<Cache<Project.NameKey, ChangeBranches>>() {};
+        core(branches, BRANCHES_CACHE) //
+            .memoryLimit(128) //
+            .populateWith(Loader.class);
+
+        final TypeLiteral<Cache<TagKey, Set<String>>> tags =
+            new TypeLiteral<Cache<TagKey, Set<String>>>() {};
+        core(tags, TAGS_CACHE) //
+            .memoryLimit(256);
+
+        final TypeLiteral<Cache<AdvertisementKey, Advertisement>> adv =
+            new TypeLiteral<Cache<AdvertisementKey, Advertisement>>() {};
+        core(adv, ADVERTISEMENTS_CACHE) //
+            .memoryLimit(64) //
+            .maxAge(1, TimeUnit.HOURS);
+
+        bind(VisibleRefCache.class);
+      }
+    };
+  }
+
+  private final Cache<Project.NameKey, ChangeBranches> branches;
+  private final Cache<TagKey, Set<String>> tags;
+  private final Cache<AdvertisementKey, Advertisement> advertisements;
+
+  @Inject
+  VisibleRefCache(
+      @Named(BRANCHES_CACHE) final Cache<Project.NameKey, ChangeBranches> b,
+      @Named(TAGS_CACHE) final Cache<TagKey, Set<String>> t,
+      @Named(ADVERTISEMENTS_CACHE) //
+      final Cache<AdvertisementKey, Advertisement> a) {
+    this.branches = b;
+    this.tags = t;
+    this.advertisements = a;
+  }
+
+  /**
+   * Get the advertisement of a repository to a user.
+   *
+   * @param pc project and user the references are advertised to.
+   * @param refs all references of the repository, before filtering.
+   * @param showChanges true if patch set references are advertised.
+   * @return the shared advertisement, which is empty until the first user
+   *         fills it in; null if the access rules of the project depend on
+   *         more than the groups of the user, so it cannot be shared.
+   */
+  public Advertisement getAdvertisement(final ProjectControl pc,
+      final Map<String, Ref> refs, final boolean showChanges) {
+    if (!isShared(pc.getCurrentUser())) {
+      return null;
+    }
+    return getAdvertisement(pc.getProject().getNameKey(),
+        pc.getAccessRevisions(), pc.getCurrentUser(), refs, showChanges);
+  }
+
+  Advertisement getAdvertisement(final Project.NameKey project,
+      final List<ObjectId> access, final CurrentUser user,
+      final Map<String, Ref> refs, final boolean showChanges) {
+    if (access == null || !isShared(user)) {
+      return null;
+    }
+
+    final AdvertisementKey key = new AdvertisementKey( //
+        project, //
+        hashRefs(refs), //
+        access, //
+        new HashSet<AccountGroup.UUID>(user.getEffectiveGroups()), //
+        showChanges);
+    synchronized (advertisements) {
+      Advertisement a = advertisements.get(key);
+      if (a == null) {
+        a = new Advertisement();
+        advertisements.put(key, a);
+      }
+      return a;
+    }
+  }
+
+  /** @return true if what the user sees depends only on its groups. */
+  private static boolean isShared(final CurrentUser user) {
+    return user instanceof IdentifiedUser || user instanceof AnonymousUser;
+  }
+
+  /** Hash the names and values of the references, in name order. */
+  private static ObjectId hashRefs(final Map<String, Ref> refs) {
+    final String[] names = refs.keySet().toArray(new String[refs.size()]);
+    Arrays.sort(names);
+
+    final MessageDigest md = Constants.newMessageDigest();
+    final byte[] buf = new byte[Constants.OBJECT_ID_LENGTH];
+    for (final String name : names) {
+      final Ref ref = refs.get(name);
+      md.update(Constants.encode(name));
+      md.update((byte) 0);
+      hash(md, buf, ref.getObjectId());
+      hash(md, buf, ref.getPeeledObjectId());
+      if (ref.isSymbolic()) {
+        md.update(Constants.encode(ref.getTarget().getName()));
+      }
+      md.update((byte) '\n');
+    }
+    return ObjectId.fromRaw(md.digest());
+  }
+
+  private static void hash(final MessageDigest md, final byte[] buf,
+      final ObjectId id) {
+    (id != null ? id : ObjectId.zeroId()).copyRawTo(buf, 0);
+    md.update(buf);
+  }
+
+  /** @return destination branches of the project; null if unavailable. */
+  ChangeBranches getChangeBranches(final Project.NameKey project) {
+    return branches.get(project);
+  }
+
+  /** @return names of the visible tags; null if not computed yet. */
+  Set<String> getVisibleTags(final Project.NameKey project,
+      final ObjectId refState) {
+    return tags.get(new TagKey(project, refState));
+  }
+
+  void putVisibleTags(final Project.NameKey project, final ObjectId refState,
+      final Set<String> visible) {
+    tags.put(new TagKey(project, refState), visible);
+  }
+
+  /** Destination branch of each change of one project. */
+  static class ChangeBranches {
+    private final Project.NameKey project;
+    private final Map<Change.Id, String> dest;
+
+    /** One instance of each branch name, shared by its changes. */
+    private final Map<String, String> names;
+
+    ChangeBranches(final Project.NameKey project) {
+      this.project = project;
+      this.dest = new ConcurrentHashMap<Change.Id, String>();
+      this.names = new HashMap<String, String>();
+    }
+
+    /** @return the destination branch name; null if the change is unknown. */
+    String get(final Change.Id id) {
+      return dest.get(id);
+    }
+
+    /** Read the changes not yet known, if any. */
+    void load(final ReviewDb db, final Collection<Change.Id> ids)
+        throws OrmException {
+      List<Change.Id> missing = null;
+      for (final Change.Id id : ids) {
+        if (!dest.containsKey(id)) {
+          if (missing == null) {
+            missing = new ArrayList<Change.Id>();
+          }
+          missing.add(id);
+        }
+      }
+      if (missing != null) {
+        addAll(db.changes().get(missing));
+      }
+    }
+
+    synchronized void addAll(final Iterable<Change> changes) {
+      for (final Change c : changes) {
+        if (project.equals(c.getProject())) {
+          final String name = c.getDest().get();
+          String shared = names.get(name);
+          if (shared == null) {
+            shared = name;
+            names.put(name, name);
+          }
+          dest.put(c.getId(), shared);
+        }
+      }
+    }
+  }
+
+  static class Loader extends EntryCreator<Project.NameKey, ChangeBranches> {
+    private final SchemaFactory<ReviewDb> schema;
+
+    @Inject
+    Loader(final SchemaFactory<ReviewDb> schema) {
+      this.schema = schema;
+    }
+
+    @Override
+    public ChangeBranches createEntry(final Project.NameKey project)
+        throws Exception {
+      final ChangeBranches b = new ChangeBranches(project);
+      final ReviewDb db = schema.open();
+      try {
+        b.addAll(db.changes().byProject(project));
+      } finally {
+        db.close();
+      }
+      return b;
+    }
+  }
+
+  /** References and {@code .have} lines advertised to a group of users. */
+  public static class Advertisement {
+    private volatile Map<String, Ref> refs;
+    private volatile Set<ObjectId> haves;
+
+    /** @return the visible references; null if not computed yet. */
+    public Map<String, Ref> getRefs() {
+      return refs;
+    }
+
+    public void setRefs(final Map<String, Ref> refs) {
+      this.refs = Collections.unmodifiableMap(new HashMap<String, Ref>(refs));
+    }
+
+    /** @return the extra objects advertised; null if not computed yet. */
+    public Set<ObjectId> getHaves() {
+      return haves;
+    }
+
+    public void setHaves(final Set<ObjectId> haves) {
+      this.haves = Collections.unmodifiableSet(new HashSet<ObjectId>(haves));
+    }
+  }
+
+  static class AdvertisementKey {
+    final Project.NameKey project;
+    final ObjectId refState;
+    final List<ObjectId> access;
+    final Set<AccountGroup.UUID> groups;
+    final boolean showChanges;
+
+    AdvertisementKey(final Project.NameKey project, final ObjectId refState,
+        final List<ObjectId> access, final Set<AccountGroup.UUID> groups,
+        final boolean showChanges) {
+      this.project = project;
+      this.refState = refState;
+      this.access = access;
+      this.groups = groups;
+      this.showChanges = showChanges;
+    }
+
+    @Override
+    public int hashCode() {
+      return refState.hashCode() * 31 + groups.hashCode();
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (o instanceof AdvertisementKey) {
+        final AdvertisementKey k = (AdvertisementKey) o;
+        return project.equals(k.project) //
+            && refState.equals(k.refState) //
+            && access.equals(k.access) //
+            && groups.equals(k.groups) //
+            && showChanges == k.showChanges;
+      }
+      return false;
+    }
+  }
+
+  static class TagKey {
+    final Project.NameKey project;
+    final ObjectId refState;
+
+    TagKey(final Project.NameKey project, final ObjectId refState) {
+      this.project = project;
+      this.refState = refState;
+    }
+
+    @Override
+    public int hashCode() {
+      return refState.hashCode();
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (o instanceof TagKey) {
+        final TagKey k = (TagKey) o;
+        return project.equals(k.project) && refState.equals(k.refState);
+      }
+      return false;
+    }
+  }
+}
@@ -37,6 +37,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -52,29 +53,42 @@ public class VisibleRefFilter implements RefFilter {
   private final Repository db;
   private final ProjectControl projectCtl;
   private final ReviewDb reviewDb;
+  private final VisibleRefCache cache;
   private final boolean showChanges;
 
+  /** Visibility of each reference checked so far, by name. */
+  private final Map<String, Boolean> visibleRefs;
+
   public VisibleRefFilter(final Repository db,
       final ProjectControl projectControl, final ReviewDb reviewDb,
-      final boolean showChanges) {
+      final VisibleRefCache cache, final boolean showChanges) {
     this.db = db;
     this.projectCtl = projectControl;
     this.reviewDb = reviewDb;
+    this.cache = cache;
     this.showChanges = showChanges;
+    this.visibleRefs = new HashMap<String, Boolean>();
   }
 
   @Override
   public Map<String, Ref> filter(Map<String, Ref> refs) {
-    final Set<Change.Id> visibleChanges = visibleChanges();
+    final VisibleRefCache.Advertisement adv =
+        cache.getAdvertisement(projectCtl, refs, showChanges);
+    if (adv != null && adv.getRefs() != null) {
+      return new HashMap<String, Ref>(adv.getRefs());
+    }
+
     final Map<String, Ref> result = new HashMap<String, Ref>();
+    final List<Ref> patchSets = new ArrayList<Ref>();
     final List<Ref> deferredTags = new ArrayList<Ref>();
 
     for (Ref ref : refs.values()) {
       if (PatchSet.isRef(ref.getName())) {
-        // Reference to a patch set is visible if the change is visible.
+        // Reference to a patch set is visible if the change is visible,
+        // which is decided by its destination branch below.
         //
-        if (visibleChanges.contains(Change.Id.fromRef(ref.getName()))) {
-          result.put(ref.getName(), ref);
+        if (showChanges) {
+          patchSets.add(ref);
         }
 
       } else if (isTag(ref)) {
@@ -82,7 +96,7 @@ public class VisibleRefFilter implements RefFilter {
         //
         deferredTags.add(ref);
 
-      } else if (projectCtl.controlForRef(ref.getLeaf().getName()).isVisible()) {
+      } else if (isVisible(ref.getLeaf().getName())) {
         // Use the leaf to lookup the control data. If the reference is
         // symbolic we want the control around the final target. If its
         // not symbolic then getLeaf() is a no-op returning ref itself.
@@ -91,39 +105,88 @@ public class VisibleRefFilter implements RefFilter {
       }
     }
 
+    addVisibleChanges(result, patchSets);
+
     // If we have tags that were deferred, we need to do a revision walk
     // to identify what tags we can actually reach, and what we cannot.
     //
     if (!deferredTags.isEmpty() && !result.isEmpty()) {
-      addVisibleTags(result, deferredTags);
+      addVisibleTags(refs, result, deferredTags);
     }
 
+    if (adv != null) {
+      adv.setRefs(result);
+    }
     return result;
   }
 
-  private Set<Change.Id> visibleChanges() {
-    if (!showChanges) {
-      return Collections.emptySet();
+  private boolean isVisible(final String refName) {
+    Boolean visible = visibleRefs.get(refName);
+    if (visible == null) {
+      visible = projectCtl.controlForRef(refName).isVisible();
+      visibleRefs.put(refName, visible);
+    }
+    return visible;
+  }
+
+  private void addVisibleChanges(final Map<String, Ref> result,
+      final List<Ref> patchSets) {
+    if (patchSets.isEmpty()) {
+      return;
     }
 
     final Project project = projectCtl.getProject();
+    final VisibleRefCache.ChangeBranches branches =
+        cache.getChangeBranches(project.getNameKey());
+    if (branches == null) {
+      // The cache already logged why the changes could not be read.
+      //
+      return;
+    }
+
+    final Set<Change.Id> ids = new HashSet<Change.Id>();
+    for (Ref ref : patchSets) {
+      ids.add(Change.Id.fromRef(ref.getName()));
+    }
     try {
-      final Set<Change.Id> visibleChanges = new HashSet<Change.Id>();
-      for (Change change : reviewDb.changes().byProject(project.getNameKey())) {
-        if (projectCtl.controlFor(change).isVisible()) {
-          visibleChanges.add(change.getId());
-        }
-      }
-      return visibleChanges;
+      branches.load(reviewDb, ids);
     } catch (OrmException e) {
       log.error("Cannot load changes for project " + project.getName()
           + ", assuming no changes are visible", e);
-      return Collections.emptySet();
+      return;
+    }
+
+    for (Ref ref : patchSets) {
+      final String dest = branches.get(Change.Id.fromRef(ref.getName()));
+      if (dest != null && isVisible(dest)) {
+        result.put(ref.getName(), ref);
+      }
     }
   }
 
-  private void addVisibleTags(final Map<String, Ref> result,
+  private void addVisibleTags(final Map<String, Ref> refs,
+      final Map<String, Ref> result, final List<Ref> tags) {
+    // The walk only depends on the visible references and the tags, so
+    // anyone seeing the same references can reuse its result.
+    //
+    final Project.NameKey project = projectCtl.getProject().getNameKey();
+    final ObjectId refState = hashRefState(refs, result);
+    Set<String> visible = cache.getVisibleTags(project, refState);
+    if (visible == null) {
+      visible = visibleTags(result, tags);
+      cache.putVisibleTags(project, refState, visible);
+    }
+
+    for (Ref tag : tags) {
+      if (visible.contains(tag.getName())) {
+        result.put(tag.getName(), tag);
+      }
+    }
+  }
+
+  private Set<String> visibleTags(final Map<String, Ref> result,
       final List<Ref> tags) {
+    final Set<String> visible = new HashSet<String>();
     final RevWalk rw = new RevWalk(db);
     try {
       final RevFlag VISIBLE = rw.newFlag("VISIBLE");
@@ -134,12 +197,42 @@ public class VisibleRefFilter implements RefFilter {
 
       for (Ref tag : tags) {
         if (isTagVisible(rw, VISIBLE, starts, tag)) {
-          result.put(tag.getName(), tag);
+          visible.add(tag.getName());
         }
       }
     } finally {
       rw.release();
     }
+    return Collections.unmodifiableSet(visible);
+  }
+
+  /** Hash the visible references and the tags, in advertisement order. */
+  private static ObjectId hashRefState(final Map<String, Ref> refs,
+      final Map<String, Ref> result) {
+    final MessageDigest md = Constants.newMessageDigest();
+    final byte[] buf = new byte[Constants.OBJECT_ID_LENGTH];
+    for (Ref ref : refs.values()) {
+      if (result.containsKey(ref.getName())) {
+        hash(md, 'v', ref.getName(), ref.getObjectId(), buf);
+      } else if (isTag(ref)) {
+        hash(md, 't', ref.getName(), ref.getObjectId(), buf);
+        hash(md, 'p', ref.getName(), ref.getPeeledObjectId(), buf);
+      }
+    }
+    return ObjectId.fromRaw(md.digest());
+  }
+
+  private static void hash(final MessageDigest md, final char type,
+      final String name, final ObjectId id, final byte[] buf) {
+    md.update((byte) type);
+    md.update(Constants.encode(name));
+    md.update((byte) 0);
+    if (id != null) {
+      id.copyRawTo(buf, 0);
+    } else {
+      ObjectId.zeroId().copyRawTo(buf, 0);
+    }
+    md.update(buf);
   }
 
   private List<RevCommit> lookupVisibleCommits(final Map<String, Ref> result,
@@ -0,0 +1,867 @@
+// Copyright (C) 2011 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.index;
+
+import com.google.gerrit.lifecycle.LifecycleListener;
+import com.google.gerrit.reviewdb.Change;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.config.SitePaths;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.util.RawParseUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Inverted index from terms, such as {@code file:Makefile}, to the changes
+ * containing them.
+ * <p>
+ * Most changes are in a merged segment under {@code index.directory}, whose
+ * postings are read from disk when searched. Each later update is kept in
+ * memory, and appended to the newest log segment as one line holding the
+ * change id and all of its terms, replacing any earlier line or merged
+ * entry for the same change. A new log is started once the newest reaches
+ * {@code index.segmentSize}. Logs are merged with the merged segment into
+ * a new one when the server starts, or once there are more than a few of
+ * them; searches go on reading the old one until the new one is written.
+ * <p>
+ * Searches should only be trusted once {@link #isReady()}, that is after
+ * every existing change has been indexed by {@link ChangeIndexer}. While
+ * updates are queued but not yet written, a {@code dirty} file is kept next
+ * to the segments; if the server stops before they are written, the index
+ * is no longer trusted when it starts again, and is rebuilt. Term counts
+ * also give the query rewriter the number of changes per project, owner and
+ * status.
+ */
+@Singleton
+public class ChangeIndex {
+  private static final Logger log = LoggerFactory.getLogger(ChangeIndex.class);
+
+  public static final String BRANCH = "branch:";
+  public static final String FILE = "file:";
+  public static final String LABEL = "label:";
+  public static final String MESSAGE = "message:";
+  public static final String OWNER = "owner:";
+  public static final String PROJECT = "project:";
+  public static final String STATUS = "status:";
+  public static final String TOPIC = "topic:";
+
+  /** Sort key of a change; orders search results, but is not searchable. */
+  public static final String SORTKEY = "sortkey:";
+
+  /**
+   * Version of the terms {@link ChangeIndexer} writes.
+   * <p>
+   * An index written with another version is not trusted, and all changes
+   * are indexed again.
+   */
+  static final int VERSION = 3;
+
+  private static final String SUFFIX = ".seg";
+  private static final String READY = "ready";
+  private static final String DIRTY = "dirty";
+  private static final int MAX_SEGMENTS = 8;
+
+  public static class Lifecycle implements LifecycleListener {
+    private final ChangeIndex index;
+
+    @Inject
+    Lifecycle(final ChangeIndex index) {
+      this.index = index;
+    }
+
+    @Override
+    public void start() {
+      index.start();
+    }
+
+    @Override
+    public void stop() {
+      index.stop();
+    }
+  }
+
+  /**
+   * Split text into the words indexed for it.
+   * <p>
+   * A word is a run of letters and digits, converted to lower case.
+   *
+   * @param text text to split.
+   * @return the words, in the order they appear, with repeats.
+   */
+  public static List<String> words(final String text) {
+    final List<String> r = new ArrayList<String>();
+    final StringBuilder w = new StringBuilder();
+    for (int i = 0; i <= text.length(); i++) {
+      final char c = i < text.length() ? text.charAt(i) : ' ';
+      if (Character.isLetterOrDigit(c)) {
+        w.append(Character.toLowerCase(c));
+      } else if (0 < w.length()) {
+        r.add(w.toString());
+        w.setLength(0);
+      }
+    }
+    return r;
+  }
+
+  private final boolean enabled;
+  private final File dir;
+  private final long segmentSize;
+
+  private final Map<Integer, String> sortKeys = new HashMap<Integer, String>();
+
+  /** Changes merged into one file. */
+  private IndexSegment merged = IndexSegment.empty();
+
+  /** Updates being written into a new merged segment; null if none are. */
+  private Updates merging;
+
+  /** Updates written to the log segments since the last merge. */
+  private Updates updates = new Updates();
+
+  private OutputStream out;
+  private long outSize;
+  private long generation;
+  private int segmentCount;
+  private boolean ready;
+  private boolean dirty;
+  private boolean running;
+  private long lastUpdated;
+
+  @Inject
+  ChangeIndex(@GerritServerConfig final Config cfg, final SitePaths site) {
+    enabled = cfg.getBoolean("index", null, "enable", true);
+    String path = cfg.getString("index", null, "directory");
+    if (path == null) {
+      path = "data/index";
+    }
+    dir = site.resolve(path);
+    segmentSize = Math.max(1,
+        cfg.getLong("index", null, "segmentSize", 8 * 1024 * 1024));
+  }
+
+  synchronized void start() {
+    if (!enabled) {
+      return;
+    }
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      log.error("Cannot create change index " + dir.getAbsolutePath());
+      return;
+    }
+
+    final File[] segments = segments();
+    File base = null;
+    for (final File f : segments) {
+      if (f.getName().endsWith(IndexSegment.SUFFIX)) {
+        base = f;
+      }
+    }
+    final long baseGeneration = base != null ? generation(base) : 0;
+    boolean broken = false;
+    if (0 < segments.length) {
+      generation = generation(segments[segments.length - 1]);
+      lastUpdated = segments[segments.length - 1].lastModified();
+    }
+
+    try {
+      if (base != null) {
+        merged = IndexSegment.open(base, sortKeys);
+      }
+      for (final File f : segments) {
+        if (f.getName().endsWith(SUFFIX)
+            && baseGeneration < generation(f)) {
+          load(f);
+          segmentCount++;
+        }
+      }
+      ready = readVersion() == VERSION;
+    } catch (IOException e) {
+      log.error("Cannot read change index " + dir.getAbsolutePath()
+          + ", it will be rebuilt", e);
+      merged.close();
+      merged = IndexSegment.empty();
+      updates = new Updates();
+      sortKeys.clear();
+      segmentCount = 0;
+      ready = false;
+      new File(dir, READY).delete();
+      broken = true;
+    }
+
+    // Drop what an earlier merge left behind, if the server stopped before
+    // it was done with them.
+    //
+    for (final File f : segments) {
+      if (broken || (f.getName().endsWith(SUFFIX)
+          ? generation(f) <= baseGeneration
+          : !f.equals(base))) {
+        f.delete();
+      }
+    }
+    final File[] files = dir.listFiles();
+    if (files != null) {
+      for (final File f : files) {
+        if (f.getName().endsWith(".tmp")) {
+          f.delete();
+        }
+      }
+    }
+
+    dirty = new File(dir, DIRTY).exists();
+    if (dirty && ready) {
+      log.warn("Change index " + dir.getAbsolutePath()
+          + " missed updates, it will be rebuilt");
+      ready = false;
+      new File(dir, READY).delete();
+    }
+    running = true;
+
+    // Merging drops lines replaced by later ones, as well as any partial
+    // line left by a server stopped while writing it.
+    //
+    try {
+      merge();
+    } catch (IOException e) {
+      log.error("Cannot write change index " + dir.getAbsolutePath(), e);
+      stop();
+    }
+  }
+
+  synchronized void stop() {
+    running = false;
+    close();
+    merged.close();
+  }
+
+  /** @return true if the index was enabled, and could be opened. */
+  public synchronized boolean isRunning() {
+    return running;
+  }
+
+  /** @return true once every change has been indexed at least once. */
+  public synchronized boolean isReady() {
+    return running && ready;
+  }
+
+  /** Record that every change has been indexed. */
+  synchronized void setReady() throws IOException {
+    if (running && !ready) {
+      final OutputStream o = new FileOutputStream(new File(dir, READY));
+      try {
+        o.write(toBytes(VERSION + "\n"));
+      } finally {
+        o.close();
+      }
+      ready = true;
+    }
+  }
+
+  /**
+   * Stop trusting the index until all changes are indexed again, as one of
+   * them could not be.
+   */
+  synchronized void setIncomplete() {
+    if (ready) {
+      ready = false;
+      new File(dir, READY).delete();
+    }
+  }
+
+  /**
+   * Record that updates are about to be queued.
+   * <p>
+   * If the server stops before {@link #markClean()}, the index is rebuilt
+   * the next time it starts.
+   */
+  synchronized void markDirty() throws IOException {
+    if (running && !dirty) {
+      new FileOutputStream(new File(dir, DIRTY)).close();
+      dirty = true;
+    }
+  }
+
+  /** Record that all queued updates have been written. */
+  synchronized void markClean() {
+    if (running && dirty) {
+      final File f = new File(dir, DIRTY);
+      if (f.delete() || !f.exists()) {
+        dirty = false;
+      } else {
+        log.warn("Cannot delete " + f.getAbsolutePath());
+      }
+    }
+  }
+
+  /**
+   * @return time the index was last updated before the server started; 0 if
+   *         it was empty.
+   */
+  synchronized long lastUpdated() {
+    return lastUpdated;
+  }
+
+  private int readVersion() throws IOException {
+    final File f = new File(dir, READY);
+    if (!f.exists()) {
+      return 0;
+    }
+    final byte[] buf = new byte[(int) Math.min(f.length(), 64)];
+    final InputStream in = new FileInputStream(f);
+    try {
+      int n = 0;
+      while (n < buf.length) {
+        final int r = in.read(buf, n, buf.length - n);
+        if (r < 0) {
+          break;
+        }
+        n += r;
+      }
+      return RawParseUtils.parseBase10(buf, 0, null);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Replace the terms of a change.
+   *
+   * @param id the change.
+   * @param terms all of its terms; empty to remove the change.
+   */
+  public void replace(final Change.Id id, final Collection<String> terms) {
+    final boolean full;
+    synchronized (this) {
+      if (!running) {
+        return;
+      }
+
+      final String[] t = new TreeSet<String>(terms).toArray(new String[0]);
+      apply(id.get(), t);
+      try {
+        if (out == null || segmentSize <= outSize) {
+          rotate();
+        }
+        final byte[] rec = record(id.get(), t);
+        out.write(rec);
+        out.flush();
+        outSize += rec.length;
+      } catch (IOException e) {
+        log.error("Cannot write change " + id + " to change index", e);
+        close();
+        running = false;
+        return;
+      }
+      full = MAX_SEGMENTS <= segmentCount + 1 && segmentSize <= outSize;
+    }
+
+    if (full) {
+      try {
+        merge();
+      } catch (IOException e) {
+        log.error("Cannot merge change index " + dir.getAbsolutePath(), e);
+      }
+    }
+  }
+
+  /** @return number of changes in the index. */
+  public synchronized int size() {
+    int n = merged.size();
+    if (merging != null) {
+      for (final Map.Entry<Integer, String[]> e : merging.docs.entrySet()) {
+        if (!updates.docs.containsKey(e.getKey())) {
+          n += added(e);
+        }
+      }
+    }
+    for (final Map.Entry<Integer, String[]> e : updates.docs.entrySet()) {
+      n += added(e);
+    }
+    return n;
+  }
+
+  /** @return 1 if an update added a change, -1 if it removed one. */
+  private int added(final Map.Entry<Integer, String[]> e) {
+    return (0 < e.getValue().length ? 1 : 0)
+        - (merged.contains(e.getKey()) ? 1 : 0);
+  }
+
+  /** @return number of changes having the term. */
+  public synchronized int count(final String term) {
+    final Postings r = new Postings(null);
+    collect(term, r);
+    r.sort();
+    return r.size;
+  }
+
+  /** @return changes having any of the terms. */
+  public synchronized List<Change.Id> search(final Collection<String> terms) {
+    final Postings r = new Postings(null);
+    for (final String term : terms) {
+      collect(term, r);
+    }
+    return r.toList();
+  }
+
+  /**
+   * Find changes having, for each group of terms, at least one of them.
+   *
+   * @param groups groups of alternative terms, all of which must match.
+   * @return changes having a term of every group; empty if there are no
+   *         groups.
+   */
+  public synchronized List<Change.Id> searchAll(
+      final Collection<? extends Collection<String>> groups) {
+    Postings r = null;
+    for (final Collection<String> terms : groups) {
+      final Postings any = new Postings(null);
+      for (final String term : terms) {
+        collect(term, any);
+      }
+      r = r == null ? any : r.retainAll(any);
+      if (r.size == 0) {
+        break;
+      }
+    }
+    return r != null ? r.toList() : new ArrayList<Change.Id>();
+  }
+
+  /**
+   * Order changes by the sort key they were indexed with.
+   *
+   * @param ids changes found by a search.
+   * @param after if not null, only keep changes with a larger sort key.
+   * @param before if not null, only keep changes with a smaller sort key.
+   * @return the changes, newest first. Changes without a sort key are kept
+   *         whatever the bounds, and come last.
+   */
+  public synchronized List<Change.Id> newestFirst(
+      final Collection<Change.Id> ids, final String after,
+      final String before) {
+    final List<Change.Id> r = new ArrayList<Change.Id>(ids.size());
+    for (final Change.Id id : ids) {
+      final String k = sortKeys.get(id.get());
+      if (k == null || ((after == null || after.compareTo(k) < 0)
+          && (before == null || k.compareTo(before) < 0))) {
+        r.add(id);
+      }
+    }
+    Collections.sort(r, new Comparator<Change.Id>() {
+      @Override
+      public int compare(final Change.Id a, final Change.Id b) {
+        final String ka = sortKeys.get(a.get());
+        final String kb = sortKeys.get(b.get());
+        if (ka == null || kb == null) {
+          return ka != null ? -1 : (kb != null ? 1 : 0);
+        }
+        return kb.compareTo(ka);
+      }
+    });
+    return r;
+  }
+
+  /** @return all terms starting with the prefix, in order. */
+  public synchronized List<String> terms(final String prefix) {
+    final TreeSet<String> r = new TreeSet<String>();
+    final int updated =
+        updates.docs.size() + (merging != null ? merging.docs.size() : 0);
+    try {
+      final IndexSegment.TermReader t = merged.terms(prefix);
+      while (t.next()) {
+        if (t.term.compareTo(prefix) < 0) {
+          continue;
+        } else if (!t.term.startsWith(prefix)) {
+          break;
+        }
+        // A term of more changes than were updated since the merge is
+        // certainly still used by one of them.
+        //
+        if (updated < t.count || hasMerged(merged.read(t))) {
+          r.add(t.term);
+        }
+      }
+    } catch (IOException e) {
+      failed(e);
+    }
+
+    if (merging != null) {
+      for (final Postings p : merging.postings.tailMap(prefix).values()) {
+        if (!p.term.startsWith(prefix)) {
+          break;
+        }
+        for (int i = 0; i < p.size; i++) {
+          if (!updates.docs.containsKey(p.ids[i])) {
+            r.add(p.term);
+            break;
+          }
+        }
+      }
+    }
+    for (final String term : updates.postings.tailMap(prefix).keySet()) {
+      if (!term.startsWith(prefix)) {
+        break;
+      }
+      r.add(term);
+    }
+    return new ArrayList<String>(r);
+  }
+
+  /** Add the changes having the term to the result. */
+  private void collect(final String term, final Postings r) {
+    try {
+      final Postings p = merged.postings(term);
+      if (p != null) {
+        for (int i = 0; i < p.size; i++) {
+          if (!isUpdated(p.ids[i])) {
+            r.add(p.ids[i]);
+          }
+        }
+      }
+    } catch (IOException e) {
+      failed(e);
+    }
+
+    if (merging != null) {
+      final Postings p = merging.postings.get(term);
+      if (p != null) {
+        for (int i = 0; i < p.size; i++) {
+          if (!updates.docs.containsKey(p.ids[i])) {
+            r.add(p.ids[i]);
+          }
+        }
+      }
+    }
+
+    final Postings p = updates.postings.get(term);
+    if (p != null) {
+      r.addAll(p);
+    }
+  }
+
+  /** @return true if any of the merged changes was not updated since. */
+  private boolean hasMerged(final Postings p) {
+    for (int i = 0; i < p.size; i++) {
+      if (!isUpdated(p.ids[i])) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** @return true if the change was updated since the last merge. */
+  private boolean isUpdated(final int id) {
+    return updates.docs.containsKey(id)
+        || (merging != null && merging.docs.containsKey(id));
+  }
+
+  private void failed(final IOException e) {
+    log.error("Cannot read change index " + dir.getAbsolutePath()
+        + ", it will be rebuilt", e);
+    setIncomplete();
+  }
+
+  private void apply(final int id, final String[] terms) {
+    sortKeys.remove(id);
+    for (final String term : terms) {
+      if (term.startsWith(SORTKEY)) {
+        sortKeys.put(id, term.substring(SORTKEY.length()));
+      }
+    }
+    updates.apply(id, terms);
+  }
+
+  private void load(final File segment) throws IOException {
+    final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    final InputStream in =
+        new BufferedInputStream(new FileInputStream(segment));
+    try {
+      byte[] line;
+      while ((line = readLine(in, buf)) != null) {
+        final String[] fields =
+            RawParseUtils.decode(line, 0, line.length - 1).split("\t", -1);
+        final String[] terms = new String[fields.length - 1];
+        for (int i = 0; i < terms.length; i++) {
+          terms[i] = unescape(fields[i + 1]);
+        }
+        try {
+          apply(Integer.parseInt(fields[0]), terms);
+        } catch (NumberFormatException e) {
+          throw new IOException("Invalid change id in " + segment + ": "
+              + fields[0]);
+        }
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Merge the log segments into a new merged segment.
+   * <p>
+   * Only taking and installing the updates hold the lock, searches go on
+   * while the new segment is written.
+   */
+  private void merge() throws IOException {
+    final IndexSegment base;
+    final Updates frozen;
+    final long gen;
+    synchronized (this) {
+      if (merging != null || segmentCount == 0) {
+        return;
+      }
+      close();
+      base = merged;
+      frozen = updates;
+      gen = generation;
+      merging = frozen;
+      updates = new Updates();
+      segmentCount = 0;
+    }
+
+    final File f = new File(dir, String.format("%019d", gen)
+        + IndexSegment.SUFFIX);
+    final IndexSegment next;
+    try {
+      IndexSegment.write(f, base, frozen.postings, frozen.docs);
+
+      // Keep the time of the last update, not of this merge.
+      //
+      final File last = segment(gen);
+      if (last.exists()) {
+        f.setLastModified(last.lastModified());
+      }
+      next = IndexSegment.open(f, null);
+    } catch (IOException e) {
+      f.delete();
+      synchronized (this) {
+        for (final Map.Entry<Integer, String[]> u : updates.docs.entrySet()) {
+          frozen.apply(u.getKey(), u.getValue());
+        }
+        updates = frozen;
+        merging = null;
+        segmentCount = 0;
+        for (final File s : segments()) {
+          if (s.getName().endsWith(SUFFIX)) {
+            segmentCount++;
+          }
+        }
+      }
+      throw e;
+    }
+
+    synchronized (this) {
+      merged = next;
+      merging = null;
+      base.close();
+      if (base.getFile() != null) {
+        base.getFile().delete();
+      }
+      for (final File s : segments()) {
+        if (s.getName().endsWith(SUFFIX) && generation(s) <= gen) {
+          s.delete();
+        }
+      }
+      if (!running) {
+        next.close();
+      }
+    }
+  }
+
+  private void rotate() throws IOException {
+    close();
+    final File f = segment(++generation);
+    out = new FileOutputStream(f, true);
+    outSize = f.length();
+    segmentCount++;
+  }
+
+  private void close() {
+    if (out != null) {
+      try {
+        out.close();
+      } catch (IOException e) {
+        log.warn("Cannot close change index", e);
+      }
+      out = null;
+    }
+  }
+
+  private File segment(final long gen) {
+    return new File(dir, String.format("%019d", gen) + SUFFIX);
+  }
+
+  /** @return log and merged segments, oldest first. */
+  private File[] segments() {
+    final List<File> r = new ArrayList<File>();
+    final File[] files = dir.listFiles();
+    if (files != null) {
+      for (final File f : files) {
+        if (0 < generation(f)) {
+          r.add(f);
+        }
+      }
+    }
+    final File[] sorted = r.toArray(new File[r.size()]);
+    Arrays.sort(sorted);
+    return sorted;
+  }
+
+  private static long generation(final File segment) {
+    final String n = segment.getName();
+    final int dot = n.lastIndexOf('.');
+    if (dot < 0) {
+      return 0;
+    }
+    final String ext = n.substring(dot);
+    if (!ext.equals(SUFFIX) && !ext.equals(IndexSegment.SUFFIX)) {
+      return 0;
+    }
+    try {
+      return Long.parseLong(n.substring(0, dot));
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  private static byte[] record(final int id, final String[] terms) {
+    final StringBuilder r = new StringBuilder();
+    r.append(id);
+    for (final String term : terms) {
+      r.append('\t');
+      escape(r, term);
+    }
+    r.append('\n');
+    return toBytes(r.toString());
+  }
+
+  private static void escape(final StringBuilder r, final String term) {
+    for (int i = 0; i < term.length(); i++) {
+      final char c = term.charAt(i);
+      switch (c) {
+        case '\\':
+          r.append("\\\\");
+          break;
+        case '\t':
+          r.append("\\t");
+          break;
+        case '\n':
+          r.append("\\n");
+          break;
+        default:
+          r.append(c);
+      }
+    }
+  }
+
+  private static String unescape(final String s) {
+    if (s.indexOf('\\') < 0) {
+      return s;
+    }
+    final StringBuilder r = new StringBuilder(s.length());
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '\\' && i + 1 < s.length()) {
+        c = s.charAt(++i);
+        if (c == 't') {
+          c = '\t';
+        } else if (c == 'n') {
+          c = '\n';
+        }
+      }
+      r.append(c);
+    }
+    return r.toString();
+  }
+
+  private static byte[] readLine(final InputStream in,
+      final ByteArrayOutputStream buf) throws IOException {
+    buf.reset();
+    int c;
+    while ((c = in.read()) != -1) {
+      buf.write(c);
+      if (c == '\n') {
+        return buf.toByteArray();
+      }
+    }
+    return null;
+  }
+
+  private static byte[] toBytes(final String s) {
+    try {
+      return s.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException("JVM lacks UTF-8 encoding", e);
+    }
+  }
+
+  /** Changes updated since the last merge, held in memory. */
+  private static class Updates {
+    final TreeMap<String, Postings> postings =
+        new TreeMap<String, Postings>();
+
+    /** Terms of each updated change; empty if it was removed. */
+    final Map<Integer, String[]> docs = new HashMap<Integer, String[]>();
+
+    void apply(final int id, final String[] terms) {
+      final String[] old = docs.put(id, terms);
+      if (old != null) {
+        for (final String term : old) {
+          final Postings p = postings.get(term);
+          if (p != null && p.remove(id) && p.size == 0) {
+            postings.remove(term);
+          }
+        }
+      }
+
+      for (int i = 0; i < terms.length; i++) {
+        if (terms[i].startsWith(SORTKEY)) {
+          continue;
+        }
+        Postings p = postings.get(terms[i]);
+        if (p == null) {
+          p = new Postings(terms[i]);
+          postings.put(terms[i], p);
+        }
+        p.add(id);
+
+        // Share the term instance with the postings, rather than keeping
+        // a copy of it for every change.
+        //
+        terms[i] = p.term;
+      }
+    }
+  }
+}
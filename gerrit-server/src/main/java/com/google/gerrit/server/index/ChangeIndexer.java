@@ -0,0 +1,378 @@
+// Copyright (C) 2011 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.index;
+
+import com.google.gerrit.lifecycle.LifecycleListener;
+import com.google.gerrit.reviewdb.Change;
+import com.google.gerrit.reviewdb.PatchSet;
+import com.google.gerrit.reviewdb.PatchSetApproval;
+import com.google.gerrit.reviewdb.ReviewDb;
+import com.google.gerrit.server.ChangeUtil;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.gerrit.server.patch.PatchListCache;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.google.gwtorm.client.OrmException;
+import com.google.gwtorm.client.SchemaFactory;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Keeps the {@link ChangeIndex} up to date.
+ * <p>
+ * Changes are indexed in the background, on their own queue. If the index
+ * was not complete when the server started, or missed updates queued before
+ * it stopped, all changes are indexed once. Otherwise only the changes
+ * updated since the index was last written are indexed again, in case they
+ * were modified while the server was down.
+ * <p>
+ * If the terms of a change cannot be computed, the index is no longer
+ * trusted until it is rebuilt at the next start, so queries read the
+ * database rather than missing the change.
+ */
+@Singleton
+public class ChangeIndexer {
+  private static final Logger log =
+      LoggerFactory.getLogger(ChangeIndexer.class);
+
+  public static class Lifecycle implements LifecycleListener {
+    private final ChangeIndexer indexer;
+
+    @Inject
+    Lifecycle(final ChangeIndexer indexer) {
+      this.indexer = indexer;
+    }
+
+    @Override
+    public void start() {
+      indexer.start();
+    }
+
+    @Override
+    public void stop() {
+    }
+  }
+
+  private final ChangeIndex index;
+  private final SchemaFactory<ReviewDb> schema;
+  private final GitRepositoryManager repoManager;
+  private final PatchListCache patchListCache;
+  private final Executor executor;
+
+  /** Time changes may have been updated before the index was written. */
+  private static final long CLOCK_SKEW = 10 * 60 * 1000;
+
+  private static final int BATCH_SIZE = 500;
+
+  /** Changes queued to be indexed, but not yet being read. */
+  private final Set<Change.Id> pending = new HashSet<Change.Id>();
+
+  /** True once an update was lost; the index stays dirty until rebuilt. */
+  private boolean missed;
+
+  @Inject
+  ChangeIndexer(final ChangeIndex index, final SchemaFactory<ReviewDb> schema,
+      final GitRepositoryManager repoManager,
+      final PatchListCache patchListCache, final WorkQueue queue) {
+    this(index, schema, repoManager, patchListCache,
+        queue.createQueue(1, "ChangeIndexer"));
+  }
+
+  ChangeIndexer(final ChangeIndex index, final SchemaFactory<ReviewDb> schema,
+      final GitRepositoryManager repoManager,
+      final PatchListCache patchListCache, final Executor executor) {
+    this.index = index;
+    this.schema = schema;
+    this.repoManager = repoManager;
+    this.patchListCache = patchListCache;
+    this.executor = executor;
+  }
+
+  void start() {
+    if (!index.isRunning()) {
+      return;
+    } else if (!index.isReady()) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          indexAll();
+        }
+
+        @Override
+        public String toString() {
+          return "index all changes";
+        }
+      });
+    } else if (0 < index.lastUpdated()) {
+      final long since = index.lastUpdated() - CLOCK_SKEW;
+      synchronized (pending) {
+        markDirty();
+      }
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            indexUpdatedSince(since);
+          } finally {
+            markCleanIfIdle();
+          }
+        }
+
+        @Override
+        public String toString() {
+          return "index changes updated while stopped";
+        }
+      });
+    }
+  }
+
+  /**
+   * Update the index for a change, once the current work is done.
+   *
+   * @param id change which was created, or modified.
+   */
+  public void index(final Change.Id id) {
+    if (!index.isRunning()) {
+      return;
+    }
+    synchronized (pending) {
+      if (!pending.add(id)) {
+        return;
+      }
+      markDirty();
+    }
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        synchronized (pending) {
+          pending.remove(id);
+        }
+        try {
+          final ReviewDb db = schema.open();
+          try {
+            final Change c = db.changes().get(id);
+            if (c != null) {
+              index(db, c);
+            } else {
+              index.replace(id, Collections.<String> emptyList());
+            }
+          } finally {
+            db.close();
+          }
+        } catch (OrmException e) {
+          log.error("Cannot index change " + id, e);
+          markMissed();
+        } finally {
+          markCleanIfIdle();
+        }
+      }
+
+      @Override
+      public String toString() {
+        return "index change " + id;
+      }
+    });
+  }
+
+  private void indexAll() {
+    int cnt = 0;
+    try {
+      final ReviewDb db = schema.open();
+      try {
+        for (final Change c : db.changes().all()) {
+          index(db, c);
+          cnt++;
+        }
+      } finally {
+        db.close();
+      }
+      if (isMissed()) {
+        log.warn("Indexed " + cnt + " changes, but some could not be;"
+            + " all will be indexed again at the next start");
+        return;
+      }
+      index.setReady();
+      markCleanIfIdle();
+      log.info("Indexed " + cnt + " changes");
+    } catch (OrmException e) {
+      log.error("Cannot index all changes, indexed " + cnt, e);
+    } catch (IOException e) {
+      log.error("Cannot mark change index complete", e);
+    }
+  }
+
+  private void indexUpdatedSince(final long since) {
+    final String key = ChangeUtil.sortKey(since, 0);
+    int cnt = 0;
+    try {
+      final ReviewDb db = schema.open();
+      try {
+        cnt += indexAfter(db, null, key);
+        for (final Change.Status s : Change.Status.values()) {
+          if (s.isClosed()) {
+            cnt += indexAfter(db, s, key);
+          }
+        }
+      } finally {
+        db.close();
+      }
+      log.info("Indexed " + cnt + " changes updated while stopped");
+    } catch (OrmException e) {
+      log.error("Cannot index changes updated while stopped, indexed " + cnt,
+          e);
+      markMissed();
+    }
+  }
+
+  /** Index open changes, or closed ones with the status, after the key. */
+  private int indexAfter(final ReviewDb db, final Change.Status status,
+      String key) throws OrmException {
+    int cnt = 0;
+    for (;;) {
+      final List<Change> page = status == null //
+          ? db.changes().allOpenPrev(key, BATCH_SIZE).toList() //
+          : db.changes().allClosedPrev(status.getCode(), key, BATCH_SIZE)
+              .toList();
+      for (final Change c : page) {
+        index(db, c);
+        key = c.getSortKey();
+      }
+      cnt += page.size();
+      if (page.size() < BATCH_SIZE) {
+        return cnt;
+      }
+    }
+  }
+
+  /** Must be called while holding the lock on {@code pending}. */
+  private void markDirty() {
+    try {
+      index.markDirty();
+    } catch (IOException e) {
+      log.error("Cannot mark change index dirty", e);
+    }
+  }
+
+  /** Keep the index dirty, and stop trusting it until it is rebuilt. */
+  private void markMissed() {
+    synchronized (pending) {
+      missed = true;
+    }
+    index.setIncomplete();
+  }
+
+  private boolean isMissed() {
+    synchronized (pending) {
+      return missed;
+    }
+  }
+
+  private void markCleanIfIdle() {
+    synchronized (pending) {
+      if (pending.isEmpty() && !missed) {
+        index.markClean();
+      }
+    }
+  }
+
+  private void index(final ReviewDb db, final Change c) {
+    try {
+      index.replace(c.getId(), terms(db, c));
+    } catch (OrmException e) {
+      log.error("Cannot index change " + c.getId(), e);
+      markMissed();
+    } catch (IOException e) {
+      log.error("Cannot index change " + c.getId(), e);
+      markMissed();
+    } catch (RuntimeException e) {
+      // A broken change should not stop the others from being indexed.
+      //
+      log.error("Cannot index change " + c.getId(), e);
+      markMissed();
+    }
+  }
+
+  private List<String> terms(final ReviewDb db, final Change c)
+      throws OrmException, IOException {
+    final Provider<ReviewDb> dbp = new Provider<ReviewDb>() {
+      @Override
+      public ReviewDb get() {
+        return db;
+      }
+    };
+    final ChangeData cd = new ChangeData(c);
+    final List<String> r = new ArrayList<String>();
+
+    r.add(ChangeIndex.PROJECT + c.getProject().get());
+    r.add(ChangeIndex.BRANCH + c.getDest().get());
+    r.add(ChangeIndex.OWNER + c.getOwner().get());
+    r.add(ChangeIndex.STATUS + c.getStatus().getCode());
+    if (c.getSortKey() != null) {
+      r.add(ChangeIndex.SORTKEY + c.getSortKey());
+    }
+    if (c.getTopic() != null && !c.getTopic().isEmpty()) {
+      r.add(ChangeIndex.TOPIC + c.getTopic());
+    }
+    for (final PatchSetApproval a : cd.currentApprovals(dbp)) {
+      r.add(ChangeIndex.LABEL + a.getCategoryId().get() + "=" + a.getValue());
+    }
+
+    final String[] files = cd.currentFilePaths(dbp, patchListCache);
+    if (files != null) {
+      for (final String f : files) {
+        r.add(ChangeIndex.FILE + f);
+      }
+    }
+
+    final PatchSet ps = cd.currentPatchSet(dbp);
+    if (ps != null && ps.getRevision() != null) {
+      for (final String w : ChangeIndex.words(message(c, ps))) {
+        r.add(ChangeIndex.MESSAGE + w);
+      }
+    }
+    return r;
+  }
+
+  private String message(final Change c, final PatchSet ps)
+      throws IOException {
+    final Repository repo = repoManager.openRepository(c.getProject());
+    try {
+      final RevWalk rw = new RevWalk(repo);
+      try {
+        return rw.parseCommit(ObjectId.fromString(ps.getRevision().get()))
+            .getFullMessage();
+      } finally {
+        rw.release();
+      }
+    } finally {
+      repo.close();
+    }
+  }
+}
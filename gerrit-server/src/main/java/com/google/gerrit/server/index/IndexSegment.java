@@ -0,0 +1,449 @@
+// Copyright (C) 2011 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.index;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.util.RawParseUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeSet;
+
+/**
+ * Changes of a {@link ChangeIndex} merged into one file.
+ * <p>
+ * The file holds, in order: the postings of every term, as sorted change
+ * ids; the id and sort key of every change; every term, with the number
+ * and position of its postings; and a trailer locating the last two parts.
+ * Only the change ids and one term out of {@link #INTERVAL} are kept in
+ * memory, postings are read from the file each time they are searched.
+ * <p>
+ * A segment is never modified once written, so it may be read by several
+ * threads at once.
+ */
+class IndexSegment {
+  static final String SUFFIX = ".idx";
+
+  private static final int MAGIC = 0x47434931;
+  private static final int TRAILER = 8 + 4 + 8 + 4 + 4;
+  private static final int INTERVAL = 32;
+
+  /** @return a segment without any change, not backed by a file. */
+  static IndexSegment empty() {
+    return new IndexSegment(null, null, new int[0], 0, 0, 0, new String[0],
+        new long[0]);
+  }
+
+  /**
+   * Open a segment written by {@link #write(File, IndexSegment, SortedMap,
+   * Map)}.
+   *
+   * @param file the segment.
+   * @param sortKeys if not null, receives the sort key of every change.
+   * @return the segment, which must be closed once no longer searched.
+   * @throws IOException the segment cannot be read, or is truncated.
+   */
+  static IndexSegment open(final File file, final Map<Integer, String> sortKeys)
+      throws IOException {
+    final RandomAccessFile raf = new RandomAccessFile(file, "r");
+    boolean ok = false;
+    try {
+      final long len = raf.length();
+      if (len < TRAILER) {
+        throw new IOException("Truncated change index " + file);
+      }
+      raf.seek(len - TRAILER);
+      final long docsStart = raf.readLong();
+      final int docCount = raf.readInt();
+      final long termsStart = raf.readLong();
+      final int termCount = raf.readInt();
+      if (raf.readInt() != MAGIC || docsStart < 0 || docCount < 0
+          || termCount < 0 || termsStart < docsStart
+          || len - TRAILER < termsStart) {
+        throw new IOException("Invalid change index " + file);
+      }
+
+      final FileChannel ch = raf.getChannel();
+      final int[] ids = new int[docCount];
+      final DataInputStream in = read(ch, docsStart);
+      for (int i = 0; i < docCount; i++) {
+        ids[i] = in.readInt();
+        final String key = readString(in);
+        if (sortKeys != null && key != null) {
+          sortKeys.put(ids[i], key);
+        }
+      }
+
+      final int n = (termCount + INTERVAL - 1) / INTERVAL;
+      final String[] indexTerms = new String[n];
+      final long[] indexOffsets = new long[n];
+      final TermReader t = new TermReader(ch, termsStart, termCount);
+      for (int i = 0; i < termCount; i++) {
+        final long at = t.pos;
+        t.next();
+        if (i % INTERVAL == 0) {
+          indexTerms[i / INTERVAL] = t.term;
+          indexOffsets[i / INTERVAL] = at;
+        }
+      }
+
+      final IndexSegment s = new IndexSegment(file, raf, ids, docsStart,
+          termsStart, termCount, indexTerms, indexOffsets);
+      ok = true;
+      return s;
+    } finally {
+      if (!ok) {
+        raf.close();
+      }
+    }
+  }
+
+  /**
+   * Write a segment holding the changes of another one, as replaced by
+   * later updates.
+   *
+   * @param file the new segment.
+   * @param base changes merged so far.
+   * @param postings terms of the updated changes, with their postings.
+   * @param docs terms of each updated change; empty if it was removed.
+   * @throws IOException the segment cannot be written.
+   */
+  static void write(final File file, final IndexSegment base,
+      final SortedMap<String, Postings> postings,
+      final Map<Integer, String[]> docs) throws IOException {
+    final File tmp = new File(file.getPath() + ".tmp");
+    final File termsTmp = new File(file.getPath() + ".terms.tmp");
+    boolean ok = false;
+    try {
+      final DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(tmp)));
+      try {
+        long pos = 0;
+        int termCount = 0;
+
+        // Terms can only be written once all postings are, so they go to
+        // their own file until then.
+        //
+        final DataOutputStream terms = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(termsTmp)));
+        try {
+          final TermReader bt = base.terms("");
+          boolean hasBase = bt.next();
+          final Iterator<Postings> up = postings.values().iterator();
+          Postings u = up.hasNext() ? up.next() : null;
+          while (hasBase || u != null) {
+            final int cmp;
+            if (!hasBase) {
+              cmp = 1;
+            } else if (u == null) {
+              cmp = -1;
+            } else {
+              cmp = bt.term.compareTo(u.term);
+            }
+
+            final Postings p = new Postings(cmp <= 0 ? bt.term : u.term);
+            if (cmp <= 0) {
+              final Postings b = base.read(bt);
+              for (int i = 0; i < b.size; i++) {
+                if (!docs.containsKey(b.ids[i])) {
+                  p.add(b.ids[i]);
+                }
+              }
+              hasBase = bt.next();
+            }
+            if (0 <= cmp) {
+              p.addAll(u);
+              u = up.hasNext() ? up.next() : null;
+            }
+
+            p.sort();
+            if (p.size == 0) {
+              continue;
+            }
+            for (int i = 0; i < p.size; i++) {
+              out.writeInt(p.ids[i]);
+            }
+            writeString(terms, p.term);
+            terms.writeInt(p.size);
+            terms.writeLong(pos);
+            pos += 4L * p.size;
+            termCount++;
+          }
+        } finally {
+          terms.close();
+        }
+
+        final long docsStart = pos;
+        int docCount = 0;
+        final TreeSet<Integer> updated = new TreeSet<Integer>();
+        for (final Map.Entry<Integer, String[]> e : docs.entrySet()) {
+          if (0 < e.getValue().length) {
+            updated.add(e.getKey());
+          }
+        }
+        final Iterator<Integer> ui = updated.iterator();
+        Integer next = ui.hasNext() ? ui.next() : null;
+        final DataInputStream bd = base.docs();
+        int i = 0;
+        while (i < base.ids.length || next != null) {
+          if (next == null || (i < base.ids.length && base.ids[i] < next)) {
+            final int id = bd.readInt();
+            final String key = readString(bd);
+            i++;
+            if (docs.containsKey(id)) {
+              continue;
+            }
+            pos += writeDoc(out, id, key);
+          } else {
+            pos += writeDoc(out, next, sortKey(docs.get(next)));
+            next = ui.hasNext() ? ui.next() : null;
+          }
+          docCount++;
+        }
+
+        final long termsStart = pos;
+        final InputStream in = new FileInputStream(termsTmp);
+        try {
+          final byte[] buf = new byte[8192];
+          int n;
+          while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+          }
+        } finally {
+          in.close();
+        }
+
+        out.writeLong(docsStart);
+        out.writeInt(docCount);
+        out.writeLong(termsStart);
+        out.writeInt(termCount);
+        out.writeInt(MAGIC);
+      } finally {
+        out.close();
+      }
+
+      if (!tmp.renameTo(file)) {
+        throw new IOException("Cannot rename " + tmp + " to " + file);
+      }
+      ok = true;
+    } finally {
+      termsTmp.delete();
+      if (!ok) {
+        tmp.delete();
+      }
+    }
+  }
+
+  private final File file;
+  private final RandomAccessFile raf;
+  private final int[] ids;
+  private final long docsStart;
+  private final long termsStart;
+  private final int termCount;
+  private final String[] indexTerms;
+  private final long[] indexOffsets;
+
+  private IndexSegment(final File file, final RandomAccessFile raf,
+      final int[] ids, final long docsStart, final long termsStart,
+      final int termCount, final String[] indexTerms,
+      final long[] indexOffsets) {
+    this.file = file;
+    this.raf = raf;
+    this.ids = ids;
+    this.docsStart = docsStart;
+    this.termsStart = termsStart;
+    this.termCount = termCount;
+    this.indexTerms = indexTerms;
+    this.indexOffsets = indexOffsets;
+  }
+
+  /** @return the file of the segment; null if it is empty. */
+  File getFile() {
+    return file;
+  }
+
+  /** @return number of changes in the segment. */
+  int size() {
+    return ids.length;
+  }
+
+  boolean contains(final int id) {
+    return 0 <= Arrays.binarySearch(ids, id);
+  }
+
+  /** @return the changes having the term; null if there are none. */
+  Postings postings(final String term) throws IOException {
+    final TermReader t = terms(term);
+    while (t.next()) {
+      final int cmp = t.term.compareTo(term);
+      if (cmp == 0) {
+        return read(t);
+      } else if (0 < cmp) {
+        break;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Read the terms in order, from one at most {@link #INTERVAL} terms
+   * before the first term not less than {@code from}.
+   */
+  TermReader terms(final String from) {
+    int i = Arrays.binarySearch(indexTerms, from);
+    if (i < 0) {
+      i = Math.max(0, -i - 2);
+    }
+    if (indexTerms.length == 0) {
+      return new TermReader(null, 0, 0);
+    }
+    return new TermReader(raf.getChannel(), indexOffsets[i],
+        termCount - i * INTERVAL);
+  }
+
+  /** @return the changes having the term the reader is on. */
+  Postings read(final TermReader t) throws IOException {
+    final Postings p = new Postings(t.term);
+    p.ids = new int[Math.max(1, t.count)];
+    final DataInputStream in = read(raf.getChannel(), t.offset);
+    for (int i = 0; i < t.count; i++) {
+      p.ids[i] = in.readInt();
+    }
+    p.size = t.count;
+    return p;
+  }
+
+  void close() {
+    if (raf != null) {
+      try {
+        raf.close();
+      } catch (IOException e) {
+        // Nothing was written, there is nothing to lose.
+      }
+    }
+  }
+
+  private DataInputStream docs() {
+    return ids.length == 0 ? null : read(raf.getChannel(), docsStart);
+  }
+
+  /** Reads the terms of a segment in order. */
+  static class TermReader {
+    private final DataInputStream in;
+    private int remaining;
+    private long pos;
+
+    String term;
+    int count;
+    long offset;
+
+    private TermReader(final FileChannel ch, final long start,
+        final int remaining) {
+      this.in = ch != null ? read(ch, start) : null;
+      this.remaining = remaining;
+      this.pos = start;
+    }
+
+    /** @return true if the reader moved to the next term. */
+    boolean next() throws IOException {
+      if (remaining == 0) {
+        return false;
+      }
+      final byte[] b = new byte[in.readInt()];
+      in.readFully(b);
+      term = RawParseUtils.decode(b);
+      count = in.readInt();
+      offset = in.readLong();
+      pos += 4 + b.length + 4 + 8;
+      remaining--;
+      return true;
+    }
+  }
+
+  private static String sortKey(final String[] terms) {
+    for (final String t : terms) {
+      if (t.startsWith(ChangeIndex.SORTKEY)) {
+        return t.substring(ChangeIndex.SORTKEY.length());
+      }
+    }
+    return null;
+  }
+
+  private static int writeDoc(final DataOutputStream out, final int id,
+      final String key) throws IOException {
+    out.writeInt(id);
+    return 4 + writeString(out, key);
+  }
+
+  private static int writeString(final DataOutputStream out, final String s)
+      throws IOException {
+    if (s == null) {
+      out.writeInt(-1);
+      return 4;
+    }
+    final byte[] b = Constants.encode(s);
+    out.writeInt(b.length);
+    out.write(b);
+    return 4 + b.length;
+  }
+
+  private static String readString(final DataInputStream in)
+      throws IOException {
+    final int n = in.readInt();
+    if (n < 0) {
+      return null;
+    }
+    final byte[] b = new byte[n];
+    in.readFully(b);
+    return RawParseUtils.decode(b);
+  }
+
+  /** Read from a position, without moving the channel. */
+  private static DataInputStream read(final FileChannel ch, final long start) {
+    return new DataInputStream(new BufferedInputStream(new InputStream() {
+      private long pos = start;
+
+      @Override
+      public int read() throws IOException {
+        final byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+      }
+
+      @Override
+      public int read(final byte[] b, final int off, final int len)
+          throws IOException {
+        final int n = ch.read(ByteBuffer.wrap(b, off, len), pos);
+        if (0 < n) {
+          pos += n;
+        }
+        return n;
+      }
+    }));
+  }
+}
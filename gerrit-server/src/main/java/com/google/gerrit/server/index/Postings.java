@@ -0,0 +1,106 @@
+// Copyright (C) 2011 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.index;
+
+import com.google.gerrit.reviewdb.Change;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Sorted set of change ids having one term. */
+class Postings {
+  final String term;
+  int[] ids = new int[4];
+  int size;
+  boolean sorted = true;
+
+  Postings(final String term) {
+    this.term = term;
+  }
+
+  void add(final int id) {
+    // Changes are usually indexed in increasing id order, so appending
+    // and sorting only when needed avoids shifting the array each time.
+    //
+    if (size == ids.length) {
+      ids = Arrays.copyOf(ids, size * 2);
+    }
+    if (0 < size && id <= ids[size - 1]) {
+      sorted = false;
+    }
+    ids[size++] = id;
+  }
+
+  void addAll(final Postings p) {
+    for (int i = 0; i < p.size; i++) {
+      add(p.ids[i]);
+    }
+  }
+
+  boolean remove(final int id) {
+    sort();
+    final int i = Arrays.binarySearch(ids, 0, size, id);
+    if (i < 0) {
+      return false;
+    }
+    System.arraycopy(ids, i + 1, ids, i, size - i - 1);
+    size--;
+    return true;
+  }
+
+  Postings retainAll(final Postings p) {
+    sort();
+    p.sort();
+    final Postings r = new Postings(null);
+    int i = 0;
+    int j = 0;
+    while (i < size && j < p.size) {
+      if (ids[i] < p.ids[j]) {
+        i++;
+      } else if (p.ids[j] < ids[i]) {
+        j++;
+      } else {
+        r.add(ids[i]);
+        i++;
+        j++;
+      }
+    }
+    return r;
+  }
+
+  List<Change.Id> toList() {
+    sort();
+    final List<Change.Id> r = new ArrayList<Change.Id>(size);
+    for (int i = 0; i < size; i++) {
+      r.add(new Change.Id(ids[i]));
+    }
+    return r;
+  }
+
+  void sort() {
+    if (!sorted) {
+      Arrays.sort(ids, 0, size);
+      int n = 0;
+      for (int i = 0; i < size; i++) {
+        if (n == 0 || ids[n - 1] != ids[i]) {
+          ids[n++] = ids[i];
+        }
+      }
+      size = n;
+      sorted = true;
+    }
+  }
+}
@@ -27,8 +27,6 @@ import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.patch.PatchListCache;
 import com.google.gerrit.server.patch.PatchSetInfoFactory;
 import com.google.gerrit.server.project.ProjectCache;
-import com.google.gerrit.server.query.change.ChangeQueryBuilder;
-import com.google.gerrit.server.query.change.ChangeQueryRewriter;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 
@@ -47,8 +45,8 @@ class EmailArguments {
   final Provider<String> urlProvider;
   final Project.NameKey wildProject;
 
-  final ChangeQueryBuilder.Factory queryBuilder;
-  final Provider<ChangeQueryRewriter> queryRewriter;
+  final ProjectWatchIndex watchIndex;
+  final ProjectWatchIndex.Parser watchParser;
   final Provider<ReviewDb> db;
   final SitePaths site;
 
@@ -60,9 +58,8 @@ class EmailArguments {
       GenericFactory identifiedUserFactory,
       @CanonicalWebUrl @Nullable Provider<String> urlProvider,
       @WildProjectName Project.NameKey wildProject,
-      ChangeQueryBuilder.Factory queryBuilder,
-      Provider<ChangeQueryRewriter> queryRewriter, Provider<ReviewDb> db,
-      SitePaths site) {
+      ProjectWatchIndex watchIndex, ProjectWatchIndex.Parser watchParser,
+      Provider<ReviewDb> db, SitePaths site) {
     this.server = server;
     this.projectCache = projectCache;
     this.groupCache = groupCache;
@@ -74,8 +71,8 @@ class EmailArguments {
     this.identifiedUserFactory = identifiedUserFactory;
     this.urlProvider = urlProvider;
     this.wildProject = wildProject;
-    this.queryBuilder = queryBuilder;
-    this.queryRewriter = queryRewriter;
+    this.watchIndex = watchIndex;
+    this.watchParser = watchParser;
     this.db = db;
     this.site = site;
   }
@@ -0,0 +1,289 @@
+// Copyright (C) 2011 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.mail;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.gerrit.lifecycle.LifecycleListener;
+import com.google.gerrit.server.config.ConfigUtil;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.config.SitePaths;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import org.eclipse.jgit.lib.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Durable queue of messages waiting to be sent by {@link SmtpTransport}.
+ * <p>
+ * Each message is written to its own file under
+ * {@code sendemail.spoolDirectory} before {@link #add(SpooledEmail)}
+ * returns, and deleted once the SMTP server accepts it. A pool of
+ * {@code sendemail.threadPoolSize} workers sends the messages, trying
+ * temporary failures again with an exponential backoff. Messages still
+ * in the spool when the server stops are sent after it starts again.
+ */
+@Singleton
+public class MailSpool {
+  private static final Logger log = LoggerFactory.getLogger(MailSpool.class);
+
+  private static final String SUFFIX = ".msg";
+  private static final String FAILED = ".failed";
+
+  public static class Lifecycle implements LifecycleListener {
+    private final MailSpool spool;
+
+    @Inject
+    Lifecycle(final MailSpool spool) {
+      this.spool = spool;
+    }
+
+    @Override
+    public void start() {
+      spool.start();
+    }
+
+    @Override
+    public void stop() {
+      spool.stop();
+    }
+  }
+
+  static int getThreadPoolSize(final Config cfg) {
+    return Math.max(1, cfg.getInt("sendemail", null, "threadPoolSize", 1));
+  }
+
+  private final boolean enabled;
+  private final File dir;
+  private final SmtpTransport transport;
+  private final MailStats stats;
+  private final WorkQueue workQueue;
+  private final int threads;
+  private final int maxAttempts;
+  private final long retryDelay;
+  private final long maxRetryDelay;
+  private final AtomicLong nextId = new AtomicLong();
+  private volatile WorkQueue.Executor pool;
+
+  @Inject
+  MailSpool(@GerritServerConfig final Config cfg, final SitePaths site,
+      final WorkQueue workQueue, final SmtpTransport transport,
+      final MailStats stats) {
+    this.workQueue = workQueue;
+    this.transport = transport;
+    this.stats = stats;
+
+    enabled = cfg.getBoolean("sendemail", null, "enable", true);
+    String path = cfg.getString("sendemail", null, "spoolDirectory");
+    if (path == null) {
+      path = "spool/mail";
+    }
+    dir = site.resolve(path);
+    threads = getThreadPoolSize(cfg);
+    maxAttempts = Math.max(1, cfg.getInt("sendemail", null, "maxAttempts", 8));
+    retryDelay = ConfigUtil.getTimeUnit(cfg, "sendemail", null, "retryDelay",
+        MILLISECONDS.convert(30, SECONDS), MILLISECONDS);
+    maxRetryDelay = ConfigUtil.getTimeUnit(cfg, "sendemail", null,
+        "maxRetryDelay", MILLISECONDS.convert(30, MINUTES), MILLISECONDS);
+  }
+
+  void start() {
+    if (!enabled) {
+      return;
+    }
+
+    pool = workQueue.createQueue(threads, "SendEmail");
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      log.warn("Cannot create mail spool " + dir.getAbsolutePath()
+          + ", messages will be lost if the server stops");
+      return;
+    }
+
+    final File[] files = dir.listFiles();
+    if (files == null) {
+      return;
+    }
+    Arrays.sort(files);
+    for (final File f : files) {
+      final String name = f.getName();
+      if (name.endsWith(SUFFIX)) {
+        try {
+          final SpooledEmail msg = read(f);
+          stats.spooled();
+          pool.execute(new Delivery(f, msg));
+        } catch (IOException e) {
+          log.error("Cannot read spooled email " + f.getAbsolutePath(), e);
+          fail(f);
+        }
+      } else if (name.startsWith(".")) {
+        // Left behind by a server that stopped while writing it; the
+        // caller was never told the message was accepted.
+        //
+        f.delete();
+      }
+    }
+    if (stats.getSpooled() > 0) {
+      log.info("Sending " + stats.getSpooled() + " spooled emails");
+    }
+  }
+
+  void stop() {
+    transport.close();
+  }
+
+  /**
+   * Accept a message for delivery.
+   *
+   * @param msg the message to send.
+   * @throws EmailException the spool is not running.
+   */
+  void add(final SpooledEmail msg) throws EmailException {
+    final WorkQueue.Executor p = pool;
+    if (p == null) {
+      throw new EmailException("Mail spool is not running");
+    }
+
+    File f;
+    try {
+      f = write(msg);
+    } catch (IOException e) {
+      log.error("Cannot write to mail spool " + dir.getAbsolutePath(), e);
+      f = null;
+    }
+    stats.spooled();
+    p.execute(new Delivery(f, msg));
+  }
+
+  private File write(final SpooledEmail msg) throws IOException {
+    final String name = String.format("%013d-%06d",
+        System.currentTimeMillis(), nextId.incrementAndGet() % 1000000);
+    final File tmp = new File(dir, "." + name);
+    final File dst = new File(dir, name + SUFFIX);
+
+    final FileOutputStream fos = new FileOutputStream(tmp);
+    boolean ok = false;
+    try {
+      final OutputStream out = new BufferedOutputStream(fos);
+      msg.writeTo(out);
+      out.flush();
+      fos.getFD().sync();
+      ok = true;
+    } finally {
+      fos.close();
+      if (!ok) {
+        tmp.delete();
+      }
+    }
+    if (!tmp.renameTo(dst)) {
+      tmp.delete();
+      throw new IOException("Cannot rename " + tmp + " to " + dst);
+    }
+    return dst;
+  }
+
+  private static SpooledEmail read(final File f) throws IOException {
+    final InputStream in = new BufferedInputStream(new FileInputStream(f));
+    try {
+      return SpooledEmail.readFrom(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void fail(final File f) {
+    if (f != null) {
+      final File dst = new File(f.getParentFile(), f.getName() + FAILED);
+      if (!f.renameTo(dst)) {
+        f.delete();
+      }
+    }
+  }
+
+  private long backoff(final int attempt) {
+    long d = retryDelay;
+    for (int i = 1; i < attempt && d < maxRetryDelay; i++) {
+      d *= 2;
+    }
+    return Math.min(d, maxRetryDelay);
+  }
+
+  private class Delivery implements Runnable {
+    private final File file;
+    private final SpooledEmail msg;
+    private int attempts;
+
+    Delivery(final File file, final SpooledEmail msg) {
+      this.file = file;
+      this.msg = msg;
+    }
+
+    @Override
+    public void run() {
+      attempts++;
+      final long start = System.nanoTime();
+      try {
+        transport.deliver(msg);
+        stats.sent(System.nanoTime() - start);
+        if (file != null && !file.delete() && file.exists()) {
+          log.error("Cannot remove sent email " + file.getAbsolutePath());
+        }
+      } catch (IOException e) {
+        if (attempts < maxAttempts && pool != null) {
+          final long delay = backoff(attempts);
+          log.warn("Cannot " + msg + ", trying again in "
+              + SECONDS.convert(delay, MILLISECONDS) + " seconds: "
+              + e.getMessage());
+          stats.retried();
+          pool.schedule(this, delay, MILLISECONDS);
+        } else {
+          log.error("Cannot " + msg + ", giving up after " + attempts
+              + " attempts", e);
+          stats.failed();
+          fail(file);
+        }
+      } catch (EmailException e) {
+        log.error("Cannot " + msg, e);
+        stats.failed();
+        fail(file);
+      } catch (RuntimeException e) {
+        log.error("Cannot " + msg, e);
+        stats.failed();
+        fail(file);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return attempts == 0 ? msg.toString() : msg + " (attempt "
+          + (attempts + 1) + ")";
+    }
+  }
+}
@@ -0,0 +1,95 @@
+// Copyright (C) 2011 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.mail;
+
+import com.google.inject.Singleton;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Counters describing the outgoing email spool. */
+@Singleton
+public class MailStats {
+  private final AtomicInteger spooled = new AtomicInteger();
+  private final AtomicLong sent = new AtomicLong();
+  private final AtomicLong retried = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong sendNanos = new AtomicLong();
+  private final AtomicLong connectionsOpened = new AtomicLong();
+  private final AtomicLong connectionsReused = new AtomicLong();
+
+  void spooled() {
+    spooled.incrementAndGet();
+  }
+
+  void sent(final long nanos) {
+    spooled.decrementAndGet();
+    sent.incrementAndGet();
+    sendNanos.addAndGet(nanos);
+  }
+
+  void retried() {
+    retried.incrementAndGet();
+  }
+
+  void failed() {
+    spooled.decrementAndGet();
+    failed.incrementAndGet();
+  }
+
+  void connectionOpened() {
+    connectionsOpened.incrementAndGet();
+  }
+
+  void connectionReused() {
+    connectionsReused.incrementAndGet();
+  }
+
+  /** @return number of messages waiting to be sent. */
+  public int getSpooled() {
+    return spooled.get();
+  }
+
+  /** @return number of messages accepted by the SMTP server. */
+  public long getSent() {
+    return sent.get();
+  }
+
+  /** @return number of attempts that failed, and will be tried again. */
+  public long getRetried() {
+    return retried.get();
+  }
+
+  /** @return number of messages given up on. */
+  public long getFailed() {
+    return failed.get();
+  }
+
+  /** @return average milliseconds taken to send one message. */
+  public double getAverageSendMillis() {
+    final long n = sent.get();
+    return n > 0 ? sendNanos.get() / (n * 1e6) : 0;
+  }
+
+  /** @return number of connections opened to the SMTP server. */
+  public long getConnectionsOpened() {
+    return connectionsOpened.get();
+  }
+
+  /** @return number of messages sent on an already open connection. */
+  public long getConnectionsReused() {
+    return connectionsReused.get();
+  }
+}
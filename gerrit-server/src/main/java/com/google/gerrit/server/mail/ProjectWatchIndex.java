@@ -0,0 +1,439 @@
+// Copyright (C) 2011 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.mail;
+
+import com.google.gerrit.reviewdb.Account;
+import com.google.gerrit.reviewdb.AccountProjectWatch;
+import com.google.gerrit.reviewdb.Branch;
+import com.google.gerrit.reviewdb.Change;
+import com.google.gerrit.reviewdb.Project;
+import com.google.gerrit.reviewdb.ReviewDb;
+import com.google.gerrit.server.IdentifiedUser;
+import com.google.gerrit.server.account.ProjectWatchCache;
+import com.google.gerrit.server.cache.Cache;
+import com.google.gerrit.server.cache.CacheModule;
+import com.google.gerrit.server.config.WildProjectName;
+import com.google.gerrit.server.query.AndPredicate;
+import com.google.gerrit.server.query.OperatorPredicate;
+import com.google.gerrit.server.query.Predicate;
+import com.google.gerrit.server.query.QueryParseException;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.google.gerrit.server.query.change.ChangeQueryBuilder;
+import com.google.gerrit.server.query.change.ChangeQueryRewriter;
+import com.google.gwtorm.client.OrmException;
+import com.google.inject.Inject;
+import com.google.inject.Module;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.google.inject.TypeLiteral;
+import com.google.inject.name.Named;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds the project watches matching a change.
+ * <p>
+ * Watch filters are parsed once per project, and reused until the
+ * {@link ProjectWatchCache} entry of the project or of the wildcard project
+ * is replaced. Only the parsed predicates are kept; they are rewritten each
+ * time a change is matched, since rewritten predicates hold the sources and
+ * row counts of the query they run in. Watches with the same filter share
+ * one predicate, which is evaluated at most once per change. Watches whose
+ * filter requires a single branch or topic are only considered for changes
+ * on that branch or topic.
+ * <p>
+ * The parsed predicates hold the request scoped providers of the injector
+ * that parsed them, so indexes are cached per {@link Parser}, which is bound
+ * once in each request injector.
+ */
+@Singleton
+public class ProjectWatchIndex {
+  private static final String CACHE_NAME = "project_watch_index";
+
+  public static Module module() {
+    return new CacheModule() {
+      @Override
+      protected void configure() {
+        final TypeLiteral<Cache<Key, Index>> type =
+            new TypeLiteral<Cache<Key, Index>>() {};
+        core(type, CACHE_NAME).memoryLimit(256);
+        bind(ProjectWatchIndex.class);
+      }
+    };
+  }
+
+  private final ProjectWatchCache watchCache;
+  private final Project.NameKey wildProject;
+  private final Cache<Key, Index> indexes;
+
+  @Inject
+  ProjectWatchIndex(final ProjectWatchCache watchCache,
+      @WildProjectName final Project.NameKey wildProject,
+      @Named(CACHE_NAME) final Cache<Key, Index> indexes) {
+    this.watchCache = watchCache;
+    this.wildProject = wildProject;
+    this.indexes = indexes;
+  }
+
+  /**
+   * Get the watches of the change's project, or of the wildcard project,
+   * whose filter matches the change and whose account can see it.
+   *
+   * @param parser parser of the injector handling the current request.
+   * @param cd the change.
+   * @param change the change row, already loaded by the caller.
+   * @return matching watches, in the order they were declared. Watches of
+   *         the wildcard project are skipped for accounts that also watch
+   *         the change's project.
+   */
+  public List<AccountProjectWatch> getWatches(final Parser parser,
+      final ChangeData cd, final Change change) throws OrmException {
+    final Project.NameKey project = change.getProject();
+    final List<AccountProjectWatch> own = watchCache.byProject(project);
+    final List<AccountProjectWatch> wild = watchCache.byProject(wildProject);
+
+    final Key key = new Key(parser, project);
+    Index idx = indexes.get(key);
+    if (idx == null || idx.own != own || idx.wild != wild) {
+      idx = new Index(parser, project, own, wild);
+      indexes.put(key, idx);
+    }
+    return idx.match(cd, change);
+  }
+
+  /** Parses watch filters with the query builder of one request injector. */
+  public static class Parser {
+    private final ChangeQueryBuilder.Factory queryBuilder;
+    private final Provider<ChangeQueryRewriter> queryRewriter;
+    private final IdentifiedUser.GenericFactory userFactory;
+    private final Provider<ReviewDb> db;
+
+    @Inject
+    Parser(final ChangeQueryBuilder.Factory queryBuilder,
+        final Provider<ChangeQueryRewriter> queryRewriter,
+        final IdentifiedUser.GenericFactory userFactory,
+        final Provider<ReviewDb> db) {
+      this.queryBuilder = queryBuilder;
+      this.queryRewriter = queryRewriter;
+      this.userFactory = userFactory;
+      this.db = db;
+    }
+
+    /** Parse a filter for its account, like a user query. */
+    Predicate<ChangeData> parse(final Account.Id who, final String filter)
+        throws QueryParseException {
+      final ChangeQueryBuilder qb = queryBuilder.create(user(who));
+      qb.setAllowFile(true);
+      return qb.parse(filter);
+    }
+
+    Predicate<ChangeData> rewrite(final Predicate<ChangeData> p) {
+      return queryRewriter.get().rewrite(p);
+    }
+
+    Predicate<ChangeData> isVisible(final Account.Id who) {
+      return queryBuilder.create(user(who)).is_visible();
+    }
+
+    private IdentifiedUser user(final Account.Id who) {
+      return userFactory.create(db, who);
+    }
+  }
+
+  private static class Key {
+    final Parser parser;
+    final Project.NameKey project;
+
+    Key(final Parser parser, final Project.NameKey project) {
+      this.parser = parser;
+      this.project = project;
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(parser) * 31 + project.hashCode();
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+      if (other instanceof Key) {
+        final Key k = (Key) other;
+        return parser == k.parser && project.equals(k.project);
+      }
+      return false;
+    }
+  }
+
+  private static class Index {
+    final Parser parser;
+    final List<AccountProjectWatch> own;
+    final List<AccountProjectWatch> wild;
+
+    private final List<Entry> any = new ArrayList<Entry>();
+    private final Map<String, List<Entry>> byRef =
+        new HashMap<String, List<Entry>>();
+    private final Map<String, List<Entry>> byTopic =
+        new HashMap<String, List<Entry>>();
+    private final List<Entry> personal = new ArrayList<Entry>();
+
+    Index(final Parser parser, final Project.NameKey project,
+        final List<AccountProjectWatch> own,
+        final List<AccountProjectWatch> wild) {
+      this.parser = parser;
+      this.own = own;
+      this.wild = wild;
+
+      final Map<String, Filter> filters = new HashMap<String, Filter>();
+      final Set<Account.Id> projectWatchers = new HashSet<Account.Id>();
+      int order = 0;
+      for (final AccountProjectWatch w : own) {
+        projectWatchers.add(w.getAccountId());
+        add(project, filters, new Entry(order++, w));
+      }
+      if (wild != own) {
+        for (final AccountProjectWatch w : wild) {
+          if (!projectWatchers.contains(w.getAccountId())) {
+            add(project, filters, new Entry(order++, w));
+          }
+        }
+      }
+    }
+
+    private void add(final Project.NameKey project,
+        final Map<String, Filter> filters, final Entry e) {
+      final String text = e.watch.getFilter();
+      if (text == null) {
+        any.add(e);
+        return;
+      }
+
+      Filter f = filters.get(text);
+      if (f == null) {
+        f = compile(parser, e.watch);
+        filters.put(text, f);
+      }
+
+      if (f == Filter.BROKEN || !f.matchesProject(project)) {
+        return;
+      } else if (f == Filter.PERSONAL) {
+        personal.add(e);
+      } else {
+        e.filter = f;
+        if (f.ref != null) {
+          list(byRef, f.ref).add(e);
+        } else if (f.topic != null) {
+          list(byTopic, f.topic).add(e);
+        } else {
+          any.add(e);
+        }
+      }
+    }
+
+    List<AccountProjectWatch> match(final ChangeData cd, final Change change)
+        throws OrmException {
+      final Map<Filter, Boolean> memo = new IdentityHashMap<Filter, Boolean>();
+      final Map<Account.Id, Boolean> visible =
+          new HashMap<Account.Id, Boolean>();
+      final List<Entry> matching = new ArrayList<Entry>();
+
+      match(cd, any, memo, visible, matching);
+      match(cd, byRef.get(change.getDest().get()), memo, visible, matching);
+      if (change.getTopic() != null) {
+        match(cd, byTopic.get(change.getTopic()), memo, visible, matching);
+      }
+      for (final Entry e : personal) {
+        if (matchPersonal(parser, cd, e.watch)) {
+          matching.add(e);
+        }
+      }
+
+      if (matching.isEmpty()) {
+        return Collections.emptyList();
+      }
+      Collections.sort(matching);
+      final List<AccountProjectWatch> r =
+          new ArrayList<AccountProjectWatch>(matching.size());
+      for (final Entry e : matching) {
+        r.add(e.watch);
+      }
+      return Collections.unmodifiableList(r);
+    }
+
+    private void match(final ChangeData cd, final List<Entry> entries,
+        final Map<Filter, Boolean> memo,
+        final Map<Account.Id, Boolean> visible, final List<Entry> matching)
+        throws OrmException {
+      if (entries == null) {
+        return;
+      }
+      for (final Entry e : entries) {
+        if (e.filter != null) {
+          Boolean m = memo.get(e.filter);
+          if (m == null) {
+            m = parser.rewrite(e.filter.predicate).match(cd);
+            memo.put(e.filter, m);
+          }
+          if (!m) {
+            continue;
+          }
+        }
+
+        final Account.Id id = e.watch.getAccountId();
+        Boolean v = visible.get(id);
+        if (v == null) {
+          v = parser.isVisible(id).match(cd);
+          visible.put(id, v);
+        }
+        if (v) {
+          matching.add(e);
+        }
+      }
+    }
+  }
+
+  /** Parse the watch's filter for its account, like a user query. */
+  private static Filter compile(final Parser parser,
+      final AccountProjectWatch w) {
+    final Predicate<ChangeData> p;
+    try {
+      p = parser.parse(w.getAccountId(), w.getFilter());
+    } catch (QueryParseException e) {
+      // Ignore broken filter expressions.
+      return Filter.BROKEN;
+    }
+    if (isPersonal(p)) {
+      return Filter.PERSONAL;
+    }
+
+    final Filter f = new Filter(p);
+    for (final Predicate<ChangeData> c : conjuncts(p)) {
+      if (!(c instanceof OperatorPredicate)) {
+        continue;
+      }
+      final String op = ((OperatorPredicate<ChangeData>) c).getOperator();
+      final String val = ((OperatorPredicate<ChangeData>) c).getValue();
+      if (val.startsWith("^")) {
+        continue;
+      } else if (ChangeQueryBuilder.FIELD_PROJECT.equals(op)) {
+        f.project = val;
+      } else if (ChangeQueryBuilder.FIELD_BRANCH.equals(op)) {
+        f.ref = Branch.R_HEADS + val;
+      } else if (ChangeQueryBuilder.FIELD_REF.equals(op)) {
+        f.ref = val;
+      } else if (ChangeQueryBuilder.FIELD_TOPIC.equals(op)) {
+        f.topic = val;
+      }
+    }
+    return f;
+  }
+
+  private static boolean matchPersonal(final Parser parser,
+      final ChangeData cd, final AccountProjectWatch w) throws OrmException {
+    final Account.Id who = w.getAccountId();
+    try {
+      Predicate<ChangeData> p = parser.parse(who, w.getFilter());
+      p = Predicate.and(p, parser.isVisible(who));
+      return parser.rewrite(p).match(cd);
+    } catch (QueryParseException e) {
+      return false;
+    }
+  }
+
+  /**
+   * @return true if the predicate depends on state of the user it was parsed
+   *         for, which the user may change without editing the watch.
+   */
+  private static boolean isPersonal(final Predicate<ChangeData> p) {
+    if (p instanceof OperatorPredicate) {
+      final String op = ((OperatorPredicate<ChangeData>) p).getOperator();
+      if (ChangeQueryBuilder.FIELD_STARREDBY.equals(op)
+          || ChangeQueryBuilder.FIELD_WATCHEDBY.equals(op)
+          || ChangeQueryBuilder.FIELD_VISIBLETO.equals(op)
+          || ChangeQueryBuilder.FIELD_DRAFTBY.equals(op)) {
+        return true;
+      }
+    }
+    for (final Predicate<ChangeData> c : p.getChildren()) {
+      if (isPersonal(c)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** @return predicates that must all match for {@code p} to match. */
+  private static List<Predicate<ChangeData>> conjuncts(
+      final Predicate<ChangeData> p) {
+    if (p instanceof AndPredicate) {
+      final List<Predicate<ChangeData>> r =
+          new ArrayList<Predicate<ChangeData>>();
+      for (final Predicate<ChangeData> c : p.getChildren()) {
+        r.addAll(conjuncts(c));
+      }
+      return r;
+    }
+    return Collections.singletonList(p);
+  }
+
+  private static <K, V> List<V> list(final Map<K, List<V>> map, final K key) {
+    List<V> l = map.get(key);
+    if (l == null) {
+      l = new ArrayList<V>();
+      map.put(key, l);
+    }
+    return l;
+  }
+
+  private static class Filter {
+    static final Filter BROKEN = new Filter(null);
+    static final Filter PERSONAL = new Filter(null);
+
+    /** Parsed filter, not yet rewritten. */
+    final Predicate<ChangeData> predicate;
+    String project;
+    String ref;
+    String topic;
+
+    Filter(final Predicate<ChangeData> predicate) {
+      this.predicate = predicate;
+    }
+
+    boolean matchesProject(final Project.NameKey p) {
+      return project == null || project.equals(p.get());
+    }
+  }
+
+  private static class Entry implements Comparable<Entry> {
+    final int order;
+    final AccountProjectWatch watch;
+    Filter filter;
+
+    Entry(final int order, final AccountProjectWatch watch) {
+      this.order = order;
+      this.watch = watch;
+    }
+
+    public int compareTo(final Entry o) {
+      return order - o.order;
+    }
+  }
+}
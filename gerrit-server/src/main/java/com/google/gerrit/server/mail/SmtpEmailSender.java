@@ -15,29 +15,31 @@
 package com.google.gerrit.server.mail;
 
 import com.google.gerrit.common.Version;
-import com.google.gerrit.server.config.ConfigUtil;
 import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
-import org.apache.commons.net.smtp.AuthSMTPClient;
-import org.apache.commons.net.smtp.SMTPClient;
-import org.apache.commons.net.smtp.SMTPReply;
 import org.eclipse.jgit.lib.Config;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.Writer;
+import java.io.StringWriter;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-/** Sends email via a nearby SMTP server. */
+/**
+ * Sends email via a nearby SMTP server.
+ * <p>
+ * Messages are formatted and placed in the {@link MailSpool}, which sends
+ * them in the background.
+ */
 @Singleton
 public class SmtpEmailSender implements EmailSender {
   public static enum Encryption {
@@ -45,47 +47,16 @@ public class SmtpEmailSender implements EmailSender {
   }
 
   private final boolean enabled;
+  private final MailSpool spool;
 
-  private String smtpHost;
-  private int smtpPort;
-  private String smtpUser;
-  private String smtpPass;
-  private Encryption smtpEncryption;
-  private boolean sslVerify;
   private Set<String> allowrcpt;
   private String importance;
   private int expiryDays;
 
   @Inject
-  SmtpEmailSender(@GerritServerConfig final Config cfg) {
+  SmtpEmailSender(@GerritServerConfig final Config cfg, final MailSpool spool) {
     enabled = cfg.getBoolean("sendemail", null, "enable", true);
-
-    smtpHost = cfg.getString("sendemail", null, "smtpserver");
-    if (smtpHost == null) {
-      smtpHost = "127.0.0.1";
-    }
-
-    smtpEncryption =
-        ConfigUtil.getEnum(cfg, "sendemail", null, "smtpencryption",
-            Encryption.NONE);
-    sslVerify = cfg.getBoolean("sendemail", null, "sslverify", true);
-
-    final int defaultPort;
-    switch (smtpEncryption) {
-      case SSL:
-        defaultPort = 465;
-        break;
-
-      case NONE:
-      case TLS:
-      default:
-        defaultPort = 25;
-        break;
-    }
-    smtpPort = cfg.getInt("sendemail", null, "smtpserverport", defaultPort);
-
-    smtpUser = cfg.getString("sendemail", null, "smtpuser");
-    smtpPass = cfg.getString("sendemail", null, "smtppass");
+    this.spool = spool;
 
     Set<String> rcpt = new HashSet<String>();
     for (String addr : cfg.getStringList("sendemail", null, "allowrcpt")) {
@@ -148,53 +119,27 @@ public class SmtpEmailSender implements EmailSender {
         new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss Z").format(expiry));
     }
 
+    final StringWriter w = new StringWriter();
     try {
-      final SMTPClient client = open();
-      try {
-        if (!client.setSender(from.email)) {
-          throw new EmailException("Server " + smtpHost
-              + " rejected from address " + from.email);
-        }
-
-        for (Address addr : rcpt) {
-          if (!client.addRecipient(addr.email)) {
-            String error = client.getReplyString();
-            throw new EmailException("Server " + smtpHost
-                + " rejected recipient " + addr + ": " + error);
-          }
-        }
-
-        Writer w = client.sendMessageData();
-        if (w == null) {
-          throw new EmailException("Server " + smtpHost + " rejected body");
-        }
-        w = new BufferedWriter(w);
-
-        for (Map.Entry<String, EmailHeader> h : hdrs.entrySet()) {
-          if (!h.getValue().isEmpty()) {
-            w.write(h.getKey());
-            w.write(": ");
-            h.getValue().write(w);
-            w.write("\r\n");
-          }
-        }
-
-        w.write("\r\n");
-        w.write(body);
-        w.flush();
-        w.close();
-
-        if (!client.completePendingCommand()) {
-          throw new EmailException("Server " + smtpHost + " rejected body");
+      for (Map.Entry<String, EmailHeader> h : hdrs.entrySet()) {
+        if (!h.getValue().isEmpty()) {
+          w.write(h.getKey());
+          w.write(": ");
+          h.getValue().write(w);
+          w.write("\r\n");
         }
-
-        client.logout();
-      } finally {
-        client.disconnect();
       }
     } catch (IOException e) {
-      throw new EmailException("Cannot send outgoing email", e);
+      throw new EmailException("Cannot format outgoing email", e);
     }
+    w.write("\r\n");
+    w.write(body);
+
+    final List<String> to = new ArrayList<String>(rcpt.size());
+    for (Address addr : rcpt) {
+      to.add(addr.email);
+    }
+    spool.add(new SpooledEmail(from.email, to, w.toString()));
   }
 
   private void setMissingHeader(final Map<String, EmailHeader> hdrs,
@@ -203,55 +148,4 @@ public class SmtpEmailSender implements EmailSender {
       hdrs.put(name, new EmailHeader.String(value));
     }
   }
-
-  private SMTPClient open() throws EmailException {
-    final AuthSMTPClient client = new AuthSMTPClient("UTF-8");
-
-    if (smtpEncryption == Encryption.SSL) {
-      client.enableSSL(sslVerify);
-    }
-
-    try {
-      client.connect(smtpHost, smtpPort);
-      if (!SMTPReply.isPositiveCompletion(client.getReplyCode())) {
-        throw new EmailException("SMTP server rejected connection");
-      }
-      if (!client.login()) {
-        String e = client.getReplyString();
-        throw new EmailException("SMTP server rejected login: " + e);
-      }
-
-      if (smtpEncryption == Encryption.TLS) {
-        if (!client.startTLS(smtpHost, smtpPort, sslVerify)) {
-          throw new EmailException("SMTP server does not support TLS");
-        }
-        if (!client.login()) {
-          String e = client.getReplyString();
-          throw new EmailException("SMTP server rejected login: " + e);
-        }
-      }
-
-      if (smtpUser != null && !client.auth(smtpUser, smtpPass)) {
-        String e = client.getReplyString();
-        throw new EmailException("SMTP server rejected auth: " + e);
-      }
-    } catch (IOException e) {
-      if (client.isConnected()) {
-        try {
-          client.disconnect();
-        } catch (IOException e2) {
-        }
-      }
-      throw new EmailException(e.getMessage(), e);
-    } catch (EmailException e) {
-      if (client.isConnected()) {
-        try {
-          client.disconnect();
-        } catch (IOException e2) {
-        }
-      }
-      throw e;
-    }
-    return client;
-  }
 }
@@ -0,0 +1,273 @@
+// Copyright (C) 2011 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.mail;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.gerrit.server.config.ConfigUtil;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.mail.SmtpEmailSender.Encryption;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import org.apache.commons.net.smtp.AuthSMTPClient;
+import org.apache.commons.net.smtp.SMTPClient;
+import org.apache.commons.net.smtp.SMTPReply;
+import org.eclipse.jgit.lib.Config;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Delivers spooled messages to the SMTP server, reusing connections.
+ * <p>
+ * After a message is sent its connection is reset and kept idle for
+ * {@code sendemail.connectionIdleTimeout}, so a burst of notifications
+ * pays for the TCP, TLS and AUTH handshakes only once per worker.
+ * <p>
+ * Failures the server describes as permanent are reported with
+ * {@link EmailException}; anything else, including a lost connection,
+ * with {@link IOException}, as it may succeed if tried again later.
+ */
+@Singleton
+class SmtpTransport {
+  private final String smtpHost;
+  private final int smtpPort;
+  private final String smtpUser;
+  private final String smtpPass;
+  private final Encryption smtpEncryption;
+  private final boolean sslVerify;
+  private final int maxIdle;
+  private final long idleTimeout;
+  private final MailStats stats;
+
+  private final LinkedList<Connection> idle = new LinkedList<Connection>();
+
+  @Inject
+  SmtpTransport(@GerritServerConfig final Config cfg, final MailStats stats) {
+    this.stats = stats;
+
+    String host = cfg.getString("sendemail", null, "smtpserver");
+    if (host == null) {
+      host = "127.0.0.1";
+    }
+    smtpHost = host;
+
+    smtpEncryption =
+        ConfigUtil.getEnum(cfg, "sendemail", null, "smtpencryption",
+            Encryption.NONE);
+    sslVerify = cfg.getBoolean("sendemail", null, "sslverify", true);
+
+    final int defaultPort;
+    switch (smtpEncryption) {
+      case SSL:
+        defaultPort = 465;
+        break;
+
+      case NONE:
+      case TLS:
+      default:
+        defaultPort = 25;
+        break;
+    }
+    smtpPort = cfg.getInt("sendemail", null, "smtpserverport", defaultPort);
+
+    smtpUser = cfg.getString("sendemail", null, "smtpuser");
+    smtpPass = cfg.getString("sendemail", null, "smtppass");
+
+    maxIdle = Math.max(0, cfg.getInt("sendemail", null, "connectionPoolSize",
+        MailSpool.getThreadPoolSize(cfg)));
+    idleTimeout = ConfigUtil.getTimeUnit(cfg, "sendemail", null,
+        "connectionIdleTimeout", MILLISECONDS.convert(30, SECONDS),
+        MILLISECONDS);
+  }
+
+  void deliver(final SpooledEmail msg) throws EmailException, IOException {
+    final SMTPClient client = borrow();
+    boolean reusable = false;
+    try {
+      if (!client.setSender(msg.getFrom())) {
+        reject(client, "from address " + msg.getFrom());
+      }
+
+      for (final String addr : msg.getRecipients()) {
+        if (!client.addRecipient(addr)) {
+          reject(client, "recipient " + addr);
+        }
+      }
+
+      final Writer w = client.sendMessageData();
+      if (w == null) {
+        reject(client, "body");
+      }
+      w.write(msg.getMessage());
+      w.flush();
+      w.close();
+
+      if (!client.completePendingCommand()) {
+        reject(client, "body");
+      }
+      reusable = true;
+    } finally {
+      if (reusable) {
+        release(client);
+      } else {
+        discard(client);
+      }
+    }
+  }
+
+  /** Close all idle connections. */
+  void close() {
+    final List<Connection> toClose;
+    synchronized (idle) {
+      toClose = new ArrayList<Connection>(idle);
+      idle.clear();
+    }
+    for (final Connection c : toClose) {
+      logout(c.client);
+    }
+  }
+
+  private SMTPClient borrow() throws EmailException, IOException {
+    for (;;) {
+      final Connection c;
+      synchronized (idle) {
+        c = idle.poll();
+      }
+      if (c == null) {
+        break;
+      }
+
+      if (System.currentTimeMillis() - c.since > idleTimeout) {
+        logout(c.client);
+        continue;
+      }
+      try {
+        if (c.client.sendNoOp()) {
+          stats.connectionReused();
+          return c.client;
+        }
+      } catch (IOException e) {
+        // The server has dropped the connection, open another.
+      }
+      discard(c.client);
+    }
+
+    final SMTPClient client = open();
+    stats.connectionOpened();
+    return client;
+  }
+
+  private void release(final SMTPClient client) {
+    try {
+      if (client.reset()) {
+        synchronized (idle) {
+          if (idle.size() < maxIdle) {
+            idle.addFirst(new Connection(client));
+            return;
+          }
+        }
+      }
+    } catch (IOException e) {
+      discard(client);
+      return;
+    }
+    logout(client);
+  }
+
+  private static void logout(final SMTPClient client) {
+    try {
+      client.logout();
+    } catch (IOException e) {
+      // Ignore it, we are disconnecting anyway.
+    }
+    discard(client);
+  }
+
+  private static void discard(final SMTPClient client) {
+    if (client.isConnected()) {
+      try {
+        client.disconnect();
+      } catch (IOException e) {
+      }
+    }
+  }
+
+  private void reject(final SMTPClient client, final String what)
+      throws EmailException, IOException {
+    final String msg = "Server " + smtpHost + " rejected " + what + ": "
+        + client.getReplyString();
+    if (SMTPReply.isNegativePermanent(client.getReplyCode())) {
+      throw new EmailException(msg);
+    }
+    throw new IOException(msg);
+  }
+
+  private SMTPClient open() throws EmailException, IOException {
+    final AuthSMTPClient client = new AuthSMTPClient("UTF-8");
+
+    if (smtpEncryption == Encryption.SSL) {
+      client.enableSSL(sslVerify);
+    }
+
+    try {
+      client.connect(smtpHost, smtpPort);
+      if (!SMTPReply.isPositiveCompletion(client.getReplyCode())) {
+        throw new IOException("SMTP server rejected connection");
+      }
+      if (!client.login()) {
+        String e = client.getReplyString();
+        throw new EmailException("SMTP server rejected login: " + e);
+      }
+
+      if (smtpEncryption == Encryption.TLS) {
+        if (!client.startTLS(smtpHost, smtpPort, sslVerify)) {
+          throw new EmailException("SMTP server does not support TLS");
+        }
+        if (!client.login()) {
+          String e = client.getReplyString();
+          throw new EmailException("SMTP server rejected login: " + e);
+        }
+      }
+
+      if (smtpUser != null && !client.auth(smtpUser, smtpPass)) {
+        String e = client.getReplyString();
+        throw new EmailException("SMTP server rejected auth: " + e);
+      }
+    } catch (IOException e) {
+      discard(client);
+      throw e;
+    } catch (EmailException e) {
+      discard(client);
+      throw e;
+    }
+    return client;
+  }
+
+  private static class Connection {
+    final SMTPClient client;
+    final long since;
+
+    Connection(final SMTPClient client) {
+      this.client = client;
+      this.since = System.currentTimeMillis();
+    }
+  }
+}
@@ -0,0 +1,92 @@
+// Copyright (C) 2011 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.mail;
+
+import static com.google.gerrit.server.ioutil.BasicSerialization.readString;
+import static com.google.gerrit.server.ioutil.BasicSerialization.readVarInt32;
+import static com.google.gerrit.server.ioutil.BasicSerialization.writeString;
+import static com.google.gerrit.server.ioutil.BasicSerialization.writeVarInt32;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/** A fully formatted message waiting in the {@link MailSpool}. */
+class SpooledEmail {
+  private static final int VERSION = 1;
+
+  static SpooledEmail readFrom(final InputStream in) throws IOException {
+    final int version = readVarInt32(in);
+    if (version != VERSION) {
+      throw new IOException("Unsupported spool format " + version);
+    }
+
+    final String from = readString(in);
+    final int n = readVarInt32(in);
+    final List<String> rcpt = new ArrayList<String>(n);
+    for (int i = 0; i < n; i++) {
+      rcpt.add(readString(in));
+    }
+    final String message = readString(in);
+    return new SpooledEmail(from, rcpt, message);
+  }
+
+  private final String from;
+  private final List<String> rcpt;
+  private final String message;
+
+  /**
+   * @param from envelope sender.
+   * @param rcpt envelope recipients.
+   * @param message headers and body of the message, as sent to the server.
+   */
+  SpooledEmail(final String from, final List<String> rcpt,
+      final String message) {
+    this.from = from;
+    this.rcpt = Collections.unmodifiableList(rcpt);
+    this.message = message;
+  }
+
+  String getFrom() {
+    return from;
+  }
+
+  List<String> getRecipients() {
+    return rcpt;
+  }
+
+  String getMessage() {
+    return message;
+  }
+
+  void writeTo(final OutputStream out) throws IOException {
+    writeVarInt32(out, VERSION);
+    writeString(out, from);
+    writeVarInt32(out, rcpt.size());
+    for (final String r : rcpt) {
+      writeString(out, r);
+    }
+    writeString(out, message);
+  }
+
+  @Override
+  public String toString() {
+    return "send email from " + from + " to " + rcpt.size()
+        + (rcpt.size() == 1 ? " recipient" : " recipients");
+  }
+}
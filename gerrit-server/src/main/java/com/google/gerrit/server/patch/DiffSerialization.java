@@ -0,0 +1,233 @@
+// Copyright (C) 2011 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.patch;
+
+import static com.google.gerrit.server.ioutil.BasicSerialization.readBytes;
+import static com.google.gerrit.server.ioutil.BasicSerialization.readString;
+import static com.google.gerrit.server.ioutil.BasicSerialization.readVarInt32;
+import static com.google.gerrit.server.ioutil.BasicSerialization.writeBytes;
+import static com.google.gerrit.server.ioutil.BasicSerialization.writeString;
+import static com.google.gerrit.server.ioutil.BasicSerialization.writeVarInt32;
+
+import org.eclipse.jgit.diff.Edit;
+import org.eclipse.jgit.lib.Constants;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encoding helpers shared by the {@code diff} and {@code diff_intraline}
+ * cache entries.
+ * <p>
+ * Edits are stored as deltas from the end of the previous edit, so most
+ * values fit in a single varint byte. Names are front coded against the
+ * previous name written, which suits the sorted file list of a
+ * {@link PatchList}. Blocks can be deflated with a preset dictionary of
+ * the text git puts in every file header.
+ */
+final class DiffSerialization {
+  /** Format version written ahead of every compressible block. */
+  private static final int VERSION = 1;
+
+  /** Flag set in the format byte if the block is deflated. */
+  private static final int DEFLATED = 0x80;
+
+  /** Blocks smaller than this are never worth compressing. */
+  private static final int MIN_DEFLATE = 64;
+
+  private static final byte[] DICTIONARY = Constants.encode("" //
+      + "diff --cc \n" //
+      + "similarity index 100%\n" //
+      + "rename from \nrename to \n" //
+      + "copy from \ncopy to \n" //
+      + "old mode 100644\nnew mode 100755\n" //
+      + "deleted file mode 100644\n" //
+      + "new file mode 100644\n" //
+      + "Binary files a/ and b/ differ\n" //
+      + "--- /dev/null\n+++ /dev/null\n" //
+      + "--- a/\n+++ b/\n" //
+      + "index 0000000..\n" //
+      + "diff --git a/ b/\n");
+
+  static void writeEdits(final OutputStream out, final List<Edit> edits)
+      throws IOException {
+    writeVarInt32(out, edits.size());
+    int a = 0;
+    int b = 0;
+    for (final Edit e : edits) {
+      writeVarInt32(out, e.getBeginA() - a);
+      writeVarInt32(out, e.getEndA() - e.getBeginA());
+      writeVarInt32(out, e.getBeginB() - b);
+      writeVarInt32(out, e.getEndB() - e.getBeginB());
+      a = e.getEndA();
+      b = e.getEndB();
+    }
+  }
+
+  static Edit[] readEdits(final InputStream in) throws IOException {
+    final Edit[] edits = new Edit[readVarInt32(in)];
+    int a = 0;
+    int b = 0;
+    for (int i = 0; i < edits.length; i++) {
+      final int beginA = a + readVarInt32(in);
+      final int endA = beginA + readVarInt32(in);
+      final int beginB = b + readVarInt32(in);
+      final int endB = beginB + readVarInt32(in);
+      edits[i] = new Edit(beginA, endA, beginB, endB);
+      a = endA;
+      b = endB;
+    }
+    return edits;
+  }
+
+  static List<Edit> toList(final Edit[] l) {
+    return Collections.unmodifiableList(Arrays.asList(l));
+  }
+
+  /**
+   * Write a name sharing its leading characters with {@code prior}.
+   *
+   * @param out stream to write to.
+   * @param name the name to write; may be null.
+   * @param prior name written just before, or null if there is none.
+   */
+  static void writeName(final OutputStream out, final String name,
+      final String prior) throws IOException {
+    if (name == null) {
+      writeVarInt32(out, 0);
+      return;
+    }
+
+    int common = 0;
+    if (prior != null) {
+      final int max = Math.min(name.length(), prior.length());
+      while (common < max && name.charAt(common) == prior.charAt(common)) {
+        common++;
+      }
+    }
+    writeVarInt32(out, common + 1);
+    writeString(out, name.substring(common));
+  }
+
+  static String readName(final InputStream in, final String prior)
+      throws IOException {
+    final int n = readVarInt32(in);
+    if (n == 0) {
+      return null;
+    }
+
+    final int common = n - 1;
+    final String suffix = readString(in);
+    if (common == 0) {
+      return suffix != null ? suffix : "";
+    }
+    if (prior == null || prior.length() < common) {
+      throw new IOException("Invalid name prefix " + common);
+    }
+    final String prefix = prior.substring(0, common);
+    return suffix != null ? prefix + suffix : prefix;
+  }
+
+  /** Write a block, deflating it if that makes it smaller. */
+  static void writeBlock(final OutputStream out, final byte[] raw)
+      throws IOException {
+    if (MIN_DEFLATE <= raw.length) {
+      final byte[] z = deflate(raw);
+      if (z.length < raw.length) {
+        out.write(VERSION | DEFLATED);
+        writeVarInt32(out, raw.length);
+        writeBytes(out, z);
+        return;
+      }
+    }
+    out.write(VERSION);
+    writeBytes(out, raw);
+  }
+
+  static byte[] readBlock(final InputStream in) throws IOException {
+    final int fmt = in.read();
+    if (fmt < 0) {
+      throw new EOFException();
+    }
+    if ((fmt & ~DEFLATED) != VERSION) {
+      throw new IOException("Unsupported diff format " + fmt);
+    }
+    if ((fmt & DEFLATED) == 0) {
+      return readBytes(in);
+    }
+    final int len = readVarInt32(in);
+    return inflate(readBytes(in), len);
+  }
+
+  private static byte[] deflate(final byte[] raw) {
+    final Deflater def = new Deflater(Deflater.BEST_SPEED);
+    try {
+      def.setDictionary(DICTIONARY);
+      def.setInput(raw);
+      def.finish();
+
+      final ByteArrayOutputStream out =
+          new ByteArrayOutputStream(raw.length / 2);
+      final byte[] tmp = new byte[Math.min(raw.length, 8192)];
+      while (!def.finished()) {
+        final int n = def.deflate(tmp);
+        out.write(tmp, 0, n);
+      }
+      return out.toByteArray();
+    } finally {
+      def.end();
+    }
+  }
+
+  private static byte[] inflate(final byte[] z, final int len)
+      throws IOException {
+    final Inflater inf = new Inflater();
+    try {
+      inf.setInput(z);
+      final byte[] raw = new byte[len];
+      int pos = 0;
+      while (pos < len) {
+        final int n = inf.inflate(raw, pos, len - pos);
+        if (n == 0) {
+          if (inf.needsDictionary()) {
+            inf.setDictionary(DICTIONARY);
+          } else if (inf.finished() || inf.needsInput()) {
+            throw new EOFException();
+          }
+        }
+        pos += n;
+      }
+      return raw;
+    } catch (DataFormatException e) {
+      final IOException err = new IOException("Corrupt diff entry");
+      err.initCause(e);
+      throw err;
+    } finally {
+      inf.end();
+    }
+  }
+
+  private DiffSerialization() {
+  }
+}
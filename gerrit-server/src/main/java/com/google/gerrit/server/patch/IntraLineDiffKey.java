@@ -29,7 +29,7 @@ import java.io.Serializable;
 import java.util.List;
 
 public class IntraLineDiffKey implements Serializable {
-  static final long serialVersionUID = 3L;
+  static final long serialVersionUID = 4L;
 
   private transient ObjectId aId;
   private transient ObjectId bId;
@@ -18,7 +18,9 @@ package com.google.gerrit.server.patch;
 import com.google.gerrit.server.cache.EntryCreator;
 import com.google.gerrit.server.config.ConfigUtil;
 import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.git.WorkQueue;
 import com.google.inject.Inject;
+import com.google.inject.Singleton;
 
 import org.eclipse.jgit.diff.Edit;
 import org.eclipse.jgit.diff.MyersDiff;
@@ -29,12 +31,26 @@ import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 
+/**
+ * Computes intraline differences on a fixed pool of worker threads.
+ * <p>
+ * At most {@code maxIdleWorkers} differences are computed at once, and at
+ * most {@code maxWaiting} further requests may wait for a worker. Requests
+ * beyond that are refused without being cached, so they will be retried on
+ * a later view of the file. A computation running past the timeout is
+ * interrupted, and the difference loop notices and stops at its next check.
+ */
+@Singleton
 class IntraLineLoader extends EntryCreator<IntraLineDiffKey, IntraLineDiff> {
   private static final Logger log = LoggerFactory
       .getLogger(IntraLineLoader.class);
@@ -45,15 +61,24 @@ class IntraLineLoader extends EntryCreator<IntraLineDiffKey, IntraLineDiff> {
   private static final Pattern CONTROL_BLOCK_START_RE = Pattern
       .compile("[{:][ \\t]*$");
 
-  private final BlockingQueue<Worker> workerPool;
+  private final WorkQueue.Executor workers;
+  private final Semaphore admission;
+  private final IntraLineStats stats;
   private final long timeoutMillis;
 
   @Inject
-  IntraLineLoader(final @GerritServerConfig Config cfg) {
-    final int workers =
+  IntraLineLoader(final @GerritServerConfig Config cfg,
+      final WorkQueue workQueue, final IntraLineStats stats) {
+    final int threads = Math.max(1, //
         cfg.getInt("cache", PatchListCacheImpl.INTRA_NAME, "maxIdleWorkers",
-            Runtime.getRuntime().availableProcessors() * 3 / 2);
-    workerPool = new ArrayBlockingQueue<Worker>(workers, true /* fair */);
+            Runtime.getRuntime().availableProcessors() * 3 / 2));
+    final int waiting = Math.max(0, //
+        cfg.getInt("cache", PatchListCacheImpl.INTRA_NAME, "maxWaiting",
+            threads * 4));
+    workers = workQueue.createQueue(threads, "IntraLineDiff");
+    admission = new Semaphore(threads + waiting);
+    this.stats = stats;
+    stats.setThreads(threads);
 
     timeoutMillis =
         ConfigUtil.getTimeUnit(cfg, "cache", PatchListCacheImpl.INTRA_NAME,
@@ -63,154 +88,155 @@ class IntraLineLoader extends EntryCreator<IntraLineDiffKey, IntraLineDiff> {
 
   @Override
   public IntraLineDiff createEntry(IntraLineDiffKey key) throws Exception {
-    Worker w = workerPool.poll();
-    if (w == null) {
-      w = new Worker();
+    if (!admission.tryAcquire()) {
+      stats.rejected();
+      throw new RejectedExecutionException("Too many intraline differences"
+          + " waiting, not computing " + key.getPath());
     }
 
-    Worker.Result r = w.computeWithTimeout(key, timeoutMillis);
-
-    if (r == Worker.Result.TIMEOUT) {
-      // Don't keep this thread. We have to murder it unsafely, which
-      // means its unable to be reused in the future. Return back a
-      // null result, indicating the cache cannot load this key.
-      //
-      return new IntraLineDiff(IntraLineDiff.Status.TIMEOUT);
+    final Job job = new Job(key);
+    final long deadline = job.created
+        + TimeUnit.NANOSECONDS.convert(timeoutMillis, TimeUnit.MILLISECONDS);
+    final Future<?> task;
+    stats.enqueued();
+    try {
+      task = workers.submit(job);
+    } catch (RejectedExecutionException e) {
+      job.abandon();
+      throw e;
     }
 
-    if (!workerPool.offer(w)) {
-      // If the idle worker pool is full, terminate this thread.
+    try {
+      if (!job.awaitStart(timeoutMillis) && job.abandon()) {
+        // No worker became free in time. Don't cache anything, the
+        // file may well be computed quickly on a later request.
+        //
+        task.cancel(false);
+        stats.rejected();
+        throw new RejectedExecutionException("No intraline difference worker"
+            + " available within " + timeoutMillis + " ms for "
+            + key.getPath());
+      }
+
+      // The time spent waiting for a worker counts against the timeout,
+      // so a caller never waits much longer than timeoutMillis.
       //
-      w.end();
+      task.get(Math.max(0, deadline - System.nanoTime()),
+          TimeUnit.NANOSECONDS);
+    } catch (TimeoutException e) {
+      task.cancel(true);
+      if (System.nanoTime() - job.startedAt < job.startedAt - job.created) {
+        // The job only started near the end of the wait, so it may well
+        // finish in time on a later request. Don't cache anything.
+        //
+        stats.rejected();
+        throw new RejectedExecutionException("No intraline difference worker"
+            + " available within " + timeoutMillis + " ms for "
+            + key.getPath());
+      }
+      log.warn(timeoutMillis + " ms timeout reached for IntraLineDiff"
+          + " in project " + key.getProject().get() //
+          + " on commit " + key.getCommit().name() //
+          + " for path " + key.getPath() //
+          + " comparing " + key.getBlobA().name() //
+          + ".." + key.getBlobB().name());
+      stats.timeout();
+      return new IntraLineDiff(IntraLineDiff.Status.TIMEOUT);
+    } catch (InterruptedException e) {
+      task.cancel(true);
+      job.abandon();
+      throw e;
     }
 
-    if (r.error != null) {
+    if (job.error != null) {
       // If there was an error computing the result, carry it
       // up to the caller so the cache knows this key is invalid.
       //
-      throw r.error;
+      throw job.error;
     }
 
-    return r.diff;
+    return job.diff;
   }
 
-  private static class Worker {
-    private static final AtomicInteger count = new AtomicInteger(1);
-
-    private final ArrayBlockingQueue<Input> input;
-    private final ArrayBlockingQueue<Result> result;
-    private final Thread thread;
-
-    Worker() {
-      input = new ArrayBlockingQueue<Input>(1);
-      result = new ArrayBlockingQueue<Result>(1);
-
-      thread = new Thread(new Runnable() {
-        public void run() {
-          workerLoop();
-        }
-      });
-      thread.setName("IntraLineDiff-" + count.getAndIncrement());
-      thread.setDaemon(true);
-      thread.start();
+  private class Job implements Runnable {
+    private final IntraLineDiffKey key;
+    private final long created;
+    private final CountDownLatch started;
+    private final AtomicBoolean claimed;
+
+    volatile long startedAt;
+    volatile IntraLineDiff diff;
+    volatile Exception error;
+
+    Job(final IntraLineDiffKey key) {
+      this.key = key;
+      this.created = System.nanoTime();
+      this.started = new CountDownLatch(1);
+      this.claimed = new AtomicBoolean();
     }
 
-    Result computeWithTimeout(IntraLineDiffKey key, long timeoutMillis)
-        throws Exception {
-      if (!input.offer(new Input(key))) {
-        log.error("Cannot enqueue task to thread " + thread.getName());
-        return null;
-      }
-
-      Result r = result.poll(timeoutMillis, TimeUnit.MILLISECONDS);
-      if (r != null) {
-        return r;
-      } else {
-        log.warn(timeoutMillis + " ms timeout reached for IntraLineDiff"
-            + " in project " + key.getProject().get() //
-            + " on commit " + key.getCommit().name() //
-            + " for path " + key.getPath() //
-            + " comparing " + key.getBlobA().name() //
-            + ".." + key.getBlobB().name() //
-            + ".  Killing " + thread.getName());
-        forcefullyKillThreadInAnUglyWay();
-        return Result.TIMEOUT;
-      }
+    boolean awaitStart(final long timeoutMillis) throws InterruptedException {
+      return started.await(timeoutMillis, TimeUnit.MILLISECONDS);
     }
 
-    @SuppressWarnings("deprecation")
-    private void forcefullyKillThreadInAnUglyWay() {
-      try {
-        thread.stop();
-      } catch (Throwable error) {
-        // Ignore any reason the thread won't stop.
-        log.error("Cannot stop runaway thread " + thread.getName(), error);
+    /** @return true if the job never started, and now never will. */
+    boolean abandon() {
+      if (claimed.compareAndSet(false, true)) {
+        stats.dequeuedUnstarted();
+        admission.release();
+        return true;
       }
+      return false;
     }
 
-    void end() {
-      if (!input.offer(Input.END_THREAD)) {
-        log.error("Cannot gracefully stop thread " + thread.getName());
+    public void run() {
+      if (!claimed.compareAndSet(false, true)) {
+        return;
       }
-    }
 
-    private void workerLoop() {
+      final long start = System.nanoTime();
+      startedAt = start;
+      stats.started(start - created);
+      started.countDown();
       try {
-        for (;;) {
-          Input in;
-          try {
-            in = input.take();
-          } catch (InterruptedException e) {
-            log.error("Unexpected interrupt on " + thread.getName());
-            continue;
-          }
-
-          if (in == Input.END_THREAD) {
-            return;
-          }
-
-          Result r;
-          try {
-            r = new Result(IntraLineLoader.compute(in.key));
-          } catch (Exception error) {
-            r = new Result(error);
-          }
-
-          if (!result.offer(r)) {
-            log.error("Cannot return result from " + thread.getName());
-          }
-        }
-      } catch (ThreadDeath iHaveBeenShot) {
-        // Handle thread death by gracefully returning to the caller,
-        // allowing the thread to be destroyed.
+        diff = compute(key);
+        stats.computed(System.nanoTime() - start);
+      } catch (CancellationException e) {
+        // The caller gave up waiting, nobody will look at the result.
+      } catch (Exception e) {
+        error = e;
+        stats.failed();
+      } finally {
+        admission.release();
       }
     }
 
-    private static class Input {
-      static final Input END_THREAD = new Input(null);
-
-      final IntraLineDiffKey key;
-
-      Input(IntraLineDiffKey key) {
-        this.key = key;
-      }
+    @Override
+    public String toString() {
+      return "intraline difference " + key.getProject().get() + " "
+          + key.getPath();
     }
+  }
 
-    static class Result {
-      static final Result TIMEOUT = new Result((IntraLineDiff) null);
-
-      final IntraLineDiff diff;
-      final Exception error;
-
-      Result(IntraLineDiff diff) {
-        this.diff = diff;
-        this.error = null;
+  /**
+   * Compares characters, stopping the computation once the worker thread
+   * has been interrupted because the caller stopped waiting for it.
+   */
+  private static class CancellableComparator extends CharTextComparator {
+    private int calls;
+
+    @Override
+    public boolean equals(CharText a, int ai, CharText b, int bi) {
+      if ((++calls & 0xfff) == 0) {
+        checkCancelled();
       }
+      return super.equals(a, ai, b, bi);
+    }
+  }
 
-      Result(Exception error) {
-        this.diff = null;
-        this.error = error;
-      }
+  private static void checkCancelled() {
+    if (Thread.interrupted()) {
+      throw new CancellationException();
     }
   }
 
@@ -221,12 +247,13 @@ class IntraLineLoader extends EntryCreator<IntraLineDiffKey, IntraLineDiff> {
     combineLineEdits(edits, aContent, bContent);
 
     for (int i = 0; i < edits.size(); i++) {
+      checkCancelled();
       Edit e = edits.get(i);
 
       if (e.getType() == Edit.Type.REPLACE) {
         CharText a = new CharText(aContent, e.getBeginA(), e.getEndA());
         CharText b = new CharText(bContent, e.getBeginB(), e.getEndB());
-        CharTextComparator cmp = new CharTextComparator();
+        CharTextComparator cmp = new CancellableComparator();
 
         List<Edit> wordEdits = MyersDiff.INSTANCE.diff(cmp, a, b);
 
@@ -0,0 +1,122 @@
+// Copyright (C) 2011 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.patch;
+
+import com.google.inject.Singleton;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Counters describing the intraline difference worker pool. */
+@Singleton
+public class IntraLineStats {
+  private final AtomicInteger threads = new AtomicInteger();
+  private final AtomicInteger waiting = new AtomicInteger();
+  private final AtomicLong computed = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong timeouts = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong waitNanos = new AtomicLong();
+  private final AtomicLong maxWaitNanos = new AtomicLong();
+  private final AtomicLong computeNanos = new AtomicLong();
+
+  void setThreads(final int n) {
+    threads.set(n);
+  }
+
+  void enqueued() {
+    waiting.incrementAndGet();
+  }
+
+  void started(final long waitedNanos) {
+    waiting.decrementAndGet();
+    waitNanos.addAndGet(waitedNanos);
+    for (;;) {
+      final long max = maxWaitNanos.get();
+      if (waitedNanos <= max
+          || maxWaitNanos.compareAndSet(max, waitedNanos)) {
+        break;
+      }
+    }
+  }
+
+  void dequeuedUnstarted() {
+    waiting.decrementAndGet();
+  }
+
+  void computed(final long nanos) {
+    computed.incrementAndGet();
+    computeNanos.addAndGet(nanos);
+  }
+
+  void failed() {
+    failed.incrementAndGet();
+  }
+
+  void timeout() {
+    timeouts.incrementAndGet();
+  }
+
+  void rejected() {
+    rejected.incrementAndGet();
+  }
+
+  /** @return number of worker threads computing differences. */
+  public int getThreads() {
+    return threads.get();
+  }
+
+  /** @return number of requests waiting for a worker thread. */
+  public int getWaiting() {
+    return waiting.get();
+  }
+
+  /** @return number of differences computed successfully. */
+  public long getComputed() {
+    return computed.get();
+  }
+
+  /** @return number of computations that failed with an error. */
+  public long getFailed() {
+    return failed.get();
+  }
+
+  /** @return number of computations abandoned after the timeout. */
+  public long getTimeouts() {
+    return timeouts.get();
+  }
+
+  /** @return number of requests refused because the queue was full. */
+  public long getRejected() {
+    return rejected.get();
+  }
+
+  /** @return average milliseconds a request waited for a worker. */
+  public double getAverageWaitMillis() {
+    final long n = computed.get() + failed.get() + timeouts.get();
+    return n > 0 ? waitNanos.get() / (n * 1e6) : 0;
+  }
+
+  /** @return longest milliseconds a request waited for a worker. */
+  public double getMaxWaitMillis() {
+    return maxWaitNanos.get() / 1e6;
+  }
+
+  /** @return average milliseconds spent computing one difference. */
+  public double getAverageComputeMillis() {
+    final long n = computed.get();
+    return n > 0 ? computeNanos.get() / (n * 1e6) : 0;
+  }
+}
@@ -15,10 +15,10 @@
 package com.google.gerrit.server.patch;
 
 
-import static com.google.gerrit.server.ioutil.BasicSerialization.readBytes;
 import static com.google.gerrit.server.ioutil.BasicSerialization.readVarInt32;
-import static com.google.gerrit.server.ioutil.BasicSerialization.writeBytes;
 import static com.google.gerrit.server.ioutil.BasicSerialization.writeVarInt32;
+import static com.google.gerrit.server.patch.DiffSerialization.readBlock;
+import static com.google.gerrit.server.patch.DiffSerialization.writeBlock;
 import static org.eclipse.jgit.lib.ObjectIdSerialization.readCanBeNull;
 import static org.eclipse.jgit.lib.ObjectIdSerialization.readNotNull;
 import static org.eclipse.jgit.lib.ObjectIdSerialization.writeCanBeNull;
@@ -41,8 +41,6 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
-import java.util.zip.DeflaterOutputStream;
-import java.util.zip.InflaterInputStream;
 
 import javax.annotation.Nullable;
 
@@ -158,41 +156,35 @@ public class PatchList implements Serializable {
   }
 
   private void writeObject(final ObjectOutputStream output) throws IOException {
-    final ByteArrayOutputStream buf = new ByteArrayOutputStream();
-    final DeflaterOutputStream out = new DeflaterOutputStream(buf);
-    try {
-      writeCanBeNull(out, oldId);
-      writeNotNull(out, newId);
-      writeVarInt32(out, againstParent ? 1 : 0);
-      writeVarInt32(out, insertions);
-      writeVarInt32(out, deletions);
-      writeVarInt32(out, patches.length);
-      for (PatchListEntry p : patches) {
-        p.writeTo(out);
-      }
-    } finally {
-      out.close();
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writeCanBeNull(out, oldId);
+    writeNotNull(out, newId);
+    writeVarInt32(out, againstParent ? 1 : 0);
+    writeVarInt32(out, insertions);
+    writeVarInt32(out, deletions);
+    writeVarInt32(out, patches.length);
+    String prior = null;
+    for (PatchListEntry p : patches) {
+      p.writeTo(out, prior);
+      prior = p.getNewName();
     }
-    writeBytes(output, buf.toByteArray());
+    writeBlock(output, out.toByteArray());
   }
 
   private void readObject(final ObjectInputStream input) throws IOException {
-    final ByteArrayInputStream buf = new ByteArrayInputStream(readBytes(input));
-    final InflaterInputStream in = new InflaterInputStream(buf);
-    try {
-      oldId = readCanBeNull(in);
-      newId = readNotNull(in);
-      againstParent = readVarInt32(in) != 0;
-      insertions = readVarInt32(in);
-      deletions = readVarInt32(in);
-      final int cnt = readVarInt32(in);
-      final PatchListEntry[] all = new PatchListEntry[cnt];
-      for (int i = 0; i < all.length; i++) {
-        all[i] = PatchListEntry.readFrom(in);
-      }
-      patches = all;
-    } finally {
-      in.close();
+    final ByteArrayInputStream in = new ByteArrayInputStream(readBlock(input));
+    oldId = readCanBeNull(in);
+    newId = readNotNull(in);
+    againstParent = readVarInt32(in) != 0;
+    insertions = readVarInt32(in);
+    deletions = readVarInt32(in);
+    final int cnt = readVarInt32(in);
+    final PatchListEntry[] all = new PatchListEntry[cnt];
+    String prior = null;
+    for (int i = 0; i < all.length; i++) {
+      all[i] = PatchListEntry.readFrom(in, prior);
+      prior = all[i].getNewName();
     }
+    patches = all;
   }
 }
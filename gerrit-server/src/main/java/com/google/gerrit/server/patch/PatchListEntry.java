@@ -16,12 +16,15 @@ package com.google.gerrit.server.patch;
 
 import static com.google.gerrit.server.ioutil.BasicSerialization.readBytes;
 import static com.google.gerrit.server.ioutil.BasicSerialization.readEnum;
-import static com.google.gerrit.server.ioutil.BasicSerialization.readString;
 import static com.google.gerrit.server.ioutil.BasicSerialization.readVarInt32;
 import static com.google.gerrit.server.ioutil.BasicSerialization.writeBytes;
 import static com.google.gerrit.server.ioutil.BasicSerialization.writeEnum;
-import static com.google.gerrit.server.ioutil.BasicSerialization.writeString;
 import static com.google.gerrit.server.ioutil.BasicSerialization.writeVarInt32;
+import static com.google.gerrit.server.patch.DiffSerialization.readEdits;
+import static com.google.gerrit.server.patch.DiffSerialization.readName;
+import static com.google.gerrit.server.patch.DiffSerialization.toList;
+import static com.google.gerrit.server.patch.DiffSerialization.writeEdits;
+import static com.google.gerrit.server.patch.DiffSerialization.writeName;
 
 import com.google.gerrit.reviewdb.Patch;
 import com.google.gerrit.reviewdb.PatchSet;
@@ -40,7 +43,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -171,51 +173,39 @@ public class PatchListEntry {
     return p;
   }
 
-  void writeTo(final OutputStream out) throws IOException {
+  /**
+   * Write this entry.
+   *
+   * @param out stream to write to.
+   * @param prior name of the entry written just before this one, or null.
+   *        The new name shares its leading characters with it.
+   */
+  void writeTo(final OutputStream out, final String prior) throws IOException {
     writeEnum(out, changeType);
     writeEnum(out, patchType);
-    writeString(out, oldName);
-    writeString(out, newName);
+    writeName(out, newName, prior);
+    writeName(out, oldName, newName);
     writeBytes(out, header);
     writeVarInt32(out, insertions);
     writeVarInt32(out, deletions);
-
-    writeVarInt32(out, edits.size());
-    for (final Edit e : edits) {
-      writeVarInt32(out, e.getBeginA());
-      writeVarInt32(out, e.getEndA());
-      writeVarInt32(out, e.getBeginB());
-      writeVarInt32(out, e.getEndB());
-    }
+    writeEdits(out, edits);
   }
 
-  static PatchListEntry readFrom(final InputStream in) throws IOException {
+  static PatchListEntry readFrom(final InputStream in, final String prior)
+      throws IOException {
     final ChangeType changeType = readEnum(in, ChangeType.values());
     final PatchType patchType = readEnum(in, PatchType.values());
-    final String oldName = readString(in);
-    final String newName = readString(in);
+    final String newName = readName(in, prior);
+    final String oldName = readName(in, newName);
     final byte[] hdr = readBytes(in);
     final int ins = readVarInt32(in);
     final int del = readVarInt32(in);
-
-    final int editCount = readVarInt32(in);
-    final Edit[] editArray = new Edit[editCount];
-    for (int i = 0; i < editCount; i++) {
-      int beginA = readVarInt32(in);
-      int endA = readVarInt32(in);
-      int beginB = readVarInt32(in);
-      int endB = readVarInt32(in);
-      editArray[i] = new Edit(beginA, endA, beginB, endB);
-    }
+    final Edit[] editArray = readEdits(in);
 
     return new PatchListEntry(changeType, patchType, oldName, newName, hdr,
         toList(editArray), ins, del);
   }
 
-  private static List<Edit> toList(Edit[] l) {
-    return Collections.unmodifiableList(Arrays.asList(l));
-  }
-
   private static byte[] compact(final FileHeader h) {
     final int end = end(h);
     if (h.getStartOffset() == 0 && end == h.getBuffer().length) {
@@ -27,10 +27,12 @@ import com.google.gerrit.reviewdb.PatchSetApproval;
 import com.google.gerrit.reviewdb.ReviewDb;
 import com.google.gerrit.server.ChangeUtil;
 import com.google.gerrit.server.IdentifiedUser;
+import com.google.gerrit.server.git.PreMergeCache;
 import com.google.gerrit.server.mail.CommentSender;
 import com.google.gerrit.server.mail.EmailException;
 import com.google.gerrit.server.project.ChangeControl;
 import com.google.gerrit.server.project.NoSuchChangeException;
+import com.google.gerrit.server.workflow.CategoryFunction;
 import com.google.gerrit.server.workflow.FunctionState;
 import com.google.gwtjsonrpc.client.VoidResult;
 import com.google.gwtorm.client.OrmException;
@@ -67,6 +69,7 @@ public class PublishComments implements Callable<VoidResult> {
   private final ChangeControl.Factory changeControlFactory;
   private final FunctionState.Factory functionStateFactory;
   private final ChangeHookRunner hooks;
+  private final PreMergeCache preMergeCache;
 
   private final PatchSet.Id patchSetId;
   private final String messageText;
@@ -85,6 +88,7 @@ public class PublishComments implements Callable<VoidResult> {
       final ChangeControl.Factory changeControlFactory,
       final FunctionState.Factory functionStateFactory,
       final ChangeHookRunner hooks,
+      final PreMergeCache preMergeCache,
 
       @Assisted final PatchSet.Id patchSetId,
       @Assisted final String messageText,
@@ -97,6 +101,7 @@ public class PublishComments implements Callable<VoidResult> {
     this.changeControlFactory = changeControlFactory;
     this.functionStateFactory = functionStateFactory;
     this.hooks = hooks;
+    this.preMergeCache = preMergeCache;
 
     this.patchSetId = patchSetId;
     this.messageText = messageText;
@@ -223,10 +228,34 @@ public class PublishComments implements Callable<VoidResult> {
     db.patchSetApprovals().update(upd);
     db.patchSetApprovals().insert(ins);
 
+    if (!dirty.isEmpty() && isFullyApproved(all)) {
+      // Merge the change in the background now, so a later
+      // submit can reuse the result if the branch doesn't move.
+      //
+      preMergeCache.schedule(change, patchSet);
+    }
+
     summarizeInlineComments(msgbuf);
     message(msgbuf.toString());
   }
 
+  private boolean isFullyApproved(final Collection<PatchSetApproval> all) {
+    // Evaluate the approvals just written, not the state used to normalize
+    // them, which the category functions have not seen in full.
+    //
+    final FunctionState fs =
+        functionStateFactory.create(change, patchSetId, all);
+    for (final ApprovalType at : types.getApprovalTypes()) {
+      CategoryFunction.forCategory(at.getCategory()).run(at, fs);
+    }
+    for (final ApprovalType at : types.getApprovalTypes()) {
+      if (!fs.isValid(at)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   private void publishMessageOnly() throws OrmException {
     StringBuilder msgbuf = new StringBuilder();
     summarizeInlineComments(msgbuf);
@@ -0,0 +1,222 @@
+// Copyright (C) 2011 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.project;
+
+import com.google.gerrit.common.data.AccessSection;
+import com.google.gerrit.server.CurrentUser;
+
+import org.apache.commons.lang.StringUtils;
+import org.eclipse.jgit.lib.ObjectId;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Access sections of a project and all of its parents, indexed by pattern.
+ * <p>
+ * Built once per {@link ProjectState} and reused by every {@link RefControl}
+ * until the project, or one of its parents, is reloaded. Plain names are
+ * found with a single hash lookup, {@code refs/heads/*} style patterns with
+ * one lookup per directory of the reference name; only regular expressions
+ * and user templates are tested one by one, against compiled patterns.
+ */
+final class AccessMatrix {
+  private final List<ProjectState> tree;
+  private final Map<String, List<SectionMatcher>> exact;
+  private final Map<String, List<SectionMatcher>> prefix;
+  private final List<SectionMatcher> scan;
+  private final List<ObjectId> revisions;
+  private final boolean userSpecific;
+
+  /**
+   * @param tree the project first, followed by the parents it inherits
+   *        from, nearest first.
+   */
+  AccessMatrix(List<ProjectState> tree) {
+    this.tree = tree;
+    this.exact = new HashMap<String, List<SectionMatcher>>();
+    this.prefix = new HashMap<String, List<SectionMatcher>>();
+    this.scan = new ArrayList<SectionMatcher>();
+
+    List<ObjectId> revs = new ArrayList<ObjectId>(tree.size());
+    boolean templates = false;
+    int position = 0;
+    for (ProjectState state : tree) {
+      ObjectId rev = state.getConfig().getRevision();
+      revs.add(rev != null ? rev.copy() : null);
+
+      for (AccessSection section : state.getLocalAccessSections()) {
+        SectionMatcher m = new SectionMatcher(section, position++);
+        String pattern = m.getRefPattern();
+        templates |= m.isTemplate();
+
+        if (m.isTemplate() || m.isRE()) {
+          scan.add(m);
+        } else if (pattern.endsWith("/*")) {
+          add(prefix, pattern.substring(0, pattern.length() - 1), m);
+        } else {
+          add(exact, pattern, m);
+        }
+      }
+    }
+    this.revisions = Collections.unmodifiableList(revs);
+    this.userSpecific = templates;
+  }
+
+  /** @return configuration revisions of the projects, in tree order. */
+  List<ObjectId> getRevisions() {
+    return revisions;
+  }
+
+  /** @return true if a pattern depends on the name of the user. */
+  boolean isUserSpecific() {
+    return userSpecific;
+  }
+
+  /** @return true if this matrix was built from exactly these states. */
+  boolean isBuiltFrom(List<ProjectState> states) {
+    if (tree.size() != states.size()) {
+      return false;
+    }
+    for (int i = 0; i < tree.size(); i++) {
+      if (tree.get(i) != states.get(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Sections that apply to a reference, most specific first.
+   *
+   * @param refName name of the reference being checked.
+   * @param user user the templated patterns are expanded for.
+   * @return the matching sections; sections equally specific keep the
+   *         order of the project tree.
+   */
+  List<AccessSection> sectionsFor(String refName, CurrentUser user) {
+    List<SectionMatcher> m = new ArrayList<SectionMatcher>();
+    addAll(m, exact.get(refName));
+    int slash = refName.indexOf('/');
+    while (0 <= slash) {
+      addAll(m, prefix.get(refName.substring(0, slash + 1)));
+      slash = refName.indexOf('/', slash + 1);
+    }
+    for (SectionMatcher s : scan) {
+      if (s.match(refName, user)) {
+        m.add(s);
+      }
+    }
+
+    Collections.sort(m, new MostSpecificComparator(refName));
+
+    List<AccessSection> r = new ArrayList<AccessSection>(m.size());
+    for (SectionMatcher s : m) {
+      r.add(s.getSection());
+    }
+    return r;
+  }
+
+  private static void add(Map<String, List<SectionMatcher>> map, String key,
+      SectionMatcher m) {
+    List<SectionMatcher> list = map.get(key);
+    if (list == null) {
+      list = new ArrayList<SectionMatcher>(2);
+      map.put(key, list);
+    }
+    list.add(m);
+  }
+
+  private static void addAll(List<SectionMatcher> dst,
+      List<SectionMatcher> src) {
+    if (src != null) {
+      dst.addAll(src);
+    }
+  }
+
+  /**
+   * Order the Ref Pattern by the most specific. This sort is done by:
+   * <ul>
+   * <li>1 - The minor value of Levenshtein string distance between the branch
+   * name and the regex string shortest example. A shorter distance is a more
+   * specific match.
+   * <li>2 - Finites first, infinities after.
+   * <li>3 - Number of transitions.
+   * <li>4 - Length of the expression text.
+   * <li>5 - Position in the project tree, local sections first.
+   * </ul>
+   *
+   * Levenshtein distance is a measure of the similarity between two strings.
+   * The distance is the number of deletions, insertions, or substitutions
+   * required to transform one string into another.
+   *
+   * For example, if given refs/heads/m* and refs/heads/*, the distances are 5
+   * and 6. It means that refs/heads/m* is more specific because it's closer to
+   * refs/heads/master than refs/heads/*.
+   *
+   * Another example could be refs/heads/* and refs/heads/[a-zA-Z]*, the
+   * distances are both 6. Both are infinite, but refs/heads/[a-zA-Z]* has more
+   * transitions, which after all turns it more specific.
+   */
+  private static final class MostSpecificComparator implements
+      Comparator<SectionMatcher> {
+    private final String refName;
+
+    MostSpecificComparator(String refName) {
+      this.refName = refName;
+    }
+
+    public int compare(SectionMatcher a, SectionMatcher b) {
+      SectionMatcher.Specificity sa = a.getSpecificity();
+      SectionMatcher.Specificity sb = b.getSpecificity();
+
+      int cmp = distance(a, sa) - distance(b, sb);
+      if (cmp == 0) {
+        if (sa.finite && !sb.finite) {
+          cmp = -1;
+        } else if (!sa.finite && sb.finite) {
+          cmp = 1;
+        }
+      }
+      if (cmp == 0) {
+        cmp = sa.transitions - sb.transitions;
+      }
+      if (cmp == 0) {
+        cmp = b.getRefPattern().length() - a.getRefPattern().length();
+      }
+      if (cmp == 0) {
+        cmp = a.getPosition() - b.getPosition();
+      }
+      return cmp;
+    }
+
+    private int distance(SectionMatcher m, SectionMatcher.Specificity s) {
+      String pattern = m.getRefPattern();
+      if (s.example != null) {
+        return StringUtils.getLevenshteinDistance(s.example, refName);
+
+      } else if (pattern.equals(refName)) {
+        return 0;
+
+      } else {
+        return Math.max(pattern.length(), refName.length());
+      }
+    }
+  }
+}
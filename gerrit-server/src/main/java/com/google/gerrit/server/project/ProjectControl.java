@@ -31,8 +31,11 @@ import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.inject.assistedinject.Assisted;
 
+import org.eclipse.jgit.lib.ObjectId;
+
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 /** Access control management for a user accessing a project's data. */
@@ -112,6 +115,7 @@ public class ProjectControl {
   private final ProjectState state;
 
   private Collection<AccessSection> access;
+  private AccessMatrix accessMatrix;
 
   @Inject
   ProjectControl(@GitUploadPackGroups Set<AccountGroup.UUID> uploadGroups,
@@ -263,6 +267,27 @@ public class ProjectControl {
     return access;
   }
 
+  /**
+   * Identify the access rules this control evaluates.
+   * <p>
+   * Controls for users with the same effective groups grant the same access
+   * when their revisions are equal, which allows results to be shared.
+   *
+   * @return configuration revisions of this project and its parents, nearest
+   *         first; null if a rule also depends on the name of the user.
+   */
+  public List<ObjectId> getAccessRevisions() {
+    AccessMatrix m = accessMatrix();
+    return m.isUserSpecific() ? null : m.getRevisions();
+  }
+
+  AccessMatrix accessMatrix() {
+    if (accessMatrix == null) {
+      accessMatrix = state.getAccessMatrix();
+    }
+    return accessMatrix;
+  }
+
   public boolean canRunUploadPack() {
     return isAnyIncludedIn(uploadGroups, user.getEffectiveGroups());
   }
@@ -54,6 +54,9 @@ public class ProjectState {
   private final ProjectConfig config;
   private final Set<AccountGroup.UUID> localOwners;
 
+  /** Compiled access sections of this project and its parents. */
+  private volatile AccessMatrix accessMatrix;
+
   /** Last system time the configuration's revision was examined. */
   private transient long lastCheckTime;
 
@@ -131,18 +134,54 @@ public class ProjectState {
 
   /** Get the rights this project inherits. */
   public Collection<AccessSection> getInheritedAccessSections() {
+    List<AccessSection> inherited = new ArrayList<AccessSection>();
+    for (ProjectState s : parents()) {
+      inherited.addAll(s.getLocalAccessSections());
+    }
+    return inherited;
+  }
+
+  /** Get both local and inherited access sections. */
+  public Collection<AccessSection> getAllAccessSections() {
+    List<AccessSection> all = new ArrayList<AccessSection>();
+    all.addAll(getLocalAccessSections());
+    all.addAll(getInheritedAccessSections());
+    return all;
+  }
+
+  /**
+   * Get both local and inherited access sections, compiled for matching.
+   * <p>
+   * The result is built once and reused until this project or one of its
+   * parents is reloaded into the {@link ProjectCache}.
+   */
+  AccessMatrix getAccessMatrix() {
+    List<ProjectState> tree = new ArrayList<ProjectState>();
+    tree.add(this);
+    tree.addAll(parents());
+
+    AccessMatrix m = accessMatrix;
+    if (m == null || !m.isBuiltFrom(tree)) {
+      m = new AccessMatrix(tree);
+      accessMatrix = m;
+    }
+    return m;
+  }
+
+  /** @return projects this one inherits access from, nearest first. */
+  private List<ProjectState> parents() {
     if (isWildProject()) {
       return Collections.emptyList();
     }
 
-    List<AccessSection> inherited = new ArrayList<AccessSection>();
+    List<ProjectState> parents = new ArrayList<ProjectState>();
     Set<Project.NameKey> seen = new HashSet<Project.NameKey>();
     Project.NameKey parent = getProject().getParent();
 
     while (parent != null && seen.add(parent)) {
       ProjectState s = projectCache.get(parent);
       if (s != null) {
-        inherited.addAll(s.getLocalAccessSections());
+        parents.add(s);
         parent = s.getProject().getParent();
       } else {
         break;
@@ -153,19 +192,11 @@ public class ProjectState {
     if (parent == null) {
       ProjectState s = projectCache.get(wildProject);
       if (s != null) {
-        inherited.addAll(s.getLocalAccessSections());
+        parents.add(s);
       }
     }
 
-    return inherited;
-  }
-
-  /** Get both local and inherited access sections. */
-  public Collection<AccessSection> getAllAccessSections() {
-    List<AccessSection> all = new ArrayList<AccessSection>();
-    all.addAll(getLocalAccessSections());
-    all.addAll(getInheritedAccessSections());
-    return all;
+    return parents;
   }
 
   /**
@@ -0,0 +1,173 @@
+// Copyright (C) 2011 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.project;
+
+import com.google.gerrit.common.data.AccessSection;
+import com.google.gerrit.common.data.ParamertizedString;
+import com.google.gerrit.server.CurrentUser;
+import com.google.gerrit.server.IdentifiedUser;
+
+import dk.brics.automaton.Automaton;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * An {@link AccessSection} with its reference pattern compiled.
+ * <p>
+ * Instances are shared by every {@link RefControl} created from the same
+ * {@link AccessMatrix}, so they must not hold any per-user state.
+ */
+final class SectionMatcher {
+  private final AccessSection section;
+  private final int position;
+  private final String refPattern;
+  private final boolean template;
+  private final Pattern regex;
+
+  private volatile Specificity specificity;
+
+  SectionMatcher(AccessSection section, int position) {
+    this.section = section;
+    this.position = position;
+    this.refPattern = section.getRefPattern();
+    this.template = 0 <= refPattern.indexOf("${");
+
+    Pattern p = null;
+    if (!template && RefControl.isRE(refPattern)) {
+      try {
+        p = Pattern.compile(refPattern);
+      } catch (PatternSyntaxException e) {
+        // Left uncompiled, match() will report the error every time
+        // the section is evaluated, just as it did before.
+      }
+    }
+    this.regex = p;
+  }
+
+  AccessSection getSection() {
+    return section;
+  }
+
+  String getRefPattern() {
+    return refPattern;
+  }
+
+  /** @return order of the section within its project tree, local first. */
+  int getPosition() {
+    return position;
+  }
+
+  /** @return true if the pattern depends on the user being checked. */
+  boolean isTemplate() {
+    return template;
+  }
+
+  /** @return true if the pattern is a regular expression. */
+  boolean isRE() {
+    return RefControl.isRE(refPattern);
+  }
+
+  boolean match(String refName, CurrentUser user) {
+    String pattern = refPattern;
+
+    if (template) {
+      ParamertizedString t = new ParamertizedString(pattern);
+      HashMap<String, String> p = new HashMap<String, String>();
+
+      if (user instanceof IdentifiedUser) {
+        p.put("username", ((IdentifiedUser) user).getUserName());
+      } else {
+        // Right now we only template the username. If not available
+        // this rule cannot be matched at all.
+        //
+        return false;
+      }
+
+      if (RefControl.isRE(pattern)) {
+        for (Map.Entry<String, String> ent : p.entrySet()) {
+          ent.setValue(escape(ent.getValue()));
+        }
+      }
+
+      pattern = t.replace(p);
+
+    } else if (regex != null) {
+      return regex.matcher(refName).matches();
+    }
+
+    if (RefControl.isRE(pattern)) {
+      return Pattern.matches(pattern, refName);
+
+    } else if (pattern.endsWith("/*")) {
+      String prefix = pattern.substring(0, pattern.length() - 1);
+      return refName.startsWith(prefix);
+
+    } else {
+      return refName.equals(pattern);
+    }
+  }
+
+  /** The reference-independent sort keys of the pattern. */
+  Specificity getSpecificity() {
+    Specificity s = specificity;
+    if (s == null) {
+      s = new Specificity(refPattern);
+      specificity = s;
+    }
+    return s;
+  }
+
+  private static String escape(String value) {
+    // Right now the only special character allowed in a
+    // variable value is a . in the username.
+    //
+    return value.replace(".", "\\.");
+  }
+
+  /**
+   * Properties of a pattern used by {@link AccessMatrix} to order sections.
+   * <p>
+   * Computing these requires a {@link Automaton} for regular expressions,
+   * which is too expensive to rebuild on every comparison.
+   */
+  static final class Specificity {
+    /** Shortest reference matched, or null if only the pattern matches. */
+    final String example;
+    final boolean finite;
+    final int transitions;
+
+    Specificity(String pattern) {
+      if (RefControl.isRE(pattern)) {
+        Automaton a = RefControl.toRegExp(pattern).toAutomaton();
+        example = a.getShortestExample(true);
+        finite = a.isFinite();
+        transitions = a.getNumberOfTransitions();
+
+      } else if (pattern.endsWith("/*")) {
+        example = pattern.substring(0, pattern.length() - 1) + '1';
+        finite = false;
+        transitions = pattern.length();
+
+      } else {
+        example = null;
+        finite = true;
+        transitions = pattern.length();
+      }
+    }
+  }
+}
@@ -29,10 +29,12 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Rewrites a Predicate tree by applying rewrite rules.
@@ -62,10 +64,10 @@ public abstract class QueryRewriter<T> {
    * @param <R> type of the rewriter subclass.
    */
   public static class Definition<T, R extends QueryRewriter<T>> {
-    private final List<RewriteRule<T>> rewriteRules;
+    private final RuleIndex<T> rewriteRules;
 
     public Definition(Class<R> clazz, QueryBuilder<T> qb) {
-      rewriteRules = new ArrayList<RewriteRule<T>>();
+      rewriteRules = new RuleIndex<T>();
 
       Class<?> c = clazz;
       while (c != QueryRewriter.class) {
@@ -89,7 +91,7 @@ public abstract class QueryRewriter<T> {
     }
   }
 
-  private final List<RewriteRule<T>> rewriteRules;
+  private final RuleIndex<T> rewriteRules;
 
   protected QueryRewriter(final Definition<T, ? extends QueryRewriter<T>> def) {
     this.rewriteRules = def.rewriteRules;
@@ -174,7 +176,7 @@ public abstract class QueryRewriter<T> {
 
   private Predicate<T> rewriteOne(Predicate<T> input) {
     Predicate<T> best = null;
-    for (RewriteRule<T> r : rewriteRules) {
+    for (RewriteRule<T> r : rewriteRules.candidates(input)) {
       Predicate<T> n = r.rewrite(this, input);
       if (n == null) {
         continue;
@@ -192,6 +194,105 @@ public abstract class QueryRewriter<T> {
     return best != null ? best : input;
   }
 
+  /**
+   * Rules of a rewriter, grouped by the shape of the predicates they match.
+   * <p>
+   * A pattern can only match a predicate of the same kind: an operator of
+   * the same name, or an AND, OR or NOT node. A node only matches if every
+   * operator of the pattern appears among its children. Checking this up
+   * front avoids attempting the full match, and the reflective call, for
+   * most of the rules in the rewriter.
+   */
+  private static class RuleIndex<T> {
+    private final Map<String, List<MethodRewrite<T>>> byOperator =
+        new HashMap<String, List<MethodRewrite<T>>>();
+    private final List<MethodRewrite<T>> and =
+        new ArrayList<MethodRewrite<T>>();
+    private final List<MethodRewrite<T>> or =
+        new ArrayList<MethodRewrite<T>>();
+    private final List<MethodRewrite<T>> not =
+        new ArrayList<MethodRewrite<T>>();
+
+    /** Rules of an unknown shape, these are tried on every predicate. */
+    private final List<MethodRewrite<T>> other =
+        new ArrayList<MethodRewrite<T>>();
+
+    void add(MethodRewrite<T> r) {
+      final Predicate<T> p = unwrap(r.pattern);
+      if (isAND(p)) {
+        and.add(r);
+      } else if (isOR(p)) {
+        or.add(r);
+      } else if (isNOT(p)) {
+        not.add(r);
+      } else if (p instanceof OperatorPredicate) {
+        final String op = ((OperatorPredicate<T>) p).getOperator();
+        List<MethodRewrite<T>> l = byOperator.get(op);
+        if (l == null) {
+          l = new ArrayList<MethodRewrite<T>>(other);
+          byOperator.put(op, l);
+        }
+        l.add(r);
+      } else {
+        other.add(r);
+        and.add(r);
+        or.add(r);
+        not.add(r);
+        for (List<MethodRewrite<T>> l : byOperator.values()) {
+          l.add(r);
+        }
+      }
+    }
+
+    /** @return rules which may match {@code in}, in declaration order. */
+    List<RewriteRule<T>> candidates(Predicate<T> in) {
+      final List<MethodRewrite<T>> rules;
+      if (isAND(in)) {
+        rules = and;
+      } else if (isOR(in)) {
+        rules = or;
+      } else if (isNOT(in)) {
+        rules = not;
+      } else if (in instanceof OperatorPredicate) {
+        final String op = ((OperatorPredicate<T>) in).getOperator();
+        rules = byOperator.containsKey(op) ? byOperator.get(op) : other;
+      } else {
+        rules = other;
+      }
+
+      final List<RewriteRule<T>> r =
+          new ArrayList<RewriteRule<T>>(rules.size());
+      if (!rules.isEmpty()) {
+        final Set<String> have = operators(in);
+        for (MethodRewrite<T> m : rules) {
+          if (have.containsAll(m.operators)) {
+            r.add(m);
+          }
+        }
+      }
+      return r;
+    }
+  }
+
+  /** @return operators of the direct children of {@code p}. */
+  private static <T> Set<String> operators(Predicate<T> p) {
+    final Set<String> r = new HashSet<String>();
+    for (Predicate<T> c : p.getChildren()) {
+      c = unwrap(c);
+      if (c instanceof OperatorPredicate) {
+        r.add(((OperatorPredicate<T>) c).getOperator());
+      }
+    }
+    return r;
+  }
+
+  private static <T> Predicate<T> unwrap(Predicate<T> p) {
+    while (p instanceof VariablePredicate) {
+      p = p.getChild(0);
+    }
+    return p;
+  }
+
   private static class MatchResult<T> {
     private static final MatchResult<?> FAIL = new MatchResult<Object>(null);
     private static final MatchResult<?> OK = new MatchResult<Object>(null);
@@ -350,6 +451,7 @@ public abstract class QueryRewriter<T> {
   private static class MethodRewrite<T> implements RewriteRule<T> {
     private final Method method;
     private final Predicate<T> pattern;
+    private final Set<String> operators;
     private final String[] argNames;
     private final Class<? extends Predicate<T>>[] argTypes;
     private final boolean useBestCost;
@@ -373,6 +475,7 @@ public abstract class QueryRewriter<T> {
       }
 
       pattern = p;
+      operators = operators(unwrap(p));
       argNames = new String[method.getParameterTypes().length];
       argTypes = new Class[argNames.length];
       for (int i = 0; i < argNames.length; i++) {
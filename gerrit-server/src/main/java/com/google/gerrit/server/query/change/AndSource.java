@@ -26,7 +26,8 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 
-class AndSource extends AndPredicate<ChangeData> implements ChangeDataSource {
+class AndSource extends AndPredicate<ChangeData> implements
+    ChangeDataSource, OrderedSource {
   private static final Comparator<Predicate<ChangeData>> CMP =
       new Comparator<Predicate<ChangeData>>() {
         @Override
@@ -38,9 +39,9 @@ class AndSource extends AndPredicate<ChangeData> implements ChangeDataSource {
           if (cmp == 0 //
               && a instanceof ChangeDataSource //
               && b instanceof ChangeDataSource) {
-            ai = ((ChangeDataSource) a).hasChange() ? 0 : 1;
-            bi = ((ChangeDataSource) b).hasChange() ? 0 : 1;
-            cmp = ai - bi;
+            long ac = readCost((ChangeDataSource) a);
+            long bc = readCost((ChangeDataSource) b);
+            cmp = ac < bc ? -1 : (ac > bc ? 1 : 0);
           }
 
           if (cmp == 0) {
@@ -59,6 +60,18 @@ class AndSource extends AndPredicate<ChangeData> implements ChangeDataSource {
         }
       };
 
+  /**
+   * Cost of reading every result of a source, including loading the
+   * change rows of sources that do not return them.
+   */
+  static long readCost(ChangeDataSource s) {
+    long cost = ((Predicate<?>) s).getCost();
+    if (!s.hasChange()) {
+      cost += (long) ChangeCosts.CHANGES_SCAN * s.getCardinality();
+    }
+    return cost;
+  }
+
   private static List<Predicate<ChangeData>> sort(
       Collection<? extends Predicate<ChangeData>> that) {
     ArrayList<Predicate<ChangeData>> r =
@@ -68,6 +81,8 @@ class AndSource extends AndPredicate<ChangeData> implements ChangeDataSource {
   }
 
   private int cardinality = -1;
+  private int rowsRead;
+  private int rowsReturned;
 
   AndSource(final Collection<? extends Predicate<ChangeData>> that) {
     super(sort(that));
@@ -91,7 +106,7 @@ class AndSource extends AndPredicate<ChangeData> implements ChangeDataSource {
     ArrayList<ChangeData> r = new ArrayList<ChangeData>();
     ChangeData last = null;
     boolean skipped = false;
-    for (ChangeData data : source.read()) {
+    for (ChangeData data : prefetch(source.read())) {
       if (match(data)) {
         r.add(data);
       } else {
@@ -110,7 +125,7 @@ class AndSource extends AndPredicate<ChangeData> implements ChangeDataSource {
         ChangeData lastBeforeRestart = last;
         skipped = false;
         last = null;
-        for (ChangeData data : p.restart(lastBeforeRestart)) {
+        for (ChangeData data : prefetch(p.restart(lastBeforeRestart))) {
           if (match(data)) {
             r.add(data);
           } else {
@@ -121,10 +136,58 @@ class AndSource extends AndPredicate<ChangeData> implements ChangeDataSource {
       }
     }
 
+    rowsReturned += r.size();
     return new ListResultSet<ChangeData>(r);
   }
 
-  private ChangeDataSource source() {
+  /** Number of results read from the source, for {@code --explain}. */
+  int getRowsRead() {
+    return rowsRead;
+  }
+
+  /** Number of results that matched, for {@code --explain}. */
+  int getRowsReturned() {
+    return rowsReturned;
+  }
+
+  @Override
+  public boolean isOrdered() {
+    // Matches are returned in the order of the source, including those
+    // found after restarting a paginated source from its last result.
+    //
+    ChangeDataSource source = source();
+    return source instanceof OrderedSource
+        && ((OrderedSource) source).isOrdered();
+  }
+
+  /**
+   * Read all candidates, letting the predicates load what they need.
+   * <p>
+   * Loading the data for a whole page of candidates with a few queries is
+   * much cheaper than having each {@code match()} call query for its own.
+   */
+  private List<ChangeData> prefetch(ResultSet<ChangeData> rs)
+      throws OrmException {
+    List<ChangeData> in = rs.toList();
+    rowsRead += in.size();
+    if (1 < in.size()) {
+      prefetch(this, in);
+    }
+    return in;
+  }
+
+  private static void prefetch(Predicate<ChangeData> p, List<ChangeData> in)
+      throws OrmException {
+    if (p instanceof Prefetching) {
+      ((Prefetching) p).prefetch(in);
+    }
+    for (Predicate<ChangeData> c : p.getChildren()) {
+      prefetch(c, in);
+    }
+  }
+
+  /** The child the results are read from, the cheapest source. */
+  ChangeDataSource source() {
     for (Predicate<ChangeData> p : getChildren()) {
       if (p instanceof ChangeDataSource) {
         return (ChangeDataSource) p;
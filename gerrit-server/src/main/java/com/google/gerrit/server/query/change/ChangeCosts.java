@@ -27,6 +27,9 @@ public class ChangeCosts {
   /** Estimated matches for a commit SHA-1 string. */
   public static final int CARD_COMMIT = 5;
 
+  /** Estimated matches for a topic name. */
+  public static final int CARD_TOPIC = 10;
+
   /** Estimated matches for a tracking/bug id string. */
   public static final int CARD_TRACKING_IDS = 5;
 
@@ -15,6 +15,7 @@
 package com.google.gerrit.server.query.change;
 
 import com.google.gerrit.reviewdb.Change;
+import com.google.gerrit.reviewdb.ChangeMessage;
 import com.google.gerrit.reviewdb.Patch;
 import com.google.gerrit.reviewdb.PatchLineComment;
 import com.google.gerrit.reviewdb.PatchSet;
@@ -26,17 +27,235 @@ import com.google.gerrit.server.patch.PatchList;
 import com.google.gerrit.server.patch.PatchListCache;
 import com.google.gerrit.server.patch.PatchListEntry;
 import com.google.gwtorm.client.OrmException;
+import com.google.gwtorm.client.ResultSet;
 import com.google.inject.Provider;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 public class ChangeData {
+  /**
+   * Load the changes of all objects, with one query.
+   *
+   * @param db database to read from.
+   * @param changes objects which may be missing their change.
+   * @throws OrmException the changes could not be read.
+   */
+  public static void ensureChangesLoaded(Provider<ReviewDb> db,
+      Collection<ChangeData> changes) throws OrmException {
+    Map<Change.Id, ChangeData> missing = new HashMap<Change.Id, ChangeData>();
+    for (ChangeData cd : changes) {
+      if (cd.change == null) {
+        missing.put(cd.getId(), cd);
+      }
+    }
+    if (1 < missing.size()) {
+      for (Change c : db.get().changes().get(missing.keySet())) {
+        missing.get(c.getId()).change = c;
+      }
+    }
+  }
+
+  /** Load the patch sets of all changes, with a few range queries. */
+  public static void ensureAllPatchSetsLoaded(Provider<ReviewDb> db,
+      Collection<ChangeData> changes) throws OrmException {
+    PATCH_SETS.load(db, changes);
+  }
+
+  /** Load the approvals of all changes, with a few range queries. */
+  public static void ensureApprovalsLoaded(Provider<ReviewDb> db,
+      Collection<ChangeData> changes) throws OrmException {
+    APPROVALS.load(db, changes);
+  }
+
+  /** Load the messages of all changes, with a few range queries. */
+  public static void ensureMessagesLoaded(Provider<ReviewDb> db,
+      Collection<ChangeData> changes) throws OrmException {
+    MESSAGES.load(db, changes);
+  }
+
+  /** Load the tracking ids of all changes, with a few range queries. */
+  public static void ensureTrackingIdsLoaded(Provider<ReviewDb> db,
+      Collection<ChangeData> changes) throws OrmException {
+    TRACKING_IDS.load(db, changes);
+  }
+
+  /**
+   * Largest difference between two change ids still read by one query.
+   * <p>
+   * The rows of any changes in between are read and thrown away, so this
+   * bounds the waste of a range query to the rows of a few changes.
+   */
+  private static final int MAX_GAP = 16;
+
+  private static final Comparator<ChangeData> BY_ID =
+      new Comparator<ChangeData>() {
+        @Override
+        public int compare(ChangeData a, ChangeData b) {
+          return a.getId().get() - b.getId().get();
+        }
+      };
+
+  /** Reads the rows of one table for many changes at once. */
+  private abstract static class Loader<T> {
+    abstract boolean isLoaded(ChangeData cd);
+
+    abstract ResultSet<T> byChangeRange(ReviewDb db, Change.Id first,
+        Change.Id last) throws OrmException;
+
+    abstract Change.Id changeOf(T row);
+
+    abstract void set(ChangeData cd, List<T> rows);
+
+    void load(Provider<ReviewDb> db, Collection<ChangeData> changes)
+        throws OrmException {
+      List<ChangeData> todo = new ArrayList<ChangeData>();
+      for (ChangeData cd : changes) {
+        if (!isLoaded(cd)) {
+          todo.add(cd);
+        }
+      }
+      Collections.sort(todo, BY_ID);
+
+      int start = 0;
+      while (start < todo.size()) {
+        int end = start + 1;
+        while (end < todo.size() && todo.get(end).getId().get()
+            - todo.get(end - 1).getId().get() <= MAX_GAP) {
+          end++;
+        }
+        if (1 < end - start) {
+          // A single change is left to be loaded when it is first used,
+          // which costs the same one query.
+          //
+          load(db.get(), todo.subList(start, end));
+        }
+        start = end;
+      }
+    }
+
+    private void load(ReviewDb db, List<ChangeData> run) throws OrmException {
+      Map<Change.Id, List<T>> rows = new HashMap<Change.Id, List<T>>();
+      for (ChangeData cd : run) {
+        rows.put(cd.getId(), new ArrayList<T>());
+      }
+
+      Change.Id first = run.get(0).getId();
+      Change.Id last = run.get(run.size() - 1).getId();
+      for (T row : byChangeRange(db, first, last)) {
+        List<T> r = rows.get(changeOf(row));
+        if (r != null) {
+          r.add(row);
+        }
+      }
+
+      for (ChangeData cd : run) {
+        set(cd, rows.get(cd.getId()));
+      }
+    }
+  }
+
+  private static final Loader<PatchSet> PATCH_SETS = new Loader<PatchSet>() {
+    @Override
+    boolean isLoaded(ChangeData cd) {
+      return cd.patches != null;
+    }
+
+    @Override
+    ResultSet<PatchSet> byChangeRange(ReviewDb db, Change.Id first,
+        Change.Id last) throws OrmException {
+      return db.patchSets().byChangeRange(first, last);
+    }
+
+    @Override
+    Change.Id changeOf(PatchSet row) {
+      return row.getId().getParentKey();
+    }
+
+    @Override
+    void set(ChangeData cd, List<PatchSet> rows) {
+      cd.patches = rows;
+    }
+  };
+
+  private static final Loader<PatchSetApproval> APPROVALS =
+      new Loader<PatchSetApproval>() {
+        @Override
+        boolean isLoaded(ChangeData cd) {
+          return cd.approvals != null;
+        }
+
+        @Override
+        ResultSet<PatchSetApproval> byChangeRange(ReviewDb db,
+            Change.Id first, Change.Id last) throws OrmException {
+          return db.patchSetApprovals().byChangeRange(first, last);
+        }
+
+        @Override
+        Change.Id changeOf(PatchSetApproval row) {
+          return row.getPatchSetId().getParentKey();
+        }
+
+        @Override
+        void set(ChangeData cd, List<PatchSetApproval> rows) {
+          cd.approvals = rows;
+        }
+      };
+
+  private static final Loader<ChangeMessage> MESSAGES =
+      new Loader<ChangeMessage>() {
+        @Override
+        boolean isLoaded(ChangeData cd) {
+          return cd.messages != null;
+        }
+
+        @Override
+        ResultSet<ChangeMessage> byChangeRange(ReviewDb db, Change.Id first,
+            Change.Id last) throws OrmException {
+          return db.changeMessages().byChangeRange(first, last);
+        }
+
+        @Override
+        Change.Id changeOf(ChangeMessage row) {
+          return row.getKey().getParentKey();
+        }
+
+        @Override
+        void set(ChangeData cd, List<ChangeMessage> rows) {
+          cd.messages = rows;
+        }
+      };
+
+  private static final Loader<TrackingId> TRACKING_IDS =
+      new Loader<TrackingId>() {
+        @Override
+        boolean isLoaded(ChangeData cd) {
+          return cd.trackingIds != null;
+        }
+
+        @Override
+        ResultSet<TrackingId> byChangeRange(ReviewDb db, Change.Id first,
+            Change.Id last) throws OrmException {
+          return db.trackingIds().byChangeRange(first, last);
+        }
+
+        @Override
+        Change.Id changeOf(TrackingId row) {
+          return row.getChangeId();
+        }
+
+        @Override
+        void set(ChangeData cd, List<TrackingId> rows) {
+          cd.trackingIds = rows;
+        }
+      };
+
   private final Change.Id legacyId;
   private Change change;
   private Collection<PatchSet> patches;
@@ -45,6 +264,7 @@ public class ChangeData {
   private Collection<PatchSetApproval> currentApprovals;
   private String[] currentFiles;
   private Collection<PatchLineComment> comments;
+  private Collection<ChangeMessage> messages;
   private Collection<TrackingId> trackingIds;
   private CurrentUser visibleTo;
 
@@ -203,6 +423,14 @@ public class ChangeData {
     return comments;
   }
 
+  public Collection<ChangeMessage> messages(Provider<ReviewDb> db)
+      throws OrmException {
+    if (messages == null) {
+      messages = db.get().changeMessages().byChange(legacyId).toList();
+    }
+    return messages;
+  }
+
   public Collection<TrackingId> trackingIds(Provider<ReviewDb> db)
       throws OrmException {
     if (trackingIds == null) {
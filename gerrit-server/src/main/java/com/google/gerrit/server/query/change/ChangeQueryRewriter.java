@@ -14,22 +14,33 @@
 
 package com.google.gerrit.server.query.change;
 
+import com.google.gerrit.reviewdb.Branch;
 import com.google.gerrit.reviewdb.Change;
 import com.google.gerrit.reviewdb.ChangeAccess;
 import com.google.gerrit.reviewdb.ReviewDb;
 import com.google.gerrit.server.ChangeUtil;
+import com.google.gerrit.server.index.ChangeIndex;
 import com.google.gerrit.server.query.IntPredicate;
 import com.google.gerrit.server.query.Predicate;
 import com.google.gerrit.server.query.QueryRewriter;
 import com.google.gerrit.server.query.RewritePredicate;
 import com.google.gwtorm.client.OrmException;
 import com.google.gwtorm.client.ResultSet;
+import com.google.gwtorm.client.impl.ListResultSet;
 import com.google.inject.Inject;
 import com.google.inject.OutOfScopeException;
 import com.google.inject.Provider;
 import com.google.inject.name.Named;
 
+import org.eclipse.jgit.revwalk.filter.SubStringRevFilter;
+
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
 
 public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
   private static final QueryRewriter.Definition<ChangeData, ChangeQueryRewriter> mydef =
@@ -41,17 +52,55 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
                   null, null, null, null, null, null, null, //
                   null, null, null, null), null));
 
+  private static final Comparator<Change> NEWEST_FIRST =
+      new Comparator<Change>() {
+        @Override
+        public int compare(Change a, Change b) {
+          return b.getSortKey().compareTo(a.getSortKey());
+        }
+      };
+
+  private static final Comparator<Change> OLDEST_FIRST =
+      Collections.reverseOrder(NEWEST_FIRST);
+
+  private static final Set<Change.Status> OPEN = statuses(true);
+  private static final Set<Change.Status> CLOSED = statuses(false);
+  private static final Set<Change.Status> MERGED =
+      EnumSet.of(Change.Status.MERGED);
+  private static final Set<Change.Status> ABANDONED =
+      EnumSet.of(Change.Status.ABANDONED);
+  private static final Set<Change.Status> SUBMITTED =
+      EnumSet.of(Change.Status.SUBMITTED);
+  private static final Set<Change.Status> ALL =
+      EnumSet.allOf(Change.Status.class);
+
+  private static Set<Change.Status> statuses(boolean open) {
+    Set<Change.Status> r = EnumSet.noneOf(Change.Status.class);
+    for (Change.Status s : Change.Status.values()) {
+      if (s.isOpen() == open) {
+        r.add(s);
+      }
+    }
+    return r;
+  }
+
   private final Provider<ReviewDb> dbProvider;
+  private final ChangeIndex index;
 
   @Inject
-  ChangeQueryRewriter(Provider<ReviewDb> dbProvider) {
+  ChangeQueryRewriter(Provider<ReviewDb> dbProvider, ChangeIndex index) {
     super(mydef);
     this.dbProvider = dbProvider;
+    this.index = index;
   }
 
   @Override
   public Predicate<ChangeData> and(Collection<? extends Predicate<ChangeData>> l) {
-    return hasSource(l) ? new AndSource(l) : super.and(l);
+    if (hasSource(l)) {
+      paginate(l);
+      return new AndSource(l);
+    }
+    return super.and(l);
   }
 
   @Override
@@ -123,7 +172,8 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
       @Named("P") final ProjectPredicate p,
       @Named("S") final SortKeyPredicate.After s,
       @Named("L") final IntPredicate<ChangeData> l) {
-    return new PaginatedSource(500, s.getValue(), l.intValue()) {
+    return new PaginatedSource(estimate(500, OPEN, project(p)),
+        s, l.intValue()) {
       @Override
       ResultSet<Change> scan(ChangeAccess a, String key, int limit)
           throws OrmException {
@@ -144,7 +194,8 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
       @Named("P") final ProjectPredicate p,
       @Named("S") final SortKeyPredicate.Before s,
       @Named("L") final IntPredicate<ChangeData> l) {
-    return new PaginatedSource(500, s.getValue(), l.intValue()) {
+    return new PaginatedSource(estimate(500, OPEN, project(p)),
+        s, l.intValue()) {
       @Override
       ResultSet<Change> scan(ChangeAccess a, String key, int limit)
           throws OrmException {
@@ -165,7 +216,8 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
       @Named("P") final ProjectPredicate p,
       @Named("S") final SortKeyPredicate.After s,
       @Named("L") final IntPredicate<ChangeData> l) {
-    return new PaginatedSource(40000, s.getValue(), l.intValue()) {
+    return new PaginatedSource(estimate(40000, MERGED, project(p)),
+        s, l.intValue()) {
       @Override
       ResultSet<Change> scan(ChangeAccess a, String key, int limit)
           throws OrmException {
@@ -187,7 +239,8 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
       @Named("P") final ProjectPredicate p,
       @Named("S") final SortKeyPredicate.Before s,
       @Named("L") final IntPredicate<ChangeData> l) {
-    return new PaginatedSource(40000, s.getValue(), l.intValue()) {
+    return new PaginatedSource(estimate(40000, MERGED, project(p)),
+        s, l.intValue()) {
       @Override
       ResultSet<Change> scan(ChangeAccess a, String key, int limit)
           throws OrmException {
@@ -209,7 +262,8 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
       @Named("P") final ProjectPredicate p,
       @Named("S") final SortKeyPredicate.After s,
       @Named("L") final IntPredicate<ChangeData> l) {
-    return new PaginatedSource(40000, s.getValue(), l.intValue()) {
+    return new PaginatedSource(estimate(40000, ABANDONED, project(p)),
+        s, l.intValue()) {
       @Override
       ResultSet<Change> scan(ChangeAccess a, String key, int limit)
           throws OrmException {
@@ -231,7 +285,8 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
       @Named("P") final ProjectPredicate p,
       @Named("S") final SortKeyPredicate.Before s,
       @Named("L") final IntPredicate<ChangeData> l) {
-    return new PaginatedSource(40000, s.getValue(), l.intValue()) {
+    return new PaginatedSource(estimate(40000, ABANDONED, project(p)),
+        s, l.intValue()) {
       @Override
       ResultSet<Change> scan(ChangeAccess a, String key, int limit)
           throws OrmException {
@@ -252,7 +307,7 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
   public Predicate<ChangeData> r20_byOpenPrev(
       @Named("S") final SortKeyPredicate.After s,
       @Named("L") final IntPredicate<ChangeData> l) {
-    return new PaginatedSource(2000, s.getValue(), l.intValue()) {
+    return new PaginatedSource(estimate(2000, OPEN), s, l.intValue()) {
       @Override
       ResultSet<Change> scan(ChangeAccess a, String key, int limit)
           throws OrmException {
@@ -270,7 +325,7 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
   public Predicate<ChangeData> r20_byOpenNext(
       @Named("S") final SortKeyPredicate.Before s,
       @Named("L") final IntPredicate<ChangeData> l) {
-    return new PaginatedSource(2000, s.getValue(), l.intValue()) {
+    return new PaginatedSource(estimate(2000, OPEN), s, l.intValue()) {
       @Override
       ResultSet<Change> scan(ChangeAccess a, String key, int limit)
           throws OrmException {
@@ -289,7 +344,7 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
   public Predicate<ChangeData> r20_byMergedPrev(
       @Named("S") final SortKeyPredicate.After s,
       @Named("L") final IntPredicate<ChangeData> l) {
-    return new PaginatedSource(50000, s.getValue(), l.intValue()) {
+    return new PaginatedSource(estimate(50000, MERGED), s, l.intValue()) {
       {
         init("r20_byMergedPrev", s, l);
       }
@@ -313,7 +368,7 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
   public Predicate<ChangeData> r20_byMergedNext(
       @Named("S") final SortKeyPredicate.Before s,
       @Named("L") final IntPredicate<ChangeData> l) {
-    return new PaginatedSource(50000, s.getValue(), l.intValue()) {
+    return new PaginatedSource(estimate(50000, MERGED), s, l.intValue()) {
       {
         init("r20_byMergedNext", s, l);
       }
@@ -337,7 +392,7 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
   public Predicate<ChangeData> r20_byAbandonedPrev(
       @Named("S") final SortKeyPredicate.After s,
       @Named("L") final IntPredicate<ChangeData> l) {
-    return new PaginatedSource(50000, s.getValue(), l.intValue()) {
+    return new PaginatedSource(estimate(50000, ABANDONED), s, l.intValue()) {
       {
         init("r20_byAbandonedPrev", s, l);
       }
@@ -361,7 +416,7 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
   public Predicate<ChangeData> r20_byAbandonedNext(
       @Named("S") final SortKeyPredicate.Before s,
       @Named("L") final IntPredicate<ChangeData> l) {
-    return new PaginatedSource(50000, s.getValue(), l.intValue()) {
+    return new PaginatedSource(estimate(50000, ABANDONED), s, l.intValue()) {
       {
         init("r20_byAbandonedNext", s, l);
       }
@@ -400,7 +455,7 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
   @Rewrite("status:open O=(owner:*)")
   public Predicate<ChangeData> r25_byOwnerOpen(
       @Named("O") final OwnerPredicate o) {
-    return new ChangeSource(50) {
+    return new ChangeSource(estimate(50, OPEN, owner(o))) {
       {
         init("r25_byOwnerOpen", o);
       }
@@ -421,7 +476,7 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
   @Rewrite("status:closed O=(owner:*)")
   public Predicate<ChangeData> r25_byOwnerClosed(
       @Named("O") final OwnerPredicate o) {
-    return new ChangeSource(5000) {
+    return new ChangeSource(estimate(5000, CLOSED, owner(o))) {
       {
         init("r25_byOwnerClosed", o);
       }
@@ -444,6 +499,48 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
     return or(r25_byOwnerOpen(o), r25_byOwnerClosed(o));
   }
 
+  @SuppressWarnings("unchecked")
+  @Rewrite("status:open T=(topic:*)")
+  public Predicate<ChangeData> r27_byTopicOpen(
+      @Named("T") final TopicPredicate t) {
+    return new ChangeSource(estimate(ChangeCosts.CARD_TOPIC, OPEN, topic(t))) {
+      {
+        init("r27_byTopicOpen", t);
+      }
+
+      @Override
+      ResultSet<Change> scan(ChangeAccess a) throws OrmException {
+        return a.byTopicNameOpen(t.getValue());
+      }
+
+      @Override
+      public boolean match(ChangeData cd) throws OrmException {
+        return cd.change(dbProvider).getStatus().isOpen() && t.match(cd);
+      }
+    };
+  }
+
+  @SuppressWarnings("unchecked")
+  @Rewrite("T=(topic:*)")
+  public Predicate<ChangeData> r27_byTopic(
+      @Named("T") final TopicPredicate t) {
+    return new ChangeSource(estimate(ChangeCosts.CARD_TOPIC, ALL, topic(t))) {
+      {
+        init("r27_byTopic", t);
+      }
+
+      @Override
+      ResultSet<Change> scan(ChangeAccess a) throws OrmException {
+        return a.byTopicName(t.getValue());
+      }
+
+      @Override
+      public boolean match(ChangeData cd) throws OrmException {
+        return t.match(cd);
+      }
+    };
+  }
+
   @SuppressWarnings("unchecked")
   @Rewrite("status:open R=(reviewer:*)")
   public Predicate<ChangeData> r30_byReviewerOpen(
@@ -519,7 +616,7 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
 
   @Rewrite("status:submitted")
   public Predicate<ChangeData> r99_allSubmitted() {
-    return new ChangeSource(50) {
+    return new ChangeSource(estimate(50, SUBMITTED)) {
       @Override
       ResultSet<Change> scan(ChangeAccess a) throws OrmException {
         return a.allSubmitted();
@@ -535,7 +632,7 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
   @Rewrite("P=(project:*)")
   public Predicate<ChangeData> r99_byProject(
       @Named("P") final ProjectPredicate p) {
-    return new ChangeSource(1000000) {
+    return new ChangeSource(estimate(1000000, ALL, project(p))) {
       @Override
       ResultSet<Change> scan(ChangeAccess a) throws OrmException {
         return a.byProject(p.getValueKey());
@@ -548,6 +645,161 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
     };
   }
 
+  /**
+   * Estimate how many changes a database query returns.
+   * <p>
+   * The index counts the changes of every status and term. Terms are
+   * assumed to be independent of each other, and of the status.
+   *
+   * @param fallback estimate used until the index is complete.
+   * @param statuses statuses of the changes the query returns.
+   * @param terms index terms all changes the query returns have.
+   * @return estimated number of changes.
+   */
+  private int estimate(int fallback, Set<Change.Status> statuses,
+      String... terms) {
+    if (!index.isReady()) {
+      return fallback;
+    }
+    int total = index.size();
+    double n = 0;
+    for (Change.Status s : statuses) {
+      n += index.count(ChangeIndex.STATUS + s.getCode());
+    }
+    for (String t : terms) {
+      n = 0 < total ? n * index.count(t) / total : 0;
+    }
+    return (int) Math.ceil(n);
+  }
+
+  private static String project(ProjectPredicate p) {
+    return ChangeIndex.PROJECT + p.getValueKey().get();
+  }
+
+  private static String owner(OwnerPredicate o) {
+    return ChangeIndex.OWNER + o.getAccountId().get();
+  }
+
+  private static String topic(TopicPredicate t) {
+    return ChangeIndex.TOPIC + t.getValue();
+  }
+
+  // The index can only be trusted once every change is in it, until then
+  // the rules below leave their predicate as it is.
+  //
+
+  @Rewrite("F=(file:*)")
+  public Predicate<ChangeData> r40_byFileIndex(
+      @Named("F") final RegexFilePredicate f) {
+    if (!index.isReady()) {
+      return f;
+    }
+    List<String> terms = new ArrayList<String>();
+    for (String t : index.terms(ChangeIndex.FILE + f.getPrefix())) {
+      if (f.matchesPath(t.substring(ChangeIndex.FILE.length()))) {
+        terms.add(t);
+      }
+    }
+    return new IndexSource(f, index.search(terms));
+  }
+
+  @Rewrite("M=(message:*)")
+  public Predicate<ChangeData> r40_byMessageIndex(
+      @Named("M") final MessagePredicate m) {
+    List<String> words = ChangeIndex.words(m.getValue());
+    if (!index.isReady() || words.isEmpty()
+        || !SubStringRevFilter.safe(m.getValue())) {
+      return m;
+    }
+
+    // Words inside the text must appear whole in the message, but the
+    // first and last may only be part of a longer word.
+    //
+    List<String> all = index.terms(ChangeIndex.MESSAGE);
+    List<List<String>> groups = new ArrayList<List<String>>(words.size());
+    for (int i = 0; i < words.size(); i++) {
+      String w = words.get(i);
+      if (0 < i && i < words.size() - 1) {
+        groups.add(Collections.singletonList(ChangeIndex.MESSAGE + w));
+      } else {
+        List<String> terms = new ArrayList<String>();
+        for (String t : all) {
+          if (t.indexOf(w, ChangeIndex.MESSAGE.length()) >= 0) {
+            terms.add(t);
+          }
+        }
+        groups.add(terms);
+      }
+    }
+    return new IndexSource(m, index.searchAll(groups));
+  }
+
+  @Rewrite("T=(topic:*)")
+  public Predicate<ChangeData> r40_byTopicIndex(
+      @Named("T") final TopicPredicate t) {
+    if (!index.isReady()) {
+      // Not applicable, leave the topic to r27_byTopic.
+      return null;
+    }
+    return new IndexSource(t,
+        index.search(Collections.singletonList(topic(t))));
+  }
+
+  @Rewrite("B=(branch:*)")
+  public Predicate<ChangeData> r40_byBranchIndex(
+      @Named("B") final BranchPredicate b) {
+    if (!index.isReady()) {
+      return b;
+    }
+    return new IndexSource(b, index.search(Collections
+        .singletonList(ChangeIndex.BRANCH + Branch.R_HEADS + b.getValue())));
+  }
+
+  @Rewrite("L=(label:*)")
+  public Predicate<ChangeData> r40_byLabelIndex(
+      @Named("L") final LabelPredicate l) {
+    if (!index.isReady()) {
+      return l;
+    }
+    String prefix = ChangeIndex.LABEL + l.getCategoryId().get() + "=";
+    List<String> terms = new ArrayList<String>();
+    for (String t : index.terms(prefix)) {
+      try {
+        if (l.matchesValue(Integer.parseInt(t.substring(prefix.length())))) {
+          terms.add(t);
+        }
+      } catch (NumberFormatException e) {
+        // A longer category id sharing the prefix.
+      }
+    }
+    return new IndexSource(l, index.search(terms));
+  }
+
+  /**
+   * Tell the index sources among the terms of a query how many changes it
+   * shows, and after which sort key, so they load one page at a time.
+   */
+  private static void paginate(Collection<? extends Predicate<ChangeData>> l) {
+    SortKeyPredicate start = null;
+    int limit = 0;
+    for (Predicate<ChangeData> p : l) {
+      if (p instanceof SortKeyPredicate) {
+        start = (SortKeyPredicate) p;
+      } else if (p instanceof IntPredicate
+          && ChangeQueryBuilder.FIELD_LIMIT.equals(
+              ((IntPredicate<ChangeData>) p).getOperator())) {
+        limit = ((IntPredicate<ChangeData>) p).intValue();
+      }
+    }
+    if (0 < limit) {
+      for (Predicate<ChangeData> p : l) {
+        if (p instanceof IndexSource) {
+          ((IndexSource) p).paginate(start, limit);
+        }
+      }
+    }
+  }
+
   private static boolean hasSource(Collection<? extends Predicate<ChangeData>> l) {
     for (Predicate<ChangeData> p : l) {
       if (p instanceof ChangeDataSource) {
@@ -565,6 +817,96 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
     }
   }
 
+  /**
+   * Changes found by the index, checked again by the predicate.
+   * <p>
+   * Changes are read newest first by the sort key they were indexed with,
+   * all at once unless {@link #paginate(SortKeyPredicate, int)} was called.
+   */
+  private class IndexSource extends Source implements OrderedSource,
+      Paginated {
+    private final Predicate<ChangeData> pred;
+    private final List<Change.Id> found;
+    private List<Change.Id> ids;
+    private boolean ascending;
+    private int limit = Integer.MAX_VALUE;
+    private int next;
+
+    IndexSource(Predicate<ChangeData> pred, List<Change.Id> found) {
+      this.pred = pred;
+      this.found = found;
+      this.ids = index.newestFirst(found, null, null);
+    }
+
+    /** Read at most {@code lim} changes at a time, after {@code start}. */
+    void paginate(SortKeyPredicate start, int lim) {
+      if (start instanceof SortKeyPredicate.After) {
+        // Like the database sources, return the changes just after the
+        // key, oldest first.
+        //
+        ids = index.newestFirst(found, start.getValue(), null);
+        Collections.reverse(ids);
+        ascending = true;
+      } else if (start != null) {
+        ids = index.newestFirst(found, null, start.getValue());
+      }
+      limit = lim;
+    }
+
+    @Override
+    public int limit() {
+      return limit;
+    }
+
+    @Override
+    public ResultSet<ChangeData> read() throws OrmException {
+      return read(0);
+    }
+
+    /** Continue after the last page read, whatever {@code last} is. */
+    @Override
+    public ResultSet<ChangeData> restart(ChangeData last) throws OrmException {
+      return read(next);
+    }
+
+    private ResultSet<ChangeData> read(int from) throws OrmException {
+      next = (int) Math.min((long) from + limit, ids.size());
+      List<Change> r;
+      if (from < next) {
+        r = dbProvider.get().changes().get(ids.subList(from, next)).toList();
+        Collections.sort(r, ascending ? OLDEST_FIRST : NEWEST_FIRST);
+      } else {
+        r = Collections.emptyList();
+      }
+      return ChangeDataResultSet.change(new ListResultSet<Change>(r));
+    }
+
+    @Override
+    public boolean match(ChangeData cd) throws OrmException {
+      return pred.match(cd);
+    }
+
+    @Override
+    public boolean hasChange() {
+      return true;
+    }
+
+    @Override
+    public boolean isOrdered() {
+      return !ascending;
+    }
+
+    @Override
+    public int getCardinality() {
+      return ids.size();
+    }
+
+    @Override
+    public int getCost() {
+      return ChangeCosts.cost(ChangeCosts.IDS_MEMORY, getCardinality());
+    }
+  }
+
   private abstract class ChangeSource extends Source {
     private final int cardinality;
 
@@ -596,13 +938,15 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
   }
 
   private abstract class PaginatedSource extends ChangeSource implements
-      Paginated {
+      Paginated, OrderedSource {
     private final String startKey;
+    private final boolean descending;
     private final int limit;
 
-    PaginatedSource(int card, String start, int lim) {
+    PaginatedSource(int card, SortKeyPredicate start, int lim) {
       super(card);
-      this.startKey = start;
+      this.startKey = start.getValue();
+      this.descending = start instanceof SortKeyPredicate.Before;
       this.limit = lim;
     }
 
@@ -611,6 +955,11 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
       return limit;
     }
 
+    @Override
+    public boolean isOrdered() {
+      return descending;
+    }
+
     @Override
     ResultSet<Change> scan(ChangeAccess a) throws OrmException {
       return scan(a, startKey, limit);
@@ -25,8 +25,10 @@ import com.google.inject.Provider;
 import org.eclipse.jgit.lib.AbbreviatedObjectId;
 import org.eclipse.jgit.lib.ObjectId;
 
+import java.util.Collection;
+
 class CommitPredicate extends ObjectIdPredicate<ChangeData> implements
-    ChangeDataSource {
+    ChangeDataSource, Prefetching {
   private final Provider<ReviewDb> dbProvider;
 
   CommitPredicate(Provider<ReviewDb> dbProvider, AbbreviatedObjectId id) {
@@ -70,6 +72,11 @@ class CommitPredicate extends ObjectIdPredicate<ChangeData> implements
     return ChangeCosts.CARD_COMMIT;
   }
 
+  @Override
+  public void prefetch(Collection<ChangeData> changes) throws OrmException {
+    ChangeData.ensureAllPatchSetsLoaded(dbProvider, changes);
+  }
+
   @Override
   public int getCost() {
     return ChangeCosts.cost(ChangeCosts.PATCH_SETS_SCAN, getCardinality());
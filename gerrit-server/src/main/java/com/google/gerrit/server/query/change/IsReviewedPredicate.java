@@ -22,7 +22,10 @@ import com.google.gerrit.server.query.OperatorPredicate;
 import com.google.gwtorm.client.OrmException;
 import com.google.inject.Provider;
 
-class IsReviewedPredicate extends OperatorPredicate<ChangeData> {
+import java.util.Collection;
+
+class IsReviewedPredicate extends OperatorPredicate<ChangeData>
+    implements Prefetching {
   private final Provider<ReviewDb> dbProvider;
 
   IsReviewedPredicate(Provider<ReviewDb> dbProvider) {
@@ -47,6 +50,12 @@ class IsReviewedPredicate extends OperatorPredicate<ChangeData> {
     return false;
   }
 
+  @Override
+  public void prefetch(Collection<ChangeData> changes) throws OrmException {
+    ChangeData.ensureChangesLoaded(dbProvider, changes);
+    ChangeData.ensureApprovalsLoaded(dbProvider, changes);
+  }
+
   @Override
   public int getCost() {
     return 2;
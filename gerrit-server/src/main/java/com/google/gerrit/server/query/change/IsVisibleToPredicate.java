@@ -24,7 +24,10 @@ import com.google.gerrit.server.query.OperatorPredicate;
 import com.google.gwtorm.client.OrmException;
 import com.google.inject.Provider;
 
-class IsVisibleToPredicate extends OperatorPredicate<ChangeData> {
+import java.util.Collection;
+
+class IsVisibleToPredicate extends OperatorPredicate<ChangeData>
+    implements Prefetching {
   private static String describe(CurrentUser user) {
     if (user instanceof IdentifiedUser) {
       return ((IdentifiedUser) user).getAccountId().toString();
@@ -66,6 +69,11 @@ class IsVisibleToPredicate extends OperatorPredicate<ChangeData> {
     }
   }
 
+  @Override
+  public void prefetch(Collection<ChangeData> changes) throws OrmException {
+    ChangeData.ensureChangesLoaded(db, changes);
+  }
+
   @Override
   public int getCost() {
     return 1;
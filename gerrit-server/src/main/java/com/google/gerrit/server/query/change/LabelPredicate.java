@@ -27,10 +27,12 @@ import com.google.gerrit.server.query.OperatorPredicate;
 import com.google.gwtorm.client.OrmException;
 import com.google.inject.Provider;
 
+import java.util.Collection;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-class LabelPredicate extends OperatorPredicate<ChangeData> {
+class LabelPredicate extends OperatorPredicate<ChangeData> implements
+    Prefetching {
   private static enum Test {
     EQ {
       @Override
@@ -143,6 +145,15 @@ class LabelPredicate extends OperatorPredicate<ChangeData> {
     this.permissionName = Permission.forLabel(category.getLabelName());
   }
 
+  ApprovalCategory.Id getCategoryId() {
+    return category.getId();
+  }
+
+  /** @return true if an approval of this value could match. */
+  boolean matchesValue(int psValue) {
+    return test.match(psValue, expVal);
+  }
+
   @Override
   public boolean match(final ChangeData object) throws OrmException {
     for (PatchSetApproval p : object.currentApprovals(dbProvider)) {
@@ -175,6 +186,12 @@ class LabelPredicate extends OperatorPredicate<ChangeData> {
     return false;
   }
 
+  @Override
+  public void prefetch(Collection<ChangeData> changes) throws OrmException {
+    ChangeData.ensureChangesLoaded(dbProvider, changes);
+    ChangeData.ensureApprovalsLoaded(dbProvider, changes);
+  }
+
   @Override
   public int getCost() {
     return 2;
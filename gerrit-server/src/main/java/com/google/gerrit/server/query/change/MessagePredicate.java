@@ -37,12 +37,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.Collection;
 
 /**
  * Predicate to match changes that contains specified text in commit messages
  * body.
  */
-public class MessagePredicate extends OperatorPredicate<ChangeData> {
+public class MessagePredicate extends OperatorPredicate<ChangeData>
+    implements Prefetching {
 
   private static final Logger log =
       LoggerFactory.getLogger(MessagePredicate.class);
@@ -117,6 +119,12 @@ public class MessagePredicate extends OperatorPredicate<ChangeData> {
     return false;
   }
 
+  @Override
+  public void prefetch(Collection<ChangeData> changes) throws OrmException {
+    ChangeData.ensureChangesLoaded(db, changes);
+    ChangeData.ensureAllPatchSetsLoaded(db, changes);
+  }
+
   @Override
   public int getCost() {
     return 1;
@@ -23,10 +23,24 @@ import com.google.gwtorm.client.impl.ListResultSet;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+class OrSource extends OrPredicate<ChangeData> implements ChangeDataSource,
+    OrderedSource {
+  private static final Comparator<Head> NEWEST_FIRST = new Comparator<Head>() {
+    @Override
+    public int compare(Head a, Head b) {
+      return b.sortKey().compareTo(a.sortKey());
+    }
+  };
 
-class OrSource extends OrPredicate<ChangeData> implements ChangeDataSource {
   private int cardinality = -1;
+  private int rowsReturned;
 
   OrSource(final Collection<? extends Predicate<ChangeData>> that) {
     super(that);
@@ -34,6 +48,10 @@ class OrSource extends OrPredicate<ChangeData> implements ChangeDataSource {
 
   @Override
   public ResultSet<ChangeData> read() throws OrmException {
+    if (isOrdered()) {
+      return merge();
+    }
+
     // TODO(spearce) This probably should be more lazy.
     //
     ArrayList<ChangeData> r = new ArrayList<ChangeData>();
@@ -43,6 +61,7 @@ class OrSource extends OrPredicate<ChangeData> implements ChangeDataSource {
         for (ChangeData cd : ((ChangeDataSource) p).read()) {
           if (have.add(cd.getId())) {
             r.add(cd);
+            rowsReturned++;
           }
         }
       } else {
@@ -52,6 +71,86 @@ class OrSource extends OrPredicate<ChangeData> implements ChangeDataSource {
     return new ListResultSet<ChangeData>(r);
   }
 
+  /** Merge the ordered results of all children, reading them lazily. */
+  private ResultSet<ChangeData> merge() throws OrmException {
+    final List<ResultSet<ChangeData>> sources =
+        new ArrayList<ResultSet<ChangeData>>();
+    for (Predicate<ChangeData> p : getChildren()) {
+      sources.add(((ChangeDataSource) p).read());
+    }
+
+    return new AbstractResultSet<ChangeData>() {
+      @Override
+      public Iterator<ChangeData> iterator() {
+        final PriorityQueue<Head> heads =
+            new PriorityQueue<Head>(sources.size(), NEWEST_FIRST);
+        for (ResultSet<ChangeData> rs : sources) {
+          Head h = new Head(rs.iterator());
+          if (h.advance()) {
+            heads.add(h);
+          }
+        }
+
+        return new Iterator<ChangeData>() {
+          private final HashSet<Change.Id> seen = new HashSet<Change.Id>();
+          private ChangeData next;
+
+          @Override
+          public boolean hasNext() {
+            while (next == null && !heads.isEmpty()) {
+              Head h = heads.poll();
+              if (seen.add(h.current.getId())) {
+                next = h.current;
+                rowsReturned++;
+              }
+              if (h.advance()) {
+                heads.add(h);
+              }
+            }
+            return next != null;
+          }
+
+          @Override
+          public ChangeData next() {
+            if (hasNext()) {
+              ChangeData r = next;
+              next = null;
+              return r;
+            }
+            throw new NoSuchElementException();
+          }
+
+          @Override
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+
+      @Override
+      public void close() {
+        for (ResultSet<ChangeData> rs : sources) {
+          rs.close();
+        }
+      }
+    };
+  }
+
+  /** Number of distinct results returned, for {@code --explain}. */
+  int getRowsReturned() {
+    return rowsReturned;
+  }
+
+  @Override
+  public boolean isOrdered() {
+    for (Predicate<ChangeData> p : getChildren()) {
+      if (!(p instanceof OrderedSource) || !((OrderedSource) p).isOrdered()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   @Override
   public boolean hasChange() {
     for (Predicate<ChangeData> p : getChildren()) {
@@ -75,4 +174,23 @@ class OrSource extends OrPredicate<ChangeData> implements ChangeDataSource {
     }
     return cardinality;
   }
+
+  /** Next result of one child, while merging. */
+  private static class Head {
+    final Iterator<ChangeData> rest;
+    ChangeData current;
+
+    Head(Iterator<ChangeData> rest) {
+      this.rest = rest;
+    }
+
+    boolean advance() {
+      current = rest.hasNext() ? rest.next() : null;
+      return current != null;
+    }
+
+    String sortKey() {
+      return current.getChange().getSortKey();
+    }
+  }
 }
@@ -0,0 +1,30 @@
+// Copyright (C) 2011 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.query.change;
+
+import com.google.gwtorm.client.OrmException;
+
+import java.util.Collection;
+
+/** Predicate which can load the data it needs for many changes at once. */
+interface Prefetching {
+  /**
+   * Load the data {@code match()} will examine, before it is called.
+   *
+   * @param changes candidates about to be matched.
+   * @throws OrmException the data could not be read.
+   */
+  void prefetch(Collection<ChangeData> changes) throws OrmException;
+}
@@ -25,6 +25,7 @@ import com.google.gerrit.server.query.Predicate;
 import com.google.gerrit.server.query.QueryParseException;
 import com.google.gson.Gson;
 import com.google.gwtorm.client.OrmException;
+import com.google.gwtorm.client.ResultSet;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 
@@ -47,6 +48,8 @@ import java.util.Comparator;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class QueryProcessor {
   private static final Logger log =
@@ -56,7 +59,15 @@ public class QueryProcessor {
     TEXT, JSON;
   }
 
-  private final Gson gson = new Gson();
+  /** Number of changes whose data is loaded together, before they are shown. */
+  private static final int BATCH_SIZE = 50;
+
+  /** Shared, as Gson caches the reflective adapter of each type it sees. */
+  private static final Gson gson = new Gson();
+
+  /** Fields shown for each type in the text format, superclass fields first. */
+  private static final ConcurrentMap<Class<?>, Field[]> textFields =
+      new ConcurrentHashMap<Class<?>, Field[]>();
   private final SimpleDateFormat sdf =
       new SimpleDateFormat("yyyy-MM-dd HH:mm:ss zzz");
 
@@ -70,6 +81,9 @@ public class QueryProcessor {
   private boolean includePatchSets;
   private boolean includeCurrentPatchSet;
   private boolean includeApprovals;
+  private boolean explain;
+
+  private int rowsRead;
 
   private OutputStream outputStream = DisabledOutputStream.INSTANCE;
   private PrintWriter out;
@@ -96,6 +110,10 @@ public class QueryProcessor {
     includeApprovals = on;
   }
 
+  public void setExplain(boolean on) {
+    explain = on;
+  }
+
   public void setOutput(OutputStream out, OutputFormat fmt) {
     this.outputStream = out;
     this.outputFormat = fmt;
@@ -109,72 +127,25 @@ public class QueryProcessor {
       try {
         final QueryStats stats = new QueryStats();
         stats.runTimeMilliseconds = System.currentTimeMillis();
+        rowsRead = 0;
 
         final Predicate<ChangeData> visibleToMe = queryBuilder.is_visible();
         Predicate<ChangeData> s = compileQuery(queryString, visibleToMe);
-        List<ChangeData> results = new ArrayList<ChangeData>();
-        HashSet<Change.Id> want = new HashSet<Change.Id>();
-        for (ChangeData d : ((ChangeDataSource) s).read()) {
-          if (d.hasChange()) {
-            // Checking visibleToMe here should be unnecessary, the
-            // query should have already performed it. But we don't
-            // want to trust the query rewriter that much yet.
-            //
-            if (visibleToMe.match(d)) {
-              results.add(d);
-            }
-          } else {
-            want.add(d.getId());
-          }
-        }
-
-        if (!want.isEmpty()) {
-          for (Change c : db.get().changes().get(want)) {
-            ChangeData d = new ChangeData(c);
-            if (visibleToMe.match(d)) {
-              results.add(d);
-            }
-          }
-        }
-
-        Collections.sort(results, new Comparator<ChangeData>() {
-          @Override
-          public int compare(ChangeData a, ChangeData b) {
-            return b.getChange().getSortKey().compareTo(
-                a.getChange().getSortKey());
-          }
-        });
-
         int limit = limit(s);
-        if (limit < results.size()) {
-          results = results.subList(0, limit);
-        }
-
-        for (ChangeData d : results) {
-          ChangeAttribute c = eventFactory.asChangeAttribute(d.getChange());
-          eventFactory.extend(c, d.getChange());
-          eventFactory.addTrackingIds(c, d.trackingIds(db));
-
-          if (includePatchSets) {
-            eventFactory.addPatchSets(c, d.patches(db),
-              includeApprovals ? d.approvalsMap(db) : null);
-          }
-
-          if (includeCurrentPatchSet) {
-            PatchSet current = d.currentPatchSet(db);
-            if (current != null) {
-              c.currentPatchSet = eventFactory.asPatchSetAttribute(current);
-              eventFactory.addApprovals(c.currentPatchSet, //
-                  d.approvalsFor(db, current.getId()));
-            }
-          }
-
-          show(c);
+        if (s instanceof OrderedSource && ((OrderedSource) s).isOrdered()) {
+          stats.rowCount = stream((ChangeDataSource) s, visibleToMe, limit);
+        } else {
+          stats.rowCount =
+              sortAndShow((ChangeDataSource) s, visibleToMe, limit);
         }
 
-        stats.rowCount = results.size();
         stats.runTimeMilliseconds =
             System.currentTimeMillis() - stats.runTimeMilliseconds;
+        if (explain) {
+          QueryPlan plan = new QueryPlan();
+          plan.plan = explain(s, rowsRead);
+          show(plan);
+        }
         show(stats);
       } catch (OrmException err) {
         log.error("Cannot execute query: " + queryString, err);
@@ -197,10 +168,187 @@ public class QueryProcessor {
     }
   }
 
+  /**
+   * Show the results of a source which already returns them newest first.
+   * <p>
+   * Rows are written as soon as a batch is complete, and the source is not
+   * read past the last row that will be shown.
+   */
+  private int stream(ChangeDataSource source,
+      Predicate<ChangeData> visibleToMe, int limit) throws OrmException {
+    List<ChangeData> batch = new ArrayList<ChangeData>(BATCH_SIZE);
+    int rows = 0;
+    ResultSet<ChangeData> rs = source.read();
+    try {
+      for (ChangeData d : rs) {
+        if (limit <= rows) {
+          break;
+        }
+        rowsRead++;
+
+        // Checking visibleToMe here should be unnecessary, the
+        // query should have already performed it. But we don't
+        // want to trust the query rewriter that much yet.
+        //
+        if (visibleToMe.match(d)) {
+          batch.add(d);
+          rows++;
+          if (batch.size() == BATCH_SIZE) {
+            showBatch(batch);
+            batch.clear();
+          }
+        }
+      }
+    } finally {
+      rs.close();
+    }
+    showBatch(batch);
+    return rows;
+  }
+
+  /** Show the results of a source which returns them in any order. */
+  private int sortAndShow(ChangeDataSource source,
+      Predicate<ChangeData> visibleToMe, int limit) throws OrmException {
+    List<ChangeData> results = new ArrayList<ChangeData>();
+    HashSet<Change.Id> want = new HashSet<Change.Id>();
+    for (ChangeData d : source.read()) {
+      rowsRead++;
+      if (d.hasChange()) {
+        // Checking visibleToMe here should be unnecessary, the
+        // query should have already performed it. But we don't
+        // want to trust the query rewriter that much yet.
+        //
+        if (visibleToMe.match(d)) {
+          results.add(d);
+        }
+      } else {
+        want.add(d.getId());
+      }
+    }
+
+    if (!want.isEmpty()) {
+      for (Change c : db.get().changes().get(want)) {
+        ChangeData d = new ChangeData(c);
+        if (visibleToMe.match(d)) {
+          results.add(d);
+        }
+      }
+    }
+
+    Collections.sort(results, new Comparator<ChangeData>() {
+      @Override
+      public int compare(ChangeData a, ChangeData b) {
+        return b.getChange().getSortKey().compareTo(
+            a.getChange().getSortKey());
+      }
+    });
+
+    if (limit < results.size()) {
+      results = results.subList(0, limit);
+    }
+
+    for (int i = 0; i < results.size(); i += BATCH_SIZE) {
+      showBatch(results.subList(i, Math.min(i + BATCH_SIZE, results.size())));
+    }
+    return results.size();
+  }
+
+  private void showBatch(List<ChangeData> batch) throws OrmException {
+    if (batch.isEmpty()) {
+      return;
+    }
+
+    ChangeData.ensureTrackingIdsLoaded(db, batch);
+    if (includePatchSets || includeCurrentPatchSet) {
+      ChangeData.ensureAllPatchSetsLoaded(db, batch);
+    }
+    if ((includePatchSets && includeApprovals) || includeCurrentPatchSet) {
+      ChangeData.ensureApprovalsLoaded(db, batch);
+    }
+
+    for (ChangeData d : batch) {
+      ChangeAttribute c = eventFactory.asChangeAttribute(d.getChange());
+      eventFactory.extend(c, d.getChange());
+      eventFactory.addTrackingIds(c, d.trackingIds(db));
+
+      if (includePatchSets) {
+        eventFactory.addPatchSets(c, d.patches(db),
+          includeApprovals ? d.approvalsMap(db) : null);
+      }
+
+      if (includeCurrentPatchSet) {
+        PatchSet current = d.currentPatchSet(db);
+        if (current != null) {
+          c.currentPatchSet = eventFactory.asPatchSetAttribute(current);
+          eventFactory.addApprovals(c.currentPatchSet, //
+              d.approvalsFor(db, current.getId()));
+        }
+      }
+
+      show(c);
+    }
+    out.flush();
+  }
+
   private int limit(Predicate<ChangeData> s) {
     return queryBuilder.hasLimit(s) ? queryBuilder.getLimit(s) : defaultLimit;
   }
 
+  /**
+   * Describe how the rewritten query was executed.
+   * <p>
+   * Sources show the number of rows the planner expected them to return,
+   * and all nodes show their cost. Where it was counted, the number of rows
+   * actually returned is shown too. Within an AND the first source is the
+   * one that was read, the other children only filtered its results.
+   */
+  private static PlanNode explain(Predicate<ChangeData> p, Integer actual) {
+    PlanNode n = new PlanNode();
+    n.cost = p.getCost();
+    n.actualRows = actual;
+    if (p instanceof ChangeDataSource) {
+      n.estimatedRows = ((ChangeDataSource) p).getCardinality();
+    }
+
+    if (p instanceof AndSource) {
+      AndSource and = (AndSource) p;
+      ChangeDataSource source = and.source();
+      n.predicate = "AND";
+      n.children = new ArrayList<PlanNode>();
+      for (Predicate<ChangeData> c : p.getChildren()) {
+        PlanNode child;
+        if (c == source) {
+          child = explain(c, and.getRowsRead());
+          child.role = "scan";
+        } else {
+          child = explain(c, rowsReturned(c));
+          child.role = "filter";
+        }
+        n.children.add(child);
+      }
+
+    } else if (p instanceof OrSource) {
+      n.predicate = "OR";
+      n.children = new ArrayList<PlanNode>();
+      for (Predicate<ChangeData> c : p.getChildren()) {
+        n.children.add(explain(c, rowsReturned(c)));
+      }
+
+    } else {
+      n.predicate = p.toString();
+    }
+    return n;
+  }
+
+  private static Integer rowsReturned(Predicate<ChangeData> p) {
+    if (p instanceof AndSource) {
+      return ((AndSource) p).getRowsReturned();
+    } else if (p instanceof OrSource) {
+      return ((OrSource) p).getRowsReturned();
+    }
+    return null;
+  }
+
   @SuppressWarnings("unchecked")
   private Predicate<ChangeData> compileQuery(String queryString,
       final Predicate<ChangeData> visibleToMe) throws QueryParseException {
@@ -318,15 +466,34 @@ public class QueryProcessor {
         || "grantedOn".equals(name);
   }
 
-  private List<Field> fieldsOf(Class<?> type) {
-    List<Field> r = new ArrayList<Field>();
-    if (type.getSuperclass() != null) {
-      r.addAll(fieldsOf(type.getSuperclass()));
+  private static Field[] fieldsOf(Class<?> type) {
+    Field[] r = textFields.get(type);
+    if (r == null) {
+      List<Field> all = new ArrayList<Field>();
+      if (type.getSuperclass() != null) {
+        all.addAll(Arrays.asList(fieldsOf(type.getSuperclass())));
+      }
+      all.addAll(Arrays.asList(type.getDeclaredFields()));
+      r = all.toArray(new Field[all.size()]);
+      textFields.put(type, r);
     }
-    r.addAll(Arrays.asList(type.getDeclaredFields()));
     return r;
   }
 
+  static class QueryPlan {
+    public final String type = "plan";
+    public PlanNode plan;
+  }
+
+  static class PlanNode {
+    public String predicate;
+    public String role;
+    public Integer estimatedRows;
+    public Integer actualRows;
+    public Integer cost;
+    public List<PlanNode> children;
+  }
+
   static class ErrorMessage {
     public final String type = "error";
     public String message;
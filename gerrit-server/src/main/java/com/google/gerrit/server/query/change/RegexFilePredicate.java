@@ -65,6 +65,17 @@ class RegexFilePredicate extends OperatorPredicate<ChangeData> {
     pattern = prefixOnly ? null : new RunAutomaton(automaton);
   }
 
+  /** @return prefix shared by all paths the expression can match. */
+  String getPrefix() {
+    return prefixBegin;
+  }
+
+  /** @return true if the path matches the expression. */
+  boolean matchesPath(String path) {
+    return path.startsWith(prefixBegin)
+        && (prefixOnly || pattern.run(path));
+  }
+
   @Override
   public boolean match(ChangeData object) throws OrmException {
     String[] files = object.currentFilePaths(db, cache);
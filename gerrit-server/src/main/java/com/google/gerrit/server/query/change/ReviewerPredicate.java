@@ -21,7 +21,10 @@ import com.google.gerrit.server.query.OperatorPredicate;
 import com.google.gwtorm.client.OrmException;
 import com.google.inject.Provider;
 
-class ReviewerPredicate extends OperatorPredicate<ChangeData> {
+import java.util.Collection;
+
+class ReviewerPredicate extends OperatorPredicate<ChangeData>
+    implements Prefetching {
   private final Provider<ReviewDb> dbProvider;
   private final Account.Id id;
 
@@ -45,6 +48,11 @@ class ReviewerPredicate extends OperatorPredicate<ChangeData> {
     return false;
   }
 
+  @Override
+  public void prefetch(Collection<ChangeData> changes) throws OrmException {
+    ChangeData.ensureApprovalsLoaded(dbProvider, changes);
+  }
+
   @Override
   public int getCost() {
     return 2;
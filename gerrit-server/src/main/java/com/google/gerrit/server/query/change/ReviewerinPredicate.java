@@ -22,7 +22,10 @@ import com.google.gerrit.server.query.OperatorPredicate;
 import com.google.gwtorm.client.OrmException;
 import com.google.inject.Provider;
 
-class ReviewerinPredicate extends OperatorPredicate<ChangeData> {
+import java.util.Collection;
+
+class ReviewerinPredicate extends OperatorPredicate<ChangeData>
+    implements Prefetching {
   private final Provider<ReviewDb> dbProvider;
   private final IdentifiedUser.GenericFactory userFactory;
   private final AccountGroup.Id id;
@@ -51,6 +54,11 @@ class ReviewerinPredicate extends OperatorPredicate<ChangeData> {
     return false;
   }
 
+  @Override
+  public void prefetch(Collection<ChangeData> changes) throws OrmException {
+    ChangeData.ensureApprovalsLoaded(dbProvider, changes);
+  }
+
   @Override
   public int getCost() {
     return 3;
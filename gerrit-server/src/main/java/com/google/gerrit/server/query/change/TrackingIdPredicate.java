@@ -24,10 +24,11 @@ import com.google.gwtorm.client.impl.ListResultSet;
 import com.google.inject.Provider;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 
 class TrackingIdPredicate extends OperatorPredicate<ChangeData> implements
-    ChangeDataSource {
+    ChangeDataSource, Prefetching {
   private final Provider<ReviewDb> db;
 
   TrackingIdPredicate(Provider<ReviewDb> db, String trackingId) {
@@ -70,6 +71,11 @@ class TrackingIdPredicate extends OperatorPredicate<ChangeData> implements
     return ChangeCosts.CARD_TRACKING_IDS;
   }
 
+  @Override
+  public void prefetch(Collection<ChangeData> changes) throws OrmException {
+    ChangeData.ensureTrackingIdsLoaded(db, changes);
+  }
+
   @Override
   public int getCost() {
     return ChangeCosts.cost(ChangeCosts.TR_SCAN, getCardinality());
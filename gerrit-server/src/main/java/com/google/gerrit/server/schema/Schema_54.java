@@ -0,0 +1,86 @@
+// Copyright (C) 2011 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.schema;
+
+import com.google.gerrit.reviewdb.ReviewDb;
+import com.google.gwtorm.client.OrmException;
+import com.google.gwtorm.jdbc.JdbcSchema;
+import com.google.gwtorm.schema.sql.DialectPostgreSQL;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Set;
+
+/** Create the indexes on the topic columns of {@code changes}. */
+class Schema_54 extends SchemaVersion {
+  @Inject
+  Schema_54(Provider<Schema_53> prior) {
+    super(prior);
+  }
+
+  @Override
+  protected void migrateData(ReviewDb db, UpdateUI ui) throws OrmException,
+      SQLException {
+    final JdbcSchema s = (JdbcSchema) db;
+    final Set<String> existing = indexesOf(s, "changes");
+
+    if (s.getDialect() instanceof DialectPostgreSQL) {
+      createIndex(db, existing, "changes_byTopicOpen",
+          "ON changes (topic_id) WHERE open = 'Y'");
+      createIndex(db, existing, "changes_byTopic", "ON changes (topic_id)");
+      createIndex(db, existing, "changes_byTopicName", "ON changes (topic)");
+    } else {
+      createIndex(db, existing, "changes_byTopicOpen",
+          "ON changes (open, topic_id)");
+      createIndex(db, existing, "changes_byTopic", "ON changes (topic_id)");
+      createIndex(db, existing, "changes_byTopicName",
+          "ON changes (topic, open)");
+    }
+  }
+
+  private void createIndex(ReviewDb db, Set<String> existing, String name,
+      String definition) throws SQLException {
+    // Sites created after the index was added to index_*.sql have it already.
+    if (!existing.contains(name.toLowerCase())) {
+      execute(db, "CREATE INDEX " + name + " " + definition);
+    }
+  }
+
+  private static Set<String> indexesOf(JdbcSchema s, String table)
+      throws SQLException {
+    final DatabaseMetaData meta = s.getConnection().getMetaData();
+    if (meta.storesUpperCaseIdentifiers()) {
+      table = table.toUpperCase();
+    }
+
+    final Set<String> names = new HashSet<String>();
+    final ResultSet rs = meta.getIndexInfo(null, null, table, false, true);
+    try {
+      while (rs.next()) {
+        final String name = rs.getString("INDEX_NAME");
+        if (name != null) {
+          names.add(name.toLowerCase());
+        }
+      }
+    } finally {
+      rs.close();
+    }
+    return names;
+  }
+}
@@ -0,0 +1,155 @@
+// Copyright (C) 2011 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.cache;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+public class SegmentStoreTest extends TestCase {
+  private File dir;
+  private SegmentStore store;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    dir = File.createTempFile("segments_", "_cache");
+    dir.delete();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    if (store != null) {
+      store.close();
+    }
+    delete(dir);
+    super.tearDown();
+  }
+
+  public void testPutGet() throws Exception {
+    store = open(100, 4096);
+    assertNull(store.get("a"));
+
+    store.put("a", "1");
+    store.put("b", 2);
+    assertEquals("1", store.get("a"));
+    assertEquals(2, store.get("b"));
+
+    store.put("a", "3");
+    assertEquals("3", store.get("a"));
+
+    store.remove("a");
+    assertNull(store.get("a"));
+    assertEquals(2, store.get("b"));
+
+    store.removeAll();
+    assertNull(store.get("b"));
+  }
+
+  public void testReopen() throws Exception {
+    store = open(100, 256);
+    for (int i = 0; i < 20; i++) {
+      store.put("k" + i, "v" + i);
+    }
+    store.put("k3", "changed");
+    store.remove("k5");
+    store.close();
+
+    store = open(100, 256);
+    assertEquals("v0", store.get("k0"));
+    assertEquals("changed", store.get("k3"));
+    assertNull(store.get("k5"));
+    assertEquals("v19", store.get("k19"));
+  }
+
+  public void testTruncatedTail() throws Exception {
+    store = open(100, 4096);
+    store.put("a", "1");
+    store.put("b", "2");
+    store.close();
+    store = null;
+
+    // Simulate a server stopped in the middle of writing "b".
+    final File seg = new File(dir, "00000001.seg");
+    final RandomAccessFile raf = new RandomAccessFile(seg, "rw");
+    try {
+      raf.setLength(raf.length() - 3);
+    } finally {
+      raf.close();
+    }
+
+    store = open(100, 4096);
+    assertEquals("1", store.get("a"));
+    assertNull(store.get("b"));
+
+    store.put("c", "3");
+    assertEquals("3", store.get("c"));
+  }
+
+  public void testEviction() throws Exception {
+    // Every record fills a segment on its own.
+    store = open(3, 1);
+    store.put("a", "1");
+    store.put("b", "2");
+    store.put("c", "3");
+    store.put("d", "4");
+
+    assertNull(store.get("a"));
+    assertEquals("2", store.get("b"));
+    assertEquals("3", store.get("c"));
+    assertEquals("4", store.get("d"));
+  }
+
+  public void testReadEntryIsMovedOutOfOldestSegment() throws Exception {
+    store = open(3, 1);
+    store.put("a", "1");
+    store.put("b", "2");
+    store.put("c", "3");
+
+    // "a" is in the oldest segment; reading it copies it to the newest,
+    // so evicting the oldest segment drops "b" instead.
+    assertEquals("1", store.get("a"));
+    store.put("d", "4");
+
+    assertEquals("1", store.get("a"));
+    assertNull(store.get("b"));
+    assertEquals("3", store.get("c"));
+    assertEquals("4", store.get("d"));
+
+    store.close();
+    store = open(3, 1);
+    assertEquals("1", store.get("a"));
+    assertNull(store.get("b"));
+  }
+
+  private SegmentStore open(final int maxEntries, final int segmentSize)
+      throws IOException {
+    return new SegmentStore("test", dir, maxEntries, 0, segmentSize);
+  }
+
+  private static void delete(final File f) throws IOException {
+    final File[] children = f.listFiles();
+    if (children != null) {
+      for (final File c : children) {
+        delete(c);
+      }
+    }
+    if (f.exists() && !f.delete()) {
+      throw new IOException("Cannot delete " + f);
+    }
+  }
+}
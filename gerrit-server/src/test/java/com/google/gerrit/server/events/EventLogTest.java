@@ -0,0 +1,184 @@
+// Copyright (C) 2011 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.events;
+
+import com.google.gerrit.reviewdb.Branch;
+import com.google.gerrit.reviewdb.Project;
+import com.google.gerrit.server.config.SitePaths;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jgit.lib.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class EventLogTest extends TestCase {
+  private static final Branch.NameKey MASTER =
+      new Branch.NameKey(new Project.NameKey("tools/gerrit"),
+          "refs/heads/master");
+
+  private File site;
+  private Config cfg;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    site = File.createTempFile("eventlog_", "_site");
+    site.delete();
+    cfg = new Config();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    delete(site);
+    super.tearDown();
+  }
+
+  public void testAppendAndReplay() throws Exception {
+    final EventLog log = start();
+    for (int i = 0; i < 3; i++) {
+      log.append(MASTER, event());
+    }
+    assertEquals(3, log.getLastSequence());
+
+    final List<Long> seqs = new ArrayList<Long>();
+    final List<byte[]> json = new ArrayList<byte[]>();
+    log.replay(1, 3, new EventLog.Visitor() {
+      @Override
+      public void onEvent(long seq, Branch.NameKey dest, byte[] event) {
+        assertEquals(MASTER, dest);
+        seqs.add(seq);
+        json.add(event);
+      }
+    });
+    assertEquals(list(2, 3), seqs);
+
+    final String first = new String(json.get(0), "UTF-8");
+    assertTrue(first.contains("\"seq\":2"));
+    assertTrue(first.endsWith("}\n"));
+  }
+
+  public void testReplayStopsAtUpTo() throws Exception {
+    final EventLog log = start();
+    for (int i = 0; i < 5; i++) {
+      log.append(MASTER, event());
+    }
+    assertEquals(list(3, 4), replay(log, 2, 4));
+    assertEquals(list(), replay(log, 5, 5));
+  }
+
+  public void testSequenceContinuesAfterRestart() throws Exception {
+    EventLog log = start();
+    log.append(MASTER, event());
+    log.append(MASTER, event());
+    log.stop();
+
+    log = start();
+    assertEquals(2, log.getLastSequence());
+    final ChangeEvent e = event();
+    log.append(MASTER, e);
+    assertEquals(Long.valueOf(3), e.seq);
+    assertEquals(list(1, 2, 3), replay(log, 0, 3));
+  }
+
+  public void testSegmentsRotate() throws Exception {
+    cfg.setLong("eventlog", null, "segmentSize", 1);
+    final EventLog log = start();
+    for (int i = 0; i < 3; i++) {
+      log.append(MASTER, event());
+    }
+    assertEquals(3, dir().list().length);
+    assertEquals(list(2, 3), replay(log, 1, 3));
+  }
+
+  public void testPartialRecordIsDiscarded() throws Exception {
+    EventLog log = start();
+    log.append(MASTER, event());
+    log.append(MASTER, event());
+    log.stop();
+
+    final File[] segments = dir().listFiles();
+    assertEquals(1, segments.length);
+    final FileOutputStream out = new FileOutputStream(segments[0], true);
+    out.write("3\ttools/ger".getBytes("UTF-8"));
+    out.close();
+
+    log = start();
+    assertEquals(2, log.getLastSequence());
+    log.append(MASTER, event());
+    assertEquals(list(1, 2, 3), replay(log, 0, 3));
+  }
+
+  public void testDisabled() throws Exception {
+    cfg.setBoolean("eventlog", null, "enable", false);
+    final EventLog log = start();
+    final ChangeEvent e = event();
+    log.append(MASTER, e);
+    assertNull(e.seq);
+    assertEquals(0, log.getLastSequence());
+  }
+
+  private EventLog start() throws IOException {
+    final EventLog log = new EventLog(cfg, new SitePaths(site));
+    log.start();
+    return log;
+  }
+
+  private File dir() {
+    return new File(site, "data/events");
+  }
+
+  private static ChangeEvent event() {
+    final RefUpdatedEvent e = new RefUpdatedEvent();
+    e.refUpdate = new RefUpdateAttribute();
+    e.refUpdate.project = MASTER.getParentKey().get();
+    e.refUpdate.refName = MASTER.get();
+    return e;
+  }
+
+  private static List<Long> replay(final EventLog log, final long after,
+      final long upTo) {
+    final List<Long> seqs = new ArrayList<Long>();
+    log.replay(after, upTo, new EventLog.Visitor() {
+      @Override
+      public void onEvent(long seq, Branch.NameKey dest, byte[] json) {
+        seqs.add(seq);
+      }
+    });
+    return seqs;
+  }
+
+  private static List<Long> list(final long... seqs) {
+    final List<Long> r = new ArrayList<Long>();
+    for (final long s : seqs) {
+      r.add(s);
+    }
+    return r;
+  }
+
+  private static void delete(final File f) {
+    final File[] children = f.listFiles();
+    if (children != null) {
+      for (final File c : children) {
+        delete(c);
+      }
+    }
+    f.delete();
+  }
+}
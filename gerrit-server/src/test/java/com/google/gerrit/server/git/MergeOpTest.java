@@ -0,0 +1,71 @@
+// Copyright (C) 2011 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.git;
+
+import com.google.gerrit.reviewdb.Account;
+import com.google.gerrit.reviewdb.Branch;
+import com.google.gerrit.reviewdb.Change;
+import com.google.gerrit.reviewdb.Project;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class MergeOpTest extends TestCase {
+  private final Project.NameKey project = new Project.NameKey("test");
+  private final Branch.NameKey master =
+      new Branch.NameKey(project, "refs/heads/master");
+  private final Branch.NameKey stable =
+      new Branch.NameKey(project, "refs/heads/stable");
+
+  public void testTopicOnOneBranch() {
+    final Change a = change(1, master, Change.Status.SUBMITTED);
+    final Change b = change(2, master, Change.Status.SUBMITTED);
+    assertEquals(Arrays.asList(a, b),
+        MergeOp.topicMembers(master, Arrays.asList(a, b)));
+    assertEquals(Collections.<Change> emptyList(),
+        MergeOp.topicMembers(stable, Arrays.asList(a, b)));
+  }
+
+  public void testTopicSpanningBranches() {
+    final Change a = change(1, master, Change.Status.SUBMITTED);
+    final Change b = change(2, stable, Change.Status.SUBMITTED);
+    final Change c = change(3, master, Change.Status.SUBMITTED);
+    final List<Change> all = Arrays.asList(a, b, c);
+
+    // Each branch merges its own changes, once all of them are submitted.
+    //
+    assertEquals(Arrays.asList(a, c), MergeOp.topicMembers(master, all));
+    assertEquals(Arrays.asList(b), MergeOp.topicMembers(stable, all));
+  }
+
+  public void testTopicWaitsForChangeOnOtherBranch() {
+    final Change a = change(1, master, Change.Status.SUBMITTED);
+    final Change b = change(2, stable, Change.Status.NEW);
+    final List<Change> all = Arrays.asList(a, b);
+    assertNull(MergeOp.topicMembers(master, all));
+    assertNull(MergeOp.topicMembers(stable, all));
+  }
+
+  private static Change change(final int id, final Branch.NameKey dest,
+      final Change.Status status) {
+    final Change c = new Change(new Change.Key("I" + id), new Change.Id(id),
+        new Account.Id(1), dest);
+    c.setStatus(status);
+    return c;
+  }
+}
@@ -0,0 +1,139 @@
+// Copyright (C) 2011 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.git;
+
+import com.google.gerrit.reviewdb.AccountGroup;
+import com.google.gerrit.reviewdb.Project;
+import com.google.gerrit.reviewdb.SystemConfig;
+import com.google.gerrit.server.AnonymousUser;
+import com.google.gerrit.server.ReplicationUser;
+import com.google.gerrit.server.cache.Cache;
+import com.google.gerrit.server.config.AuthConfig;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.codec.binary.Base64;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.Ref;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+public class VisibleRefCacheTest extends TestCase {
+  private final Project.NameKey project = new Project.NameKey("test");
+  private final List<ObjectId> access = Collections.singletonList(
+      ObjectId.fromString("0000000000000000000000000000000000000001"));
+
+  private Map<String, Ref> refs;
+  private VisibleRefCache cache;
+
+  @Override
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  protected void setUp() throws Exception {
+    super.setUp();
+    final ObjectId id =
+        ObjectId.fromString("0000000000000000000000000000000000000002");
+    refs = new HashMap<String, Ref>();
+    refs.put("refs/heads/master", new ObjectIdRef.PeeledNonTag(
+        Ref.Storage.LOOSE, "refs/heads/master", id));
+
+    cache = new VisibleRefCache(null, null, (Cache) new MapCache());
+  }
+
+  public void testAnonymousUsersShareAdvertisement() throws Exception {
+    final AnonymousUser anonymous = anonymousUser();
+    final VisibleRefCache.Advertisement a =
+        cache.getAdvertisement(project, access, anonymous, refs, true);
+    assertNotNull(a);
+    assertSame(a, cache.getAdvertisement(project, access, anonymous, refs,
+        true));
+    assertNotSame(a, cache.getAdvertisement(project, access, anonymous,
+        refs, false));
+  }
+
+  public void testReplicationUsersDoNotShareAdvertisements() {
+    // A remote whose authGroup names were not found has no groups at all,
+    // just like a remote allowed to see everything.
+    final ReplicationUser everything =
+        replicationUser(ReplicationUser.EVERYTHING_VISIBLE);
+    final ReplicationUser restricted =
+        replicationUser(Collections.<AccountGroup.UUID> emptySet());
+    assertTrue(everything.isEverythingVisible());
+    assertFalse(restricted.isEverythingVisible());
+    assertEquals(everything.getEffectiveGroups(),
+        restricted.getEffectiveGroups());
+
+    assertNull(cache.getAdvertisement(project, access, everything, refs,
+        true));
+    assertNull(cache.getAdvertisement(project, access, restricted, refs,
+        true));
+  }
+
+  private static AnonymousUser anonymousUser() throws Exception {
+    final SystemConfig systemConfig = SystemConfig.create();
+    systemConfig.registerEmailPrivateKey = Base64.encodeBase64String(
+        "abcdefghijklmnopqrstuvwxyz".getBytes("UTF-8"));
+    return Guice.createInjector(new AbstractModule() {
+      @Override
+      protected void configure() {
+        bind(Config.class) //
+            .annotatedWith(GerritServerConfig.class) //
+            .toInstance(new Config());
+
+        bind(SystemConfig.class).toInstance(systemConfig);
+        bind(AuthConfig.class);
+        bind(AnonymousUser.class);
+      }
+    }).getInstance(AnonymousUser.class);
+  }
+
+  private static ReplicationUser replicationUser(
+      final Set<AccountGroup.UUID> groups) {
+    return new ReplicationUser(null, groups) {};
+  }
+
+  private static class MapCache<K, V> implements Cache<K, V> {
+    private final Map<K, V> map = new HashMap<K, V>();
+
+    public V get(final K key) {
+      return map.get(key);
+    }
+
+    public void put(final K key, final V value) {
+      map.put(key, value);
+    }
+
+    public void remove(final K key) {
+      map.remove(key);
+    }
+
+    public void removeAll() {
+      map.clear();
+    }
+
+    public long getTimeToLive(final TimeUnit unit) {
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,285 @@
+// Copyright (C) 2011 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.index;
+
+import com.google.gerrit.reviewdb.Change;
+import com.google.gerrit.server.config.SitePaths;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jgit.lib.Config;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class ChangeIndexTest extends TestCase {
+  private File site;
+  private Config cfg;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    site = File.createTempFile("index_", "_site");
+    site.delete();
+    cfg = new Config();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    delete(site);
+    super.tearDown();
+  }
+
+  public void testWords() {
+    assertEquals(terms("fix", "npe", "in", "foo", "bar", "2"),
+        ChangeIndex.words("Fix NPE in foo_bar (#2)"));
+  }
+
+  public void testSearch() throws Exception {
+    final ChangeIndex index = start();
+    index.replace(id(2), terms("topic:a", "file:b.c"));
+    index.replace(id(1), terms("topic:a"));
+
+    assertEquals(ids(1, 2), index.search(terms("topic:a")));
+    assertEquals(ids(2), index.search(terms("file:b.c", "topic:x")));
+    assertEquals(1, index.count("file:b.c"));
+    assertEquals(terms("topic:a"), index.terms("topic:"));
+  }
+
+  public void testSearchAll() throws Exception {
+    final ChangeIndex index = start();
+    index.replace(id(1), terms("message:fix", "message:crash"));
+    index.replace(id(2), terms("message:fix", "message:typo"));
+    index.replace(id(3), terms("message:crashes"));
+
+    final List<List<String>> groups = new ArrayList<List<String>>();
+    groups.add(terms("message:fix"));
+    groups.add(terms("message:crash", "message:crashes"));
+    assertEquals(ids(1), index.searchAll(groups));
+  }
+
+  public void testReplaceAndRemove() throws Exception {
+    final ChangeIndex index = start();
+    index.replace(id(1), terms("topic:a"));
+    index.replace(id(1), terms("topic:b"));
+    assertEquals(ids(), index.search(terms("topic:a")));
+    assertEquals(ids(1), index.search(terms("topic:b")));
+
+    index.replace(id(1), Collections.<String> emptyList());
+    assertEquals(ids(), index.search(terms("topic:b")));
+    assertEquals(terms(), index.terms(""));
+  }
+
+  public void testReload() throws Exception {
+    ChangeIndex index = start();
+    index.replace(id(1), terms("topic:a", "file:x\ty\\z"));
+    index.replace(id(2), terms("topic:a"));
+    index.replace(id(2), terms("topic:b"));
+    index.setReady();
+    index.stop();
+
+    index = start();
+    assertTrue(index.isReady());
+    assertEquals(ids(1), index.search(terms("topic:a")));
+    assertEquals(ids(2), index.search(terms("topic:b")));
+    assertEquals(ids(1), index.search(terms("file:x\ty\\z")));
+    assertEquals(1, segments().length);
+  }
+
+  public void testSegments() throws Exception {
+    cfg.setLong("index", null, "segmentSize", 1);
+    final ChangeIndex index = start();
+    for (int i = 1; i <= 20; i++) {
+      index.replace(id(i), terms("topic:a"));
+    }
+    assertTrue(segments().length <= 8);
+    index.stop();
+
+    assertEquals(20, start().count("topic:a"));
+  }
+
+  public void testMergedSegment() throws Exception {
+    cfg.setLong("index", null, "segmentSize", 1);
+    ChangeIndex index = start();
+    for (int i = 1; i <= 40; i++) {
+      index.replace(id(i), terms("topic:a", "file:" + (100 + i)));
+    }
+    index.replace(id(2), terms("topic:b", "file:102"));
+    index.replace(id(3), Collections.<String> emptyList());
+    index.replace(id(41), terms("topic:b"));
+
+    for (int pass = 0; pass < 2; pass++) {
+      assertEquals(40, index.size());
+      assertEquals(38, index.count("topic:a"));
+      assertEquals(ids(2, 41), index.search(terms("topic:b")));
+      assertEquals(ids(2, 40), index.search(terms("file:102", "file:140")));
+      assertEquals(ids(), index.search(terms("file:103")));
+      assertEquals(terms("topic:a", "topic:b"), index.terms("topic:"));
+
+      final List<String> files = index.terms("file:1");
+      assertEquals(39, files.size());
+      assertEquals("file:101", files.get(0));
+      assertEquals("file:102", files.get(1));
+      assertEquals("file:104", files.get(2));
+      assertEquals("file:140", files.get(38));
+
+      index.stop();
+      index = start();
+    }
+    assertEquals(1, segments().length);
+  }
+
+  public void testSetIncomplete() throws Exception {
+    ChangeIndex index = start();
+    index.setReady();
+    index.setIncomplete();
+    assertFalse(index.isReady());
+    index.stop();
+
+    assertFalse(start().isReady());
+  }
+
+  public void testPartialRecord() throws Exception {
+    ChangeIndex index = start();
+    index.replace(id(1), terms("topic:a"));
+    index.stop();
+
+    final File[] segments = segments();
+    final FileOutputStream out =
+        new FileOutputStream(segments[segments.length - 1], true);
+    try {
+      out.write("2\ttopic:".getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+
+    index = start();
+    assertFalse(index.isReady());
+    assertEquals(ids(1), index.search(terms("topic:a")));
+    index.replace(id(3), terms("topic:a"));
+    index.stop();
+
+    assertEquals(ids(1, 3), start().search(terms("topic:a")));
+  }
+
+  public void testDirtyIndexIsRebuilt() throws Exception {
+    ChangeIndex index = start();
+    index.setReady();
+    index.markDirty();
+    index.replace(id(1), terms("topic:a"));
+    index.stop();
+
+    index = start();
+    assertFalse(index.isReady());
+    index.markClean();
+    index.stop();
+
+    // The index must still be rebuilt, even once nothing is queued.
+    assertFalse(start().isReady());
+  }
+
+  public void testCleanIndexStaysReady() throws Exception {
+    ChangeIndex index = start();
+    index.setReady();
+    index.markDirty();
+    index.replace(id(1), terms("topic:a"));
+    index.markClean();
+    index.stop();
+
+    assertTrue(start().isReady());
+  }
+
+  public void testLastUpdatedIsKept() throws Exception {
+    ChangeIndex index = start();
+    assertEquals(0, index.lastUpdated());
+    index.replace(id(1), terms("topic:a"));
+    index.stop();
+
+    final long when = (System.currentTimeMillis() - 3600 * 1000) / 1000 * 1000;
+    for (final File f : segments()) {
+      assertTrue(f.setLastModified(when));
+    }
+    assertEquals(when, start().lastUpdated());
+    assertEquals(when, start().lastUpdated());
+  }
+
+  public void testNewestFirst() throws Exception {
+    final ChangeIndex index = start();
+    index.replace(id(1), terms("topic:a", ChangeIndex.SORTKEY + "0002"));
+    index.replace(id(2), terms("topic:a", ChangeIndex.SORTKEY + "0003"));
+    index.replace(id(3), terms("topic:a", ChangeIndex.SORTKEY + "0001"));
+    index.replace(id(4), terms("topic:a"));
+
+    final List<Change.Id> all = index.search(terms("topic:a"));
+    assertEquals(ids(2, 1, 3, 4), index.newestFirst(all, null, null));
+    assertEquals(ids(2, 4), index.newestFirst(all, "0002", null));
+    assertEquals(ids(1, 3, 4), index.newestFirst(all, null, "0003"));
+    assertEquals(ids(1, 4), index.newestFirst(all, "0001", "0003"));
+    assertEquals(terms("topic:a"), index.terms(""));
+
+    index.replace(id(2), terms("topic:a", ChangeIndex.SORTKEY + "0000"));
+    assertEquals(ids(1, 3, 2, 4), index.newestFirst(all, null, null));
+  }
+
+  private ChangeIndex start() throws IOException {
+    final ChangeIndex index = new ChangeIndex(cfg, new SitePaths(site));
+    index.start();
+    assertTrue(index.isRunning());
+    return index;
+  }
+
+  private File[] segments() {
+    return new File(site, "data/index").listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File f) {
+        return f.getName().endsWith(".seg") || f.getName().endsWith(".idx");
+      }
+    });
+  }
+
+  private static Change.Id id(final int id) {
+    return new Change.Id(id);
+  }
+
+  private static List<Change.Id> ids(final int... ids) {
+    final List<Change.Id> r = new ArrayList<Change.Id>();
+    for (final int id : ids) {
+      r.add(id(id));
+    }
+    return r;
+  }
+
+  private static List<String> terms(final String... terms) {
+    return Arrays.asList(terms);
+  }
+
+  private static void delete(final File f) throws IOException {
+    final File[] children = f.listFiles();
+    if (children != null) {
+      for (final File c : children) {
+        delete(c);
+      }
+    }
+    if (f.exists() && !f.delete()) {
+      throw new IOException("Cannot delete " + f);
+    }
+  }
+}
@@ -0,0 +1,289 @@
+// Copyright (C) 2011 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.index;
+
+import com.google.gerrit.reviewdb.Account;
+import com.google.gerrit.reviewdb.Branch;
+import com.google.gerrit.reviewdb.Change;
+import com.google.gerrit.reviewdb.PatchSet;
+import com.google.gerrit.reviewdb.PatchSetInfo;
+import com.google.gerrit.reviewdb.Project;
+import com.google.gerrit.reviewdb.ReviewDb;
+import com.google.gerrit.reviewdb.RevId;
+import com.google.gerrit.server.ChangeUtil;
+import com.google.gerrit.server.config.SitePaths;
+import com.google.gerrit.server.patch.IntraLineDiff;
+import com.google.gerrit.server.patch.IntraLineDiffKey;
+import com.google.gerrit.server.patch.PatchList;
+import com.google.gerrit.server.patch.PatchListCache;
+import com.google.gerrit.server.patch.PatchListKey;
+import com.google.gerrit.testutil.InMemoryDatabase;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jgit.lib.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+public class ChangeIndexerTest extends TestCase {
+  private static final long HOUR = 60 * 60 * 1000;
+
+  private File site;
+  private InMemoryDatabase db;
+  private Queue queue;
+  private ChangeIndex index;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    site = File.createTempFile("indexer_", "_site");
+    site.delete();
+    db = new InMemoryDatabase().create();
+    queue = new Queue();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    if (index != null) {
+      index.stop();
+    }
+    InMemoryDatabase.drop(db);
+    delete(site);
+    super.tearDown();
+  }
+
+  public void testIndexAllWhenNotReady() throws Exception {
+    insert(1, Change.Status.NEW, 0);
+    insert(2, Change.Status.MERGED, 0);
+
+    restart().start();
+    assertFalse(index.isReady());
+    queue.runAll();
+
+    assertTrue(index.isReady());
+    assertEquals(ids(1), status(Change.Status.NEW));
+    assertEquals(ids(2), status(Change.Status.MERGED));
+  }
+
+  public void testQueuedUpdateLeavesIndexDirty() throws Exception {
+    insert(1, Change.Status.NEW, 0);
+    final ChangeIndexer indexer = restart();
+    indexer.start();
+    queue.runAll();
+
+    indexer.index(new Change.Id(1));
+    assertEquals(1, queue.size());
+
+    // The server stops before the update was written.
+    restart();
+    assertFalse(index.isReady());
+  }
+
+  public void testDrainedQueueLeavesIndexReady() throws Exception {
+    insert(1, Change.Status.NEW, 0);
+    final ChangeIndexer indexer = restart();
+    indexer.start();
+    queue.runAll();
+
+    indexer.index(new Change.Id(1));
+    indexer.index(new Change.Id(1));
+    assertEquals(1, queue.size());
+    queue.runAll();
+
+    restart();
+    assertTrue(index.isReady());
+  }
+
+  public void testChangesUpdatedWhileStoppedAreIndexed() throws Exception {
+    insert(1, Change.Status.NEW, 3);
+    restart().start();
+    queue.runAll();
+    index.stop();
+
+    // The index was last written two hours ago, when the server stopped.
+    final long stopped = System.currentTimeMillis() - 2 * HOUR;
+    for (final File f : new File(site, "data/index").listFiles()) {
+      if (f.getName().endsWith(".seg")) {
+        assertTrue(f.setLastModified(stopped));
+      }
+    }
+
+    insert(2, Change.Status.NEW, 0);
+    insert(3, Change.Status.ABANDONED, 1);
+    insert(4, Change.Status.MERGED, 4);
+    restart().start();
+    assertTrue(index.isReady());
+    assertEquals(1, queue.size());
+    queue.runAll();
+
+    assertEquals(ids(1, 2), status(Change.Status.NEW));
+    assertEquals(ids(3), status(Change.Status.ABANDONED));
+    assertEquals(ids(), status(Change.Status.MERGED));
+
+    restart();
+    assertTrue(index.isReady());
+  }
+
+  public void testChangeWhichCannotBeIndexedMakesIndexIncomplete()
+      throws Exception {
+    insert(1, Change.Status.NEW, 0);
+    final ChangeIndexer indexer = restart();
+    indexer.start();
+    queue.runAll();
+    assertTrue(index.isReady());
+
+    // The files of a patch set cannot be listed.
+    insertWithPatchSet(2);
+    indexer.index(new Change.Id(2));
+    queue.runAll();
+    assertFalse(index.isReady());
+
+    restart();
+    assertFalse(index.isReady());
+  }
+
+  public void testChangeWhichCannotBeIndexedKeepsIndexNotReady()
+      throws Exception {
+    insert(1, Change.Status.NEW, 0);
+    insertWithPatchSet(2);
+
+    restart().start();
+    queue.runAll();
+    assertFalse(index.isReady());
+    assertEquals(ids(1), status(Change.Status.NEW));
+  }
+
+  /** Open the index again, as a restarted server would. */
+  private ChangeIndexer restart() {
+    if (index != null) {
+      index.stop();
+    }
+    index = new ChangeIndex(new Config(), new SitePaths(site));
+    index.start();
+    assertTrue(index.isRunning());
+    return new ChangeIndexer(index, db, null, new BrokenPatchListCache(),
+        queue);
+  }
+
+  /** Insert a change without patch sets, last updated hours ago. */
+  private void insert(final int id, final Change.Status status,
+      final int hours) throws Exception {
+    final Project.NameKey project = new Project.NameKey("test");
+    final Change c = new Change(new Change.Key("I" + id), new Change.Id(id),
+        new Account.Id(1), new Branch.NameKey(project, "refs/heads/master"));
+    c.setStatus(status);
+    c.setSortKey(ChangeUtil.sortKey(
+        System.currentTimeMillis() - hours * HOUR, id));
+
+    final ReviewDb d = db.open();
+    try {
+      d.changes().insert(Collections.singleton(c));
+    } finally {
+      d.close();
+    }
+  }
+
+  /** Insert a new change with one patch set. */
+  private void insertWithPatchSet(final int id) throws Exception {
+    final Project.NameKey project = new Project.NameKey("test");
+    final Change c = new Change(new Change.Key("I" + id), new Change.Id(id),
+        new Account.Id(1), new Branch.NameKey(project, "refs/heads/master"));
+    final PatchSetInfo info = new PatchSetInfo(new PatchSet.Id(c.getId(), 1));
+    info.setSubject("Change " + id);
+    c.setCurrentPatchSet(info);
+    ChangeUtil.computeSortKey(c);
+
+    final PatchSet ps = new PatchSet(info.getKey());
+    ps.setUploader(c.getOwner());
+    ps.setCreatedOn(new Timestamp(System.currentTimeMillis()));
+    ps.setRevision(new RevId("0123456789012345678901234567890123456789"));
+
+    final ReviewDb d = db.open();
+    try {
+      d.changes().insert(Collections.singleton(c));
+      d.patchSets().insert(Collections.singleton(ps));
+    } finally {
+      d.close();
+    }
+  }
+
+  private List<Change.Id> status(final Change.Status s) {
+    return index.search(
+        Collections.singletonList(ChangeIndex.STATUS + s.getCode()));
+  }
+
+  private static List<Change.Id> ids(final int... ids) {
+    final List<Change.Id> r = new ArrayList<Change.Id>();
+    for (final int id : ids) {
+      r.add(new Change.Id(id));
+    }
+    return r;
+  }
+
+  private static void delete(final File f) throws IOException {
+    final File[] children = f.listFiles();
+    if (children != null) {
+      for (final File c : children) {
+        delete(c);
+      }
+    }
+    if (f.exists() && !f.delete()) {
+      throw new IOException("Cannot delete " + f);
+    }
+  }
+
+  private static class BrokenPatchListCache implements PatchListCache {
+    @Override
+    public PatchList get(final PatchListKey key) {
+      throw new IllegalStateException("Cannot read " + key);
+    }
+
+    @Override
+    public PatchList get(final Change change, final PatchSet patchSet) {
+      throw new IllegalStateException("Cannot read " + patchSet.getId());
+    }
+
+    @Override
+    public IntraLineDiff getIntraLineDiff(final IntraLineDiffKey key) {
+      throw new IllegalStateException("Cannot read " + key);
+    }
+  }
+
+  /** Runs queued tasks only when told to. */
+  private static class Queue implements Executor {
+    private final List<Runnable> tasks = new ArrayList<Runnable>();
+
+    @Override
+    public void execute(final Runnable task) {
+      tasks.add(task);
+    }
+
+    int size() {
+      return tasks.size();
+    }
+
+    void runAll() {
+      while (!tasks.isEmpty()) {
+        tasks.remove(0).run();
+      }
+    }
+  }
+}
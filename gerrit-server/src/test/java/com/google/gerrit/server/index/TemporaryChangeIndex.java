@@ -0,0 +1,66 @@
+// Copyright (C) 2011 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.index;
+
+import com.google.gerrit.server.config.SitePaths;
+
+import org.eclipse.jgit.lib.Config;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A running {@link ChangeIndex} in a temporary site.
+ * <p>
+ * Test classes outside this package should create one instance for each
+ * test, and {@link #delete()} it once done.
+ */
+public class TemporaryChangeIndex {
+  private final File site;
+  private final ChangeIndex index;
+
+  public TemporaryChangeIndex() throws IOException {
+    site = File.createTempFile("index_", "_site");
+    site.delete();
+    index = new ChangeIndex(new Config(), new SitePaths(site));
+    index.start();
+  }
+
+  public ChangeIndex get() {
+    return index;
+  }
+
+  /** Trust the index, as if every change had been indexed. */
+  public void setReady() throws IOException {
+    index.setReady();
+  }
+
+  public void delete() throws IOException {
+    index.stop();
+    delete(site);
+  }
+
+  private static void delete(final File f) throws IOException {
+    final File[] children = f.listFiles();
+    if (children != null) {
+      for (final File c : children) {
+        delete(c);
+      }
+    }
+    if (f.exists() && !f.delete()) {
+      throw new IOException("Cannot delete " + f);
+    }
+  }
+}
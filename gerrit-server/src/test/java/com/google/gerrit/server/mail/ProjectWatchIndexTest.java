@@ -0,0 +1,238 @@
+// Copyright (C) 2011 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.mail;
+
+import com.google.gerrit.reviewdb.Account;
+import com.google.gerrit.reviewdb.AccountProjectWatch;
+import com.google.gerrit.reviewdb.Branch;
+import com.google.gerrit.reviewdb.Change;
+import com.google.gerrit.reviewdb.Project;
+import com.google.gerrit.server.account.ProjectWatchCache;
+import com.google.gerrit.server.cache.Cache;
+import com.google.gerrit.server.query.OperatorPredicate;
+import com.google.gerrit.server.query.Predicate;
+import com.google.gerrit.server.query.QueryParseException;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.google.gerrit.server.query.change.ChangeQueryBuilder;
+import com.google.gwtorm.client.OrmException;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class ProjectWatchIndexTest extends TestCase {
+  private final Project.NameKey project = new Project.NameKey("test");
+  private final Project.NameKey wild = new Project.NameKey("-- All --");
+
+  private Watches watches;
+  private Cache<Object, Object> cache;
+  private CountingParser parser;
+  private ProjectWatchIndex index;
+
+  private AccountProjectWatch all;
+  private AccountProjectWatch master;
+  private AccountProjectWatch stable;
+  private AccountProjectWatch topic;
+  private AccountProjectWatch hidden;
+
+  @Override
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  protected void setUp() throws Exception {
+    super.setUp();
+    all = watch(1, null);
+    master = watch(2, "branch:master");
+    stable = watch(3, "branch:stable");
+    topic = watch(4, "topic:feature");
+    hidden = watch(5, null);
+
+    watches = new Watches();
+    watches.put(project, all, master, stable, topic, hidden);
+    watches.put(wild);
+    cache = new MapCache<Object, Object>();
+    parser = new CountingParser(hidden.getAccountId());
+    index = new ProjectWatchIndex(watches, wild, (Cache) cache);
+  }
+
+  public void testSameRecipientsFromBuiltIndex() throws OrmException {
+    assertEquals(expected(), recipients());
+    assertEquals(3, parser.parsed);
+
+    assertEquals(expected(), recipients());
+    assertEquals(3, parser.parsed);
+  }
+
+  public void testFiltersAreRewrittenForEachChange() throws OrmException {
+    // Only the matching branch and topic filters are evaluated.
+    //
+    assertEquals(expected(), recipients());
+    assertEquals(2, parser.rewritten);
+
+    assertEquals(expected(), recipients());
+    assertEquals(3, parser.parsed);
+    assertEquals(4, parser.rewritten);
+  }
+
+  public void testSameRecipientsAfterWatchesAreEvicted()
+      throws OrmException {
+    assertEquals(expected(), recipients());
+
+    watches.evict(project);
+    assertEquals(expected(), recipients());
+    assertEquals(6, parser.parsed);
+  }
+
+  public void testSameRecipientsAfterIndexIsFlushed() throws OrmException {
+    assertEquals(expected(), recipients());
+
+    cache.removeAll();
+    assertEquals(expected(), recipients());
+    assertEquals(6, parser.parsed);
+  }
+
+  public void testNewWatchIsUsedAfterEviction() throws OrmException {
+    assertEquals(expected(), recipients());
+
+    final AccountProjectWatch late = watch(6, "branch:master");
+    watches.put(project, all, master, stable, topic, hidden, late);
+    watches.evict(project);
+
+    final List<AccountProjectWatch> r = new ArrayList<AccountProjectWatch>();
+    r.addAll(expected());
+    r.add(late);
+    assertEquals(r, recipients());
+  }
+
+  private List<AccountProjectWatch> expected() {
+    return Arrays.asList(all, master, topic);
+  }
+
+  private List<AccountProjectWatch> recipients() throws OrmException {
+    final Change c = new Change(new Change.Key("I1"), new Change.Id(1),
+        new Account.Id(1), new Branch.NameKey(project, "refs/heads/master"));
+    c.setTopic("feature");
+    return index.getWatches(parser, new ChangeData(c), c);
+  }
+
+  private AccountProjectWatch watch(final int id, final String filter) {
+    return new AccountProjectWatch(new AccountProjectWatch.Key(
+        new Account.Id(id), project, filter));
+  }
+
+  private static class Watches implements ProjectWatchCache {
+    private final Map<Project.NameKey, List<AccountProjectWatch>> lists =
+        new HashMap<Project.NameKey, List<AccountProjectWatch>>();
+
+    void put(final Project.NameKey p, final AccountProjectWatch... w) {
+      lists.put(p, Collections.unmodifiableList(Arrays.asList(w)));
+    }
+
+    public List<AccountProjectWatch> byProject(final Project.NameKey p) {
+      return lists.get(p);
+    }
+
+    public void evict(final Project.NameKey p) {
+      // Like the real cache, the next lookup returns a new list.
+      lists.put(p, Collections.unmodifiableList(
+          new ArrayList<AccountProjectWatch>(lists.get(p))));
+    }
+  }
+
+  private static class CountingParser extends ProjectWatchIndex.Parser {
+    private final Account.Id hidden;
+    int parsed;
+    int rewritten;
+
+    CountingParser(final Account.Id hidden) {
+      super(null, null, null, null);
+      this.hidden = hidden;
+    }
+
+    @Override
+    Predicate<ChangeData> parse(final Account.Id who, final String filter)
+        throws QueryParseException {
+      parsed++;
+      final int colon = filter.indexOf(':');
+      if (colon < 0) {
+        throw new QueryParseException("Unsupported " + filter);
+      }
+      return new FieldPredicate(filter.substring(0, colon),
+          filter.substring(colon + 1));
+    }
+
+    @Override
+    Predicate<ChangeData> rewrite(final Predicate<ChangeData> p) {
+      rewritten++;
+      return p;
+    }
+
+    @Override
+    Predicate<ChangeData> isVisible(final Account.Id who) {
+      final boolean v = !hidden.equals(who);
+      return new FieldPredicate("visible", String.valueOf(v));
+    }
+  }
+
+  private static class FieldPredicate extends OperatorPredicate<ChangeData> {
+    FieldPredicate(final String name, final String value) {
+      super(name, value);
+    }
+
+    @Override
+    public boolean match(final ChangeData cd) throws OrmException {
+      final Change c = cd.change(null);
+      if (ChangeQueryBuilder.FIELD_BRANCH.equals(getOperator())) {
+        return c.getDest().get().equals(Branch.R_HEADS + getValue());
+      } else if (ChangeQueryBuilder.FIELD_TOPIC.equals(getOperator())) {
+        return getValue().equals(c.getTopic());
+      }
+      return Boolean.parseBoolean(getValue());
+    }
+
+    @Override
+    public int getCost() {
+      return 1;
+    }
+  }
+
+  private static class MapCache<K, V> implements Cache<K, V> {
+    private final Map<K, V> map = new HashMap<K, V>();
+
+    public V get(final K key) {
+      return map.get(key);
+    }
+
+    public void put(final K key, final V value) {
+      map.put(key, value);
+    }
+
+    public void remove(final K key) {
+      map.remove(key);
+    }
+
+    public void removeAll() {
+      map.clear();
+    }
+
+    public long getTimeToLive(final TimeUnit unit) {
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,183 @@
+// Copyright (C) 2011 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.mail;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jgit.lib.Config;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SmtpTransportTest extends TestCase {
+  private FakeSmtpServer server;
+  private MailStats stats;
+  private SmtpTransport transport;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    server = new FakeSmtpServer();
+    server.start();
+
+    final Config cfg = new Config();
+    cfg.setString("sendemail", null, "smtpserver", "127.0.0.1");
+    cfg.setInt("sendemail", null, "smtpserverport", server.getPort());
+    stats = new MailStats();
+    transport = new SmtpTransport(cfg, stats);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    transport.close();
+    server.close();
+    super.tearDown();
+  }
+
+  public void testReusesConnection() throws Exception {
+    transport.deliver(message("a@example.com"));
+    transport.deliver(message("b@example.com"));
+
+    assertEquals(1, server.connections.get());
+    assertEquals(2, server.messages.size());
+    assertTrue(server.messages.get(1).contains("Hello b@example.com"));
+    assertEquals(1, stats.getConnectionsOpened());
+    assertEquals(1, stats.getConnectionsReused());
+  }
+
+  public void testPermanentRejection() throws Exception {
+    try {
+      transport.deliver(message("nobody@example.com"));
+      fail("delivered to rejected recipient");
+    } catch (EmailException e) {
+      assertTrue(e.getMessage().contains("nobody@example.com"));
+    }
+    assertTrue(server.messages.isEmpty());
+  }
+
+  public void testTemporaryRejection() throws Exception {
+    try {
+      transport.deliver(message("busy@example.com"));
+      fail("delivered to busy recipient");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("busy@example.com"));
+    }
+
+    // The connection was dropped, the next message needs a new one.
+    //
+    transport.deliver(message("a@example.com"));
+    assertEquals(2, stats.getConnectionsOpened());
+    assertEquals(1, server.messages.size());
+  }
+
+  private static SpooledEmail message(final String to) {
+    return new SpooledEmail("review@example.com", Arrays.asList(to),
+        "Subject: test\r\n\r\nHello " + to + "\n");
+  }
+
+  /** Accepts mail for anyone, except nobody@ (550) and busy@ (450). */
+  private static class FakeSmtpServer extends Thread {
+    final ServerSocket socket;
+    final AtomicInteger connections = new AtomicInteger();
+    final List<String> messages =
+        Collections.synchronizedList(new ArrayList<String>());
+
+    FakeSmtpServer() throws IOException {
+      super("FakeSmtpServer");
+      socket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+      setDaemon(true);
+    }
+
+    int getPort() {
+      return socket.getLocalPort();
+    }
+
+    void close() throws IOException {
+      socket.close();
+    }
+
+    @Override
+    public void run() {
+      try {
+        for (;;) {
+          final Socket s = socket.accept();
+          connections.incrementAndGet();
+          new Thread() {
+            @Override
+            public void run() {
+              try {
+                serve(s);
+              } catch (IOException e) {
+                // Client went away.
+              }
+            }
+          }.start();
+        }
+      } catch (IOException e) {
+        // Server socket closed.
+      }
+    }
+
+    private void serve(final Socket s) throws IOException {
+      final BufferedReader in =
+          new BufferedReader(new InputStreamReader(s.getInputStream(),
+              "UTF-8"));
+      final OutputStream out = s.getOutputStream();
+      try {
+        reply(out, "220 fake ESMTP");
+        String line;
+        while ((line = in.readLine()) != null) {
+          final String cmd = line.toUpperCase();
+          if (cmd.startsWith("RCPT") && cmd.contains("NOBODY@")) {
+            reply(out, "550 no such user");
+          } else if (cmd.startsWith("RCPT") && cmd.contains("BUSY@")) {
+            reply(out, "450 mailbox busy");
+          } else if (cmd.startsWith("DATA")) {
+            reply(out, "354 go ahead");
+            final StringBuilder msg = new StringBuilder();
+            while ((line = in.readLine()) != null && !line.equals(".")) {
+              msg.append(line).append('\n');
+            }
+            messages.add(msg.toString());
+            reply(out, "250 queued");
+          } else if (cmd.startsWith("QUIT")) {
+            reply(out, "221 bye");
+            return;
+          } else {
+            reply(out, "250 ok");
+          }
+        }
+      } finally {
+        s.close();
+      }
+    }
+
+    private static void reply(final OutputStream out, final String msg)
+        throws IOException {
+      out.write((msg + "\r\n").getBytes("UTF-8"));
+      out.flush();
+    }
+  }
+}
@@ -0,0 +1,53 @@
+// Copyright (C) 2011 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.mail;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class SpooledEmailTest extends TestCase {
+  public void testRoundTrip() throws IOException {
+    final SpooledEmail msg = new SpooledEmail("review@example.com", //
+        Arrays.asList("a@example.com", "b@example.com"), //
+        "Subject: Change I1234: F\u00f6\u00f6\r\n\r\nHello\n");
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    msg.writeTo(out);
+    final SpooledEmail r =
+        SpooledEmail.readFrom(new ByteArrayInputStream(out.toByteArray()));
+
+    assertEquals(msg.getFrom(), r.getFrom());
+    assertEquals(msg.getRecipients(), r.getRecipients());
+    assertEquals(msg.getMessage(), r.getMessage());
+  }
+
+  public void testUnknownVersion() {
+    try {
+      SpooledEmail.readFrom(new ByteArrayInputStream(new byte[] {9}));
+      fail("accepted unknown format");
+    } catch (IOException e) {
+      assertEquals("Unsupported spool format 9", e.getMessage());
+    }
+  }
+
+  public void testToString() {
+    assertEquals("send email from a@b to 1 recipient", //
+        new SpooledEmail("a@b", Arrays.asList("c@d"), "").toString());
+  }
+}
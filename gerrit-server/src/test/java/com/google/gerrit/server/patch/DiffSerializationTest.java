@@ -0,0 +1,103 @@
+// Copyright (C) 2011 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.patch;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jgit.diff.Edit;
+import org.eclipse.jgit.lib.Constants;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class DiffSerializationTest extends TestCase {
+  public void testEdits() throws IOException {
+    final List<Edit> edits = Arrays.asList( //
+        new Edit(0, 1, 0, 0), //
+        new Edit(5, 9, 4, 12), //
+        new Edit(9, 9, 12, 300), //
+        new Edit(70000, 70002, 80000, 80000));
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DiffSerialization.writeEdits(out, edits);
+    final Edit[] r = DiffSerialization.readEdits(in(out));
+    assertEquals(edits, Arrays.asList(r));
+  }
+
+  public void testNoEdits() throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DiffSerialization.writeEdits(out, Collections.<Edit> emptyList());
+    assertEquals(1, out.size());
+    assertEquals(0, DiffSerialization.readEdits(in(out)).length);
+  }
+
+  public void testNames() throws IOException {
+    final String[] names = {null, "/COMMIT_MSG", "src/a/B.java",
+        "src/a/B.java", "src/a/C.java", "src/a", "x", null, ""};
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    String prior = null;
+    for (final String n : names) {
+      DiffSerialization.writeName(out, n, prior);
+      prior = n;
+    }
+
+    final ByteArrayInputStream in = in(out);
+    prior = null;
+    for (final String n : names) {
+      final String r = DiffSerialization.readName(in, prior);
+      assertEquals(n, r);
+      prior = r;
+    }
+    assertEquals(-1, in.read());
+  }
+
+  public void testSmallBlock() throws IOException {
+    final byte[] raw = {1, 2, 3};
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DiffSerialization.writeBlock(out, raw);
+    assertEquals(raw.length + 2, out.size());
+    assertTrue(Arrays.equals(raw, DiffSerialization.readBlock(in(out))));
+  }
+
+  public void testDeflatedBlock() throws IOException {
+    final byte[] raw = Constants.encode("" //
+        + "diff --git a/src/Main.java b/src/Main.java\n" //
+        + "index 1234567..89abcde 100644\n" //
+        + "--- a/src/Main.java\n" //
+        + "+++ b/src/Main.java\n");
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DiffSerialization.writeBlock(out, raw);
+    assertTrue(out.size() < raw.length);
+    assertTrue(Arrays.equals(raw, DiffSerialization.readBlock(in(out))));
+  }
+
+  public void testUnknownVersion() {
+    try {
+      DiffSerialization.readBlock(new ByteArrayInputStream(new byte[] {7, 0}));
+      fail("accepted unknown format");
+    } catch (IOException e) {
+      assertEquals("Unsupported diff format 7", e.getMessage());
+    }
+  }
+
+  private static ByteArrayInputStream in(final ByteArrayOutputStream out) {
+    return new ByteArrayInputStream(out.toByteArray());
+  }
+}
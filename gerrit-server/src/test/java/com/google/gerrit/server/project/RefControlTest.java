@@ -191,6 +191,20 @@ public class RefControlTest extends TestCase {
         u.controlForRef("refs/heads/master").canUpload());
   }
 
+  public void testRegexSection() {
+    grant(parent, SUBMIT, registered, "refs/heads/*");
+    grant(local, SUBMIT, devs, "^refs/heads/rel-[0-9]+");
+    doNotInherit(local, SUBMIT, "^refs/heads/rel-[0-9]+");
+
+    ProjectControl u = user();
+    assertTrue("can submit", u.controlForRef("refs/heads/master").canSubmit());
+    assertTrue("can submit", u.controlForRef("refs/heads/rel-x").canSubmit());
+    assertFalse("can't submit", u.controlForRef("refs/heads/rel-1").canSubmit());
+
+    ProjectControl uDev = user(devs);
+    assertTrue("can submit", uDev.controlForRef("refs/heads/rel-1").canSubmit());
+  }
+
 
   // -----------------------------------------------------------------------
 
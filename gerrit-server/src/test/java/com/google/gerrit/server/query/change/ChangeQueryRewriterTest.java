@@ -0,0 +1,172 @@
+// Copyright (C) 2011 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.query.change;
+
+import com.google.gerrit.reviewdb.Account;
+import com.google.gerrit.reviewdb.Branch;
+import com.google.gerrit.reviewdb.Change;
+import com.google.gerrit.reviewdb.Project;
+import com.google.gerrit.reviewdb.ReviewDb;
+import com.google.gerrit.server.ChangeUtil;
+import com.google.gerrit.server.index.ChangeIndex;
+import com.google.gerrit.server.index.TemporaryChangeIndex;
+import com.google.gerrit.server.query.Predicate;
+import com.google.gerrit.server.query.QueryParseException;
+import com.google.gerrit.testutil.InMemoryDatabase;
+import com.google.gwtorm.client.OrmException;
+import com.google.inject.Provider;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class ChangeQueryRewriterTest extends TestCase {
+  private static final long MINUTE = 60 * 1000;
+
+  private InMemoryDatabase db;
+  private ReviewDb rdb;
+  private TemporaryChangeIndex index;
+  private ChangeQueryRewriter rewriter;
+  private ChangeQueryBuilder builder;
+  private final long now = System.currentTimeMillis();
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    db = new InMemoryDatabase().create();
+    rdb = db.open();
+    index = new TemporaryChangeIndex();
+
+    final Provider<ReviewDb> dbProvider = new Provider<ReviewDb>() {
+      @Override
+      public ReviewDb get() {
+        return rdb;
+      }
+    };
+    rewriter = new ChangeQueryRewriter(dbProvider, index.get());
+    builder = new ChangeQueryBuilder(new ChangeQueryBuilder.Arguments( //
+        dbProvider, //
+        new Provider<ChangeQueryRewriter>() {
+          @Override
+          public ChangeQueryRewriter get() {
+            return rewriter;
+          }
+        }, //
+        null, null, null, null, null, null, null, //
+        null, null, null, null), null);
+
+    for (int i = 1; i <= 5; i++) {
+      insert(i, "master", i == 4 ? Change.Status.MERGED : Change.Status.NEW);
+    }
+    insert(6, "stable", Change.Status.NEW);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    rdb.close();
+    index.delete();
+    InMemoryDatabase.drop(db);
+    super.tearDown();
+  }
+
+  public void testBranchIsKeptUntilIndexIsReady() throws Exception {
+    final Predicate<ChangeData> p = builder.parse("branch:master");
+    assertEquals(p, rewriter.rewrite(p));
+  }
+
+  public void testBranchFromIndex() throws Exception {
+    index.setReady();
+    final Predicate<ChangeData> r = rewrite("branch:master");
+    assertTrue(r instanceof ChangeDataSource);
+    assertEquals(ids(5, 4, 3, 2, 1), read(r));
+  }
+
+  public void testLimitReadsOnePage() throws Exception {
+    index.setReady();
+    final Predicate<ChangeData> r = rewrite("branch:master limit:2");
+    assertTrue(r instanceof AndSource);
+    assertEquals(ids(5, 4), read(r));
+    assertEquals(2, ((AndSource) r).getRowsRead());
+  }
+
+  public void testLimitReadsNextPageAfterSkippedChanges() throws Exception {
+    index.setReady();
+    final Predicate<ChangeData> r =
+        rewrite("branch:master status:open limit:2");
+    assertTrue(r instanceof AndSource);
+    assertEquals(ids(5, 3, 2), read(r));
+    assertEquals(4, ((AndSource) r).getRowsRead());
+  }
+
+  public void testSortKeyBefore() throws Exception {
+    index.setReady();
+    final Predicate<ChangeData> r = rewrite("branch:master sortkey_before:"
+        + sortKey(4) + " limit:2");
+    assertEquals(ids(3, 2), read(r));
+  }
+
+  public void testSortKeyAfter() throws Exception {
+    index.setReady();
+    final Predicate<ChangeData> r = rewrite("branch:master sortkey_after:"
+        + sortKey(2) + " limit:2");
+    assertEquals(ids(3, 4), read(r));
+  }
+
+  private Predicate<ChangeData> rewrite(final String query)
+      throws QueryParseException {
+    return rewriter.rewrite(builder.parse(query));
+  }
+
+  /** Insert and index a change, updated {@code id} minutes from now. */
+  private void insert(final int id, final String branch,
+      final Change.Status status) throws OrmException {
+    final Project.NameKey project = new Project.NameKey("test");
+    final Change c = new Change(new Change.Key("I" + id), new Change.Id(id),
+        new Account.Id(1), new Branch.NameKey(project, Branch.R_HEADS
+            + branch));
+    c.setStatus(status);
+    c.setSortKey(sortKey(id));
+    rdb.changes().insert(Collections.singleton(c));
+
+    index.get().replace(c.getId(), Arrays.asList( //
+        ChangeIndex.BRANCH + c.getDest().get(), //
+        ChangeIndex.STATUS + status.getCode(), //
+        ChangeIndex.SORTKEY + c.getSortKey()));
+  }
+
+  private String sortKey(final int id) {
+    return ChangeUtil.sortKey(now + id * MINUTE, id);
+  }
+
+  private static List<Change.Id> read(final Predicate<ChangeData> p)
+      throws OrmException {
+    final List<Change.Id> r = new ArrayList<Change.Id>();
+    for (final ChangeData cd : ((ChangeDataSource) p).read()) {
+      r.add(cd.getId());
+    }
+    return r;
+  }
+
+  private static List<Change.Id> ids(final int... ids) {
+    final List<Change.Id> r = new ArrayList<Change.Id>();
+    for (final int id : ids) {
+      r.add(new Change.Id(id));
+    }
+    return r;
+  }
+}
@@ -14,7 +14,10 @@
 
 package com.google.gerrit.sshd.commands;
 
+import com.google.gerrit.server.cache.CacheStats;
+import com.google.gerrit.server.patch.IntraLineStats;
 import com.google.gerrit.sshd.AdminCommand;
+import com.google.inject.Inject;
 
 import net.sf.ehcache.Ehcache;
 import net.sf.ehcache.Statistics;
@@ -28,6 +31,9 @@ import java.io.PrintWriter;
 /** Show the current cache states. */
 @AdminCommand
 final class AdminShowCaches extends CacheCommand {
+  @Inject
+  private IntraLineStats intraLineStats;
+
   private PrintWriter p;
 
   @Override
@@ -102,6 +108,40 @@ final class AdminShowCaches extends CacheCommand {
     }
     p.println();
 
+    p.print(String.format(//
+        "  %-18s|%8s %8s|%8s %6s %6s %6s|%8s|%7s %7s %7s|\n" //
+        , "Name" //
+        , "Hits" //
+        , "Misses" //
+        , "Loads" //
+        , "Fail" //
+        , "Busy" //
+        , "Joined" //
+        , "Evicted" //
+        , "AvgLoad" //
+        , "p50" //
+        , "p99" //
+    ));
+    p.println("--------------------+-----------------+-------------------"
+        + "----------+--------+-----------------------+");
+    for (final CacheStats s : cachePool.getStats().values()) {
+      p.print(String.format(//
+          "  %-18s|%8s %8s|%8s %6s %6s %6s|%8s|%7s %7s %7s|\n" //
+          , s.getName() //
+          , count(s.getHits()) //
+          , count(s.getMisses()) //
+          , count(s.getLoads()) //
+          , count(s.getLoadFailures()) //
+          , count(s.getLoadsInFlight()) //
+          , count(s.getCollapsed()) //
+          , count(s.getEvictions()) //
+          , duration(s.getAverageLoadMillis()) //
+          , bucket(s.getLoadPercentileMillis(50)) //
+          , bucket(s.getLoadPercentileMillis(99)) //
+          ));
+    }
+    p.println();
+
     final Runtime r = Runtime.getRuntime();
     final long mMax = r.maxMemory();
     final long mFree = r.freeMemory();
@@ -115,6 +155,21 @@ final class AdminShowCaches extends CacheCommand {
     fPercent("mem%", jgitBytes, mTotal);
     p.println();
 
+    final IntraLineStats il = intraLineStats;
+    final long ilDone = il.getComputed() + il.getFailed() + il.getTimeouts();
+    p.println("Intraline Diff Workers:");
+    fItemCount("threads", il.getThreads());
+    fItemCount("waiting", il.getWaiting());
+    fItemCount("computed", il.getComputed());
+    fItemCount("failed", il.getFailed());
+    fItemCount("timeouts", il.getTimeouts());
+    fItemCount("rejected", il.getRejected());
+    fPercent("timeout%", il.getTimeouts(), ilDone);
+    fMillis("avg wait", il.getAverageWaitMillis());
+    fMillis("max wait", il.getMaxWaitMillis());
+    fMillis("avg compute", il.getAverageComputeMillis());
+    p.println();
+
     p.println("JVM Heap:");
     fByteCount("max", mMax);
     fByteCount("inuse", mInuse);
@@ -145,6 +200,10 @@ final class AdminShowCaches extends CacheCommand {
     p.println(String.format("  %1$-12s: %2$6.2f %3$s", name, value, suffix));
   }
 
+  private void fMillis(final String name, final double ms) {
+    p.println(String.format("  %1$-12s: %2$9.1f ms", name, ms));
+  }
+
   private String count(long cnt) {
     if (cnt == 0) {
       return "";
@@ -164,6 +223,17 @@ final class AdminShowCaches extends CacheCommand {
     return String.format("%4.1f%s", ms, suffix);
   }
 
+  private String bucket(final long ms) {
+    if (ms == 0) {
+      return "";
+    } else if (ms == Long.MAX_VALUE) {
+      return ">10s";
+    } else if (ms >= 1000) {
+      return "<" + (ms / 1000) + "s";
+    }
+    return "<" + ms + "ms";
+  }
+
   private String interval(double ttl) {
     if (ttl == 0) {
       return "inf";
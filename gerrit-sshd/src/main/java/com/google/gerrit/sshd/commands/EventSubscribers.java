@@ -0,0 +1,71 @@
+// Copyright (C) 2011 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.sshd.commands;
+
+import com.google.gerrit.server.events.ChangeEvent;
+import com.google.gerrit.server.events.EventLog;
+import com.google.gson.Gson;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Tracks the {@code stream-events} connections and encodes their events. */
+@Singleton
+class EventSubscribers {
+  private final Gson gson = new Gson();
+  private final EventLog eventLog;
+  private final Set<StreamEvents> subscribers =
+      Collections.newSetFromMap(new ConcurrentHashMap<StreamEvents, Boolean>());
+
+  @Inject
+  EventSubscribers(final EventLog eventLog) {
+    this.eventLog = eventLog;
+  }
+
+  void add(final StreamEvents s) {
+    subscribers.add(s);
+  }
+
+  void remove(final StreamEvents s) {
+    subscribers.remove(s);
+  }
+
+  /** @return the connections currently streaming events. */
+  List<StreamEvents> getSubscribers() {
+    return new ArrayList<StreamEvents>(subscribers);
+  }
+
+  /**
+   * @return the event as one line of UTF-8 encoded JSON, shared with all
+   *         other subscribers sent the same event.
+   */
+  byte[] encode(final ChangeEvent event) {
+    return eventLog.encode(event);
+  }
+
+  byte[] toBytes(final Object message) {
+    try {
+      return (gson.toJson(message) + "\n").getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException("JVM lacks UTF-8 encoding", e);
+    }
+  }
+}
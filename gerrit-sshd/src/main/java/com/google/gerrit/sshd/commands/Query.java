@@ -51,6 +51,11 @@ class Query extends BaseCommand {
     processor.setIncludeApprovals(on);
   }
 
+  @Option(name = "--explain", usage = "Show how the query was executed")
+  void setExplain(boolean on) {
+    processor.setExplain(on);
+  }
+
   @Argument(index = 0, required = true, multiValued = true, metaVar = "QUERY", usage = "Query to execute")
   private List<String> query;
 
@@ -14,11 +14,15 @@
 
 package com.google.gerrit.sshd.commands;
 
+import com.google.gerrit.common.ChangeHookRunner;
+import com.google.gerrit.reviewdb.Branch;
 import com.google.gerrit.reviewdb.Project;
 import com.google.gerrit.server.CurrentUser;
+import com.google.gerrit.server.git.ChangeMergeQueue;
 import com.google.gerrit.server.git.WorkQueue;
 import com.google.gerrit.server.git.WorkQueue.ProjectTask;
 import com.google.gerrit.server.git.WorkQueue.Task;
+import com.google.gerrit.server.mail.MailStats;
 import com.google.gerrit.server.project.ProjectCache;
 import com.google.gerrit.server.project.ProjectState;
 import com.google.gerrit.server.util.IdGenerator;
@@ -35,6 +39,7 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 /** Display the current work queue. */
@@ -46,6 +51,18 @@ final class ShowQueue extends BaseCommand {
   @Inject
   private WorkQueue workQueue;
 
+  @Inject
+  private ChangeMergeQueue mergeQueue;
+
+  @Inject
+  private MailStats mailStats;
+
+  @Inject
+  private EventSubscribers eventSubscribers;
+
+  @Inject
+  private ChangeHookRunner hooks;
+
   @Inject
   private ProjectCache projectCache;
 
@@ -179,6 +196,38 @@ final class ShowQueue extends BaseCommand {
     }
 
     p.print("  " + numberOfPendingTasks + " tasks\n");
+    if (isAdministrator) {
+      p.print("  " + mergeQueue.getQueueDepth() + " merges waiting, longest "
+          + mergeQueue.getMaxWaitTime(TimeUnit.MILLISECONDS) + " ms\n");
+      for (final Map.Entry<Branch.NameKey, Long> e : mergeQueue.getWaitTimes(
+          TimeUnit.MILLISECONDS).entrySet()) {
+        p.print("    " + e.getKey().getParentKey().get() + " "
+            + e.getKey().getShortName() + " waiting " + e.getValue()
+            + " ms\n");
+      }
+      p.print("  " + mailStats.getSpooled() + " emails spooled, " //
+          + mailStats.getSent() + " sent, " //
+          + mailStats.getRetried() + " retried, " //
+          + mailStats.getFailed() + " failed\n");
+      p.print("  " + mailStats.getConnectionsOpened()
+          + " SMTP connections opened, " //
+          + mailStats.getConnectionsReused() + " reused\n");
+      for (final ChangeHookRunner.HookQueue h : hooks.getHookQueues()) {
+        if (0 < h.getCompleted() || 0 < h.getRunning()) {
+          p.print("  hook " + h.getName() + ": " //
+              + h.getRunning() + " running, " //
+              + h.getWaiting() + " waiting, " //
+              + h.getCompleted() + " done, " //
+              + h.getTimedOut() + " timed out\n");
+        }
+      }
+      for (final StreamEvents s : eventSubscribers.getSubscribers()) {
+        p.print("  stream-events " + s.getUserName() + ": " //
+            + s.getQueued() + " queued, lag " + s.getLag() + " ms, " //
+            + s.getSent() + " sent, " //
+            + s.getDropped() + " dropped\n");
+      }
+    }
 
     p.flush();
   }
@@ -16,44 +16,89 @@ package com.google.gerrit.sshd.commands;
 
 import com.google.gerrit.common.ChangeHookRunner;
 import com.google.gerrit.common.ChangeListener;
+import com.google.gerrit.reviewdb.Branch;
 import com.google.gerrit.server.IdentifiedUser;
+import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.gerrit.server.events.ChangeEvent;
+import com.google.gerrit.server.events.EventLog;
 import com.google.gerrit.server.git.WorkQueue;
 import com.google.gerrit.server.git.WorkQueue.CancelableRunnable;
+import com.google.gerrit.server.project.ProjectCache;
+import com.google.gerrit.server.project.ProjectState;
 import com.google.gerrit.sshd.BaseCommand;
 import com.google.gerrit.sshd.StreamCommandExecutor;
-import com.google.gson.Gson;
 import com.google.inject.Inject;
 
 import org.apache.sshd.server.Environment;
+import org.eclipse.jgit.lib.Config;
+import org.kohsuke.args4j.Option;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
 
 final class StreamEvents extends BaseCommand {
-  /** Maximum number of events that may be queued up for each connection. */
+  /** Default number of events that may be queued up for each connection. */
   private static final int MAX_EVENTS = 128;
 
   /** Number of events to write before yielding off the thread. */
   private static final int BATCH_SIZE = 32;
 
+  @Option(name = "--resume-from", metaVar = "SEQ", //
+      usage = "first send the events logged after SEQ")
+  private long resumeFrom = -1;
+
   @Inject
   private IdentifiedUser currentUser;
 
   @Inject
   private ChangeHookRunner hooks;
 
+  @Inject
+  private EventSubscribers subscribers;
+
+  @Inject
+  private EventLog eventLog;
+
+  @Inject
+  private ProjectCache projectCache;
+
+  @Inject
+  @GerritServerConfig
+  private Config config;
+
   @Inject
   @StreamCommandExecutor
   private WorkQueue.Executor pool;
 
-  /** Queue of events to stream to the connected user. */
-  private final LinkedBlockingQueue<ChangeEvent> queue =
-      new LinkedBlockingQueue<ChangeEvent>(MAX_EVENTS);
+  /**
+   * Ring of encoded events to stream to the connected user.
+   * <p>
+   * The arrays are shared with every other connection that was sent the
+   * same event, and must not be modified.
+   */
+  private byte[][] queue;
+
+  /** Time each event in {@link #queue} was added, for reporting lag. */
+  private long[] queuedAt;
+
+  /** Sequence number of each event in {@link #queue}, 0 if not logged. */
+  private long[] queuedSeq;
 
-  private final Gson gson = new Gson();
+  /** Index of the oldest event in {@link #queue}. */
+  private int head;
+
+  /** Number of events in {@link #queue}. */
+  private int queued;
+
+  /** Number of events discarded because {@link #queue} was full. */
+  private long droppedCount;
+
+  /** Number of events written to the output. */
+  private volatile long sentCount;
 
   /** Special event to notify clients they missed other events. */
   private final Object droppedOutputEvent = new Object() {
@@ -68,6 +113,18 @@ final class StreamEvents extends BaseCommand {
     }
   };
 
+  private final CancelableRunnable replayer = new CancelableRunnable() {
+    @Override
+    public void run() {
+      replayEvents();
+    }
+
+    @Override
+    public void cancel() {
+      onExit(0);
+    }
+  };
+
   private final CancelableRunnable writer = new CancelableRunnable() {
     @Override
     public void run() {
@@ -89,6 +146,12 @@ final class StreamEvents extends BaseCommand {
   /** True if no more messages should be sent to the output. */
   private boolean done;
 
+  /** True while {@link #replayer} is sending events from the log. */
+  private boolean replaying;
+
+  /** Last sequence number sent by {@link #replayer}. */
+  private long replayTo;
+
   /**
    * Currently scheduled task to spin out {@link #queue}.
    * <p>
@@ -98,7 +161,10 @@ final class StreamEvents extends BaseCommand {
    */
   private Future<?> task;
 
-  private PrintWriter stdout;
+  private OutputStream stdout;
+
+  /** True if writing to {@link #stdout} has failed. */
+  private volatile boolean writeError;
 
   @Override
   public void start(final Environment env) throws IOException {
@@ -115,13 +181,38 @@ final class StreamEvents extends BaseCommand {
       return;
     }
 
-    stdout = toPrintWriter(out);
+    final int size = config.getInt("sshd", "streamBufferSize", MAX_EVENTS);
+    queue = new byte[Math.max(1, size)][];
+    queuedAt = new long[queue.length];
+    queuedSeq = new long[queue.length];
+    stdout = new BufferedOutputStream(out);
+    subscribers.add(this);
+
+    if (resumeFrom < 0) {
+      hooks.addChangeListener(listener, currentUser);
+      return;
+    }
+
+    // Live events are queued while the log is replayed. Any event logged
+    // after replayTo is delivered to the listener, as it was logged after
+    // the listener was added.
+    //
+    synchronized (taskLock) {
+      replaying = true;
+    }
     hooks.addChangeListener(listener, currentUser);
+    replayTo = eventLog.getLastSequence();
+    synchronized (taskLock) {
+      if (!done) {
+        task = pool.submit(replayer);
+      }
+    }
   }
 
   @Override
   protected void onExit(final int rc) {
     hooks.removeChangeListener(listener);
+    subscribers.remove(this);
 
     synchronized (taskLock) {
       done = true;
@@ -133,6 +224,7 @@ final class StreamEvents extends BaseCommand {
   @Override
   public void destroy() {
     hooks.removeChangeListener(listener);
+    subscribers.remove(this);
 
     final boolean exit;
     synchronized (taskLock) {
@@ -149,54 +241,152 @@ final class StreamEvents extends BaseCommand {
     }
   }
 
+  /** @return name of the user receiving the events. */
+  String getUserName() {
+    return currentUser.getUserName();
+  }
+
+  /** @return number of events waiting to be written. */
+  int getQueued() {
+    synchronized (taskLock) {
+      return queued;
+    }
+  }
+
+  /** @return milliseconds the oldest waiting event has waited, or 0. */
+  long getLag() {
+    synchronized (taskLock) {
+      if (queued == 0) {
+        return 0;
+      }
+      return System.currentTimeMillis() - queuedAt[head];
+    }
+  }
+
+  /** @return number of events discarded because the client was too slow. */
+  long getDropped() {
+    synchronized (taskLock) {
+      return droppedCount;
+    }
+  }
+
+  /** @return number of events written to the client. */
+  long getSent() {
+    return sentCount;
+  }
+
   private void offer(final ChangeEvent event) {
+    final byte[] json = subscribers.encode(event);
     synchronized (taskLock) {
-      if (!queue.offer(event)) {
+      if (queued < queue.length) {
+        final int i = (head + queued) % queue.length;
+        queue[i] = json;
+        queuedAt[i] = System.currentTimeMillis();
+        queuedSeq[i] = event.seq != null ? event.seq : 0;
+        queued++;
+      } else {
+        droppedCount++;
         dropped = true;
       }
 
-      if (task == null && !done) {
+      if (task == null && !done && !replaying) {
         task = pool.submit(writer);
       }
     }
   }
 
-  private ChangeEvent poll() {
+  private byte[] poll() {
     synchronized (taskLock) {
-      ChangeEvent event = queue.poll();
-      if (event == null) {
-        task = null;
+      while (0 < queued) {
+        final byte[] event = queue[head];
+        final long seq = queuedSeq[head];
+        queue[head] = null;
+        head = (head + 1) % queue.length;
+        queued--;
+
+        if (0 < seq && seq <= replayTo) {
+          // Already sent from the log.
+          continue;
+        }
+        return event;
+      }
+      task = null;
+      return null;
+    }
+  }
+
+  private void replayEvents() {
+    final Map<Branch.NameKey, Boolean> visible =
+        new HashMap<Branch.NameKey, Boolean>();
+    final long[] next = {resumeFrom + 1};
+
+    eventLog.replay(resumeFrom, replayTo, new EventLog.Visitor() {
+      @Override
+      public void onEvent(long seq, Branch.NameKey dest, byte[] json) {
+        if (next[0] < seq) {
+          write(subscribers.toBytes(droppedOutputEvent));
+        }
+        next[0] = seq + 1;
+
+        Boolean ok = visible.get(dest);
+        if (ok == null) {
+          ok = isVisible(dest);
+          visible.put(dest, ok);
+        }
+        if (ok) {
+          write(json);
+          sentCount++;
+        }
+      }
+    });
+    if (next[0] <= replayTo) {
+      write(subscribers.toBytes(droppedOutputEvent));
+    }
+    flush();
+
+    synchronized (taskLock) {
+      replaying = false;
+      task = null;
+      if (!done && (0 < queued || dropped || writeError)) {
+        task = pool.submit(writer);
       }
-      return event;
     }
   }
 
+  private boolean isVisible(final Branch.NameKey dest) {
+    final ProjectState pe = projectCache.get(dest.getParentKey());
+    return pe != null
+        && pe.controlFor(currentUser).controlForRef(dest).isVisible();
+  }
+
   private void writeEvents() {
     int processed = 0;
 
     while (processed < BATCH_SIZE) {
-      if (Thread.interrupted() || stdout.checkError()) {
+      if (Thread.interrupted() || writeError) {
         // The other side either requested a shutdown by calling our
         // destroy() above, or it closed the stream and is no longer
         // accepting output. Either way terminate this instance.
         //
         hooks.removeChangeListener(listener);
+        subscribers.remove(this);
         flush();
         onExit(0);
         return;
       }
 
       if (dropped) {
-        write(droppedOutputEvent);
+        write(subscribers.toBytes(droppedOutputEvent));
         dropped = false;
       }
 
-      final ChangeEvent event = poll();
+      final byte[] event = poll();
       if (event == null) {
         break;
       }
 
       write(event);
+      sentCount++;
       processed++;
     }
 
@@ -213,16 +403,23 @@ final class StreamEvents extends BaseCommand {
     }
   }
 
-  private void write(final Object message) {
-    final String msg = gson.toJson(message) + "\n";
+  private void write(final byte[] message) {
     synchronized (stdout) {
-      stdout.print(msg);
+      try {
+        stdout.write(message);
+      } catch (IOException e) {
+        writeError = true;
+      }
     }
   }
 
   private void flush() {
     synchronized (stdout) {
-      stdout.flush();
+      try {
+        stdout.flush();
+      } catch (IOException e) {
+        writeError = true;
+      }
     }
   }
 }
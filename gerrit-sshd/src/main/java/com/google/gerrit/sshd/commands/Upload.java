@@ -16,6 +16,7 @@ package com.google.gerrit.sshd.commands;
 
 import com.google.gerrit.reviewdb.ReviewDb;
 import com.google.gerrit.server.git.TransferConfig;
+import com.google.gerrit.server.git.VisibleRefCache;
 import com.google.gerrit.server.git.VisibleRefFilter;
 import com.google.gerrit.sshd.AbstractGitCommand;
 import com.google.inject.Inject;
@@ -31,6 +32,9 @@ final class Upload extends AbstractGitCommand {
   @Inject
   private Provider<ReviewDb> db;
 
+  @Inject
+  private VisibleRefCache visibleRefCache;
+
   @Inject
   private TransferConfig config;
 
@@ -42,7 +46,8 @@ final class Upload extends AbstractGitCommand {
 
     final UploadPack up = new UploadPack(repo);
     if (!projectControl.allRefsAreVisible()) {
-      up.setRefFilter(new VisibleRefFilter(repo, projectControl, db.get(), true));
+      up.setRefFilter(new VisibleRefFilter(repo, projectControl, db.get(),
+          visibleRefCache, true));
     }
     up.setPackConfig(config.getPackConfig());
     up.setTimeout(config.getTimeout());